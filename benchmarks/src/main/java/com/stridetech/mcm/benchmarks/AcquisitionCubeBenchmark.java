@@ -0,0 +1,89 @@
+package com.stridetech.mcm.benchmarks;
+
+import com.stridetech.mcm.dao.stats.AcquisitionCube;
+import com.stridetech.mcm.dao.stats.AcquisitionCubeQuery;
+import com.stridetech.mcm.dao.stats.AcquisitionDimension;
+import com.stridetech.mcm.dao.stats.AcquisitionGrain;
+import com.stridetech.mcm.dao.stats.AcquisitionRollup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Weekly sums of all the facts by tag and by business unit, sliced from the in-memory cube, against
+ * the same sums from the database with the rollups refreshed. The generated facts are copied back in
+ * time until they span {@link Cube#years} years.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AcquisitionCubeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cube {
+
+        /**
+         * Years of facts
+         */
+        @Param({"1", "3"})
+        public int years;
+
+        AcquisitionCube cube;
+        Date from;
+        Date to;
+
+        @Setup(Level.Trial)
+        public void setUp(CatalogState state) {
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(state.database.getDataSource());
+            LocalDate last = jdbcTemplate.queryForObject("SELECT max(statement_date) FROM stats.acquisition_facts", Date.class).toLocalDate();
+            LocalDate first = jdbcTemplate.queryForObject("SELECT min(statement_date) FROM stats.acquisition_facts", Date.class).toLocalDate();
+            int days = (int) (last.toEpochDay() - first.toEpochDay() + 1);
+            for (int shift = days; shift < years * 365; shift += days)
+                jdbcTemplate.update("INSERT INTO stats.acquisition_facts (campaign, statement_date, acquisitions, acquisitions_payable, " +
+                        "acquisitions_paid, acquisitions_not_paid, spend) SELECT campaign, statement_date - ?, acquisitions, " +
+                        "acquisitions_payable, acquisitions_paid, acquisitions_not_paid, spend FROM stats.acquisition_facts " +
+                        "WHERE statement_date >= ?", shift, Date.valueOf(first));
+            state.dao.refreshAcquisitionRollups();
+            from = jdbcTemplate.queryForObject("SELECT min(statement_date) FROM stats.acquisition_facts", Date.class);
+            to = Date.valueOf(last);
+            cube = new AcquisitionCube().load(state.database.getDataSource());
+        }
+    }
+
+    @Benchmark
+    public List<AcquisitionRollup> cubeByTag(Cube cube) {
+        return cube.cube.query(new AcquisitionCubeQuery(AcquisitionGrain.WEEK, AcquisitionDimension.TAG, cube.from, cube.to));
+    }
+
+    @Benchmark
+    public List<AcquisitionRollup> databaseByTag(CatalogState state, Cube cube) {
+        return state.dao.getAcquisitionRollups(AcquisitionGrain.WEEK, AcquisitionDimension.TAG, cube.from, cube.to);
+    }
+
+    @Benchmark
+    public List<AcquisitionRollup> cubeByBusinessUnit(Cube cube) {
+        return cube.cube.query(new AcquisitionCubeQuery(AcquisitionGrain.WEEK, AcquisitionDimension.BUSINESS_UNIT, cube.from, cube.to));
+    }
+
+    @Benchmark
+    public List<AcquisitionRollup> databaseByBusinessUnit(CatalogState state, Cube cube) {
+        return state.dao.getAcquisitionRollups(AcquisitionGrain.WEEK, AcquisitionDimension.BUSINESS_UNIT, cube.from, cube.to);
+    }
+}
@@ -0,0 +1,80 @@
+package com.stridetech.mcm.benchmarks;
+
+import com.stridetech.mcm.dao.stats.AcquisitionFact;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nightly load of acquisition facts: every invocation merges {@link #days} days of facts for every
+ * catalog campaign. The days follow the previous invocation's, so all facts are new rows; the facts
+ * are generated while they are copied, as a loader reading a file would.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AcquisitionFactIngestBenchmark {
+
+    @Param({"30"})
+    public int days;
+
+    private LocalDate next = LocalDate.of(2030, 1, 1);
+
+    @Benchmark
+    public long mergeAcquisitionFacts(CatalogState state) {
+        LocalDate first = next;
+        next = next.plusDays(days);
+        return state.dao.mergeAcquisitionFacts(new FactIterator(state.trackers, first, days, new Random(state.seed)));
+    }
+
+    private static class FactIterator implements Iterator<AcquisitionFact> {
+        private final String[] trackers;
+        private final LocalDate first;
+        private final int days;
+        private final Random random;
+        private int position;
+
+        FactIterator(String[] trackers, LocalDate first, int days, Random random) {
+            this.trackers = trackers;
+            this.first = first;
+            this.days = days;
+            this.random = random;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < trackers.length * days;
+        }
+
+        @Override
+        public AcquisitionFact next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            String tracker = trackers[position / days];
+            Date day = Date.valueOf(first.plusDays(position % days));
+            position++;
+            int acquisitions = random.nextInt(40);
+            int payable = acquisitions - random.nextInt(acquisitions / 4 + 1);
+            int paid = payable - random.nextInt(payable / 3 + 1);
+            return new AcquisitionFact(tracker, day, acquisitions, payable, paid, payable - paid,
+                    Math.round(acquisitions * (100 + random.nextInt(2000))) / 100.0);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.stridetech.mcm.benchmarks;
+
+import com.opentable.db.postgres.embedded.EmbeddedPostgres;
+import com.stridetech.mcm.config.ConnectionPoolConfig;
+import com.stridetech.mcm.dao.MCMServiceDaoPostgreSQL;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.support.EncodedResource;
+import org.springframework.jdbc.datasource.init.ScriptUtils;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * In-process PostgreSQL with the mcm schema loaded from {@code DDL/PostgreSQL 9.x/mcm.sql}, the same
+ * script used to create production databases.
+ */
+public class BenchmarkDatabase implements AutoCloseable {
+
+    static final String DDL = "DDL/PostgreSQL 9.x/mcm.sql";
+
+    private final EmbeddedPostgres postgres;
+    private final HikariDataSource dataSource;
+
+    private BenchmarkDatabase(EmbeddedPostgres postgres, HikariDataSource dataSource) {
+        this.postgres = postgres;
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Starts a fresh database cluster in a temporary directory and creates the schema.
+     *
+     * @return running database
+     * @throws IOException  if the cluster cannot be started
+     * @throws SQLException if the DDL fails to load
+     */
+    public static BenchmarkDatabase start() throws IOException, SQLException {
+        EmbeddedPostgres postgres = EmbeddedPostgres.start();
+
+        // pooled with the production settings, so that the benchmarks do not measure connection setup
+        ConnectionPoolConfig config = new ConnectionPoolConfig();
+        config.setJdbcUrl(postgres.getJdbcUrl("postgres", "postgres"));
+        config.setUsername("postgres");
+        config.setMaximumPoolSize(8);
+        HikariDataSource dataSource = new HikariDataSource(config);
+
+        try (Connection connection = dataSource.getConnection()) {
+            ScriptUtils.executeSqlScript(connection, new EncodedResource(new ClassPathResource(DDL), StandardCharsets.UTF_8));
+        }
+        return new BenchmarkDatabase(postgres, dataSource);
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * @return DAO under test, connected to this database
+     */
+    public MCMServiceDaoPostgreSQL newDao() {
+        MCMServiceDaoPostgreSQL dao = new MCMServiceDaoPostgreSQL();
+        dao.setDatasource(dataSource);
+        return dao;
+    }
+
+    @Override
+    public void close() throws IOException, SQLException {
+        dataSource.close();
+        postgres.close();
+    }
+}
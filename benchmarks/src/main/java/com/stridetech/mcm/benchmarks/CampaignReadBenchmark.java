@@ -0,0 +1,46 @@
+package com.stridetech.mcm.benchmarks;
+
+import com.stridetech.mcm.model.meta.Campaign;
+import com.stridetech.mcm.model.meta.Tag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CampaignReadBenchmark {
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public SortedSet<Campaign> listCampaigns(CatalogState state) {
+        return state.dao.listCampaigns();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public SortedSet<Campaign> listCampaignsInRetrospect(CatalogState state) {
+        return state.dao.listCampaignsInRetrospect(state.retrospectDate);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Campaign retrieveCampaign(CatalogState state, TrackerCursor cursor) {
+        return state.dao.retrieveCampaign(cursor.next(state));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public SortedMap<Tag, SortedSet<Tag>> listCampaignTags(CatalogState state, TrackerCursor cursor) {
+        return state.dao.listCampaignTags(cursor.next(state));
+    }
+}
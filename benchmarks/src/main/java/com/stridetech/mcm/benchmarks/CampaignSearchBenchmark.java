@@ -0,0 +1,74 @@
+package com.stridetech.mcm.benchmarks;
+
+import com.stridetech.mcm.dao.MCMServiceDaoPostgreSQL;
+import com.stridetech.mcm.dao.index.CampaignQuery;
+import com.stridetech.mcm.dao.index.CampaignTagIndex;
+import com.stridetech.mcm.dao.index.TagExpression;
+import com.stridetech.mcm.model.meta.Campaign;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Segment query over the generated tags: (first tag of group 0 OR second tag of group 0) AND NOT
+ * first tag of group 1, restricted to one product; answered in SQL and from the bitmap index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CampaignSearchBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Search {
+        MCMServiceDaoPostgreSQL indexedDao;
+        CampaignTagIndex index;
+        CampaignQuery query;
+
+        @Setup(Level.Trial)
+        public void setUp(CatalogState state) {
+            index = new CampaignTagIndex().load(state.database.getDataSource());
+            indexedDao = state.database.newDao();
+            indexedDao.setCampaignTagIndex(index);
+
+            // tag ids of the generated groups, see CatalogGenerator.copyTagGroups
+            int tagsPerGroup = state.catalog.getSpec().getTagsPerGroup();
+            query = new CampaignQuery(TagExpression.and(
+                    TagExpression.or(TagExpression.tag(10000L), TagExpression.tag(10001L)),
+                    TagExpression.not(TagExpression.tag(10000L + tagsPerGroup))));
+            query.setProducts(Collections.singleton(state.catalog.getProducts().get(0)));
+        }
+    }
+
+    @Benchmark
+    public SortedSet<Campaign> findCampaignsSql(CatalogState state, Search search) {
+        return state.dao.findCampaigns(search.query);
+    }
+
+    @Benchmark
+    public SortedSet<Campaign> findCampaignsIndexed(Search search) {
+        return search.indexedDao.findCampaigns(search.query);
+    }
+
+    /**
+     * Index lookup alone, without reading the campaigns
+     */
+    @Benchmark
+    public List<String> indexFind(Search search) {
+        return search.index.find(search.query);
+    }
+}
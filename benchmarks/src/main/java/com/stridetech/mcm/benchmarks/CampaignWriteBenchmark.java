@@ -0,0 +1,40 @@
+package com.stridetech.mcm.benchmarks;
+
+import com.stridetech.mcm.model.enums.CampaignStatus;
+import com.stridetech.mcm.model.enums.CampaignType;
+import com.stridetech.mcm.model.meta.Campaign;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every invocation adds a campaign, so the catalog slowly grows over the trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CampaignWriteBenchmark {
+
+    @Benchmark
+    public Campaign createCampaign(CatalogState state) {
+        Campaign c = new Campaign();
+        c.setProduct(state.catalog.getProducts().get(0));
+        c.setTracker(state.newTracker());
+        c.setType(CampaignType.CPC);
+        c.setMarketplace(state.catalog.getMarketplaces().get(0));
+        c.setBusinessUnit(state.catalog.getBusinessUnits().get(0));
+        c.setName("Benchmark campaign " + c.getTracker());
+        c.setStatus(CampaignStatus.ACTIVE);
+        c.setStatusUpdated(new Date());
+        return state.dao.createCampaign(c);
+    }
+}
@@ -0,0 +1,571 @@
+package com.stridetech.mcm.benchmarks;
+
+import com.stridetech.mcm.dao.jdbc.CopyWriter;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Fills an empty mcm database (fresh from mcm.sql) with a synthetic catalog: business units,
+ * marketplaces, products and campaigns with multi-year status changelogs, tag and metro assignments,
+ * and daily acquisition facts. Everything is bulk loaded with COPY, in one transaction, as a
+ * superuser: the catalog triggers are skipped, so no changes of the new catalog are recorded.
+ * <p>
+ * Every entity draws from its own random stream derived from the seed and its index, so the catalog
+ * only depends on the {@link CatalogSpec}, and each table can be written in its own pass without
+ * holding the catalog in memory.
+ */
+public class CatalogGenerator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CatalogGenerator.class);
+
+    /**
+     * User of the upload log queries, granted feed 1 by mcm.sql
+     */
+    public static final String USER = "test";
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final String[] CAMPAIGN_TYPES = {"CPA", "CPE", "CPC", "CPM", "CPP", "DCPM", "DCPC"};
+    private static final String[] TAG_TYPES = {"CAMPAIGN", "BUSINESS_UNIT", "PRODUCT", "MARKETPLACE", "GEO"};
+
+    // salts of the per entity random streams
+    private static final int BUSINESS_UNIT = 1;
+    private static final int MARKETPLACE = 2;
+    private static final int PRODUCT = 3;
+    private static final int CAMPAIGN = 4;
+    private static final int TAG_GROUP = 5;
+    private static final int TAGS = 6;
+    private static final int METROS = 7;
+    private static final int FACTS = 8;
+    private static final int UPLOAD = 9;
+
+    private final CatalogSpec spec;
+    private final List<Long> businessUnits = new ArrayList<>();
+    private final List<Long> marketplaces = new ArrayList<>();
+    private final List<String> products = new ArrayList<>();
+    private final List<String> trackers = new ArrayList<>();
+    private final Map<String, Long> rowCounts = new LinkedHashMap<>();
+
+    private LocalDateTime[] marketplaceCreated;
+    private LocalDateTime[] productCreated;
+    private List<TagGroupModel> tagGroups;
+    private List<Long> metros;
+
+    public CatalogGenerator(CatalogSpec spec) {
+        this.spec = spec;
+    }
+
+    /**
+     * @param dataSource database freshly created from mcm.sql
+     * @return this generator, to read back the generated keys
+     * @throws SQLException if loading fails, nothing is left behind then
+     */
+    public CatalogGenerator populate(DataSource dataSource) throws SQLException {
+        long started = System.currentTimeMillis();
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+                // the catalog is new, there are no changes of it to record and notify row by row
+                setReplicationRole(connection, "replica");
+                copyBusinessUnits(copyManager);
+                copyMarketplaces(copyManager);
+                copyProducts(copyManager);
+                copyTagGroups(copyManager);
+                tagGroups = readTagGroups(connection);
+                copyMetros(copyManager);
+                metros = readMetros(connection);
+                copyEntityTags(copyManager);
+                copyCampaigns(copyManager);
+                // facts and uploads still go through their triggers, to mark dirty dates and partition
+                setReplicationRole(connection, "origin");
+                copyAcquisitionFacts(copyManager);
+                copyUploadLogs(copyManager);
+                resetSequences(connection);
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("ANALYZE");
+            }
+        }
+        LOGGER.info("Generated catalog of {} campaigns (seed {}) in {} ms: {}", spec.getCampaigns(), spec.getSeed(),
+                System.currentTimeMillis() - started, rowCounts);
+        return this;
+    }
+
+    /**
+     * @param role {@code replica} to skip the triggers of the tables written until set back to {@code origin}
+     */
+    private static void setReplicationRole(Connection connection, String role) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET LOCAL session_replication_role = " + role);
+        }
+    }
+
+    public CatalogSpec getSpec() {
+        return spec;
+    }
+
+    public List<Long> getBusinessUnits() {
+        return businessUnits;
+    }
+
+    public List<Long> getMarketplaces() {
+        return marketplaces;
+    }
+
+    public List<String> getProducts() {
+        return products;
+    }
+
+    public List<String> getTrackers() {
+        return trackers;
+    }
+
+    /**
+     * @return rows written, by table
+     */
+    public Map<String, Long> getRowCounts() {
+        return rowCounts;
+    }
+
+    private void copyBusinessUnits(CopyManager copyManager) throws SQLException {
+        try (CopyWriter units = new CopyWriter(copyManager, "COPY meta.business_unit (id, name, description, status, status_updated) FROM STDIN")) {
+            for (int i = 0; i < spec.getBusinessUnits(); i++) {
+                Random r = random(BUSINESS_UNIT, i);
+                History h = history(r, created(r, spec.getStart()));
+                units.add(i + 1).add("Business Unit " + i).add("Synthetic business unit #" + i)
+                        .add(h.lastStatus()).add(h.lastDate()).endRow();
+                businessUnits.add((long) i + 1);
+            }
+            rowCounts.put("meta.business_unit", units.finish());
+        }
+        try (CopyWriter log = new CopyWriter(copyManager, "COPY logs.account_status_changelog (account, effective_date, status) FROM STDIN")) {
+            for (int i = 0; i < spec.getBusinessUnits(); i++) {
+                Random r = random(BUSINESS_UNIT, i);
+                history(r, created(r, spec.getStart())).write(log, i + 1);
+            }
+            rowCounts.put("logs.account_status_changelog", log.finish());
+        }
+    }
+
+    private void copyMarketplaces(CopyManager copyManager) throws SQLException {
+        marketplaceCreated = new LocalDateTime[spec.getMarketplaces()];
+        try (CopyWriter marketplace = new CopyWriter(copyManager,
+                "COPY meta.marketplace (id, name, description, status, status_updated, contact_email, contact_name) FROM STDIN")) {
+            for (int i = 0; i < spec.getMarketplaces(); i++) {
+                Random r = random(MARKETPLACE, i);
+                History h = history(r, created(r, spec.getStart()));
+                marketplaceCreated[i] = h.created();
+                marketplace.add(i + 1).add("Marketplace " + i).add("Synthetic marketplace #" + i)
+                        .add(h.lastStatus()).add(h.lastDate())
+                        .add("marketplace" + i + "@example.com").add("Contact " + i).endRow();
+                marketplaces.add((long) i + 1);
+            }
+            rowCounts.put("meta.marketplace", marketplace.finish());
+        }
+        try (CopyWriter log = new CopyWriter(copyManager, "COPY logs.marketplace_status_changelog (marketplace, effective_date, status) FROM STDIN")) {
+            for (int i = 0; i < spec.getMarketplaces(); i++) {
+                Random r = random(MARKETPLACE, i);
+                history(r, created(r, spec.getStart())).write(log, i + 1);
+            }
+            rowCounts.put("logs.marketplace_status_changelog", log.finish());
+        }
+    }
+
+    private void copyProducts(CopyManager copyManager) throws SQLException {
+        productCreated = new LocalDateTime[spec.getProducts()];
+        try (CopyWriter product = new CopyWriter(copyManager, "COPY meta.product (code, name, description, status, status_updated) FROM STDIN")) {
+            for (int i = 0; i < spec.getProducts(); i++) {
+                Random r = random(PRODUCT, i);
+                History h = history(r, created(r, spec.getStart()));
+                productCreated[i] = h.created();
+                product.add(productCode(i)).add("Product " + i).add("Synthetic product #" + i)
+                        .add(h.lastStatus()).add(h.lastDate()).endRow();
+                products.add(productCode(i));
+            }
+            rowCounts.put("meta.product", product.finish());
+        }
+        try (CopyWriter log = new CopyWriter(copyManager, "COPY logs.product_status_changelog (product, effective_date, status) FROM STDIN")) {
+            for (int i = 0; i < spec.getProducts(); i++) {
+                Random r = random(PRODUCT, i);
+                history(r, created(r, spec.getStart())).write(log, productCode(i));
+            }
+            rowCounts.put("logs.product_status_changelog", log.finish());
+        }
+    }
+
+    /**
+     * Tag groups and tags on top of the ones seeded by mcm.sql, with ids after them.
+     */
+    private void copyTagGroups(CopyManager copyManager) throws SQLException {
+        final int firstGroup = 1000;
+        try (CopyWriter group = new CopyWriter(copyManager, "COPY meta.tag_group (id, is_mutex, applicable_to) FROM STDIN")) {
+            for (int g = 0; g < spec.getTagGroups(); g++) {
+                Random r = random(TAG_GROUP, g);
+                List<String> applicableTo = new ArrayList<>();
+                applicableTo.add("CAMPAIGN");
+                for (int t = 1; t < TAG_TYPES.length; t++)
+                    if (r.nextInt(3) == 0)
+                        applicableTo.add(TAG_TYPES[t]);
+                group.add(firstGroup + g).add(r.nextBoolean()).add("{" + String.join(",", applicableTo) + "}").endRow();
+            }
+            rowCounts.put("meta.tag_group", group.finish());
+        }
+        try (CopyWriter tag = new CopyWriter(copyManager, "COPY meta.tag (id, \"group\", value) FROM STDIN")) {
+            for (int g = 0; g < spec.getTagGroups(); g++)
+                for (int t = 0; t < spec.getTagsPerGroup(); t++)
+                    tag.add(firstGroup * 10 + g * spec.getTagsPerGroup() + t).add(firstGroup + g).add("Tag " + g + "." + t).endRow();
+            rowCounts.put("meta.tag", tag.finish());
+        }
+    }
+
+    private void copyMetros(CopyManager copyManager) throws SQLException {
+        try (CopyWriter metro = new CopyWriter(copyManager, "COPY meta.metro (id, name, description, extended) FROM STDIN")) {
+            for (int m = 0; m < spec.getMetros(); m++)
+                metro.add(1000 + m).add("Metro " + m).add("Synthetic metro #" + m).add(m % 4 == 0).endRow();
+            rowCounts.put("meta.metro", metro.finish());
+        }
+    }
+
+    private void copyEntityTags(CopyManager copyManager) throws SQLException {
+        try (CopyWriter tags = new CopyWriter(copyManager, "COPY meta.account_tags (account, tag) FROM STDIN")) {
+            for (int i = 0; i < spec.getBusinessUnits(); i++)
+                for (long tag : pickTags(random(TAGS + BUSINESS_UNIT * 16, i), "BUSINESS_UNIT"))
+                    tags.add(i + 1).add(tag).endRow();
+            rowCounts.put("meta.account_tags", tags.finish());
+        }
+        try (CopyWriter tags = new CopyWriter(copyManager, "COPY meta.marketplace_tags (marketplace, tag) FROM STDIN")) {
+            for (int i = 0; i < spec.getMarketplaces(); i++)
+                for (long tag : pickTags(random(TAGS + MARKETPLACE * 16, i), "MARKETPLACE"))
+                    tags.add(i + 1).add(tag).endRow();
+            rowCounts.put("meta.marketplace_tags", tags.finish());
+        }
+        try (CopyWriter tags = new CopyWriter(copyManager, "COPY meta.product_tags (product, tag) FROM STDIN")) {
+            for (int i = 0; i < spec.getProducts(); i++)
+                for (long tag : pickTags(random(TAGS + PRODUCT * 16, i), "PRODUCT"))
+                    tags.add(productCode(i)).add(tag).endRow();
+            rowCounts.put("meta.product_tags", tags.finish());
+        }
+    }
+
+    private void copyCampaigns(CopyManager copyManager) throws SQLException {
+        try (CopyWriter campaign = new CopyWriter(copyManager,
+                "COPY meta.campaign (product, tracker, type, marketplace, name, description, status, status_updated, cost_cents) FROM STDIN")) {
+            for (int i = 0; i < spec.getCampaigns(); i++) {
+                GeneratedCampaign c = campaign(i);
+                campaign.add(c.product).add(c.tracker).add(c.type).add(c.marketplace).add("Campaign " + i)
+                        .add(null).add(c.history.lastStatus()).add(c.history.lastDate()).add(c.cost).endRow();
+                trackers.add(c.tracker);
+            }
+            rowCounts.put("meta.campaign", campaign.finish());
+        }
+        try (CopyWriter link = new CopyWriter(copyManager, "COPY meta.account_campaigns (business_unit, tracker, linked_date) FROM STDIN")) {
+            for (int i = 0; i < spec.getCampaigns(); i++) {
+                GeneratedCampaign c = campaign(i);
+                link.add(c.businessUnit).add(c.tracker).add(c.history.created().toLocalTime()).endRow();
+            }
+            rowCounts.put("meta.account_campaigns", link.finish());
+        }
+        try (CopyWriter log = new CopyWriter(copyManager, "COPY logs.campaign_account_relationship_changelog (tracker, account, effective_date) FROM STDIN")) {
+            for (int i = 0; i < spec.getCampaigns(); i++) {
+                GeneratedCampaign c = campaign(i);
+                log.add(c.tracker).add(c.businessUnit).add(c.history.created()).endRow();
+            }
+            rowCounts.put("logs.campaign_account_relationship_changelog", log.finish());
+        }
+        try (CopyWriter log = new CopyWriter(copyManager, "COPY logs.campaign_status_changelog (campaign, effective_date, status) FROM STDIN")) {
+            for (int i = 0; i < spec.getCampaigns(); i++) {
+                GeneratedCampaign c = campaign(i);
+                c.history.write(log, c.tracker);
+            }
+            rowCounts.put("logs.campaign_status_changelog", log.finish());
+        }
+        try (CopyWriter tags = new CopyWriter(copyManager, "COPY meta.campaign_tags (campaign, tag) FROM STDIN")) {
+            for (int i = 0; i < spec.getCampaigns(); i++)
+                for (long tag : pickTags(random(TAGS + CAMPAIGN * 16, i), "CAMPAIGN"))
+                    tags.add(trackers.get(i)).add(tag).endRow();
+            rowCounts.put("meta.campaign_tags", tags.finish());
+        }
+        try (CopyWriter campaignMetros = new CopyWriter(copyManager, "COPY meta.campaign_metros (tracker, metro) FROM STDIN")) {
+            for (int i = 0; i < spec.getCampaigns(); i++) {
+                Random r = random(METROS, i);
+                Set<Long> picked = new HashSet<>();
+                for (int m = r.nextInt(4); m > 0; m--) {
+                    Long metro = metros.get(r.nextInt(metros.size()));
+                    if (picked.add(metro))
+                        campaignMetros.add(trackers.get(i)).add(metro).endRow();
+                }
+            }
+            rowCounts.put("meta.campaign_metros", campaignMetros.finish());
+        }
+    }
+
+    /**
+     * Daily facts over the last {@link CatalogSpec#getFactDays()} days of history, for the days a
+     * campaign was active.
+     */
+    private void copyAcquisitionFacts(CopyManager copyManager) throws SQLException {
+        LocalDate last = spec.getEnd().toLocalDate().minusDays(1);
+        LocalDate first = last.minusDays(spec.getFactDays() - 1);
+        try (CopyWriter facts = new CopyWriter(copyManager,
+                "COPY stats.acquisition_facts (campaign, statement_date, acquisitions, acquisitions_payable, acquisitions_paid, acquisitions_not_paid, spend) FROM STDIN")) {
+            for (int i = 0; i < spec.getCampaigns(); i++) {
+                GeneratedCampaign c = campaign(i);
+                Random r = random(FACTS, i);
+                int volume = 1 + r.nextInt(40);
+                for (LocalDate day = first; !day.isAfter(last); day = day.plusDays(1)) {
+                    if (!"ACTIVE".equals(c.history.statusAt(day.atTime(12, 0))))
+                        continue;
+                    int acquisitions = r.nextInt(volume + 1);
+                    int payable = acquisitions - r.nextInt(acquisitions / 4 + 1);
+                    int paid = payable - r.nextInt(payable / 3 + 1);
+                    double spend = Math.round(acquisitions * (100 + r.nextInt(2000))) / 100.0;
+                    facts.add(c.tracker).add(day).add(acquisitions).add(payable).add(paid).add(payable - paid).add(spend).endRow();
+                }
+            }
+            rowCounts.put("stats.acquisition_facts", facts.finish());
+        }
+    }
+
+    private void copyUploadLogs(CopyManager copyManager) throws SQLException {
+        long span = ChronoUnit.MINUTES.between(spec.getStart(), spec.getEnd());
+        try (CopyWriter uploads = new CopyWriter(copyManager,
+                "COPY logs.feed_upload_log (uploadtype_id, email, upload_date, original_filename, status, parser_status, filename) FROM STDIN")) {
+            for (int i = 0; i < spec.getUploadLogs(); i++) {
+                Random r = random(UPLOAD, i);
+                uploads.add(1).add(USER).add(spec.getStart().plusMinutes((long) (r.nextDouble() * span)))
+                        .add("original-" + i + ".csv").add("UPLOADED").add("").add("upload-" + i + ".csv").endRow();
+            }
+            rowCounts.put("logs.feed_upload_log", uploads.finish());
+        }
+        try (CopyWriter parsed = new CopyWriter(copyManager, "COPY logs.feedhandler_log (uploadtype_id, filename, status, message) FROM STDIN")) {
+            for (int i = 0; i < spec.getUploadLogs(); i++)
+                if (i % 3 != 0)
+                    parsed.add(1).add("upload-" + i + ".csv").add(i % 7 == 0 ? "FAILED" : "PARSED").add(i % 7 == 0 ? "bad header" : "ok").endRow();
+            rowCounts.put("logs.feedhandler_log", parsed.finish());
+        }
+    }
+
+    /**
+     * Moves the serials past the explicit ids written above.
+     */
+    private void resetSequences(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SELECT setval('meta.business_unit_id_seq', greatest(1, (SELECT max(id) FROM meta.business_unit)))");
+            statement.execute("SELECT setval('meta.marketplace_id_seq', greatest(1, (SELECT max(id) FROM meta.marketplace)))");
+            statement.execute("SELECT setval('meta.tag_group_id_seq', (SELECT max(id) FROM meta.tag_group))");
+            statement.execute("SELECT setval('meta.tag_id_seq', (SELECT max(id) FROM meta.tag))");
+            statement.execute("SELECT setval('meta.metro_id_seq', (SELECT max(id) FROM meta.metro))");
+        }
+    }
+
+    private List<TagGroupModel> readTagGroups(Connection connection) throws SQLException {
+        Map<Long, TagGroupModel> groups = new LinkedHashMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "SELECT g.id, g.is_mutex, g.applicable_to::text[], t.id FROM meta.tag_group g " +
+                     "JOIN meta.tag t ON t.\"group\" = g.id ORDER BY g.id, t.id")) {
+            while (resultSet.next()) {
+                TagGroupModel group = groups.get(resultSet.getLong(1));
+                if (group == null) {
+                    Array applicableTo = resultSet.getArray(3);
+                    group = new TagGroupModel(resultSet.getBoolean(2),
+                            applicableTo == null ? Collections.<String>emptySet() : new HashSet<>(Arrays.asList((String[]) applicableTo.getArray())));
+                    groups.put(resultSet.getLong(1), group);
+                }
+                group.tags.add(resultSet.getLong(4));
+            }
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    private List<Long> readMetros(Connection connection) throws SQLException {
+        List<Long> out = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT id FROM meta.metro ORDER BY id")) {
+            while (resultSet.next())
+                out.add(resultSet.getLong(1));
+        }
+        return out;
+    }
+
+    /**
+     * Tags of one entity: at most one tag of each mutually exclusive group, any subset of the others,
+     * only from groups applicable to the entity type.
+     */
+    private List<Long> pickTags(Random r, String tagType) {
+        List<Long> out = new ArrayList<>();
+        for (TagGroupModel group : tagGroups) {
+            if (!group.applicableTo.contains(tagType))
+                continue;
+            if (group.mutex) {
+                if (r.nextInt(5) < 3)
+                    out.add(group.tags.get(r.nextInt(group.tags.size())));
+            } else {
+                for (Long tag : group.tags)
+                    if (r.nextInt(5) == 0)
+                        out.add(tag);
+            }
+        }
+        return out;
+    }
+
+    private GeneratedCampaign campaign(int i) {
+        Random r = random(CAMPAIGN, i);
+        GeneratedCampaign c = new GeneratedCampaign();
+        int product = r.nextInt(spec.getProducts());
+        int marketplace = r.nextInt(spec.getMarketplaces());
+        c.product = productCode(product);
+        // campaign_tracker_check: trackers are prefixed with their product code and a caret
+        c.tracker = c.product + "^" + Integer.toString(i, 36);
+        c.marketplace = marketplace + 1;
+        c.businessUnit = 1 + r.nextInt(spec.getBusinessUnits());
+        c.type = CAMPAIGN_TYPES[r.nextInt(CAMPAIGN_TYPES.length)];
+        c.cost = r.nextBoolean() ? null : 1 + r.nextInt(100000);
+        LocalDateTime notBefore = productCreated[product].isAfter(marketplaceCreated[marketplace])
+                ? productCreated[product] : marketplaceCreated[marketplace];
+        c.history = history(r, created(r, notBefore));
+        return c;
+    }
+
+    /**
+     * @return random moment within a year after {@code notBefore}, but before the end of the history
+     */
+    private LocalDateTime created(Random r, LocalDateTime notBefore) {
+        long window = Math.min(ChronoUnit.MINUTES.between(notBefore, notBefore.plusYears(1)),
+                ChronoUnit.MINUTES.between(notBefore, spec.getEnd()) / 2);
+        return notBefore.plusMinutes(window <= 0 ? 0 : (long) (r.nextDouble() * window));
+    }
+
+    /**
+     * Created ACTIVE, then toggling between PAUSED and ACTIVE every one to twelve months, one in
+     * twenty changes being a final DELETED.
+     */
+    private History history(Random r, LocalDateTime created) {
+        History h = new History();
+        h.add(created, "ACTIVE");
+        LocalDateTime t = created;
+        while (true) {
+            t = t.plusMinutes(MINUTES_PER_DAY * (30 + r.nextInt(335)) + r.nextInt(MINUTES_PER_DAY));
+            if (!t.isBefore(spec.getEnd()))
+                return h;
+            if (r.nextInt(20) == 0) {
+                h.add(t, "DELETED");
+                return h;
+            }
+            h.add(t, "ACTIVE".equals(h.lastStatus()) ? "PAUSED" : "ACTIVE");
+        }
+    }
+
+    private static String productCode(int i) {
+        return "P" + String.format("%5s", Integer.toString(i, 36)).replace(' ', '0').toUpperCase();
+    }
+
+    /**
+     * Independent random stream of the given entity (SplitMix64 mixing of seed, kind and index, as
+     * nearby seeds give correlated java.util.Random sequences).
+     */
+    private Random random(int kind, long index) {
+        long z = spec.getSeed() + kind * 0x9E3779B97F4A7C15L + index * 0xD1B54A32D192ED03L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return new Random(z ^ (z >>> 31));
+    }
+
+    private static final class GeneratedCampaign {
+        String product;
+        String tracker;
+        long marketplace;
+        long businessUnit;
+        String type;
+        Integer cost;
+        History history;
+    }
+
+    private static final class TagGroupModel {
+        final boolean mutex;
+        final Set<String> applicableTo;
+        final List<Long> tags = new ArrayList<>();
+
+        TagGroupModel(boolean mutex, Set<String> applicableTo) {
+            this.mutex = mutex;
+            this.applicableTo = applicableTo;
+        }
+    }
+
+    private static final class History {
+        final List<LocalDateTime> dates = new ArrayList<>();
+        final List<String> statuses = new ArrayList<>();
+
+        void add(LocalDateTime date, String status) {
+            dates.add(date);
+            statuses.add(status);
+        }
+
+        LocalDateTime created() {
+            return dates.get(0);
+        }
+
+        LocalDateTime lastDate() {
+            return dates.get(dates.size() - 1);
+        }
+
+        String lastStatus() {
+            return statuses.get(statuses.size() - 1);
+        }
+
+        String statusAt(LocalDateTime time) {
+            String status = null;
+            for (int i = 0; i < dates.size() && !dates.get(i).isAfter(time); i++)
+                status = statuses.get(i);
+            return status;
+        }
+
+        void write(CopyWriter log, Object entity) throws SQLException {
+            for (int i = 0; i < dates.size(); i++)
+                log.add(entity).add(dates.get(i)).add(statuses.get(i)).endRow();
+        }
+    }
+
+    /**
+     * Fills the database at the given URL, e.g. for load testing a staging database:
+     * {@code CatalogGenerator jdbc:postgresql://host/mcm user password 100000 [seed]}
+     */
+    public static void main(String[] args) throws SQLException {
+        if (args.length < 4) {
+            System.err.println("usage: CatalogGenerator <jdbc url> <user> <password> <campaigns> [seed]");
+            System.exit(1);
+        }
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(args[0], args[1], args[2]);
+        CatalogSpec spec = CatalogSpec.forCampaigns(Integer.parseInt(args[3]), args.length > 4 ? Long.parseLong(args[4]) : 42);
+        new CatalogGenerator(spec).populate(dataSource);
+    }
+}
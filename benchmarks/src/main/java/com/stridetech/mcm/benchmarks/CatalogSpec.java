@@ -0,0 +1,156 @@
+package com.stridetech.mcm.benchmarks;
+
+import java.time.LocalDateTime;
+
+/**
+ * Size and shape of a synthetic catalog. The same spec always generates the same catalog.
+ */
+public class CatalogSpec {
+
+    private long seed = 42;
+    private int businessUnits = 10;
+    private int marketplaces = 20;
+    private int products = 5;
+    private int campaigns = 1000;
+    private int tagGroups = 10;
+    private int tagsPerGroup = 8;
+    private int metros = 50;
+    private int years = 3;
+    private int factDays = 90;
+    private int uploadLogs = 100;
+    private LocalDateTime start = LocalDateTime.of(2014, 1, 1, 0, 0);
+
+    /**
+     * Catalog scaled from its number of campaigns: a business unit per 200 campaigns, a product per
+     * 500 and a marketplace per 100 (5 to 200).
+     *
+     * @param campaigns number of campaigns
+     * @param seed      random seed
+     * @return spec
+     */
+    public static CatalogSpec forCampaigns(int campaigns, long seed) {
+        CatalogSpec spec = new CatalogSpec();
+        spec.setSeed(seed);
+        spec.setCampaigns(campaigns);
+        spec.setBusinessUnits(Math.max(1, campaigns / 200));
+        spec.setProducts(Math.max(1, campaigns / 500));
+        spec.setMarketplaces(Math.max(5, Math.min(200, campaigns / 100)));
+        spec.setUploadLogs(Math.max(10, campaigns / 10));
+        return spec;
+    }
+
+    /**
+     * @return first moment of the generated history, entities are created within its first year
+     */
+    public LocalDateTime getStart() {
+        return start;
+    }
+
+    public void setStart(LocalDateTime start) {
+        this.start = start;
+    }
+
+    /**
+     * @return last moment of the generated history
+     */
+    public LocalDateTime getEnd() {
+        return start.plusYears(years);
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int getBusinessUnits() {
+        return businessUnits;
+    }
+
+    public void setBusinessUnits(int businessUnits) {
+        this.businessUnits = businessUnits;
+    }
+
+    public int getMarketplaces() {
+        return marketplaces;
+    }
+
+    public void setMarketplaces(int marketplaces) {
+        this.marketplaces = marketplaces;
+    }
+
+    public int getProducts() {
+        return products;
+    }
+
+    public void setProducts(int products) {
+        this.products = products;
+    }
+
+    public int getCampaigns() {
+        return campaigns;
+    }
+
+    public void setCampaigns(int campaigns) {
+        this.campaigns = campaigns;
+    }
+
+    /**
+     * @return tag groups added to the ones seeded by mcm.sql
+     */
+    public int getTagGroups() {
+        return tagGroups;
+    }
+
+    public void setTagGroups(int tagGroups) {
+        this.tagGroups = tagGroups;
+    }
+
+    public int getTagsPerGroup() {
+        return tagsPerGroup;
+    }
+
+    public void setTagsPerGroup(int tagsPerGroup) {
+        this.tagsPerGroup = tagsPerGroup;
+    }
+
+    /**
+     * @return metros added to the ones seeded by mcm.sql
+     */
+    public int getMetros() {
+        return metros;
+    }
+
+    public void setMetros(int metros) {
+        this.metros = metros;
+    }
+
+    public int getYears() {
+        return years;
+    }
+
+    public void setYears(int years) {
+        this.years = years;
+    }
+
+    /**
+     * @return number of trailing days of history with acquisition facts
+     */
+    public int getFactDays() {
+        return factDays;
+    }
+
+    public void setFactDays(int factDays) {
+        this.factDays = factDays;
+    }
+
+    public int getUploadLogs() {
+        return uploadLogs;
+    }
+
+    public void setUploadLogs(int uploadLogs) {
+        this.uploadLogs = uploadLogs;
+    }
+}
@@ -0,0 +1,60 @@
+package com.stridetech.mcm.benchmarks;
+
+import com.stridetech.mcm.dao.MCMServiceDaoPostgreSQL;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded database with a synthetic catalog, shared by all threads of a benchmark trial.
+ */
+@State(Scope.Benchmark)
+public class CatalogState {
+
+    @Param({"1000", "10000"})
+    public int catalogSize;
+
+    @Param({"42"})
+    public long seed;
+
+    BenchmarkDatabase database;
+    MCMServiceDaoPostgreSQL dao;
+    CatalogGenerator catalog;
+    String[] trackers;
+
+    /**
+     * Middle of the generated history
+     */
+    Date retrospectDate;
+
+    private final AtomicLong created = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = BenchmarkDatabase.start();
+        dao = database.newDao();
+        CatalogSpec spec = CatalogSpec.forCampaigns(catalogSize, seed);
+        catalog = new CatalogGenerator(spec).populate(database.getDataSource());
+        trackers = catalog.getTrackers().toArray(new String[0]);
+        retrospectDate = Timestamp.valueOf(spec.getStart().plusMonths(spec.getYears() * 6));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    /**
+     * @return tracker not used by the catalog nor by any earlier call
+     */
+    String newTracker() {
+        return catalog.getProducts().get(0) + "^w" + Long.toString(created.incrementAndGet(), 36);
+    }
+}
@@ -0,0 +1,98 @@
+package com.stridetech.mcm.benchmarks;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stridetech.mcm.model.meta.Tag;
+import com.stridetech.mcm.util.TagComparator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Campaign tag listing as the DAO does it, tag ids read flat and exclusions taken from the tag group
+ * model, against the former query building a JSON array of exclusions per tag, parsed with Jackson.
+ * Meant to be run with the GC profiler, {@code -prof gc}: compare {@code gc.alloc.rate.norm}, the
+ * bytes allocated per listing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TagListingBenchmark {
+
+    static final String JSON_AGG_QUERY =
+            "SELECT tag.id, tag.value,tag.\"group\", \n" +
+            "  COALESCE( json_agg(exclusions) FILTER (WHERE exclusions.id IS NOT NULL) , '[]') as exclusions\n" +
+            "FROM  meta.campaign \n" +
+            "  JOIN meta.campaign_tags \n" +
+            "    ON (campaign.tracker = campaign_tags.campaign) \n" +
+            "  JOIN meta.tag \n" +
+            "    ON (campaign_tags.tag = tag.id) \n" +
+            "  JOIN meta.tag_group \n" +
+            "    ON (tag.\"group\" = tag_group.id) \n" +
+            "  LEFT OUTER JOIN meta.tag AS exclusions \n" +
+            "    ON (tag_group.id = exclusions.\"group\" and tag_group.is_mutex and exclusions.id <> tag.id ) \n" +
+            "WHERE campaign.tracker=? \n" +
+            "GROUP BY 1,2,3; ";
+
+    /**
+     * Jackson needs a concrete, comparator-carrying set type to read the exclusions into
+     */
+    static class TagTreeSet extends TreeSet<Tag> {
+        public TagTreeSet() {
+            super(new TagComparator());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class JsonAgg {
+        JdbcTemplate jdbcTemplate;
+        ObjectMapper mapper;
+
+        @Setup(Level.Trial)
+        public void setUp(CatalogState state) {
+            jdbcTemplate = new JdbcTemplate(state.database.getDataSource());
+            mapper = new ObjectMapper();
+        }
+    }
+
+    @Benchmark
+    public SortedMap<Tag, SortedSet<Tag>> listCampaignTags(CatalogState state, TrackerCursor cursor) {
+        return state.dao.listCampaignTags(cursor.next(state));
+    }
+
+    @Benchmark
+    public SortedMap<Tag, SortedSet<Tag>> listCampaignTagsJsonAgg(CatalogState state, TrackerCursor cursor, JsonAgg jsonAgg) {
+        SortedMap<Tag, SortedSet<Tag>> out = new TreeMap<>(new TagComparator());
+        jsonAgg.jdbcTemplate.query(JSON_AGG_QUERY, resultSet -> {
+            Tag tag = new Tag();
+            tag.setGroup(resultSet.getLong("group"));
+            tag.setId(resultSet.getLong("id"));
+            tag.setValue(resultSet.getString("value"));
+            try {
+                out.put(tag, jsonAgg.mapper.readValue(resultSet.getString("exclusions"), new TypeReference<TagTreeSet>() {}));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, cursor.next(state));
+        return out;
+    }
+}
@@ -0,0 +1,19 @@
+package com.stridetech.mcm.benchmarks;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per thread walk over the catalog trackers, so that point lookups do not keep hitting the same row.
+ */
+@State(Scope.Thread)
+public class TrackerCursor {
+
+    private int position;
+
+    String next(CatalogState state) {
+        String tracker = state.trackers[position];
+        position = (position + 7919) % state.trackers.length;
+        return tracker;
+    }
+}
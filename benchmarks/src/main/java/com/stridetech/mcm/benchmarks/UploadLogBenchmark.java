@@ -0,0 +1,26 @@
+package com.stridetech.mcm.benchmarks;
+
+import com.stridetech.mcm.model.meta.UploadLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class UploadLogBenchmark {
+
+    @Benchmark
+    public SortedSet<UploadLog> getRecentUploadLogs(CatalogState state) {
+        return state.dao.getRecentUploadLogs(50, 0, CatalogGenerator.USER);
+    }
+}
@@ -1,49 +1,285 @@
 package com.stridetech.mcm.config;
 
 
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+import com.stridetech.mcm.dao.AsyncMCMServiceDao;
+import com.stridetech.mcm.dao.CachingMCMServiceDao;
+import com.stridetech.mcm.dao.CoalescingMCMServiceDao;
+import com.stridetech.mcm.dao.ExecutingMCMServiceDao;
+import com.stridetech.mcm.dao.InstrumentedMCMServiceDao;
 import com.stridetech.mcm.dao.MCMServiceDao;
 import com.stridetech.mcm.dao.MCMServiceDaoPostgreSQL;
-import org.apache.commons.dbcp.BasicDataSourceFactory;
+import com.stridetech.mcm.dao.async.DaoExecutor;
+import com.stridetech.mcm.dao.events.CatalogChangeChannel;
+import com.stridetech.mcm.dao.events.CatalogChangeEvent;
+import com.stridetech.mcm.dao.events.CatalogChangeListener;
+import com.stridetech.mcm.dao.index.AsOfEngine;
+import com.stridetech.mcm.dao.index.AsOfEngineRefresher;
+import com.stridetech.mcm.dao.index.CampaignTagIndex;
+import com.stridetech.mcm.dao.index.CampaignTagIndexRefresher;
+import com.stridetech.mcm.dao.jdbc.StatementCountingDataSource;
+import com.stridetech.mcm.dao.logs.UploadLogMaintenance;
+import com.stridetech.mcm.dao.logs.UploadLogPartitions;
+import com.stridetech.mcm.dao.logs.UploadLogWriteBehind;
+import com.stridetech.mcm.dao.snapshot.CatalogChangeMaintenance;
+import com.stridetech.mcm.dao.snapshot.CatalogChanges;
+import com.stridetech.mcm.dao.snapshot.CatalogSnapshot;
+import com.stridetech.mcm.dao.snapshot.CatalogSnapshotWriter;
+import com.stridetech.mcm.dao.stats.AcquisitionCube;
+import com.stridetech.mcm.dao.stats.AcquisitionCubeReloader;
+import com.stridetech.mcm.dao.stats.AcquisitionRollupRefresher;
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
 import org.springframework.scheduling.annotation.EnableScheduling;
 
 import javax.sql.DataSource;
-import java.util.Properties;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
 @EnableAutoConfiguration
-@EnableConfigurationProperties
+@EnableConfigurationProperties(DaoProperties.class)
 @EnableScheduling
 @ConfigurationProperties
 @ComponentScan(basePackages = {"com.stridetech.mcm"})
 public class ApplicationConfiguration {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(ApplicationConfiguration.class);
+
     @Bean
-    public DataSource createDataSource() {
-        final Properties properties=new Properties();
+    @ConfigurationProperties(prefix = "mcm.datasource")
+    public ConnectionPoolConfig connectionPoolConfig() {
+        return new ConnectionPoolConfig();
+    }
 
-        properties.setProperty("url","jdbc:postgresql://localhost:5432/mcm");
-        properties.setProperty("username","davidashirov");
-        properties.setProperty("password", "");
+    @Bean(destroyMethod = "close")
+    public HikariDataSource connectionPool(ConnectionPoolConfig config, MetricRegistry metricRegistry) {
+        // pool.Wait (borrow latency), pool.ActiveConnections, pool.IdleConnections, pool.PendingConnections...
+        config.setMetricRegistry(metricRegistry);
+        return new HikariDataSource(config);
+    }
 
-        try {
-            return BasicDataSourceFactory.createDataSource(new Properties(properties));
-        } catch (Exception e){
-           e.printStackTrace();
-        }
-        return null;
+    @Bean
+    @Primary
+    public DataSource createDataSource(HikariDataSource connectionPool, DaoProperties daoProperties) {
+        // counted at the bean itself, so that transactions and the DAO share the same resource key
+        return daoProperties.getMetrics().isEnabled() ? new StatementCountingDataSource(connectionPool) : connectionPool;
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public MetricRegistry metricRegistry() {
+        return new MetricRegistry();
+    }
+
+    @Bean(destroyMethod = "stop")
+    @ConditionalOnProperty(prefix = "mcm.dao.metrics", name = "enabled")
+    public JmxReporter daoJmxReporter(MetricRegistry metricRegistry, DaoProperties properties) {
+        JmxReporter reporter = JmxReporter.forRegistry(metricRegistry)
+                .inDomain(properties.getMetrics().getJmxDomain())
+                .build();
+        reporter.start();
+        return reporter;
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    @ConditionalOnProperty(prefix = "mcm.dao.notifications", name = "enabled")
+    public CatalogChangeChannel catalogChangeChannel(ConnectionPoolConfig poolConfig, DaoProperties properties) {
+        // a connection of its own rather than one of the pool: it is held for as long as the node runs,
+        // which would trip the pool's leak detection and starve the async workers sized to the pool,
+        // and its polling stays out of the statement metrics
+        DriverManagerDataSource listenerDataSource = new DriverManagerDataSource(
+                poolConfig.getJdbcUrl(), poolConfig.getUsername(), poolConfig.getPassword());
+        listenerDataSource.setConnectionProperties(poolConfig.getDataSourceProperties());
+        CatalogChangeChannel channel = new CatalogChangeChannel(listenerDataSource);
+        channel.setPollIntervalMillis(properties.getNotifications().getPollIntervalMillis());
+        return channel;
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(prefix = "mcm.dao.write-behind", name = "enabled")
+    public UploadLogWriteBehind uploadLogWriteBehind(DataSource dataSource, DaoProperties properties, MetricRegistry metricRegistry) {
+        DaoProperties.WriteBehind writeBehind = properties.getWriteBehind();
+        UploadLogWriteBehind buffer = new UploadLogWriteBehind(dataSource, writeBehind.getCapacity(),
+                writeBehind.getBatchSize(), writeBehind.getFlushIntervalMillis());
+        buffer.registerMetrics(metricRegistry);
+        return buffer;
     }
 
     @Bean
-    public MCMServiceDao mcmServiceDao(){
+    public MCMServiceDao mcmServiceDao(DataSource dataSource, DaoProperties properties, MetricRegistry metricRegistry,
+                                       ObjectProvider<CatalogChangeChannel> catalogChangeChannel,
+                                       ObjectProvider<UploadLogWriteBehind> uploadLogWriteBehind){
         MCMServiceDaoPostgreSQL dao = new MCMServiceDaoPostgreSQL();
-        dao.setDatasource(createDataSource());
-        return dao;
+        dao.setDatasource(dataSource);
+        dao.setStreamFetchSize(properties.getStreaming().getFetchSize());
+        // closed after the DAO, as it depends on it, flushing what is left
+        dao.setUploadLogWriteBehind(uploadLogWriteBehind.getIfAvailable());
+
+        // subscribed before the catch-up is read, so that no change falls in between
+        CatalogChangeChannel channel = catalogChangeChannel.getIfAvailable();
+        if (channel != null)
+            channel.subscribe(new CatalogChangeListener() {
+                @Override
+                public void onChange(CatalogChangeEvent event) {
+                    if (event.getEntity() == CatalogChangeEvent.Entity.TAG || event.getEntity() == CatalogChangeEvent.Entity.TAG_GROUP)
+                        dao.invalidateTagGroupModel();
+                }
+
+                @Override
+                public void onChangesMissed() {
+                    dao.invalidateTagGroupModel();
+                }
+            });
+        CachingMCMServiceDao caching = null;
+        DaoProperties.Cache cache = properties.getCache();
+        if (cache.isEnabled()) {
+            caching = new CachingMCMServiceDao(dao, cache.getMaximumSize(), cache.getTimeToLiveSeconds(), TimeUnit.SECONDS);
+            if (channel != null)
+                channel.subscribe(caching);
+        }
+
+        CatalogSnapshot snapshot = null;
+        CatalogChanges changes = null;
+        if (properties.getSnapshot().isEnabled()) {
+            snapshot = openSnapshot(dataSource, properties.getSnapshot());
+            changes = CatalogChanges.since(dataSource, snapshot.getHighWaterMark());
+            LOGGER.info("Catalog snapshot of {} caught up with {} changed keys", snapshot.getCreated(), changes.size());
+        }
+
+        if (properties.getAsOf().isEnabled()) {
+            AsOfEngine engine = new AsOfEngine();
+            dao.setAsOfEngine(engine);
+            if (channel != null)
+                channel.subscribe(new AsOfEngineRefresher(engine, dataSource));
+            if (snapshot != null)
+                engine.load(snapshot, changes);
+            else
+                engine.load(dataSource);
+        }
+
+        if (properties.getTagIndex().isEnabled()) {
+            CampaignTagIndex index = new CampaignTagIndex();
+            dao.setCampaignTagIndex(index);
+            if (channel != null)
+                channel.subscribe(new CampaignTagIndexRefresher(index, dataSource));
+            if (snapshot != null)
+                index.load(snapshot, changes);
+            else
+                index.load(dataSource);
+        }
+
+        MCMServiceDao out = dao;
+        if (caching != null) {
+            if (snapshot != null)
+                caching.warmUp(snapshot, changes);
+            out = caching;
+        }
+        if (properties.getCoalescing().isEnabled())
+            out = CoalescingMCMServiceDao.coalesce(out, metricRegistry);
+        if (properties.getMetrics().isEnabled()) {
+            // outermost, so that the metrics show what callers see, cache hits included
+            out = InstrumentedMCMServiceDao.instrument(out, metricRegistry,
+                    dataSource instanceof StatementCountingDataSource ? (StatementCountingDataSource) dataSource : null);
+        }
+        return out;
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(prefix = "mcm.dao.async", name = "enabled")
+    public DaoExecutor daoExecutor(ConnectionPoolConfig poolConfig, DaoProperties properties, MetricRegistry metricRegistry) {
+        DaoProperties.Async async = properties.getAsync();
+        int threads = async.getThreads() > 0 ? async.getThreads() : poolConfig.getMaximumPoolSize();
+        DaoExecutor executor = new DaoExecutor("mcm-dao", threads, async.getQueueCapacity(), async.getMaximumWaitMillis());
+        executor.registerMetrics(metricRegistry);
+        return executor;
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "mcm.dao.async", name = "enabled")
+    public AsyncMCMServiceDao asyncMcmServiceDao(MCMServiceDao mcmServiceDao, DaoExecutor daoExecutor) {
+        return ExecutingMCMServiceDao.async(mcmServiceDao, daoExecutor);
+    }
+
+    @Bean(initMethod = "run")
+    @ConditionalOnProperty(prefix = "mcm.dao.upload-logs", name = "enabled")
+    public UploadLogMaintenance uploadLogMaintenance(DataSource dataSource, DaoProperties properties) {
+        DaoProperties.UploadLogs uploadLogs = properties.getUploadLogs();
+        UploadLogMaintenance maintenance = new UploadLogMaintenance(new UploadLogPartitions(dataSource));
+        maintenance.setMonthsAhead(uploadLogs.getMonthsAhead());
+        maintenance.setRetentionMonths(uploadLogs.getRetentionMonths());
+        maintenance.setArchiveSchema(uploadLogs.getArchiveSchema());
+        return maintenance;
+    }
+
+    @Bean(initMethod = "run")
+    @ConditionalOnProperty(prefix = "mcm.dao.catalog-changes", name = "enabled", matchIfMissing = true)
+    public CatalogChangeMaintenance catalogChangeMaintenance(DataSource dataSource, DaoProperties properties) {
+        // snapshots older than their maximum age are written anew, so nothing older is caught up from
+        CatalogChangeMaintenance maintenance = new CatalogChangeMaintenance(dataSource);
+        maintenance.setRetentionMinutes(properties.getSnapshot().getMaximumAgeMinutes());
+        return maintenance;
     }
 
+    @Bean
+    @ConditionalOnProperty(prefix = "mcm.dao.rollups", name = "enabled")
+    public AcquisitionRollupRefresher acquisitionRollupRefresher(MCMServiceDao mcmServiceDao) {
+        return new AcquisitionRollupRefresher(mcmServiceDao);
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "mcm.dao.cube", name = "enabled")
+    public AcquisitionCube acquisitionCube(DataSource dataSource, MetricRegistry metricRegistry) {
+        AcquisitionCube cube = new AcquisitionCube();
+        cube.registerMetrics(metricRegistry);
+        return cube.load(dataSource);
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "mcm.dao.cube", name = "enabled")
+    public AcquisitionCubeReloader acquisitionCubeReloader(AcquisitionCube acquisitionCube, DataSource dataSource) {
+        return new AcquisitionCubeReloader(acquisitionCube, dataSource);
+    }
+
+    /**
+     * Opens the catalog snapshot, writing it first if there is none yet, it is too old or it can't
+     * be read (e.g. one of an older format).
+     */
+    private static CatalogSnapshot openSnapshot(DataSource dataSource, DaoProperties.Snapshot properties) {
+        Path file = Paths.get(properties.getPath());
+        try {
+            if (Files.exists(file)) {
+                try {
+                    CatalogSnapshot snapshot = CatalogSnapshot.open(file);
+                    if (System.currentTimeMillis() - snapshot.getCreated().getTime() <
+                            TimeUnit.MINUTES.toMillis(properties.getMaximumAgeMinutes()))
+                        return snapshot;
+                    LOGGER.info("Catalog snapshot {} of {} is too old, writing a new one", file, snapshot.getCreated());
+                } catch (IOException e) {
+                    LOGGER.warn("Catalog snapshot {} can't be used, writing a new one: {}", file, e.getMessage());
+                }
+            }
+            new CatalogSnapshotWriter(dataSource).write(file);
+            return CatalogSnapshot.open(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 }
@@ -0,0 +1,37 @@
+package com.stridetech.mcm.config;
+
+import com.zaxxer.hikari.HikariConfig;
+
+/**
+ * HikariCP settings of the MCM connection pool, bound from the {@code mcm.datasource.*} properties
+ * (any {@link HikariConfig} property, e.g. {@code mcm.datasource.jdbc-url},
+ * {@code mcm.datasource.maximum-pool-size}); driver properties go under
+ * {@code mcm.datasource.data-source-properties.*}.
+ * <p>
+ * Defaults differ from HikariCP's where it matters to the DAO:
+ * <ul>
+ * <li>leak detection after a minute, connections are never held that long by the DAO</li>
+ * <li>pgjdbc server side prepared statements after 3 executions, cached per connection (256
+ * statements / 5 MiB), as the DAO issues the same few hundred statements over and over</li>
+ * <li>pgjdbc rewrites batched inserts into multi-row inserts</li>
+ * </ul>
+ * Pool usage (active, idle and pending connections, borrow wait) is published through the metric
+ * registry rather than HikariCP's own MBeans, which would clash with the Spring JMX export of the
+ * pool bean.
+ * No connection test query is set: connections are validated with {@code Connection.isValid()}
+ * only when they have been idle for a while, so a borrow does not cost a round trip.
+ */
+public class ConnectionPoolConfig extends HikariConfig {
+
+    public ConnectionPoolConfig() {
+        setPoolName("mcm");
+        setJdbcUrl("jdbc:postgresql://localhost:5432/mcm");
+        setUsername("davidashirov");
+        setPassword("");
+        setLeakDetectionThreshold(60000);
+        addDataSourceProperty("prepareThreshold", "3");
+        addDataSourceProperty("preparedStatementCacheQueries", "256");
+        addDataSourceProperty("preparedStatementCacheSizeMiB", "5");
+        addDataSourceProperty("reWriteBatchedInserts", "true");
+    }
+}
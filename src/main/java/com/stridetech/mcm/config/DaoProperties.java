@@ -0,0 +1,485 @@
+package com.stridetech.mcm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Tuning knobs of the MCM DAO, bound from the {@code mcm.dao.*} properties.
+ */
+@ConfigurationProperties(prefix = "mcm.dao")
+public class DaoProperties {
+
+    private final Cache cache = new Cache();
+    private final AsOf asOf = new AsOf();
+    private final Metrics metrics = new Metrics();
+    private final TagIndex tagIndex = new TagIndex();
+    private final Streaming streaming = new Streaming();
+    private final Snapshot snapshot = new Snapshot();
+    private final CatalogChanges catalogChanges = new CatalogChanges();
+    private final Notifications notifications = new Notifications();
+    private final Async async = new Async();
+    private final Coalescing coalescing = new Coalescing();
+    private final UploadLogs uploadLogs = new UploadLogs();
+    private final WriteBehind writeBehind = new WriteBehind();
+    private final Rollups rollups = new Rollups();
+    private final Cube cube = new Cube();
+
+    public Cache getCache() {
+        return cache;
+    }
+
+    public AsOf getAsOf() {
+        return asOf;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public TagIndex getTagIndex() {
+        return tagIndex;
+    }
+
+    public Streaming getStreaming() {
+        return streaming;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public CatalogChanges getCatalogChanges() {
+        return catalogChanges;
+    }
+
+    public Notifications getNotifications() {
+        return notifications;
+    }
+
+    public Async getAsync() {
+        return async;
+    }
+
+    public Coalescing getCoalescing() {
+        return coalescing;
+    }
+
+    public UploadLogs getUploadLogs() {
+        return uploadLogs;
+    }
+
+    public WriteBehind getWriteBehind() {
+        return writeBehind;
+    }
+
+    public Rollups getRollups() {
+        return rollups;
+    }
+
+    public Cube getCube() {
+        return cube;
+    }
+
+    /**
+     * Read-through metadata cache in front of the DAO ({@code mcm.dao.cache.*})
+     */
+    public static class Cache {
+        private boolean enabled = false;
+        private int maximumSize = 10000;
+        private long timeToLiveSeconds = 300;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaximumSize() {
+            return maximumSize;
+        }
+
+        public void setMaximumSize(int maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        public long getTimeToLiveSeconds() {
+            return timeToLiveSeconds;
+        }
+
+        public void setTimeToLiveSeconds(long timeToLiveSeconds) {
+            this.timeToLiveSeconds = timeToLiveSeconds;
+        }
+    }
+
+    /**
+     * In-memory status changelogs serving the *InRetrospect listings ({@code mcm.dao.as-of.*})
+     */
+    public static class AsOf {
+        private boolean enabled = false;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+    }
+
+    /**
+     * Per method latency, error, row and statement metrics ({@code mcm.dao.metrics.*})
+     */
+    public static class Metrics {
+        private boolean enabled = false;
+        private String jmxDomain = "com.stridetech.mcm.dao";
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getJmxDomain() {
+            return jmxDomain;
+        }
+
+        public void setJmxDomain(String jmxDomain) {
+            this.jmxDomain = jmxDomain;
+        }
+    }
+
+    /**
+     * In-memory bitmap index answering findCampaigns ({@code mcm.dao.tag-index.*})
+     */
+    public static class TagIndex {
+        private boolean enabled = false;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+    }
+
+    /**
+     * Server side cursors behind the stream* methods ({@code mcm.dao.streaming.*})
+     */
+    public static class Streaming {
+        private int fetchSize = 1000;
+
+        public int getFetchSize() {
+            return fetchSize;
+        }
+
+        public void setFetchSize(int fetchSize) {
+            this.fetchSize = fetchSize;
+        }
+    }
+
+    /**
+     * Local catalog snapshot the cache, as-of engine and tag index start from ({@code mcm.dao.snapshot.*})
+     */
+    public static class Snapshot {
+        private boolean enabled = false;
+        private String path = "mcm-catalog.snapshot";
+        private long maximumAgeMinutes = 1440;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public void setPath(String path) {
+            this.path = path;
+        }
+
+        /**
+         * @return age past which the snapshot is written anew at startup rather than caught up
+         */
+        public long getMaximumAgeMinutes() {
+            return maximumAgeMinutes;
+        }
+
+        public void setMaximumAgeMinutes(long maximumAgeMinutes) {
+            this.maximumAgeMinutes = maximumAgeMinutes;
+        }
+    }
+
+    /**
+     * Scheduled purge of the catalog change records no snapshot needs any more, on by default as
+     * every catalog write adds them ({@code mcm.dao.catalog-changes.*})
+     */
+    public static class CatalogChanges {
+        private boolean enabled = true;
+        private String cron = "0 45 * * * *";
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @return when the purge runs, read by the scheduler from the property itself
+         */
+        public String getCron() {
+            return cron;
+        }
+
+        public void setCron(String cron) {
+            this.cron = cron;
+        }
+    }
+
+    /**
+     * Catalog changes of all nodes notified on a LISTEN connection of its own, opened with the pool's
+     * URL and credentials but outside the pool ({@code mcm.dao.notifications.*})
+     */
+    public static class Notifications {
+        private boolean enabled = false;
+        private long pollIntervalMillis = 500;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getPollIntervalMillis() {
+            return pollIntervalMillis;
+        }
+
+        public void setPollIntervalMillis(long pollIntervalMillis) {
+            this.pollIntervalMillis = pollIntervalMillis;
+        }
+    }
+
+    /**
+     * Single-flight sharing of identical concurrent reads ({@code mcm.dao.coalescing.*})
+     */
+    public static class Coalescing {
+        private boolean enabled = false;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+    }
+
+    /**
+     * Executor behind the AsyncMCMServiceDao ({@code mcm.dao.async.*})
+     */
+    public static class Async {
+        private boolean enabled = false;
+        private int threads = 0;
+        private int queueCapacity = 1000;
+        private long maximumWaitMillis = 1000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @return number of threads, 0 for the maximum size of the connection pool
+         */
+        public int getThreads() {
+            return threads;
+        }
+
+        public void setThreads(int threads) {
+            this.threads = threads;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public long getMaximumWaitMillis() {
+            return maximumWaitMillis;
+        }
+
+        public void setMaximumWaitMillis(long maximumWaitMillis) {
+            this.maximumWaitMillis = maximumWaitMillis;
+        }
+    }
+
+    /**
+     * Scheduled creation and expiry of the monthly upload log partitions ({@code mcm.dao.upload-logs.*})
+     */
+    public static class UploadLogs {
+        private boolean enabled = false;
+        private String cron = "0 15 3 * * *";
+        private int monthsAhead = 2;
+        private int retentionMonths = 0;
+        private String archiveSchema;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @return when maintenance runs, read by the scheduler from the property itself
+         */
+        public String getCron() {
+            return cron;
+        }
+
+        public void setCron(String cron) {
+            this.cron = cron;
+        }
+
+        public int getMonthsAhead() {
+            return monthsAhead;
+        }
+
+        public void setMonthsAhead(int monthsAhead) {
+            this.monthsAhead = monthsAhead;
+        }
+
+        /**
+         * @return months kept besides the current one, 0 to keep everything
+         */
+        public int getRetentionMonths() {
+            return retentionMonths;
+        }
+
+        public void setRetentionMonths(int retentionMonths) {
+            this.retentionMonths = retentionMonths;
+        }
+
+        /**
+         * @return schema expired partitions are moved to, none to drop them
+         */
+        public String getArchiveSchema() {
+            return archiveSchema;
+        }
+
+        public void setArchiveSchema(String archiveSchema) {
+            this.archiveSchema = archiveSchema;
+        }
+    }
+
+    /**
+     * Write-behind buffer of upload logs and parser status updates ({@code mcm.dao.write-behind.*})
+     */
+    public static class WriteBehind {
+        private boolean enabled = false;
+        private int capacity = 10000;
+        private int batchSize = 500;
+        private long flushIntervalMillis = 200;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @return writes queued at most, past which writers flush the queue themselves
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public void setCapacity(int capacity) {
+            this.capacity = capacity;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public long getFlushIntervalMillis() {
+            return flushIntervalMillis;
+        }
+
+        public void setFlushIntervalMillis(long flushIntervalMillis) {
+            this.flushIntervalMillis = flushIntervalMillis;
+        }
+    }
+
+    /**
+     * Scheduled refresh of the acquisition rollups ({@code mcm.dao.rollups.*})
+     */
+    public static class Rollups {
+        private boolean enabled = false;
+        private long refreshDelayMillis = 60000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getRefreshDelayMillis() {
+            return refreshDelayMillis;
+        }
+
+        public void setRefreshDelayMillis(long refreshDelayMillis) {
+            this.refreshDelayMillis = refreshDelayMillis;
+        }
+    }
+
+    /**
+     * In-memory acquisition cube, loaded at startup and refreshed on schedule ({@code mcm.dao.cube.*})
+     */
+    public static class Cube {
+        private boolean enabled = false;
+        private long reloadDelayMillis = 300000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getReloadDelayMillis() {
+            return reloadDelayMillis;
+        }
+
+        public void setReloadDelayMillis(long reloadDelayMillis) {
+            this.reloadDelayMillis = reloadDelayMillis;
+        }
+    }
+}
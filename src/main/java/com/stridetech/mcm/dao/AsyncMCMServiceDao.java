@@ -0,0 +1,193 @@
+package com.stridetech.mcm.dao;
+
+import com.stridetech.mcm.dao.index.CampaignQuery;
+import com.stridetech.mcm.dao.index.TagExpression;
+import com.stridetech.mcm.dao.logs.UploadLogCursor;
+import com.stridetech.mcm.dao.logs.UploadLogPage;
+import com.stridetech.mcm.dao.stats.AcquisitionDimension;
+import com.stridetech.mcm.dao.stats.AcquisitionFact;
+import com.stridetech.mcm.dao.stats.AcquisitionGrain;
+import com.stridetech.mcm.dao.stats.AcquisitionRollup;
+import com.stridetech.mcm.dao.tags.TaggingResult;
+import com.stridetech.mcm.model.enums.*;
+import com.stridetech.mcm.model.logs.ChangeLog;
+import com.stridetech.mcm.model.meta.*;
+import com.stridetech.mcm.model.security.*;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking counterpart of {@link MCMServiceDao}: every method runs its {@link MCMServiceDao}
+ * namesake on a {@link com.stridetech.mcm.dao.async.DaoExecutor} and completes the returned future
+ * with its result, or exceptionally with what it threw. Lets a caller fan out e.g.
+ * {@code listCampaignTags}, {@code listCampaignMetros} and {@code getCampaignStatusChangelog} of a
+ * campaign at once instead of waiting for each in turn.
+ * <p>
+ * Every call runs in a transaction of its own, never in one of the caller's. The stream* methods
+ * have no counterpart: a stream is read on the caller's thread anyway.
+ *
+ * @see ExecutingMCMServiceDao
+ */
+public interface AsyncMCMServiceDao {
+
+    /**
+     *  CRUD BusinesssUnit
+     */
+
+    CompletableFuture<Account> createBusinessUnit(Account account);
+    CompletableFuture<Account> retrieveBusinessUnit(Long Id);
+    CompletableFuture<Map<Long, Account>> retrieveBusinessUnits(Collection<Long> ids);
+    CompletableFuture<Account> updateBusinessUnit(Account account);
+    CompletableFuture<Account> deleteBusinessUnit(Account account);
+    CompletableFuture<ChangeLog<AccountStatus>> getAccountStatusChangelog(Account account);
+    CompletableFuture<SortedSet<Account>> listBusinessUnits();
+    CompletableFuture<SortedSet<Account>> listBusinessUnitsInRetrospect(Date effectiveDate);
+    CompletableFuture<SortedSet<Campaign>> listBusinessUnitCampaigns(Account account);
+    CompletableFuture<SortedSet<Campaign>> listBusinessUnitCampaigns(Long accountId);
+
+    CompletableFuture<Integer> reassignCampaigns(Collection<String> trackers, Account account);
+
+    /**
+     *
+     * CRUD Marketplace
+     */
+
+    CompletableFuture<Marketplace> createMarketplace(Marketplace marketplace);
+    CompletableFuture<Marketplace> retrieveMarketplace(Long Id);
+    CompletableFuture<Map<Long, Marketplace>> retrieveMarketplaces(Collection<Long> ids);
+    CompletableFuture<Marketplace> updateMarketplace(Marketplace marketplace);
+    CompletableFuture<Marketplace> deleteMarketplace(Marketplace marketplace);
+    CompletableFuture<ChangeLog<MarketplaceStatus>> getMarketplaceStatusChangelog(Marketplace marketplace);
+    CompletableFuture<SortedSet<Marketplace>> listMarketplaces();
+    CompletableFuture<SortedSet<Marketplace>> listMarketplacesInRetrospect(Date effectiveDate);
+
+    /**
+     * CRUD Product
+     */
+
+    CompletableFuture<Product> createProduct(Product product);
+    CompletableFuture<Product> retrieveProduct(String code);
+    CompletableFuture<Map<String, Product>> retrieveProducts(Collection<String> codes);
+    CompletableFuture<Product> updateProduct(Product product);
+    CompletableFuture<Product> deleteProduct(Product product);
+    CompletableFuture<ChangeLog<ProductStatus>> getProductStatusChangelog(Product product);
+    CompletableFuture<SortedSet<Product>> listProducts();
+    CompletableFuture<SortedSet<Product>> listProductsInRetrospect(Date effectiveDate);
+
+    /**
+     * CRUD Campaign
+     */
+
+    CompletableFuture<Campaign> createCampaign(Campaign campaign);
+    CompletableFuture<SortedSet<Campaign>> createCampaigns(Collection<Campaign> campaigns);
+    CompletableFuture<Campaign> retrieveCampaign(String tracker);
+    CompletableFuture<Map<String, Campaign>> retrieveCampaigns(Collection<String> trackers);
+    CompletableFuture<Campaign> updateCampaign(Campaign campaign);
+    CompletableFuture<Campaign> deleteCampaign(Campaign campaign);
+    CompletableFuture<ChangeLog<CampaignStatus>> getCampaignStatusChangelog(Campaign campaign);
+    CompletableFuture<ChangeLog<CampaignStatus>> getCampaignStatusChangelog(String campaignTracker);
+    CompletableFuture<SortedSet<Campaign>> listCampaigns();
+    CompletableFuture<SortedSet<Campaign>> listCampaignsInRetrospect(Date effectiveDate);
+    CompletableFuture<SortedSet<Campaign>> listMarketplaceCampaigns(Marketplace marketplace);
+    CompletableFuture<SortedSet<Campaign>> listMarketplaceCampaignsInRetrospect(Marketplace marketplace, Date effectiveDate);
+    CompletableFuture<SortedSet<Campaign>> listMarketplaceCampaignsInRetrospect(Long marketplaceId, Date effectiveDate);
+    CompletableFuture<SortedSet<Campaign>> listProductCampaigns(Product product);
+    CompletableFuture<SortedSet<Campaign>> listProductCampaigns(String productCode);
+    CompletableFuture<SortedSet<Campaign>> listProductCampaignsInRetrospect(Product product, Date effectiveDate);
+
+    /**
+     * Unique object ( for update or insertion )
+     * not myself, same name or id or whatever else must be unique
+     */
+
+    CompletableFuture<Boolean> isNewMarketplaceUnique(Marketplace marketplace, Boolean doExcludeOwnId);
+    CompletableFuture<Boolean> isNewProductUnique(Product product, Boolean doExcludeOwnId);
+    CompletableFuture<Boolean> isNewCampaignUnique(Campaign campaign, Boolean doExcludeOwnId);
+    CompletableFuture<Boolean> isNewAccountUnique(Account account, Boolean doExcludeOwnId);
+
+    CompletableFuture<TagGroup> createTagGroup(TagGroup tagGroup);
+    CompletableFuture<TagGroup> retrieveTagGroup(Long id);
+    CompletableFuture<TagGroup> updateTagGroup(TagGroup tagGroup);
+    CompletableFuture<TagGroup> deleteTagGroup(TagGroup tagGroup);
+    CompletableFuture<SortedSet<TagGroup>> allApplicable(TagType type);
+    CompletableFuture<SortedSet<Tag>> retrieveTagGroupTags(Long tagGroupId);
+    CompletableFuture<SortedSet<Tag>> retrieveTagGroupTags(TagGroup tagGroup);
+    CompletableFuture<Tag> createTag(Tag tag);
+    CompletableFuture<Tag> retrieveTag(Long id);
+    CompletableFuture<Tag> updateTag(Tag tag);
+    CompletableFuture<Tag> deleteTag(Tag tag);
+
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> listCampaignTags(Campaign campaign);
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> listCampaignTags(String tracker);
+
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> listProductTags(Product product);
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> listProductTags(String code);
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> listAccountTags(Account account);
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> listAccountTags(Long id);
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> listMarketplaceTags(Marketplace marketplace);
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> listMarketplaceTags(Long id);
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> tagCampaign(Campaign campaign, Tag tag);
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> untagCampaign(Campaign campaign, Tag tag);
+    CompletableFuture<TaggingResult> tagCampaigns(Map<String, ? extends Collection<Tag>> tags);
+    CompletableFuture<TaggingResult> retagCampaigns(Map<String, ? extends Collection<Tag>> tags);
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> tagAccount(Account account, Tag tag);
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> untagAccount(Account account, Tag tag);
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> tagProduct(Product product, Tag tag);
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> untagProduct(Product product, Tag tag);
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> tagMarketplace(Marketplace marketplace, Tag tag);
+    CompletableFuture<SortedMap<Tag, SortedSet<Tag>>> untagMarketplace(Marketplace marketplace, Tag tag);
+
+    CompletableFuture<SortedSet<TagGroup>> listTagGroups();
+
+    CompletableFuture<SortedSet<Campaign>> findCampaigns(TagExpression tags);
+
+    CompletableFuture<SortedSet<Campaign>> findCampaigns(CampaignQuery query);
+
+    /**
+     * Metros
+     */
+
+    CompletableFuture<SortedSet<Metro>> listMetros();
+    CompletableFuture<Metro> retrieveMetro(Long id);
+    CompletableFuture<Map<Long, Metro>> retrieveMetros(Collection<Long> ids);
+    CompletableFuture<Metro> setCampaignMetro(Campaign campaign, Metro metro);
+    CompletableFuture<Metro> unsetCampaignMetro(Campaign campaign, Metro metro);
+    CompletableFuture<SortedSet<Metro>> listCampaignMetros(Campaign campaign);
+
+    /**
+     * Security
+     */
+
+    CompletableFuture<User> getUserByEmail(String email);
+
+    /***
+     *  Feed Upload
+     */
+
+    CompletableFuture<SortedSet<Feed>> listFeedDef(String user, boolean summary);
+    CompletableFuture<Feed> getFeed(Long fileType);
+    CompletableFuture<Void> logFileUpload(UploadLog log);
+    CompletableFuture<UploadLog> updateParserStatus(String filename, String parserStatus);
+    CompletableFuture<UploadLog> getUploadLog(String filename);
+    CompletableFuture<SortedSet<UploadLog>> getRecentUploadLogs(int count, int minutes, String user);
+    CompletableFuture<UploadLogPage> getUploadLogPage(String user, UploadLogCursor after, int pageSize);
+    CompletableFuture<SortedSet<Link>> getFrontPageLinks();
+
+    /**
+     * Statistics
+     */
+
+    /**
+     * @param facts facts to merge, read on the executor's thread
+     */
+    CompletableFuture<Long> mergeAcquisitionFacts(Iterator<AcquisitionFact> facts);
+    CompletableFuture<List<AcquisitionRollup>> getAcquisitionRollups(AcquisitionGrain grain, AcquisitionDimension dimension, Date from, Date to);
+    CompletableFuture<Integer> refreshAcquisitionRollups();
+}
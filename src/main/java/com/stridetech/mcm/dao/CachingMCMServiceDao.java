@@ -0,0 +1,925 @@
+package com.stridetech.mcm.dao;
+
+import com.stridetech.mcm.dao.cache.CacheStatistics;
+import com.stridetech.mcm.dao.cache.MetadataCache;
+import com.stridetech.mcm.dao.events.CatalogChangeEvent;
+import com.stridetech.mcm.dao.events.CatalogChangeListener;
+import com.stridetech.mcm.dao.index.CampaignQuery;
+import com.stridetech.mcm.dao.index.TagExpression;
+import com.stridetech.mcm.dao.logs.UploadLogCursor;
+import com.stridetech.mcm.dao.logs.UploadLogPage;
+import com.stridetech.mcm.dao.snapshot.CatalogChanges;
+import com.stridetech.mcm.dao.snapshot.CatalogSnapshot;
+import com.stridetech.mcm.dao.stats.AcquisitionDimension;
+import com.stridetech.mcm.dao.stats.AcquisitionFact;
+import com.stridetech.mcm.dao.stats.AcquisitionGrain;
+import com.stridetech.mcm.dao.stats.AcquisitionRollup;
+import com.stridetech.mcm.dao.tags.TaggingResult;
+import com.stridetech.mcm.model.enums.*;
+import com.stridetech.mcm.model.logs.ChangeLog;
+import com.stridetech.mcm.model.meta.*;
+import com.stridetech.mcm.model.security.*;
+import com.stridetech.mcm.util.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Read-through caching decorator of a {@link MCMServiceDao}.
+ * <p>
+ * Single entity lookups ({@code retrieve*}) are cached per entity type and key, the multi-key
+ * lookups only read the keys missing from those caches. Every {@code list*} style call is cached
+ * in one shared region keyed by method and arguments.
+ * Writes go straight to the delegate and invalidate the written entity plus the whole list region,
+ * since almost any catalog change (including back dated status changes) can change the outcome of
+ * a listing.
+ * <p>
+ * Every caller of a single or multi-key lookup gets its own copy of the cached entities, which are
+ * usually changed and written back; like those of the {@link CoalescingMCMServiceDao}, cached
+ * collections are handed out as unmodifiable views shared between callers, and the entities in them
+ * must be treated as read only. Security and upload log methods are not cached, nor are the
+ * {@code stream*} methods, which exist so that large listings are not held in memory.
+ * <p>
+ * Subscribed to a {@link com.stridetech.mcm.dao.events.CatalogChangeChannel} the cache also drops
+ * what other nodes changed, the same way as for its own writes.
+ */
+public class CachingMCMServiceDao implements MCMServiceDao, CatalogChangeListener {
+
+    private final MCMServiceDao delegate;
+
+    private final MetadataCache<Long, Account> businessUnits;
+    private final MetadataCache<Long, Marketplace> marketplaces;
+    private final MetadataCache<String, Product> products;
+    private final MetadataCache<String, Campaign> campaigns;
+    private final MetadataCache<Long, Metro> metros;
+    private final MetadataCache<Long, TagGroup> tagGroups;
+    private final MetadataCache<List<Object>, Object> lists;
+
+    /**
+     * @param delegate    DAO doing the actual work
+     * @param maximumSize maximum number of entries of each cache
+     * @param timeToLive  time a cached entry stays valid
+     * @param timeUnit    unit of {@code timeToLive}
+     */
+    public CachingMCMServiceDao(MCMServiceDao delegate, int maximumSize, long timeToLive, TimeUnit timeUnit) {
+        this.delegate = delegate;
+        this.businessUnits = new MetadataCache<>("businessUnits", maximumSize, timeToLive, timeUnit);
+        this.marketplaces = new MetadataCache<>("marketplaces", maximumSize, timeToLive, timeUnit);
+        this.products = new MetadataCache<>("products", maximumSize, timeToLive, timeUnit);
+        this.campaigns = new MetadataCache<>("campaigns", maximumSize, timeToLive, timeUnit);
+        this.metros = new MetadataCache<>("metros", maximumSize, timeToLive, timeUnit);
+        this.tagGroups = new MetadataCache<>("tagGroups", maximumSize, timeToLive, timeUnit);
+        this.lists = new MetadataCache<>("lists", maximumSize, timeToLive, timeUnit);
+    }
+
+    /**
+     * @return statistics of every cache, keyed by cache name
+     */
+    public SortedMap<String, CacheStatistics> getStatistics() {
+        SortedMap<String, CacheStatistics> out = new TreeMap<>();
+        for (MetadataCache<?, ?> cache : caches())
+            out.put(cache.getName(), cache.getStatistics());
+        return out;
+    }
+
+    /**
+     * Drops every cached entry, e.g. after the catalog was changed behind the DAO's back.
+     */
+    public void invalidateAll() {
+        for (MetadataCache<?, ?> cache : caches())
+            cache.invalidateAll();
+    }
+
+    /**
+     * Drops expired entries of every cache.
+     */
+    public void cleanUp() {
+        for (MetadataCache<?, ?> cache : caches())
+            cache.cleanUp();
+    }
+
+    /**
+     * Drops the changed entity and every listing.
+     *
+     * @param event change committed by any node
+     */
+    @Override
+    public void onChange(CatalogChangeEvent event) {
+        switch (event.getEntity()) {
+            case BUSINESS_UNIT:
+                businessUnits.invalidate(event.getId());
+                break;
+            case MARKETPLACE:
+                marketplaces.invalidate(event.getId());
+                break;
+            case PRODUCT:
+                products.invalidate(event.getKey());
+                break;
+            case CAMPAIGN:
+                campaigns.invalidate(event.getKey());
+                break;
+            case TAG_GROUP:
+                tagGroups.invalidate(event.getId());
+                break;
+            case METRO:
+                metros.invalidate(event.getId());
+                break;
+            default:
+                // tags and status changelogs only show in listings
+                break;
+        }
+        lists.invalidateAll();
+    }
+
+    @Override
+    public void onChangesMissed() {
+        invalidateAll();
+    }
+
+    /**
+     * Fills the catalog listings (listBusinessUnits, listMarketplaces, listProducts, listCampaigns,
+     * listTagGroups and listMetros) from a snapshot brought up to date by the changes made since,
+     * so that a freshly started replica answers them without a query. Single entity lookups stay
+     * read-through. The entries expire like any other.
+     * <p>
+     * Nothing is filled once the listings were invalidated: subscribe the cache to the change
+     * channel before reading the changes, and a change committed after they were read can't be
+     * shadowed by the warm-up.
+     *
+     * @param snapshot catalog snapshot
+     * @param changes  changes since the snapshot, or null
+     */
+    public void warmUp(CatalogSnapshot snapshot, CatalogChanges changes) {
+        warmUp("listBusinessUnits", listing(snapshot.businessUnits(changes), new AccountComparator(),
+                a -> a.getStatus() != AccountStatus.DELETED));
+        warmUp("listMarketplaces", listing(snapshot.marketplaces(changes), new MarketplaceComparator(),
+                m -> m.getStatus() != MarketplaceStatus.DELETED));
+        warmUp("listProducts", listing(snapshot.products(changes), new ProductComparator(),
+                p -> p.getStatus() != ProductStatus.DELETED));
+        warmUp("listCampaigns", listing(snapshot.campaigns(changes), new CampaignComparator(),
+                c -> c.getStatus() != CampaignStatus.DELETED));
+        warmUp("listTagGroups", listing(snapshot.tagGroups(changes), new TagGroupComparator(), tg -> true));
+        warmUp("listMetros", listing(snapshot.metros(changes), new MetroComparator(), m -> true));
+    }
+
+    private void warmUp(String method, SortedSet<?> listing) {
+        lists.put(Arrays.asList(method), listing, MetadataCache.INITIAL_GENERATION);
+    }
+
+    private static <T> SortedSet<T> listing(List<T> all, Comparator<? super T> comparator, Predicate<T> listed) {
+        SortedSet<T> out = new TreeSet<>(comparator);
+        for (T t : all)
+            if (listed.test(t))
+                out.add(t);
+        return Collections.unmodifiableSortedSet(out);
+    }
+
+    private List<MetadataCache<?, ?>> caches() {
+        return Arrays.asList(businessUnits, marketplaces, products, campaigns, metros, tagGroups, lists);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> SortedSet<T> sortedSet(Supplier<SortedSet<T>> loader, Object... key) {
+        return (SortedSet<T>) lists.get(Arrays.asList(key), k -> Collections.unmodifiableSortedSet(loader.get()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <K, V> SortedMap<K, V> sortedMap(Supplier<SortedMap<K, V>> loader, Object... key) {
+        return (SortedMap<K, V>) lists.get(Arrays.asList(key), k -> Collections.unmodifiableSortedMap(loader.get()));
+    }
+
+    /**
+     * BusinessUnit
+     */
+
+    @Override
+    public Account createBusinessUnit(Account account) {
+        try {
+            return delegate.createBusinessUnit(account);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public Account retrieveBusinessUnit(Long id) {
+        return CatalogEntities.copy(businessUnits.get(id, delegate::retrieveBusinessUnit));
+    }
+
+    @Override
+    public Map<Long, Account> retrieveBusinessUnits(Collection<Long> ids) {
+        return CatalogEntities.copyAll(businessUnits.getAll(ids, delegate::retrieveBusinessUnits));
+    }
+
+    @Override
+    public Account updateBusinessUnit(Account account) {
+        try {
+            return delegate.updateBusinessUnit(account);
+        } finally {
+            businessUnits.invalidate(account.getId());
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public Account deleteBusinessUnit(Account account) {
+        try {
+            return delegate.deleteBusinessUnit(account);
+        } finally {
+            businessUnits.invalidate(account.getId());
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public ChangeLog<AccountStatus> getAccountStatusChangelog(Account account) {
+        return delegate.getAccountStatusChangelog(account);
+    }
+
+    @Override
+    public SortedSet<Account> listBusinessUnits() {
+        return sortedSet(delegate::listBusinessUnits, "listBusinessUnits");
+    }
+
+    @Override
+    public SortedSet<Account> listBusinessUnitsInRetrospect(Date effectiveDate) {
+        return sortedSet(() -> delegate.listBusinessUnitsInRetrospect(effectiveDate), "listBusinessUnitsInRetrospect", effectiveDate);
+    }
+
+    @Override
+    public SortedSet<Campaign> listBusinessUnitCampaigns(Account account) {
+        return sortedSet(() -> delegate.listBusinessUnitCampaigns(account), "listBusinessUnitCampaigns", account.getId());
+    }
+
+    @Override
+    public SortedSet<Campaign> listBusinessUnitCampaigns(Long accountId) {
+        return sortedSet(() -> delegate.listBusinessUnitCampaigns(accountId), "listBusinessUnitCampaigns", accountId);
+    }
+
+    @Override
+    public Stream<Account> streamBusinessUnits() {
+        return delegate.streamBusinessUnits();
+    }
+
+    @Override
+    public Stream<Account> streamBusinessUnitsInRetrospect(Date effectiveDate) {
+        return delegate.streamBusinessUnitsInRetrospect(effectiveDate);
+    }
+
+    @Override
+    public Stream<Campaign> streamBusinessUnitCampaigns(Long accountId) {
+        return delegate.streamBusinessUnitCampaigns(accountId);
+    }
+
+    @Override
+    public int reassignCampaigns(Collection<String> trackers, Account account) {
+        try {
+            return delegate.reassignCampaigns(trackers, account);
+        } finally {
+            trackers.forEach(campaigns::invalidate);
+            lists.invalidateAll();
+        }
+    }
+
+    /**
+     * Marketplace
+     */
+
+    @Override
+    public Marketplace createMarketplace(Marketplace marketplace) {
+        try {
+            return delegate.createMarketplace(marketplace);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public Marketplace retrieveMarketplace(Long id) {
+        return CatalogEntities.copy(marketplaces.get(id, delegate::retrieveMarketplace));
+    }
+
+    @Override
+    public Map<Long, Marketplace> retrieveMarketplaces(Collection<Long> ids) {
+        return CatalogEntities.copyAll(marketplaces.getAll(ids, delegate::retrieveMarketplaces));
+    }
+
+    @Override
+    public Marketplace updateMarketplace(Marketplace marketplace) {
+        try {
+            return delegate.updateMarketplace(marketplace);
+        } finally {
+            marketplaces.invalidate(marketplace.getId());
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public Marketplace deleteMarketplace(Marketplace marketplace) {
+        try {
+            return delegate.deleteMarketplace(marketplace);
+        } finally {
+            marketplaces.invalidate(marketplace.getId());
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public ChangeLog<MarketplaceStatus> getMarketplaceStatusChangelog(Marketplace marketplace) {
+        return delegate.getMarketplaceStatusChangelog(marketplace);
+    }
+
+    @Override
+    public SortedSet<Marketplace> listMarketplaces() {
+        return sortedSet(delegate::listMarketplaces, "listMarketplaces");
+    }
+
+    @Override
+    public SortedSet<Marketplace> listMarketplacesInRetrospect(Date effectiveDate) {
+        return sortedSet(() -> delegate.listMarketplacesInRetrospect(effectiveDate), "listMarketplacesInRetrospect", effectiveDate);
+    }
+
+    @Override
+    public Stream<Marketplace> streamMarketplaces() {
+        return delegate.streamMarketplaces();
+    }
+
+    @Override
+    public Stream<Marketplace> streamMarketplacesInRetrospect(Date effectiveDate) {
+        return delegate.streamMarketplacesInRetrospect(effectiveDate);
+    }
+
+    /**
+     * Product
+     */
+
+    @Override
+    public Product createProduct(Product product) {
+        try {
+            return delegate.createProduct(product);
+        } finally {
+            products.invalidate(product.getId());
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public Product retrieveProduct(String code) {
+        return CatalogEntities.copy(products.get(code, delegate::retrieveProduct));
+    }
+
+    @Override
+    public Map<String, Product> retrieveProducts(Collection<String> codes) {
+        return CatalogEntities.copyAll(products.getAll(codes, delegate::retrieveProducts));
+    }
+
+    @Override
+    public Product updateProduct(Product product) {
+        try {
+            return delegate.updateProduct(product);
+        } finally {
+            products.invalidate(product.getId());
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public Product deleteProduct(Product product) {
+        try {
+            return delegate.deleteProduct(product);
+        } finally {
+            products.invalidate(product.getId());
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public ChangeLog<ProductStatus> getProductStatusChangelog(Product product) {
+        return delegate.getProductStatusChangelog(product);
+    }
+
+    @Override
+    public SortedSet<Product> listProducts() {
+        return sortedSet(delegate::listProducts, "listProducts");
+    }
+
+    @Override
+    public SortedSet<Product> listProductsInRetrospect(Date effectiveDate) {
+        return sortedSet(() -> delegate.listProductsInRetrospect(effectiveDate), "listProductsInRetrospect", effectiveDate);
+    }
+
+    @Override
+    public Stream<Product> streamProducts() {
+        return delegate.streamProducts();
+    }
+
+    @Override
+    public Stream<Product> streamProductsInRetrospect(Date effectiveDate) {
+        return delegate.streamProductsInRetrospect(effectiveDate);
+    }
+
+    /**
+     * Campaign
+     */
+
+    @Override
+    public Campaign createCampaign(Campaign campaign) {
+        try {
+            return delegate.createCampaign(campaign);
+        } finally {
+            campaigns.invalidate(campaign.getTracker());
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public SortedSet<Campaign> createCampaigns(Collection<Campaign> campaigns) {
+        try {
+            return delegate.createCampaigns(campaigns);
+        } finally {
+            campaigns.forEach(c -> this.campaigns.invalidate(c.getTracker()));
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public Campaign retrieveCampaign(String tracker) {
+        return CatalogEntities.copy(campaigns.get(tracker, delegate::retrieveCampaign));
+    }
+
+    @Override
+    public Map<String, Campaign> retrieveCampaigns(Collection<String> trackers) {
+        return CatalogEntities.copyAll(campaigns.getAll(trackers, delegate::retrieveCampaigns));
+    }
+
+    @Override
+    public Campaign updateCampaign(Campaign campaign) {
+        try {
+            return delegate.updateCampaign(campaign);
+        } finally {
+            campaigns.invalidate(campaign.getTracker());
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public Campaign deleteCampaign(Campaign campaign) {
+        try {
+            return delegate.deleteCampaign(campaign);
+        } finally {
+            campaigns.invalidate(campaign.getTracker());
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public ChangeLog<CampaignStatus> getCampaignStatusChangelog(Campaign campaign) {
+        return delegate.getCampaignStatusChangelog(campaign);
+    }
+
+    @Override
+    public ChangeLog<CampaignStatus> getCampaignStatusChangelog(String campaignTracker) {
+        return delegate.getCampaignStatusChangelog(campaignTracker);
+    }
+
+    @Override
+    public SortedSet<Campaign> listCampaigns() {
+        return sortedSet(delegate::listCampaigns, "listCampaigns");
+    }
+
+    @Override
+    public SortedSet<Campaign> listCampaignsInRetrospect(Date effectiveDate) {
+        return sortedSet(() -> delegate.listCampaignsInRetrospect(effectiveDate), "listCampaignsInRetrospect", effectiveDate);
+    }
+
+    @Override
+    public SortedSet<Campaign> listMarketplaceCampaigns(Marketplace marketplace) {
+        return sortedSet(() -> delegate.listMarketplaceCampaigns(marketplace), "listMarketplaceCampaigns", marketplace.getId());
+    }
+
+    @Override
+    public SortedSet<Campaign> listMarketplaceCampaignsInRetrospect(Marketplace marketplace, Date effectiveDate) {
+        return sortedSet(() -> delegate.listMarketplaceCampaignsInRetrospect(marketplace, effectiveDate),
+                "listMarketplaceCampaignsInRetrospect", marketplace.getId(), effectiveDate);
+    }
+
+    @Override
+    public SortedSet<Campaign> listMarketplaceCampaignsInRetrospect(Long marketplaceId, Date effectiveDate) {
+        return sortedSet(() -> delegate.listMarketplaceCampaignsInRetrospect(marketplaceId, effectiveDate),
+                "listMarketplaceCampaignsInRetrospect", marketplaceId, effectiveDate);
+    }
+
+    @Override
+    public SortedSet<Campaign> listProductCampaigns(Product product) {
+        return sortedSet(() -> delegate.listProductCampaigns(product), "listProductCampaigns", product.getId());
+    }
+
+    @Override
+    public SortedSet<Campaign> listProductCampaigns(String productCode) {
+        return sortedSet(() -> delegate.listProductCampaigns(productCode), "listProductCampaigns", productCode);
+    }
+
+    @Override
+    public SortedSet<Campaign> listProductCampaignsInRetrospect(Product product, Date effectiveDate) {
+        return sortedSet(() -> delegate.listProductCampaignsInRetrospect(product, effectiveDate),
+                "listProductCampaignsInRetrospect", product.getId(), effectiveDate);
+    }
+
+    @Override
+    public Stream<Campaign> streamCampaigns() {
+        return delegate.streamCampaigns();
+    }
+
+    @Override
+    public Stream<Campaign> streamCampaignsInRetrospect(Date effectiveDate) {
+        return delegate.streamCampaignsInRetrospect(effectiveDate);
+    }
+
+    @Override
+    public Stream<Campaign> streamMarketplaceCampaigns(Long marketplaceId) {
+        return delegate.streamMarketplaceCampaigns(marketplaceId);
+    }
+
+    @Override
+    public Stream<Campaign> streamMarketplaceCampaignsInRetrospect(Long marketplaceId, Date effectiveDate) {
+        return delegate.streamMarketplaceCampaignsInRetrospect(marketplaceId, effectiveDate);
+    }
+
+    @Override
+    public Stream<Campaign> streamProductCampaigns(String productCode) {
+        return delegate.streamProductCampaigns(productCode);
+    }
+
+    @Override
+    public Stream<Campaign> streamProductCampaignsInRetrospect(String productCode, Date effectiveDate) {
+        return delegate.streamProductCampaignsInRetrospect(productCode, effectiveDate);
+    }
+
+    /**
+     * Uniqueness checks guard writes and are never cached
+     */
+
+    @Override
+    public Boolean isNewMarketplaceUnique(Marketplace marketplace, Boolean doExcludeOwnId) {
+        return delegate.isNewMarketplaceUnique(marketplace, doExcludeOwnId);
+    }
+
+    @Override
+    public Boolean isNewProductUnique(Product product, Boolean doExcludeOwnId) {
+        return delegate.isNewProductUnique(product, doExcludeOwnId);
+    }
+
+    @Override
+    public Boolean isNewCampaignUnique(Campaign campaign, Boolean doExcludeOwnId) {
+        return delegate.isNewCampaignUnique(campaign, doExcludeOwnId);
+    }
+
+    @Override
+    public Boolean isNewAccountUnique(Account account, Boolean doExcludeOwnId) {
+        return delegate.isNewAccountUnique(account, doExcludeOwnId);
+    }
+
+    /**
+     * Tags
+     */
+
+    @Override
+    public TagGroup createTagGroup(TagGroup tagGroup) {
+        try {
+            return delegate.createTagGroup(tagGroup);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public TagGroup retrieveTagGroup(Long id) {
+        return CatalogEntities.copy(tagGroups.get(id, delegate::retrieveTagGroup));
+    }
+
+    @Override
+    public TagGroup updateTagGroup(TagGroup tagGroup) {
+        try {
+            return delegate.updateTagGroup(tagGroup);
+        } finally {
+            tagGroups.invalidate(tagGroup.getId());
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public TagGroup deleteTagGroup(TagGroup tagGroup) {
+        try {
+            return delegate.deleteTagGroup(tagGroup);
+        } finally {
+            tagGroups.invalidate(tagGroup.getId());
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public SortedSet<TagGroup> allApplicable(TagType type) {
+        return sortedSet(() -> delegate.allApplicable(type), "allApplicable", type);
+    }
+
+    @Override
+    public SortedSet<Tag> retrieveTagGroupTags(Long tagGroupId) {
+        return sortedSet(() -> delegate.retrieveTagGroupTags(tagGroupId), "retrieveTagGroupTags", tagGroupId);
+    }
+
+    @Override
+    public SortedSet<Tag> retrieveTagGroupTags(TagGroup tagGroup) {
+        return sortedSet(() -> delegate.retrieveTagGroupTags(tagGroup), "retrieveTagGroupTags", tagGroup.getId());
+    }
+
+    @Override
+    public Tag createTag(Tag tag) {
+        try {
+            return delegate.createTag(tag);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public Tag retrieveTag(Long id) {
+        return delegate.retrieveTag(id);
+    }
+
+    @Override
+    public Tag updateTag(Tag tag) {
+        try {
+            return delegate.updateTag(tag);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public Tag deleteTag(Tag tag) {
+        try {
+            return delegate.deleteTag(tag);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> listCampaignTags(Campaign campaign) {
+        return sortedMap(() -> delegate.listCampaignTags(campaign), "listCampaignTags", campaign.getTracker());
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> listCampaignTags(String tracker) {
+        return sortedMap(() -> delegate.listCampaignTags(tracker), "listCampaignTags", tracker);
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> listProductTags(Product product) {
+        return sortedMap(() -> delegate.listProductTags(product), "listProductTags", product.getId());
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> listProductTags(String code) {
+        return sortedMap(() -> delegate.listProductTags(code), "listProductTags", code);
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> listAccountTags(Account account) {
+        return sortedMap(() -> delegate.listAccountTags(account), "listAccountTags", account.getId());
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> listAccountTags(Long id) {
+        return sortedMap(() -> delegate.listAccountTags(id), "listAccountTags", id);
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> listMarketplaceTags(Marketplace marketplace) {
+        return sortedMap(() -> delegate.listMarketplaceTags(marketplace), "listMarketplaceTags", marketplace.getId());
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> listMarketplaceTags(Long id) {
+        return sortedMap(() -> delegate.listMarketplaceTags(id), "listMarketplaceTags", id);
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> tagCampaign(Campaign campaign, Tag tag) {
+        try {
+            return delegate.tagCampaign(campaign, tag);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> untagCampaign(Campaign campaign, Tag tag) {
+        try {
+            return delegate.untagCampaign(campaign, tag);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public TaggingResult tagCampaigns(Map<String, ? extends Collection<Tag>> tags) {
+        try {
+            return delegate.tagCampaigns(tags);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public TaggingResult retagCampaigns(Map<String, ? extends Collection<Tag>> tags) {
+        try {
+            return delegate.retagCampaigns(tags);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> tagAccount(Account account, Tag tag) {
+        try {
+            return delegate.tagAccount(account, tag);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> untagAccount(Account account, Tag tag) {
+        try {
+            return delegate.untagAccount(account, tag);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> tagProduct(Product product, Tag tag) {
+        try {
+            return delegate.tagProduct(product, tag);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> untagProduct(Product product, Tag tag) {
+        try {
+            return delegate.untagProduct(product, tag);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> tagMarketplace(Marketplace marketplace, Tag tag) {
+        try {
+            return delegate.tagMarketplace(marketplace, tag);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public SortedMap<Tag, SortedSet<Tag>> untagMarketplace(Marketplace marketplace, Tag tag) {
+        try {
+            return delegate.untagMarketplace(marketplace, tag);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public SortedSet<TagGroup> listTagGroups() {
+        return sortedSet(delegate::listTagGroups, "listTagGroups");
+    }
+
+    @Override
+    public SortedSet<Campaign> findCampaigns(TagExpression tags) {
+        return delegate.findCampaigns(tags);
+    }
+
+    @Override
+    public SortedSet<Campaign> findCampaigns(CampaignQuery query) {
+        return delegate.findCampaigns(query);
+    }
+
+    /**
+     * Metros
+     */
+
+    @Override
+    public SortedSet<Metro> listMetros() {
+        return sortedSet(delegate::listMetros, "listMetros");
+    }
+
+    @Override
+    public Metro retrieveMetro(Long id) {
+        return CatalogEntities.copy(metros.get(id, delegate::retrieveMetro));
+    }
+
+    @Override
+    public Map<Long, Metro> retrieveMetros(Collection<Long> ids) {
+        return CatalogEntities.copyAll(metros.getAll(ids, delegate::retrieveMetros));
+    }
+
+    @Override
+    public Metro setCampaignMetro(Campaign campaign, Metro metro) {
+        try {
+            return delegate.setCampaignMetro(campaign, metro);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public Metro unsetCampaignMetro(Campaign campaign, Metro metro) {
+        try {
+            return delegate.unsetCampaignMetro(campaign, metro);
+        } finally {
+            lists.invalidateAll();
+        }
+    }
+
+    @Override
+    public SortedSet<Metro> listCampaignMetros(Campaign campaign) {
+        return sortedSet(() -> delegate.listCampaignMetros(campaign), "listCampaignMetros", campaign.getTracker());
+    }
+
+    /**
+     * Security and feed uploads are not cached
+     */
+
+    @Override
+    public User getUserByEmail(String email) {
+        return delegate.getUserByEmail(email);
+    }
+
+    @Override
+    public SortedSet<Feed> listFeedDef(String user, boolean summary) {
+        return delegate.listFeedDef(user, summary);
+    }
+
+    @Override
+    public Feed getFeed(Long fileType) {
+        return delegate.getFeed(fileType);
+    }
+
+    @Override
+    public void logFileUpload(UploadLog log) {
+        delegate.logFileUpload(log);
+    }
+
+    @Override
+    public UploadLog updateParserStatus(String filename, String parserStatus) {
+        return delegate.updateParserStatus(filename, parserStatus);
+    }
+
+    @Override
+    public UploadLog getUploadLog(String filename) {
+        return delegate.getUploadLog(filename);
+    }
+
+    @Override
+    public SortedSet<UploadLog> getRecentUploadLogs(int count, int minutes, String user) {
+        return delegate.getRecentUploadLogs(count, minutes, user);
+    }
+
+    @Override
+    public Stream<UploadLog> streamRecentUploadLogs(int count, int minutes, String user) {
+        return delegate.streamRecentUploadLogs(count, minutes, user);
+    }
+
+    @Override
+    public UploadLogPage getUploadLogPage(String user, UploadLogCursor after, int pageSize) {
+        return delegate.getUploadLogPage(user, after, pageSize);
+    }
+
+    @Override
+    public SortedSet<Link> getFrontPageLinks() {
+        return delegate.getFrontPageLinks();
+    }
+
+    @Override
+    public long mergeAcquisitionFacts(Iterator<AcquisitionFact> facts) {
+        return delegate.mergeAcquisitionFacts(facts);
+    }
+
+    @Override
+    public List<AcquisitionRollup> getAcquisitionRollups(AcquisitionGrain grain, AcquisitionDimension dimension, Date from, Date to) {
+        return delegate.getAcquisitionRollups(grain, dimension, from, to);
+    }
+
+    @Override
+    public int refreshAcquisitionRollups() {
+        return delegate.refreshAcquisitionRollups();
+    }
+}
@@ -0,0 +1,41 @@
+package com.stridetech.mcm.dao;
+
+import com.stridetech.mcm.model.meta.Campaign;
+import org.springframework.beans.BeanUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Copies of catalog entities, for the decorators sharing what they read between callers: a catalog
+ * entity read on its own is usually changed and written back, and must not change under the others.
+ */
+final class CatalogEntities {
+
+    private static final String ENTITY_PACKAGE = Campaign.class.getPackage().getName();
+
+    private CatalogEntities() {
+    }
+
+    /**
+     * @return a copy of a catalog entity, bean property by property; anything else as is
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T copy(T result) {
+        if (result == null || result.getClass().getPackage() == null ||
+                !ENTITY_PACKAGE.equals(result.getClass().getPackage().getName()))
+            return result;
+        T copy = (T) BeanUtils.instantiateClass(result.getClass());
+        BeanUtils.copyProperties(result, copy);
+        return copy;
+    }
+
+    /**
+     * @return the entities of a multi-key lookup copied, in the same order
+     */
+    static <K, V> Map<K, V> copyAll(Map<K, V> entities) {
+        Map<K, V> out = new LinkedHashMap<>(entities.size() * 2);
+        entities.forEach((key, entity) -> out.put(key, copy(entity)));
+        return out;
+    }
+}
@@ -0,0 +1,167 @@
+package com.stridetech.mcm.dao;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Single-flight decorator of a {@link MCMServiceDao}: a read called while the same read (same
+ * method, equal arguments) is already running waits for that call and returns its result instead
+ * of querying again. The number of calls answered that way is counted per method in
+ * {@code <method>.coalesced} under the {@code com.stridetech.mcm.dao.MCMServiceDao} prefix.
+ * <p>
+ * Reads are the {@code retrieve*}, {@code list*}, {@code get*}, {@code find*}, {@code is*} and
+ * {@code allApplicable} methods, except for the stream* ones. Every other call counts as a write
+ * and starts a new generation of reads: a call never shares the result of a read started before
+ * a write made through this DAO ended, so callers still read their own writes. Calls inside a
+ * transaction are never coalesced, as they may see uncommitted data or have to.
+ * <p>
+ * Like those of the {@link CachingMCMServiceDao}, collections read are handed out as unmodifiable
+ * views, one shared by the callers of a flight, and the entities in them must be treated as read
+ * only. Catalog entities looked up by key, on their own or several at once, typically to be changed
+ * and written back, are copied for every caller instead. Exceptions are shared too.
+ * <p>
+ * Implemented as a dynamic proxy, like {@link InstrumentedMCMServiceDao}.
+ */
+public final class CoalescingMCMServiceDao implements InvocationHandler {
+
+    private static final List<String> READ_PREFIXES = Arrays.asList("retrieve", "list", "get", "find", "is", "allApplicable");
+
+    private final MCMServiceDao delegate;
+    private final Map<Method, Counter> coalesced = new HashMap<>();
+    private final Map<List<Object>, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    private CoalescingMCMServiceDao(MCMServiceDao delegate, MetricRegistry registry) {
+        this.delegate = delegate;
+        for (Method method : MCMServiceDao.class.getMethods())
+            if (isRead(method))
+                coalesced.put(method, registry.counter(MetricRegistry.name(MCMServiceDao.class, method.getName(), "coalesced")));
+    }
+
+    /**
+     * @param delegate DAO doing the actual work
+     * @param registry registry to count coalesced calls in
+     * @return coalescing DAO
+     */
+    public static MCMServiceDao coalesce(MCMServiceDao delegate, MetricRegistry registry) {
+        return (MCMServiceDao) Proxy.newProxyInstance(
+                MCMServiceDao.class.getClassLoader(),
+                new Class<?>[]{MCMServiceDao.class},
+                new CoalescingMCMServiceDao(delegate, registry));
+    }
+
+    private static boolean isRead(Method method) {
+        if (method.getReturnType() == Stream.class)
+            return false;
+        for (String prefix : READ_PREFIXES)
+            if (method.getName().startsWith(prefix))
+                return true;
+        return false;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "Coalescing" + delegate;
+            }
+        }
+
+        Counter counter = coalesced.get(method);
+        if (counter == null) {
+            // reads started from now on don't join the ones that may miss the write
+            generation.incrementAndGet();
+            try {
+                return call(method, args);
+            } finally {
+                generation.incrementAndGet();
+            }
+        }
+        if (TransactionSynchronizationManager.isActualTransactionActive())
+            return call(method, args);
+
+        List<Object> key = Arrays.asList(method, generation.get(),
+                args == null ? Collections.emptyList() : Arrays.asList(args));
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, flight);
+        if (running != null) {
+            counter.inc();
+            try {
+                return handOut(method, running.join());
+            } catch (CompletionException e) {
+                throw e.getCause();
+            }
+        }
+        try {
+            // the result kept in flight is never handed out, so no caller can change it under the others
+            Object result = share(call(method, args));
+            flight.complete(result);
+            return handOut(method, result);
+        } catch (Throwable e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object share(Object result) {
+        if (result instanceof SortedSet)
+            return Collections.unmodifiableSortedSet((SortedSet<Object>) result);
+        if (result instanceof SortedMap)
+            return Collections.unmodifiableSortedMap((SortedMap<Object, Object>) result);
+        if (result instanceof Set)
+            return Collections.unmodifiableSet((Set<Object>) result);
+        if (result instanceof List)
+            return Collections.unmodifiableList((List<Object>) result);
+        if (result instanceof Map)
+            return Collections.unmodifiableMap((Map<Object, Object>) result);
+        if (result instanceof Collection)
+            return Collections.unmodifiableCollection((Collection<Object>) result);
+        return result;
+    }
+
+    /**
+     * @return a caller's own copy of a catalog entity, or of those of a multi-key lookup; anything else as is
+     */
+    @SuppressWarnings("unchecked")
+    private static Object handOut(Method method, Object result) {
+        if (result instanceof Map && method.getName().startsWith("retrieve"))
+            return CatalogEntities.copyAll((Map<Object, Object>) result);
+        return CatalogEntities.copy(result);
+    }
+
+    private Object call(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+}
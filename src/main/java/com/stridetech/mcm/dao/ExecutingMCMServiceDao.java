@@ -0,0 +1,82 @@
+package com.stridetech.mcm.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * {@link AsyncMCMServiceDao} running the calls of a {@link MCMServiceDao} on an executor.
+ * <p>
+ * Implemented as a dynamic proxy, like {@link InstrumentedMCMServiceDao}: every asynchronous
+ * method is matched with the {@link MCMServiceDao} method of the same name and parameters, so
+ * methods added to both interfaces need no further changes. A call the executor rejects returns a
+ * future failed with the {@link RejectedExecutionException}.
+ */
+public final class ExecutingMCMServiceDao implements InvocationHandler {
+
+    private final MCMServiceDao delegate;
+    private final Executor executor;
+    private final Map<Method, Method> targets = new HashMap<>();
+
+    private ExecutingMCMServiceDao(MCMServiceDao delegate, Executor executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+        for (Method method : AsyncMCMServiceDao.class.getMethods()) {
+            try {
+                targets.put(method, MCMServiceDao.class.getMethod(method.getName(), method.getParameterTypes()));
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException("AsyncMCMServiceDao." + method.getName() + " has no MCMServiceDao counterpart", e);
+            }
+        }
+    }
+
+    /**
+     * @param delegate DAO doing the actual work
+     * @param executor executor to run its calls on, e.g. a {@link com.stridetech.mcm.dao.async.DaoExecutor}
+     * @return asynchronous DAO
+     */
+    public static AsyncMCMServiceDao async(MCMServiceDao delegate, Executor executor) {
+        return (AsyncMCMServiceDao) Proxy.newProxyInstance(
+                AsyncMCMServiceDao.class.getClassLoader(),
+                new Class<?>[]{AsyncMCMServiceDao.class},
+                new ExecutingMCMServiceDao(delegate, executor));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Method target = targets.get(method);
+        if (target == null) {
+            // Object methods
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "Async" + delegate;
+            }
+        }
+
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(target.invoke(delegate, args));
+                } catch (InvocationTargetException e) {
+                    future.completeExceptionally(e.getTargetException());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
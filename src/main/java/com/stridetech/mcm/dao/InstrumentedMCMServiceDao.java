@@ -0,0 +1,118 @@
+package com.stridetech.mcm.dao;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.stridetech.mcm.dao.jdbc.StatementCountingDataSource;
+import com.stridetech.mcm.model.logs.ChangeLog;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Metrics decorator of a {@link MCMServiceDao}, recording for every interface method:
+ * <ul>
+ * <li>{@code <method>.latency}: timer (call count, rates and latency percentiles)</li>
+ * <li>{@code <method>.errors}: number of calls that threw</li>
+ * <li>{@code <method>.rows}: histogram of the number of rows returned (collection, map or changelog
+ * size, 1 for a single entity; not recorded for streams, which are read after the call returns)</li>
+ * <li>{@code <method>.statements}: histogram of the number of SQL statements issued by the call, when
+ * the DAO runs on a {@link StatementCountingDataSource}</li>
+ * </ul>
+ * under the {@code com.stridetech.mcm.dao.MCMServiceDao} prefix. Overloads share their metrics.
+ * <p>
+ * Implemented as a dynamic proxy, so that methods added to the interface are instrumented without
+ * further changes.
+ */
+public final class InstrumentedMCMServiceDao implements InvocationHandler {
+
+    private final MCMServiceDao delegate;
+    private final StatementCountingDataSource statementCounter;
+    private final Map<Method, MethodMetrics> metrics = new HashMap<>();
+
+    private InstrumentedMCMServiceDao(MCMServiceDao delegate, MetricRegistry registry, StatementCountingDataSource statementCounter) {
+        this.delegate = delegate;
+        this.statementCounter = statementCounter;
+        for (Method method : MCMServiceDao.class.getMethods())
+            metrics.put(method, new MethodMetrics(registry, method.getName()));
+    }
+
+    /**
+     * @param delegate         DAO doing the actual work
+     * @param registry         registry to record into
+     * @param statementCounter data source of the delegate, null if statements are not to be counted
+     * @return instrumented DAO
+     */
+    public static MCMServiceDao instrument(MCMServiceDao delegate, MetricRegistry registry, StatementCountingDataSource statementCounter) {
+        return (MCMServiceDao) Proxy.newProxyInstance(
+                MCMServiceDao.class.getClassLoader(),
+                new Class<?>[]{MCMServiceDao.class},
+                new InstrumentedMCMServiceDao(delegate, registry, statementCounter));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        MethodMetrics m = metrics.get(method);
+        if (m == null) {
+            // Object methods
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "Instrumented" + delegate;
+            }
+        }
+
+        long statementsBefore = statementCounter == null ? 0 : statementCounter.getThreadStatementCount();
+        Timer.Context context = m.latency.time();
+        try {
+            Object result = method.invoke(delegate, args);
+            Class<?> type = method.getReturnType();
+            if (type != void.class && type != Boolean.class && type != boolean.class && type != Stream.class)
+                m.rows.update(rows(result));
+            return result;
+        } catch (InvocationTargetException e) {
+            m.errors.inc();
+            throw e.getTargetException();
+        } finally {
+            context.stop();
+            if (statementCounter != null)
+                m.statements.update(statementCounter.getThreadStatementCount() - statementsBefore);
+        }
+    }
+
+    private static long rows(Object result) {
+        if (result == null)
+            return 0;
+        if (result instanceof Collection)
+            return ((Collection<?>) result).size();
+        if (result instanceof Map)
+            return ((Map<?, ?>) result).size();
+        if (result instanceof ChangeLog)
+            return ((ChangeLog<?>) result).getChangeLogs().size();
+        return 1;
+    }
+
+    private static final class MethodMetrics {
+        final Timer latency;
+        final Counter errors;
+        final Histogram rows;
+        final Histogram statements;
+
+        MethodMetrics(MetricRegistry registry, String method) {
+            latency = registry.timer(MetricRegistry.name(MCMServiceDao.class, method, "latency"));
+            errors = registry.counter(MetricRegistry.name(MCMServiceDao.class, method, "errors"));
+            rows = registry.histogram(MetricRegistry.name(MCMServiceDao.class, method, "rows"));
+            statements = registry.histogram(MetricRegistry.name(MCMServiceDao.class, method, "statements"));
+        }
+    }
+}
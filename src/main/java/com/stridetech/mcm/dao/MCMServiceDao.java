@@ -1,13 +1,27 @@
 package com.stridetech.mcm.dao;
 
+import com.stridetech.mcm.dao.index.CampaignQuery;
+import com.stridetech.mcm.dao.index.TagExpression;
+import com.stridetech.mcm.dao.logs.UploadLogCursor;
+import com.stridetech.mcm.dao.logs.UploadLogPage;
+import com.stridetech.mcm.dao.stats.AcquisitionDimension;
+import com.stridetech.mcm.dao.stats.AcquisitionFact;
+import com.stridetech.mcm.dao.stats.AcquisitionGrain;
+import com.stridetech.mcm.dao.stats.AcquisitionRollup;
+import com.stridetech.mcm.dao.tags.TaggingResult;
 import com.stridetech.mcm.model.enums.*;
 import com.stridetech.mcm.model.logs.ChangeLog;
 import com.stridetech.mcm.model.meta.*;
 import com.stridetech.mcm.model.security.*;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.stream.Stream;
 
 public interface MCMServiceDao {
 
@@ -17,6 +31,13 @@ public interface MCMServiceDao {
 
     Account createBusinessUnit(Account account);
     Account retrieveBusinessUnit(Long Id);
+
+    /**
+     * The retrieve* methods taking a collection of keys read every entity in one round trip (or a
+     * few, for very many keys) instead of one per key. The map iterates in the order of the keys,
+     * duplicates once; keys that match nothing are left out rather than failing the call.
+     */
+    Map<Long, Account> retrieveBusinessUnits(Collection<Long> ids);
     Account updateBusinessUnit(Account account);
     Account deleteBusinessUnit(Account account);
     ChangeLog<AccountStatus> getAccountStatusChangelog(Account account);
@@ -25,6 +46,23 @@ public interface MCMServiceDao {
     SortedSet<Campaign> listBusinessUnitCampaigns(Account account);
     SortedSet<Campaign> listBusinessUnitCampaigns(Long accountId);
 
+    /**
+     * The stream* methods return the rows of their list* counterpart read on a server side cursor,
+     * a fetch size at a time, instead of collecting them first. Rows come in the order of the
+     * list* comparators (name, campaigns by tracker; upload logs most recent first). The stream
+     * holds a connection until it is closed, use try-with-resources.
+     */
+    Stream<Account> streamBusinessUnits();
+    Stream<Account> streamBusinessUnitsInRetrospect(Date effectiveDate);
+    Stream<Campaign> streamBusinessUnitCampaigns(Long accountId);
+
+    /**
+     * @param trackers campaigns to move
+     * @param account  business unit to move them to
+     * @return number of campaigns moved, campaigns already in the business unit are not counted
+     */
+    int reassignCampaigns(Collection<String> trackers, Account account);
+
     /**
      *
      * CRUD Marketplace
@@ -32,11 +70,14 @@ public interface MCMServiceDao {
 
     Marketplace createMarketplace(Marketplace marketplace);
     Marketplace retrieveMarketplace(Long Id);
+    Map<Long, Marketplace> retrieveMarketplaces(Collection<Long> ids);
     Marketplace updateMarketplace(Marketplace marketplace);
     Marketplace deleteMarketplace(Marketplace marketplace);
     ChangeLog<MarketplaceStatus> getMarketplaceStatusChangelog(Marketplace marketplace);
     SortedSet<Marketplace> listMarketplaces();
     SortedSet<Marketplace> listMarketplacesInRetrospect(Date effectiveDate);
+    Stream<Marketplace> streamMarketplaces();
+    Stream<Marketplace> streamMarketplacesInRetrospect(Date effectiveDate);
 
     /**
      * CRUD Product
@@ -44,11 +85,14 @@ public interface MCMServiceDao {
 
     Product createProduct(Product product);
     Product retrieveProduct(String code);
+    Map<String, Product> retrieveProducts(Collection<String> codes);
     Product updateProduct(Product product);
     Product deleteProduct(Product product);
     ChangeLog<ProductStatus> getProductStatusChangelog(Product product);
     SortedSet<Product> listProducts();
     SortedSet<Product> listProductsInRetrospect(Date effectiveDate);
+    Stream<Product> streamProducts();
+    Stream<Product> streamProductsInRetrospect(Date effectiveDate);
 
 
     /**
@@ -56,7 +100,9 @@ public interface MCMServiceDao {
      */
 
     Campaign createCampaign(Campaign campaign);
+    SortedSet<Campaign> createCampaigns(Collection<Campaign> campaigns);
     Campaign retrieveCampaign(String tracker);
+    Map<String, Campaign> retrieveCampaigns(Collection<String> trackers);
     Campaign updateCampaign(Campaign campaign);
     Campaign deleteCampaign(Campaign campaign);
     ChangeLog<CampaignStatus> getCampaignStatusChangelog(Campaign campaign);
@@ -69,6 +115,12 @@ public interface MCMServiceDao {
     SortedSet<Campaign> listProductCampaigns(Product product);
     SortedSet<Campaign> listProductCampaigns(String productCode);
     SortedSet<Campaign> listProductCampaignsInRetrospect(Product product, Date effectiveDate);
+    Stream<Campaign> streamCampaigns();
+    Stream<Campaign> streamCampaignsInRetrospect(Date effectiveDate);
+    Stream<Campaign> streamMarketplaceCampaigns(Long marketplaceId);
+    Stream<Campaign> streamMarketplaceCampaignsInRetrospect(Long marketplaceId, Date effectiveDate);
+    Stream<Campaign> streamProductCampaigns(String productCode);
+    Stream<Campaign> streamProductCampaignsInRetrospect(String productCode, Date effectiveDate);
 
 
     /**
@@ -104,6 +156,18 @@ public interface MCMServiceDao {
     SortedMap<Tag, SortedSet<Tag>> listMarketplaceTags(Long id);
     SortedMap<Tag, SortedSet<Tag>> tagCampaign(Campaign campaign, Tag tag);
     SortedMap<Tag, SortedSet<Tag>> untagCampaign(Campaign campaign, Tag tag);
+
+    /**
+     * Tag many campaigns at once, in one transaction and a few statements. Checked in memory
+     * against the tag groups: a tag must apply to campaigns and a campaign may carry only one tag of
+     * a mutually exclusive group; any violation fails the whole call with a
+     * {@link com.stridetech.mcm.dao.tags.TagValidationException}.
+     *
+     * @param tags tags to add (tagCampaigns) or the tags to carry from now on (retagCampaigns), by campaign tracker
+     * @return numbers of campaigns tagged and of tag assignments added and removed
+     */
+    TaggingResult tagCampaigns(Map<String, ? extends Collection<Tag>> tags);
+    TaggingResult retagCampaigns(Map<String, ? extends Collection<Tag>> tags);
     SortedMap<Tag, SortedSet<Tag>> tagAccount(Account account, Tag tag);
     SortedMap<Tag, SortedSet<Tag>> untagAccount(Account account, Tag tag);
     SortedMap<Tag, SortedSet<Tag>> tagProduct(Product product, Tag tag);
@@ -113,12 +177,25 @@ public interface MCMServiceDao {
 
     SortedSet<TagGroup> listTagGroups();
 
+    /**
+     * @param tags tag expression, e.g. {@code TagExpression.parse("Brand AND Search AND NOT Email", ...)}
+     * @return current (not deleted) campaigns matching the expression
+     */
+    SortedSet<Campaign> findCampaigns(TagExpression tags);
+
+    /**
+     * @param query tag expression plus product, marketplace, metro and status filters
+     * @return campaigns matching every criterion of the query
+     */
+    SortedSet<Campaign> findCampaigns(CampaignQuery query);
+
     /**
      * Metros
      */
 
     SortedSet<Metro> listMetros();
     Metro retrieveMetro(Long id);
+    Map<Long, Metro> retrieveMetros(Collection<Long> ids);
     Metro setCampaignMetro(Campaign campaign, Metro metro);
     Metro unsetCampaignMetro(Campaign campaign, Metro metro);
     SortedSet<Metro> listCampaignMetros(Campaign campaign);
@@ -140,7 +217,56 @@ public interface MCMServiceDao {
     UploadLog updateParserStatus(String filename, String parserStatus);
     UploadLog getUploadLog(String filename);
     SortedSet<UploadLog> getRecentUploadLogs(int count, int minutes, String user);
+    Stream<UploadLog> streamRecentUploadLogs(int count, int minutes, String user);
+
+    /**
+     * Upload log history of the feeds a user may upload to, a page at a time, most recent first
+     * (ties by file name, descending).
+     *
+     * @param user     email of the user
+     * @param after    {@link UploadLogPage#getNext()} of the previous page, null for the first page
+     * @param pageSize at most this many logs
+     * @return the page, with the cursor of the next one unless it is the last
+     */
+    UploadLogPage getUploadLogPage(String user, UploadLogCursor after, int pageSize);
     SortedSet<Link> getFrontPageLinks();
+
+    /**
+     * Statistics
+     */
+
+    /**
+     * Merges acquisition facts into {@code stats.acquisition_facts}: facts of a (campaign, statement
+     * date) already there are replaced, the others are added. When the same (campaign, statement date)
+     * comes more than once, the last one wins. The facts are streamed, memory use does not depend on
+     * their number.
+     *
+     * @param facts facts to merge, read once
+     * @return number of rows inserted or changed
+     */
+    long mergeAcquisitionFacts(Iterator<AcquisitionFact> facts);
+
+    /**
+     * Acquisition facts summed by period and dimension, from the weekly and monthly rollups where
+     * periods are whole and up to date, from the facts themselves otherwise: the sums are those of
+     * the facts as of now, refreshed or not.
+     *
+     * @param grain     period summed over; partial periods at either end are summed over the dates
+     *                  within the range only
+     * @param dimension what to sum by, null for totals
+     * @param from      first statement date
+     * @param to        last statement date, included
+     * @return sums by period, then by key
+     */
+    List<AcquisitionRollup> getAcquisitionRollups(AcquisitionGrain grain, AcquisitionDimension dimension, Date from, Date to);
+
+    /**
+     * Rebuilds the weekly and monthly rollups of the statement dates whose facts changed since the
+     * last refresh.
+     *
+     * @return number of statement dates refreshed
+     */
+    int refreshAcquisitionRollups();
 }
 
 
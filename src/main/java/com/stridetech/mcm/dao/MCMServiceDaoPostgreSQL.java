@@ -1,5 +1,22 @@
 package com.stridetech.mcm.dao;
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.stridetech.mcm.dao.index.AsOfEngine;
+import com.stridetech.mcm.dao.index.CampaignQuery;
+import com.stridetech.mcm.dao.index.CampaignTagIndex;
+import com.stridetech.mcm.dao.index.StatusChange;
+import com.stridetech.mcm.dao.index.TagExpression;
+import com.stridetech.mcm.dao.jdbc.CopyWriter;
+import com.stridetech.mcm.dao.jdbc.CursorStream;
+import com.stridetech.mcm.dao.logs.LazyChangeLog;
+import com.stridetech.mcm.dao.logs.UploadLogCursor;
+import com.stridetech.mcm.dao.logs.UploadLogPage;
+import com.stridetech.mcm.dao.logs.UploadLogWriteBehind;
+import com.stridetech.mcm.dao.stats.AcquisitionDimension;
+import com.stridetech.mcm.dao.stats.AcquisitionFact;
+import com.stridetech.mcm.dao.stats.AcquisitionGrain;
+import com.stridetech.mcm.dao.stats.AcquisitionRollup;
+import com.stridetech.mcm.dao.tags.TagGroupModel;
+import com.stridetech.mcm.dao.tags.TagValidationException;
+import com.stridetech.mcm.dao.tags.TaggingResult;
 import com.stridetech.mcm.util.*;
 import com.stridetech.mcm.model.enums.*;
 import com.stridetech.mcm.model.logs.ChangeLog;
@@ -12,31 +29,51 @@ import com.stridetech.mcm.model.security.Feed;
 import com.stridetech.mcm.model.security.User;
 import com.stridetech.mcm.util.*;
 import org.jetbrains.annotations.NotNull;
+import org.postgresql.PGConnection;
 import org.postgresql.util.PGobject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.sql.DataSource;
-import java.io.IOException;
 import java.sql.*;
+import java.time.LocalDate;
 import java.util.*;
 import java.util.Date;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import static java.sql.Statement.RETURN_GENERATED_KEYS;
 
 public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
     private JdbcTemplate jdbcTemplate;
-    final ObjectMapper mapper = new ObjectMapper();
+    private TransactionTemplate transactionTemplate;
+    private AsOfEngine asOfEngine;
+    private CampaignTagIndex campaignTagIndex;
+    private int streamFetchSize = 1000;
+    private int multiGetChunkSize = 1000;
+    private volatile TagGroupModel tagGroupModel;
+    private final Object tagGroupModelLock = new Object();
+    /**
+     * Bumped by every invalidation, guarded by {@link #tagGroupModelLock}
+     */
+    private long tagGroupModelGeneration;
+    private UploadLogWriteBehind uploadLogWriteBehind;
 
     private final Logger LOGGER = LoggerFactory.getLogger(MCMServiceDaoPostgreSQL.class);
     /**
@@ -44,6 +81,236 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
      */
     public void setDatasource(DataSource dataSource) {
         jdbcTemplate = new JdbcTemplate(dataSource);
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    }
+
+    /**
+     * Run multi-statement writes under the given transaction manager instead of a private one over
+     * the data source, e.g. when the data source is a wrapper of the one transactions are bound to.
+     *
+     * @param transactionManager
+     */
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Serve the *InRetrospect listings from an in-memory copy of the status changelogs instead of
+     * ranking the changelogs in SQL. Every status change written through this DAO is recorded in the
+     * engine once it is committed.
+     *
+     * @param asOfEngine engine to use, null to go back to SQL
+     */
+    public void setAsOfEngine(AsOfEngine asOfEngine) {
+        this.asOfEngine = asOfEngine;
+    }
+
+    public AsOfEngine getAsOfEngine() {
+        return asOfEngine;
+    }
+
+    /**
+     * Answer {@link #findCampaigns(CampaignQuery)} from an in-memory bitmap index instead of SQL.
+     * Every campaign, tag and metro change written through this DAO is recorded in the index once
+     * it is committed.
+     *
+     * @param campaignTagIndex index to use, null to go back to SQL
+     */
+    public void setCampaignTagIndex(CampaignTagIndex campaignTagIndex) {
+        this.campaignTagIndex = campaignTagIndex;
+    }
+
+    public CampaignTagIndex getCampaignTagIndex() {
+        return campaignTagIndex;
+    }
+
+    /**
+     * Queue {@link #logFileUpload(UploadLog)} and {@link #updateParserStatus(String, String)} in a
+     * write-behind buffer instead of writing them right away. They are then committed on their own,
+     * whatever becomes of the caller's transaction. Reads of the upload logs outside a transaction
+     * write what is queued first, so that callers read their own writes. Reads inside one don't: the
+     * flush would take a second connection while the transaction holds its own, which under load can
+     * drain the pool, and a repeatable read transaction would not see the flushed rows anyway. Such
+     * readers see only what the buffer wrote before; call {@link UploadLogWriteBehind#flush()} before
+     * the transaction starts to read everything.
+     *
+     * @param uploadLogWriteBehind buffer to use, null to write right away
+     */
+    public void setUploadLogWriteBehind(UploadLogWriteBehind uploadLogWriteBehind) {
+        this.uploadLogWriteBehind = uploadLogWriteBehind;
+    }
+
+    public UploadLogWriteBehind getUploadLogWriteBehind() {
+        return uploadLogWriteBehind;
+    }
+
+    private void flushUploadLogs() {
+        if (uploadLogWriteBehind != null && !TransactionSynchronizationManager.isActualTransactionActive())
+            uploadLogWriteBehind.flush();
+    }
+
+    /**
+     * @return tag groups and tags, read on first use and kept until {@link #invalidateTagGroupModel()};
+     * a model read while invalidated is returned but not kept, as it may hold what was invalidated
+     */
+    public TagGroupModel getTagGroupModel() {
+        TagGroupModel model = tagGroupModel;
+        if (model == null) {
+            long loadGeneration;
+            synchronized (tagGroupModelLock) {
+                loadGeneration = tagGroupModelGeneration;
+            }
+            model = TagGroupModel.load(jdbcTemplate);
+            synchronized (tagGroupModelLock) {
+                if (loadGeneration == tagGroupModelGeneration)
+                    tagGroupModel = model;
+            }
+        }
+        return model;
+    }
+
+    /**
+     * Drops the tag group model, to be read again on next use. Tag and tag group writes made through
+     * this DAO do so themselves, those of other nodes have to be notified.
+     */
+    public void invalidateTagGroupModel() {
+        dropTagGroupModel();
+        // and again once the transaction ends, in case it reads the model back before rolling back
+        if (TransactionSynchronizationManager.isSynchronizationActive())
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    dropTagGroupModel();
+                }
+            });
+    }
+
+    private void dropTagGroupModel() {
+        synchronized (tagGroupModelLock) {
+            tagGroupModelGeneration++;
+            tagGroupModel = null;
+        }
+    }
+
+    /**
+     * @param tagIds tags to be looked up
+     * @return the model, read again if it misses any of the tags, e.g. one created by another node
+     */
+    private TagGroupModel tagGroupModel(Collection<Long> tagIds) {
+        TagGroupModel model = getTagGroupModel();
+        if (!model.containsTags(tagIds)) {
+            invalidateTagGroupModel();
+            model = getTagGroupModel();
+        }
+        return model;
+    }
+
+    /**
+     * @param streamFetchSize rows the stream* methods fetch from their cursor per round trip
+     */
+    public void setStreamFetchSize(int streamFetchSize) {
+        this.streamFetchSize = streamFetchSize;
+    }
+
+    public int getStreamFetchSize() {
+        return streamFetchSize;
+    }
+
+    /**
+     * @param multiGetChunkSize keys the multi-key retrieve* methods bind per query
+     */
+    public void setMultiGetChunkSize(int multiGetChunkSize) {
+        if (multiGetChunkSize <= 0)
+            throw new IllegalArgumentException("Multi-get chunk size must be positive");
+        this.multiGetChunkSize = multiGetChunkSize;
+    }
+
+    public int getMultiGetChunkSize() {
+        return multiGetChunkSize;
+    }
+
+    /**
+     * Reads the entities of a collection of keys, {@link #multiGetChunkSize} keys per query.
+     *
+     * @param keys      keys to look up, nulls and duplicates are skipped
+     * @param arrayType SQL type of the key array
+     * @param query     query whose last placeholder is the key array, e.g. {@code ... WHERE id = ANY(?)}
+     * @param rowMapper maps a row
+     * @param keyOf     key of a mapped entity
+     * @param args      values of the placeholders before the key array
+     * @return entities found, in the order of the keys
+     */
+    private <K, V> Map<K, V> retrieveAll(Collection<K> keys, String arrayType, String query, RowMapper<V> rowMapper,
+                                         java.util.function.Function<V, K> keyOf, Object... args) {
+        return retrieveAll(keys, chunk -> jdbcTemplate.query(query, ps -> {
+            for (int i = 0; i < args.length; i++)
+                ps.setObject(i + 1, args[i]);
+            ps.setArray(args.length + 1, ps.getConnection().createArrayOf(arrayType, chunk.toArray()));
+        }, rowMapper), keyOf);
+    }
+
+    /**
+     * Reads the entities of a collection of keys, {@link #multiGetChunkSize} keys per read.
+     *
+     * @param keys      keys to look up, nulls and duplicates are skipped
+     * @param readChunk reads the entities of a chunk of keys
+     * @param keyOf     key of a read entity
+     * @return entities found, in the order of the keys
+     */
+    private <K, V> Map<K, V> retrieveAll(Collection<K> keys, java.util.function.Function<List<K>, Collection<V>> readChunk,
+                                         java.util.function.Function<V, K> keyOf) {
+        List<K> distinct = new ArrayList<>(new LinkedHashSet<>(keys));
+        distinct.remove(null);
+        Map<K, V> found = new HashMap<>(distinct.size() * 2);
+        for (int from = 0; from < distinct.size(); from += multiGetChunkSize)
+            for (V value : readChunk.apply(distinct.subList(from, Math.min(from + multiGetChunkSize, distinct.size()))))
+                found.put(keyOf.apply(value), value);
+        Map<K, V> out = new LinkedHashMap<>(found.size() * 2);
+        for (K key : distinct) {
+            V value = found.get(key);
+            if (value != null)
+                out.put(key, value);
+        }
+        return out;
+    }
+
+    /**
+     * Rows of an ordered query read on a server side cursor, see {@link CursorStream}.
+     *
+     * @param query     query, with its ORDER BY
+     * @param setter    binds the query's placeholders, null if there are none
+     * @param rowMapper maps a row, null to skip it
+     * @return open stream, to be closed by the caller
+     */
+    private <T> Stream<T> stream(String query, PreparedStatementSetter setter, RowMapper<T> rowMapper) {
+        return CursorStream.stream(jdbcTemplate.getDataSource(), jdbcTemplate.getExceptionTranslator(), streamFetchSize,
+                query, setter, rowMapper);
+    }
+
+    /**
+     * Runs the action once the current transaction commits, or right away outside of a transaction,
+     * so that in-memory structures never see rolled back writes.
+     *
+     * @param action
+     */
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    private void indexCampaign(String tracker, String product, Long marketplace, CampaignStatus status) {
+        if (campaignTagIndex != null) {
+            final CampaignTagIndex index = campaignTagIndex;
+            afterCommit(() -> index.putCampaign(tracker, product, marketplace, status));
+        }
     }
 
     /**
@@ -75,6 +342,17 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         return account;
     }
 
+    /**
+     * Depending on the driver and server versions, enum columns come back from generated keys and
+     * arrays either as PGobject or as plain strings.
+     *
+     * @param value enum column value
+     * @return enum constant name
+     */
+    private static String enumValue(Object value) {
+        return value instanceof PGobject ? ((PGobject) value).getValue() : (String) value;
+    }
+
     /**
      * @param account
      * @param keyHolder
@@ -87,7 +365,7 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         account.setName((String) r.get("name"));
         Date status_updated = Date.from(((Timestamp) r.get("status_updated")).toInstant());
         account.setStatusUpdated(status_updated);
-        account.setStatus(AccountStatus.valueOf(((PGobject) r.get("status")).getValue()));
+        account.setStatus(AccountStatus.valueOf(enumValue(r.get("status"))));
         /** TODO: CURRENT IMPLEMENTATION DOES NOT USE ACCOUNT TYPE ENUM **/
         // account.setType(AccountType.valueOf( ((PGobject)r.get("type")).getValue() ));
         account.setType(AccountType.BUSINESS_UNIT);
@@ -120,6 +398,13 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         }, id);
     }
 
+    @Override
+    public Map<Long, Account> retrieveBusinessUnits(Collection<Long> ids) {
+        return retrieveAll(ids, "int8",
+                "SELECT id, name, description, status, status_updated FROM meta.business_unit WHERE id = ANY(?)",
+                (resultSet, i) -> resultSetToBusinessUnit(resultSet), Account::getId);
+    }
+
     /**
      * @param account
      * @return
@@ -150,28 +435,31 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
     }
 
     /**
+     * Appends a business unit status change.
+     *
      * @param accountId
      * @param effectiveDate
      * @param status
-     * @return
+     * @return the appended entry, see {@link #lazyAccountStatusChangelog(Long)} for the whole history
      */
-    public ChangeLog<AccountStatus> logAccountStatusChange(Long accountId, Date effectiveDate, AccountStatus status) {
-
-        jdbcTemplate.update(new PreparedStatementCreator() {
-            @Override
-            public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
-                PreparedStatement ps =
-                        connection.prepareStatement("INSERT INTO logs.account_status_changelog (account,status,effective_date) values (?,?::meta.account_status,?)");
-                int bindIndex = 1;
-                ps.setLong(bindIndex++, accountId);
-                ps.setString(bindIndex++, status.name());
-                ps.setTimestamp(bindIndex, Timestamp.from(effectiveDate.toInstant()));
-                return ps;
-            }
-        });
-
+    public ChangeLogEntry<AccountStatus> logAccountStatusChange(Long accountId, Date effectiveDate, AccountStatus status) {
+
+        Long changeNumber = jdbcTemplate.queryForObject(
+                "INSERT INTO logs.account_status_changelog (account,status,effective_date) values (?,?::meta.account_status,?) RETURNING change_number",
+                Long.class, accountId, status.name(), Timestamp.from(effectiveDate.toInstant()));
+        if (asOfEngine != null) {
+            final AsOfEngine engine = asOfEngine;
+            afterCommit(() -> engine.getAccounts().record(accountId, effectiveDate, changeNumber, status));
+        }
+        return new ChangeLogEntry<>(effectiveDate, status);
+    }
 
-        return getAccountStatusChangelog(accountId);
+    /**
+     * @param accountId
+     * @return status history of the business unit, read on first use
+     */
+    public LazyChangeLog<AccountStatus> lazyAccountStatusChangelog(Long accountId) {
+        return new LazyChangeLog<>(() -> getAccountStatusChangelog(accountId));
     }
 
     /**
@@ -236,21 +524,31 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         }, new RowCallbackHandler() {
             @Override
             public void processRow(ResultSet resultSet) throws SQLException {
-                Account a = new Account();
-                a.setId(resultSet.getLong("id"));
-                a.setName(resultSet.getString("name"));
-                a.setDescription(resultSet.getString("description"));
-                a.setStatus(AccountStatus.valueOf(resultSet.getString("status")));
-                a.setType(AccountType.BUSINESS_UNIT);
-                a.setStatusUpdated(Date.from(resultSet.getTimestamp("status_updated").toInstant()));
-                // TODO: add products
-                a.setProducts(new TreeSet<String>());
-                out.add(a);
+                out.add(resultSetToListedBusinessUnit(resultSet));
             }
         });
         return out;
     }
 
+    @Override
+    public Stream<Account> streamBusinessUnits() {
+        return stream("SELECT * FROM meta.business_unit where status <> 'DELETED'::meta.account_status ORDER BY name COLLATE \"C\"",
+                null, (resultSet, rowNum) -> resultSetToListedBusinessUnit(resultSet));
+    }
+
+    private Account resultSetToListedBusinessUnit(ResultSet resultSet) throws SQLException {
+        Account a = new Account();
+        a.setId(resultSet.getLong("id"));
+        a.setName(resultSet.getString("name"));
+        a.setDescription(resultSet.getString("description"));
+        a.setStatus(AccountStatus.valueOf(resultSet.getString("status")));
+        a.setType(AccountType.BUSINESS_UNIT);
+        a.setStatusUpdated(Date.from(resultSet.getTimestamp("status_updated").toInstant()));
+        // TODO: add products
+        a.setProducts(new TreeSet<String>());
+        return a;
+    }
+
     @Override
     public SortedSet<Campaign> listBusinessUnitCampaigns(Account account) {
         return listBusinessUnitCampaigns(account.getId());
@@ -258,7 +556,7 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
 
     public SortedSet<Campaign> listBusinessUnitCampaigns(Long accountId) {
         SortedSet<Campaign> out = new TreeSet<>(new CampaignComparator());
-        String query = "SELECT p.* from meta.campaign p JOIN meta.account_campaigns ap ON (p.tracker = ap.tracker) WHERE p.status <> 'DELETED'::meta.campaign_status AND ap.business_unit = ?";
+        String query = BUSINESS_UNIT_CAMPAIGNS;
         jdbcTemplate.query(new PreparedStatementCreator() {
             @Override
             public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
@@ -279,6 +577,16 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         return out;
     }
 
+    @Override
+    public Stream<Campaign> streamBusinessUnitCampaigns(Long accountId) {
+        return stream(BUSINESS_UNIT_CAMPAIGNS + " ORDER BY p.tracker COLLATE \"C\"",
+                ps -> ps.setLong(1, accountId),
+                (resultSet, rowNum) -> resultSetToCampaign(resultSet, new Campaign()));
+    }
+
+    private static final String BUSINESS_UNIT_CAMPAIGNS =
+            "SELECT p.* from meta.campaign p JOIN meta.account_campaigns ap ON (p.tracker = ap.tracker) WHERE p.status <> 'DELETED'::meta.campaign_status AND ap.business_unit = ?";
+
     private Product resultSetToProduct(ResultSet resultSet) throws SQLException{
         Product p = new Product();
         p.setId(resultSet.getString("code"));
@@ -294,23 +602,10 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
      */
     @Override
     public SortedSet<Account> listBusinessUnitsInRetrospect(Date effectiveDate) {
+        if (asOfEngine != null)
+            return listBusinessUnitsAsOf(effectiveDate);
 
-        final String query =
-                "SELECT b.id as id, \n" +
-                        "       b.name as name, \n" +
-                        "       b.description as description, \n" +
-                        "       l.status as status, \n" +
-                        "       l.status_updated as status_updated \n" +
-                        "FROM   meta.business_unit b join (\n" +
-                        "    SELECT account as id, \n" +
-                        "           status, \n" +
-                        "           effective_date as status_updated, \n" +
-                        "           rank() OVER( PARTITION BY account ORDER BY effective_date DESC, change_number DESC ) as rank\n" +
-                        "    FROM   logs.account_status_changelog \n" +
-                        "    WHERE  effective_date <= ?::timestamp without time zone \n" +
-                        "    ) l ON b.id = l.id\n" +
-                        "    WHERE rank=1\n" +
-                        "    AND l.status <> 'DELETED'::meta.account_status";
+        final String query = BUSINESS_UNITS_IN_RETROSPECT;
 
         final SortedSet<Account> out = new TreeSet<>(new AccountComparator());
         jdbcTemplate.query(new PreparedStatementCreator() {
@@ -323,22 +618,71 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         }, new RowCallbackHandler() {
             @Override
             public void processRow(ResultSet resultSet) throws SQLException {
-                Account a = new Account();
-                a.setId(resultSet.getLong("id"));
-                a.setName(resultSet.getString("name"));
-                a.setDescription(resultSet.getString("description"));
-                a.setStatus(AccountStatus.valueOf(resultSet.getString("status")));
-                a.setType(AccountType.BUSINESS_UNIT);
-                a.setStatusUpdated(Date.from(resultSet.getTimestamp("status_updated").toInstant()));
-                // TODO: add products
-                a.setProducts(new TreeSet<String>());
-                out.add(a);
+                out.add(resultSetToListedBusinessUnit(resultSet));
             }
         });
         return out;
 
     }
 
+    private SortedSet<Account> listBusinessUnitsAsOf(Date effectiveDate) {
+        final SortedSet<Account> out = new TreeSet<>(new AccountComparator());
+        jdbcTemplate.query("SELECT id, name, description FROM meta.business_unit", new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet resultSet) throws SQLException {
+                Account a = resultSetToBusinessUnitAsOf(resultSet, effectiveDate);
+                if (a != null)
+                    out.add(a);
+            }
+        });
+        return out;
+    }
+
+    @Override
+    public Stream<Account> streamBusinessUnitsInRetrospect(Date effectiveDate) {
+        if (asOfEngine != null)
+            return stream("SELECT id, name, description FROM meta.business_unit ORDER BY name COLLATE \"C\"",
+                    null, (resultSet, rowNum) -> resultSetToBusinessUnitAsOf(resultSet, effectiveDate));
+        return stream(BUSINESS_UNITS_IN_RETROSPECT + "\nORDER BY b.name COLLATE \"C\"",
+                ps -> ps.setTimestamp(1, Timestamp.from(effectiveDate.toInstant())),
+                (resultSet, rowNum) -> resultSetToListedBusinessUnit(resultSet));
+    }
+
+    private static final String BUSINESS_UNITS_IN_RETROSPECT =
+            "SELECT b.id as id, \n" +
+                    "       b.name as name, \n" +
+                    "       b.description as description, \n" +
+                    "       l.status as status, \n" +
+                    "       l.status_updated as status_updated \n" +
+                    "FROM   meta.business_unit b join (\n" +
+                    "    SELECT account as id, \n" +
+                    "           status, \n" +
+                    "           effective_date as status_updated, \n" +
+                    "           rank() OVER( PARTITION BY account ORDER BY effective_date DESC, change_number DESC ) as rank\n" +
+                    "    FROM   logs.account_status_changelog \n" +
+                    "    WHERE  effective_date <= ?::timestamp without time zone \n" +
+                    "    ) l ON b.id = l.id\n" +
+                    "    WHERE rank=1\n" +
+                    "    AND l.status <> 'DELETED'::meta.account_status";
+
+    /**
+     * @return the business unit as of the effective date, null if it was deleted or did not exist yet
+     */
+    private Account resultSetToBusinessUnitAsOf(ResultSet resultSet, Date effectiveDate) throws SQLException {
+        StatusChange<AccountStatus> change = asOfEngine.getAccounts().statusAt(resultSet.getLong("id"), effectiveDate);
+        if (change == null || change.getStatus() == AccountStatus.DELETED)
+            return null;
+        Account a = new Account();
+        a.setId(resultSet.getLong("id"));
+        a.setName(resultSet.getString("name"));
+        a.setDescription(resultSet.getString("description"));
+        a.setStatus(change.getStatus());
+        a.setType(AccountType.BUSINESS_UNIT);
+        a.setStatusUpdated(change.getEffectiveDate());
+        a.setProducts(new TreeSet<String>());
+        return a;
+    }
+
     private Boolean isNewAccountNameUnique(String proposedAccountName) {
         final String query = "SELECT COUNT(1) = 0  FROM meta.business_unit  WHERE name=?";
         return jdbcTemplate.queryForObject(query, Boolean.class, proposedAccountName);
@@ -408,7 +752,7 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         marketplace.setId(Long.valueOf((Integer) r.get("id")));
         marketplace.setName((String) r.get("name"));
         marketplace.setDescription((String) r.get("description"));
-        marketplace.setStatus(MarketplaceStatus.valueOf(((PGobject) r.get("status")).getValue()));
+        marketplace.setStatus(MarketplaceStatus.valueOf(enumValue(r.get("status"))));
         marketplace.setStatusUpdated(Date.from(((Timestamp) r.get("status_updated")).toInstant()));
         marketplace.setContactEmail((String) r.get("contact_email"));
         marketplace.setContactName((String) r.get("contact_name"));
@@ -422,20 +766,23 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
      * @param status
      * @return
      */
-    private ChangeLog<MarketplaceStatus> logMarketplaceStatusChange(Long marketplaceId, Date effectiveDate, MarketplaceStatus status) {
-        jdbcTemplate.update(new PreparedStatementCreator() {
-            @Override
-            public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
-                PreparedStatement ps =
-                        connection.prepareStatement("INSERT INTO logs.marketplace_status_changelog(marketplace,status,effective_date) values (?,?::meta.marketplace_status,?)");
-                int bindIndex = 1;
-                ps.setLong(bindIndex++, marketplaceId);
-                ps.setString(bindIndex++, status.name());
-                ps.setTimestamp(bindIndex, Timestamp.from(effectiveDate.toInstant()));
-                return ps;
-            }
-        });
-        return getMarketplaceStatusChangelog(marketplaceId);
+    private ChangeLogEntry<MarketplaceStatus> logMarketplaceStatusChange(Long marketplaceId, Date effectiveDate, MarketplaceStatus status) {
+        Long changeNumber = jdbcTemplate.queryForObject(
+                "INSERT INTO logs.marketplace_status_changelog(marketplace,status,effective_date) values (?,?::meta.marketplace_status,?) RETURNING change_number",
+                Long.class, marketplaceId, status.name(), Timestamp.from(effectiveDate.toInstant()));
+        if (asOfEngine != null) {
+            final AsOfEngine engine = asOfEngine;
+            afterCommit(() -> engine.getMarketplaces().record(marketplaceId, effectiveDate, changeNumber, status));
+        }
+        return new ChangeLogEntry<>(effectiveDate, status);
+    }
+
+    /**
+     * @param marketplaceId
+     * @return status history of the marketplace, read on first use
+     */
+    public LazyChangeLog<MarketplaceStatus> lazyMarketplaceStatusChangelog(Long marketplaceId) {
+        return new LazyChangeLog<>(() -> getMarketplaceStatusChangelog(marketplaceId));
     }
 
     /**
@@ -494,6 +841,23 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         }, id);
     }
 
+    @Override
+    public Map<Long, Marketplace> retrieveMarketplaces(Collection<Long> ids) {
+        return retrieveAll(ids, "int8",
+                "SELECT id, name, description, status, status_updated, contact_name, contact_email FROM meta.marketplace WHERE id = ANY(?)",
+                (resultSet, i) -> {
+                    Marketplace marketplace = new Marketplace();
+                    marketplace.setId(resultSet.getLong("id"));
+                    marketplace.setName(resultSet.getString("name"));
+                    marketplace.setDescription(resultSet.getString("description"));
+                    marketplace.setStatus(MarketplaceStatus.valueOf(resultSet.getString("status")));
+                    marketplace.setStatusUpdated(resultSet.getTimestamp("status_updated"));
+                    marketplace.setContactName(resultSet.getString("contact_name"));
+                    marketplace.setContactEmail(resultSet.getString("contact_email"));
+                    return marketplace;
+                }, Marketplace::getId);
+    }
+
     /**
      * @param marketplace
      * @return
@@ -546,21 +910,13 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         jdbcTemplate.query(new PreparedStatementCreator() {
             @Override
             public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
-                return connection.prepareStatement("SELECT id, name, description, status, status_updated, contact_email, contact_name from meta.marketplace where status <> 'DELETED'::meta.marketplace_status");
+                return connection.prepareStatement(MARKETPLACES);
 
             }
         }, new RowCallbackHandler() {
             @Override
             public void processRow(ResultSet resultSet) throws SQLException {
-                Marketplace m = new Marketplace();
-                m.setId(resultSet.getLong("id"));
-                m.setName(resultSet.getString("name"));
-                m.setDescription(resultSet.getString("description"));
-                m.setStatus(MarketplaceStatus.valueOf(resultSet.getObject("status").toString()));
-                m.setStatusUpdated(Date.from(resultSet.getTimestamp("status_updated").toInstant()));
-                m.setContactEmail(resultSet.getString("contact_email"));
-                m.setContactName(resultSet.getString("contact_name"));
-                out.add(m);
+                out.add(resultSetToMarketplace(resultSet));
             }
         });
         return out;
@@ -572,25 +928,11 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
      */
     @Override
     public SortedSet<Marketplace> listMarketplacesInRetrospect(Date effectiveDate) {
+        if (asOfEngine != null)
+            return listMarketplacesAsOf(effectiveDate);
+
         final SortedSet<Marketplace> out = new TreeSet<>(new MarketplaceComparator());
-        final String query =
-                "select m.id,\n" +
-                        "       m.name,\n" +
-                        "       m.description,\n" +
-                        "       l.status,\n" +
-                        "       l.status_updated,\n" +
-                        "       m.contact_email,\n" +
-                        "       m.contact_name\n" +
-                        "from meta.marketplace m join (\n" +
-                        "   select marketplace as id,\n" +
-                        "          status,\n" +
-                        "          effective_date as status_updated,\n" +
-                        "          rank() over(partition by marketplace order by effective_date desc , change_number desc) as rank\n" +
-                        "   from logs.marketplace_status_changelog\n" +
-                        "   WHERE effective_date <= ?::timestamp without time zone\n" +
-                        ") l using (id)\n" +
-                        "WHERE rank = 1\n" +
-                        "AND l.status <> 'DELETED'::meta.marketplace_status";
+        final String query = MARKETPLACES_IN_RETROSPECT;
 
         jdbcTemplate.query(new PreparedStatementCreator() {
             @Override
@@ -602,20 +944,93 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         }, new RowCallbackHandler() {
             @Override
             public void processRow(ResultSet resultSet) throws SQLException {
-                Marketplace m = new Marketplace();
-                m.setId(resultSet.getLong("id"));
-                m.setName(resultSet.getString("name"));
-                m.setDescription(resultSet.getString("description"));
-                m.setStatus(MarketplaceStatus.valueOf(resultSet.getString("status")));
-                m.setStatusUpdated(Date.from(resultSet.getTimestamp("status_updated").toInstant()));
-                m.setContactEmail(resultSet.getString("contact_email"));
-                m.setContactName(resultSet.getString("contact_name"));
-                out.add(m);
+                out.add(resultSetToMarketplace(resultSet));
+            }
+        });
+        return out;
+    }
+
+    private SortedSet<Marketplace> listMarketplacesAsOf(Date effectiveDate) {
+        final SortedSet<Marketplace> out = new TreeSet<>(new MarketplaceComparator());
+        jdbcTemplate.query("SELECT id, name, description, contact_email, contact_name FROM meta.marketplace", new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet resultSet) throws SQLException {
+                Marketplace m = resultSetToMarketplaceAsOf(resultSet, effectiveDate);
+                if (m != null)
+                    out.add(m);
             }
         });
         return out;
     }
 
+    @Override
+    public Stream<Marketplace> streamMarketplaces() {
+        return stream(MARKETPLACES + " ORDER BY name COLLATE \"C\"", null,
+                (resultSet, rowNum) -> resultSetToMarketplace(resultSet));
+    }
+
+    @Override
+    public Stream<Marketplace> streamMarketplacesInRetrospect(Date effectiveDate) {
+        if (asOfEngine != null)
+            return stream("SELECT id, name, description, contact_email, contact_name FROM meta.marketplace ORDER BY name COLLATE \"C\"",
+                    null, (resultSet, rowNum) -> resultSetToMarketplaceAsOf(resultSet, effectiveDate));
+        return stream(MARKETPLACES_IN_RETROSPECT + "\nORDER BY m.name COLLATE \"C\"",
+                ps -> ps.setTimestamp(1, Timestamp.from(effectiveDate.toInstant())),
+                (resultSet, rowNum) -> resultSetToMarketplace(resultSet));
+    }
+
+    private static final String MARKETPLACES =
+            "SELECT id, name, description, status, status_updated, contact_email, contact_name from meta.marketplace where status <> 'DELETED'::meta.marketplace_status";
+
+    private static final String MARKETPLACES_IN_RETROSPECT =
+            "select m.id,\n" +
+                    "       m.name,\n" +
+                    "       m.description,\n" +
+                    "       l.status,\n" +
+                    "       l.status_updated,\n" +
+                    "       m.contact_email,\n" +
+                    "       m.contact_name\n" +
+                    "from meta.marketplace m join (\n" +
+                    "   select marketplace as id,\n" +
+                    "          status,\n" +
+                    "          effective_date as status_updated,\n" +
+                    "          rank() over(partition by marketplace order by effective_date desc , change_number desc) as rank\n" +
+                    "   from logs.marketplace_status_changelog\n" +
+                    "   WHERE effective_date <= ?::timestamp without time zone\n" +
+                    ") l using (id)\n" +
+                    "WHERE rank = 1\n" +
+                    "AND l.status <> 'DELETED'::meta.marketplace_status";
+
+    private Marketplace resultSetToMarketplace(ResultSet resultSet) throws SQLException {
+        Marketplace m = new Marketplace();
+        m.setId(resultSet.getLong("id"));
+        m.setName(resultSet.getString("name"));
+        m.setDescription(resultSet.getString("description"));
+        m.setStatus(MarketplaceStatus.valueOf(resultSet.getString("status")));
+        m.setStatusUpdated(Date.from(resultSet.getTimestamp("status_updated").toInstant()));
+        m.setContactEmail(resultSet.getString("contact_email"));
+        m.setContactName(resultSet.getString("contact_name"));
+        return m;
+    }
+
+    /**
+     * @return the marketplace as of the effective date, null if it was deleted or did not exist yet
+     */
+    private Marketplace resultSetToMarketplaceAsOf(ResultSet resultSet, Date effectiveDate) throws SQLException {
+        StatusChange<MarketplaceStatus> change = asOfEngine.getMarketplaces().statusAt(resultSet.getLong("id"), effectiveDate);
+        if (change == null || change.getStatus() == MarketplaceStatus.DELETED)
+            return null;
+        Marketplace m = new Marketplace();
+        m.setId(resultSet.getLong("id"));
+        m.setName(resultSet.getString("name"));
+        m.setDescription(resultSet.getString("description"));
+        m.setStatus(change.getStatus());
+        m.setStatusUpdated(change.getEffectiveDate());
+        m.setContactEmail(resultSet.getString("contact_email"));
+        m.setContactName(resultSet.getString("contact_name"));
+        return m;
+    }
+
     public SortedSet<Campaign> listMarketplaceCampaigns(Long marketplaceId) {
         SortedSet<Campaign> out = new TreeSet<>(new CampaignComparator());
         jdbcTemplate.query(new PreparedStatementCreator() {
@@ -661,40 +1076,11 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
     @NotNull
     @Override
     public SortedSet<Campaign> listMarketplaceCampaignsInRetrospect(Long marketplaceId, Date effectiveDate) {
+        if (asOfEngine != null)
+            return listCampaignsAsOf(effectiveDate, "WHERE c.marketplace = ?", marketplaceId);
+
         SortedSet<Campaign> out = new TreeSet<>(new CampaignComparator());
-        final String query =
-                "SELECT c.product,c.tracker,c.type,c.marketplace,c.description,ccl.status,ccl.status_updated\n" +
-                        "FROM meta.campaign c\n" +
-                        "JOIN meta.marketplace m on (m.id = c.marketplace)\n" +
-                        "JOIN meta.product p on (p.code = c.product)\n" +
-                        "JOIN (\n" +
-                        "      SELECT campaign, status, effective_date as status_updated,\n" +
-                        "             rank() over(partition by campaign\n" +
-                        "                         order by effective_date desc,\n" +
-                        "                                  change_number desc) as rank\n" +
-                        "      FROM logs.campaign_status_changelog\n" +
-                        "      WHERE effective_date <= ?\n" +
-                        "     ) ccl ON ( ccl.campaign = c.tracker )\n" +
-                        "JOIN (\n" +
-                        "      SELECT product, status, effective_date as status_updated,\n" +
-                        "             rank() over(partition by product\n" +
-                        "                         order by effective_date desc,\n" +
-                        "                                  change_number desc) as rank\n" +
-                        "      FROM logs.product_status_changelog\n" +
-                        "      WHERE effective_date <= ?\n" +
-                        "     ) pcl ON ( pcl.product=c.product)\n" +
-                        "JOIN (\n" +
-                        "      SELECT marketplace, status, effective_date as status_updated,\n" +
-                        "             rank() over(partition by marketplace\n" +
-                        "                         order by effective_date desc,\n" +
-                        "                                  change_number desc) as rank\n" +
-                        "      FROM logs.marketplace_status_changelog\n" +
-                        "      WHERE effective_date <= ?\n" +
-                        "     ) mcl ON (mcl.marketplace  = c.marketplace)\n" +
-                        "WHERE ccl.rank=1 AND ccl.status<>'DELETED'::meta.campaign_status\n" +
-                        "AND pcl.rank=1 AND pcl.status<>'DELETED'::meta.product_status\n" +
-                        "AND mcl.rank=1 AND mcl.status<>'DELETED'::meta.marketplace_status \n" +
-                        "AND m.id = ?";
+        final String query = CAMPAIGNS_IN_RETROSPECT + "\nAND m.id = ?";
 
         jdbcTemplate.query(query, new RowCallbackHandler() {
             @Override
@@ -744,50 +1130,128 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         return keyHolderToProduct(keyHolder, product);
     }
 
-    public void assignCampaignToAccount(Campaign campaign, Account account) {
-        final String queryCheck = "SELECT count(1) > 0 FROM meta.account_campaigns where business_unit = ? and tracker =?";
-        final String queryInsert = "INSERT INTO meta.account_campaigns (business_unit, tracker, linked_date) VALUES (?,?,?)";
-        final String queryUpdate = "UPDATE meta.account_campaigns SET business_unit=?, linked_date=? WHERE tracker=?";
-        Date linked_date = new Date();
-        if ( jdbcTemplate.queryForObject(queryCheck,Boolean.class,account.getId(),campaign.getTracker()) ){
-            jdbcTemplate.update(queryUpdate, account.getId(), linked_date, campaign.getTracker());
-        } else {
-            jdbcTemplate.update(queryInsert,account.getId(), campaign.getTracker(), linked_date);
-        }
-        logCampaignBusinessUnitRelationshipChange(campaign.getTracker(),account.getId(),linked_date);
+    /**
+     * Links the campaign to the business unit, moving it out of the one it belonged to, and appends
+     * the move to the relationship changelog - one statement, so concurrent assignments of the same
+     * campaign cannot interleave between check and write.
+     *
+     * @param campaign
+     * @param account  business unit
+     * @return the appended changelog entry, null if the campaign already belonged to the business unit
+     */
+    public ChangeLogEntry<Account> assignCampaignToAccount(Campaign campaign, Account account) {
+        final Timestamp linkedDate = new Timestamp(System.currentTimeMillis());
+        List<Long> changeNumbers = jdbcTemplate.queryForList(
+                "WITH linked AS ( \n" +
+                "  INSERT INTO meta.account_campaigns AS ac (business_unit, tracker, linked_date) VALUES (?,?,?) \n" +
+                "  ON CONFLICT (tracker) DO UPDATE SET business_unit = EXCLUDED.business_unit, linked_date = EXCLUDED.linked_date \n" +
+                "  WHERE ac.business_unit <> EXCLUDED.business_unit \n" +
+                "  RETURNING tracker, business_unit \n" +
+                ") \n" +
+                "INSERT INTO logs.campaign_account_relationship_changelog (tracker, account, effective_date) \n" +
+                "SELECT tracker, business_unit, ? FROM linked RETURNING change_number",
+                Long.class, account.getId(), campaign.getTracker(), linkedDate, linkedDate);
+        return changeNumbers.isEmpty() ? null : new ChangeLogEntry<>(linkedDate, account);
+    }
+
+    /**
+     * Moves many campaigns to a business unit at once, e.g. on a reorganisation: the links and the
+     * relationship changelog are written by a single statement whatever the number of campaigns.
+     * Campaigns already in the business unit are left alone.
+     *
+     * @param trackers campaigns to move
+     * @param account  business unit to move them to
+     * @return number of campaigns moved
+     */
+    @Override
+    public int reassignCampaigns(Collection<String> trackers, Account account) {
+        if (trackers.isEmpty())
+            return 0;
+        final String[] distinctTrackers = new LinkedHashSet<>(trackers).toArray(new String[0]);
+        final Timestamp linkedDate = new Timestamp(System.currentTimeMillis());
+        return jdbcTemplate.update(new PreparedStatementCreator() {
+            @Override
+            public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+                PreparedStatement ps = connection.prepareStatement(
+                        "WITH linked AS ( \n" +
+                        "  INSERT INTO meta.account_campaigns AS ac (business_unit, tracker, linked_date) \n" +
+                        "  SELECT ?, tracker, ?::timestamp FROM unnest(?::varchar[]) AS t(tracker) \n" +
+                        "  ON CONFLICT (tracker) DO UPDATE SET business_unit = EXCLUDED.business_unit, linked_date = EXCLUDED.linked_date \n" +
+                        "  WHERE ac.business_unit <> EXCLUDED.business_unit \n" +
+                        "  RETURNING tracker, business_unit \n" +
+                        ") \n" +
+                        "INSERT INTO logs.campaign_account_relationship_changelog (tracker, account, effective_date) \n" +
+                        "SELECT tracker, business_unit, ?::timestamp FROM linked");
+                ps.setLong(1, account.getId());
+                ps.setTimestamp(2, linkedDate);
+                ps.setArray(3, connection.createArrayOf("varchar", distinctTrackers));
+                ps.setTimestamp(4, linkedDate);
+                return ps;
+            }
+        });
+    }
 
+    /**
+     * Appends a campaign to business unit relationship change.
+     *
+     * @param tracker
+     * @param accountId
+     * @param effectiveDate
+     * @return the appended entry, see {@link #lazyCampaignBusinessUnitChangelog(String)} for the whole history
+     */
+    public ChangeLogEntry<Account> logCampaignBusinessUnitRelationshipChange(String tracker, Long accountId, Date effectiveDate){
+        return logCampaignBusinessUnitRelationshipChange(tracker, retrieveBusinessUnit(accountId), effectiveDate);
     }
 
-    public ChangeLog<Account> logCampaignBusinessUnitRelationshipChange(String tracker, Long accountId, Date effectiveDate){
+    /**
+     * @param tracker
+     * @param account       business unit the campaign now belongs to
+     * @param effectiveDate
+     * @return the appended entry
+     */
+    public ChangeLogEntry<Account> logCampaignBusinessUnitRelationshipChange(String tracker, Account account, Date effectiveDate){
         final String queryInsert = "INSERT INTO logs.campaign_account_relationship_changelog (tracker, account, effective_date) VALUES (?,?,?)";
-        final String querySelect = "SELECT account, effective_date FROM logs.campaign_account_relationship_changelog WHERE tracker=?";
         jdbcTemplate.update(new PreparedStatementCreator() {
             @Override
             public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
                 PreparedStatement ps = connection.prepareStatement(queryInsert);
                 ps.setString(1,tracker);
-                ps.setLong(2,accountId);
+                ps.setLong(2,account.getId());
                 ps.setTimestamp(3,Timestamp.from(effectiveDate.toInstant()));
                 return ps;
             }
         });
+        return new ChangeLogEntry<>(effectiveDate, account);
+    }
+
+    /**
+     * @param tracker
+     * @return business units the campaign belonged to, by effective date
+     */
+    public ChangeLog<Account> getCampaignBusinessUnitChangelog(String tracker) {
+        final String query =
+                "SELECT r.effective_date, b.* FROM logs.campaign_account_relationship_changelog r \n" +
+                "  JOIN meta.business_unit b ON (b.id = r.account) \n" +
+                "WHERE r.tracker=?";
         ChangeLog<Account> out = new ChangeLog<>();
-        jdbcTemplate.query(new PreparedStatementCreator() {
-            @Override
-            public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
-                PreparedStatement ps = connection.prepareStatement(querySelect);
-                ps.setString(1, tracker);
-                return ps;
-            }
-        }, new RowCallbackHandler() {
+        jdbcTemplate.query(query, new RowCallbackHandler() {
             @Override
             public void processRow(ResultSet resultSet) throws SQLException {
-                out.addLogEntry(new ChangeLogEntry<>(effectiveDate,retrieveBusinessUnit(accountId)));
+                out.addLogEntry(new ChangeLogEntry<>(Date.from(resultSet.getTimestamp("effective_date").toInstant()),
+                        resultSetToBusinessUnit(resultSet)));
             }
-        });
+        }, tracker);
         return out;
     }
 
+    /**
+     * @param tracker
+     * @return business unit history of the campaign, read on first use
+     */
+    public LazyChangeLog<Account> lazyCampaignBusinessUnitChangelog(String tracker) {
+        return new LazyChangeLog<>(() -> getCampaignBusinessUnitChangelog(tracker));
+    }
+
     /**
      * @param keyHolder
      * @param product
@@ -798,7 +1262,7 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         product.setId((String)k.get("code"));
         product.setName((String)k.get("name"));
         product.setDescription((String)k.get("description"));
-        product.setStatus(ProductStatus.valueOf( ((PGobject)k.get("status")).getValue()));
+        product.setStatus(ProductStatus.valueOf( enumValue(k.get("status"))));
         product.setStatusUpdated(Date.from(((Timestamp) k.get("status_updated")).toInstant()));
         return product;
     }
@@ -822,6 +1286,12 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
 
     }
 
+    @Override
+    public Map<String, Product> retrieveProducts(Collection<String> codes) {
+        return retrieveAll(codes, "varchar",
+                "SELECT code,name,description,status,status_updated FROM meta.product WHERE code = ANY(?)",
+                (resultSet, i) -> resultSetToProduct(resultSet), Product::getId);
+    }
 
     private Account retrieveCampaignBusinessUnit(Campaign campaign, Date effectiveDate){
        return jdbcTemplate.queryForObject(
@@ -879,7 +1349,7 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
      * @param product
      * @return
      */
-    public ChangeLog<ProductStatus> logProductStatusChange(Product product) {
+    public ChangeLogEntry<ProductStatus> logProductStatusChange(Product product) {
         return logProductStatusChange(product.getId(), product.getStatus(), product.getStatusUpdated());
     }
 
@@ -887,22 +1357,25 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
      * @param code
      * @param status
      * @param effectiveDate
-     * @return
+     * @return the appended entry, see {@link #lazyProductStatusChangelog(String)} for the whole history
      */
-    public ChangeLog<ProductStatus> logProductStatusChange(String code, ProductStatus status, Date effectiveDate) {
-        jdbcTemplate.update(new PreparedStatementCreator() {
-            @Override
-            public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
-                final String query =
-                        "INSERT INTO logs.product_status_changelog (product, status, effective_date) VALUES (?,?::meta.product_status,?)";
-                PreparedStatement ps = connection.prepareStatement(query);
-                ps.setString(1, code);
-                ps.setString(2, status.name());
-                ps.setTimestamp(3, Timestamp.from(effectiveDate.toInstant()));
-                return ps;
-            }
-        });
-        return getProductStatusChangelog(code);
+    public ChangeLogEntry<ProductStatus> logProductStatusChange(String code, ProductStatus status, Date effectiveDate) {
+        final String query =
+                "INSERT INTO logs.product_status_changelog (product, status, effective_date) VALUES (?,?::meta.product_status,?) RETURNING change_number";
+        Long changeNumber = jdbcTemplate.queryForObject(query, Long.class, code, status.name(), Timestamp.from(effectiveDate.toInstant()));
+        if (asOfEngine != null) {
+            final AsOfEngine engine = asOfEngine;
+            afterCommit(() -> engine.getProducts().record(code, effectiveDate, changeNumber, status));
+        }
+        return new ChangeLogEntry<>(effectiveDate, status);
+    }
+
+    /**
+     * @param code
+     * @return status history of the product, read on first use
+     */
+    public LazyChangeLog<ProductStatus> lazyProductStatusChangelog(String code) {
+        return new LazyChangeLog<>(() -> getProductStatusChangelog(code));
     }
 
     /**
@@ -957,7 +1430,7 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
     @Override
     public SortedSet<Product> listProducts() {
         SortedSet<Product> out = new TreeSet<>(new ProductComparator());
-        final String query = "SELECT code, name, description, status, status_updated from meta.product WHERE status <> 'DELETED'::meta.product_status";
+        final String query = PRODUCTS;
         jdbcTemplate.query(new PreparedStatementCreator() {
             @Override
             public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
@@ -967,14 +1440,7 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         }, new RowCallbackHandler() {
             @Override
             public void processRow(ResultSet resultSet) throws SQLException {
-                Product p = new Product();
-                p.setId(resultSet.getString("code"));
-                p.setName(resultSet.getString("name"));
-                p.setDescription(resultSet.getString("description"));
-                p.setStatus(ProductStatus.valueOf(resultSet.getString("status")));
-                p.setStatusUpdated(Date.from(resultSet.getTimestamp("status_updated").toInstant()));
-
-                out.add(p);
+                out.add(resultSetToProduct(resultSet));
             }
         });
         return out;
@@ -982,23 +1448,11 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
 
     @Override
     public SortedSet<Product> listProductsInRetrospect(Date effectiveDate) {
+        if (asOfEngine != null)
+            return listProductsAsOf(effectiveDate);
+
         SortedSet<Product> out = new TreeSet<>(new ProductComparator());
-        final String query =
-                "SELECT p.code as code, " +
-                        "       p.name as name, " +
-                        "       p.description, " +
-                        "       l.status, " +
-                        "       l.status_updated " +
-                        "FROM   meta.product JOIN ( " +
-                        "    SELECT product as code, " +
-                        "           status, " +
-                        "           effective_date as status_updated, " +
-                        "           rank() over(partition by product order by effective_date desc, change_number desc) as rank " +
-                        "    FROM  logs.product_status_changelog " +
-                        "    WHERE effective_date <=?::timestamp without time zone" +
-                        " ) l USING (code) " +
-                        "WHERE rank=1 " +
-                        "AND   status <> 'DELETED'::meta.product_status";
+        final String query = PRODUCTS_IN_RETROSPECT;
         jdbcTemplate.query(new PreparedStatementCreator() {
             @Override
             public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
@@ -1009,19 +1463,78 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         }, new RowCallbackHandler() {
             @Override
             public void processRow(ResultSet resultSet) throws SQLException {
-                Product p = new Product();
-                p.setId(resultSet.getString("code"));
-                p.setName(resultSet.getString("name"));
-                p.setDescription(resultSet.getString("description"));
-                p.setStatus(ProductStatus.valueOf(resultSet.getString("status")));
-                p.setStatusUpdated(Date.from(resultSet.getTimestamp("status_updated").toInstant()));
                 // TODO:: p.setBusinessUnit(resultSet.getLong("parent_account"))
-                out.add(p);
+                out.add(resultSetToProduct(resultSet));
+            }
+        });
+        return out;
+    }
+
+    private SortedSet<Product> listProductsAsOf(Date effectiveDate) {
+        SortedSet<Product> out = new TreeSet<>(new ProductComparator());
+        jdbcTemplate.query("SELECT code, name, description FROM meta.product", new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet resultSet) throws SQLException {
+                Product p = resultSetToProductAsOf(resultSet, effectiveDate);
+                if (p != null)
+                    out.add(p);
             }
         });
         return out;
     }
 
+    @Override
+    public Stream<Product> streamProducts() {
+        return stream(PRODUCTS + " ORDER BY name COLLATE \"C\"", null,
+                (resultSet, rowNum) -> resultSetToProduct(resultSet));
+    }
+
+    @Override
+    public Stream<Product> streamProductsInRetrospect(Date effectiveDate) {
+        if (asOfEngine != null)
+            return stream("SELECT code, name, description FROM meta.product ORDER BY name COLLATE \"C\"",
+                    null, (resultSet, rowNum) -> resultSetToProductAsOf(resultSet, effectiveDate));
+        return stream(PRODUCTS_IN_RETROSPECT + " ORDER BY p.name COLLATE \"C\"",
+                ps -> ps.setTimestamp(1, Timestamp.from(effectiveDate.toInstant())),
+                (resultSet, rowNum) -> resultSetToProduct(resultSet));
+    }
+
+    private static final String PRODUCTS =
+            "SELECT code, name, description, status, status_updated from meta.product WHERE status <> 'DELETED'::meta.product_status";
+
+    private static final String PRODUCTS_IN_RETROSPECT =
+            "SELECT p.code as code, " +
+                    "       p.name as name, " +
+                    "       p.description, " +
+                    "       l.status, " +
+                    "       l.status_updated " +
+                    "FROM   meta.product p JOIN ( " +
+                    "    SELECT product as code, " +
+                    "           status, " +
+                    "           effective_date as status_updated, " +
+                    "           rank() over(partition by product order by effective_date desc, change_number desc) as rank " +
+                    "    FROM  logs.product_status_changelog " +
+                    "    WHERE effective_date <=?::timestamp without time zone" +
+                    " ) l USING (code) " +
+                    "WHERE rank=1 " +
+                    "AND   l.status <> 'DELETED'::meta.product_status";
+
+    /**
+     * @return the product as of the effective date, null if it was deleted or did not exist yet
+     */
+    private Product resultSetToProductAsOf(ResultSet resultSet, Date effectiveDate) throws SQLException {
+        StatusChange<ProductStatus> change = asOfEngine.getProducts().statusAt(resultSet.getString("code"), effectiveDate);
+        if (change == null || change.getStatus() == ProductStatus.DELETED)
+            return null;
+        Product p = new Product();
+        p.setId(resultSet.getString("code"));
+        p.setName(resultSet.getString("name"));
+        p.setDescription(resultSet.getString("description"));
+        p.setStatus(change.getStatus());
+        p.setStatusUpdated(change.getEffectiveDate());
+        return p;
+    }
+
     @NotNull
     @Override
     public SortedSet<Campaign> listProductCampaigns(Product product){
@@ -1076,47 +1589,18 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
 
     @Override
     public SortedSet<Campaign> listProductCampaignsInRetrospect(Product product, Date effectiveDate) {
+        if (asOfEngine != null)
+            return listCampaignsAsOf(effectiveDate, "WHERE c.product = ?", product.getId());
+
         SortedSet<Campaign> out = new TreeSet<>(new CampaignComparator());
-        final String query =
-                "SELECT c.product,c.tracker,c.type,c.marketplace,c.description,ccl.status,ccl.status_updated\n" +
-                        "FROM meta.campaign c\n" +
-                        "JOIN meta.marketplace m on (m.id = c.marketplace)\n" +
-                        "JOIN meta.product p on (p.code = c.product)\n" +
-                        "JOIN (\n" +
-                        "      SELECT campaign, status, effective_date as status_updated,\n" +
-                        "             rank() over(partition by campaign\n" +
-                        "                         order by effective_date desc,\n" +
-                        "                                  change_number desc) as rank\n" +
-                        "      FROM logs.campaign_status_changelog\n" +
-                        "      WHERE effective_date <= ?\n" +
-                        "     ) ccl ON ( ccl.campaign = c.tracker )\n" +
-                        "JOIN (\n" +
-                        "      SELECT product, status, effective_date as status_updated,\n" +
-                        "             rank() over(partition by product\n" +
-                        "                         order by effective_date desc,\n" +
-                        "                                  change_number desc) as rank\n" +
-                        "      FROM logs.product_status_changelog\n" +
-                        "      WHERE effective_date <= ?\n" +
-                        "     ) pcl ON ( pcl.product=c.product)\n" +
-                        "JOIN (\n" +
-                        "      SELECT marketplace, status, effective_date as status_updated,\n" +
-                        "             rank() over(partition by marketplace\n" +
-                        "                         order by effective_date desc,\n" +
-                        "                                  change_number desc) as rank\n" +
-                        "      FROM logs.marketplace_status_changelog\n" +
-                        "      WHERE effective_date <= ?\n" +
-                        "     ) mcl ON (mcl.marketplace  = c.marketplace)\n" +
-                        "WHERE ccl.rank=1 AND ccl.status<>'DELETED'::meta.campaign_status\n" +
-                        "AND pcl.rank=1 AND pcl.status<>'DELETED'::meta.product_status\n" +
-                        "AND mcl.rank=1 AND mcl.status<>'DELETED'::meta.marketplace_status \n" +
-                        "AND p.code = ?";
+        final String query = CAMPAIGNS_IN_RETROSPECT + "\nAND p.code = ?";
 
         jdbcTemplate.query(query, new RowCallbackHandler() {
             @Override
             public void processRow(ResultSet resultSet) throws SQLException {
                 out.add(resultSetToCampaign(resultSet,new Campaign()));
             }
-        }, effectiveDate, effectiveDate, effectiveDate, product);
+        }, effectiveDate, effectiveDate, effectiveDate, product.getId());
         return out;
     }
 
@@ -1180,42 +1664,186 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         Account account = retrieveBusinessUnit(campaign.getBusinessUnit());
         assignCampaignToAccount(campaign, account);
         logCampaignStatusChange(campaign);
+        indexCampaign(campaign.getTracker(), campaign.getProduct(), campaign.getMarketplace(), campaign.getStatus());
         return keyHolderToCampaign(keyHolder,campaign);
     }
 
+    /**
+     * Creates many campaigns at once: every table touched by {@link #createCampaign(Campaign)} is
+     * written with a single multi-row INSERT ... SELECT FROM unnest(...) statement, all of them in one
+     * transaction (joining the caller's one, if any). Either all campaigns are created or none.
+     *
+     * @param campaigns campaigns to create, each with its business unit set
+     * @return created campaigns
+     */
+    @Override
+    public SortedSet<Campaign> createCampaigns(Collection<Campaign> campaigns) {
+        final SortedSet<Campaign> out = new TreeSet<>(new CampaignComparator());
+        if (campaigns.isEmpty())
+            return out;
+
+        final int size = campaigns.size();
+        final String[] products = new String[size];
+        final String[] trackers = new String[size];
+        final String[] types = new String[size];
+        final Long[] marketplaces = new Long[size];
+        final String[] names = new String[size];
+        final String[] descriptions = new String[size];
+        final String[] statuses = new String[size];
+        final Timestamp[] statusUpdated = new Timestamp[size];
+        final Long[] costs = new Long[size];
+        final Long[] businessUnits = new Long[size];
+        final Timestamp[] linkedDates = new Timestamp[size];
+        final Timestamp linkedDate = new Timestamp(System.currentTimeMillis());
+        int i = 0;
+        for (Campaign campaign : campaigns) {
+            products[i] = campaign.getProduct();
+            trackers[i] = campaign.getTracker();
+            types[i] = campaign.getType().name();
+            marketplaces[i] = campaign.getMarketplace();
+            names[i] = campaign.getName();
+            descriptions[i] = campaign.getDescription();
+            statuses[i] = campaign.getStatus().name();
+            statusUpdated[i] = Timestamp.from(campaign.getStatusUpdated().toInstant());
+            costs[i] = campaign.getCost();
+            businessUnits[i] = campaign.getBusinessUnit();
+            linkedDates[i] = linkedDate;
+            i++;
+        }
+
+        final Map<String, Long> changeNumbers = new HashMap<>(size * 2);
+        transactionTemplate.execute(status -> {
+            jdbcTemplate.update(new PreparedStatementCreator() {
+                @Override
+                public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+                    PreparedStatement ps = connection.prepareStatement(
+                            "INSERT INTO meta.campaign (product, tracker, type, marketplace, name, description, status, status_updated, cost_cents) " +
+                            "SELECT product, tracker, type::meta.campaign_type, marketplace, name, description, status::meta.campaign_status, status_updated, cost_cents " +
+                            "FROM unnest(?::varchar[], ?::varchar[], ?::varchar[], ?::bigint[], ?::varchar[], ?::text[], ?::varchar[], ?::timestamp[], ?::bigint[]) " +
+                            "AS t(product, tracker, type, marketplace, name, description, status, status_updated, cost_cents)");
+                    int bindIndex = 0;
+                    ps.setArray(++bindIndex, connection.createArrayOf("varchar", products));
+                    ps.setArray(++bindIndex, connection.createArrayOf("varchar", trackers));
+                    ps.setArray(++bindIndex, connection.createArrayOf("varchar", types));
+                    ps.setArray(++bindIndex, connection.createArrayOf("int8", marketplaces));
+                    ps.setArray(++bindIndex, connection.createArrayOf("varchar", names));
+                    ps.setArray(++bindIndex, connection.createArrayOf("text", descriptions));
+                    ps.setArray(++bindIndex, connection.createArrayOf("varchar", statuses));
+                    ps.setArray(++bindIndex, connection.createArrayOf("timestamp", statusUpdated));
+                    ps.setArray(++bindIndex, connection.createArrayOf("int8", costs));
+                    return ps;
+                }
+            });
+            jdbcTemplate.update(new PreparedStatementCreator() {
+                @Override
+                public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+                    PreparedStatement ps = connection.prepareStatement(
+                            "INSERT INTO meta.account_campaigns (business_unit, tracker, linked_date) " +
+                            "SELECT * FROM unnest(?::bigint[], ?::varchar[], ?::timestamp[])");
+                    ps.setArray(1, connection.createArrayOf("int8", businessUnits));
+                    ps.setArray(2, connection.createArrayOf("varchar", trackers));
+                    ps.setArray(3, connection.createArrayOf("timestamp", linkedDates));
+                    return ps;
+                }
+            });
+            jdbcTemplate.update(new PreparedStatementCreator() {
+                @Override
+                public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+                    PreparedStatement ps = connection.prepareStatement(
+                            "INSERT INTO logs.campaign_account_relationship_changelog (tracker, account, effective_date) " +
+                            "SELECT * FROM unnest(?::varchar[], ?::bigint[], ?::timestamp[])");
+                    ps.setArray(1, connection.createArrayOf("varchar", trackers));
+                    ps.setArray(2, connection.createArrayOf("int8", businessUnits));
+                    ps.setArray(3, connection.createArrayOf("timestamp", linkedDates));
+                    return ps;
+                }
+            });
+            jdbcTemplate.query(new PreparedStatementCreator() {
+                @Override
+                public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+                    PreparedStatement ps = connection.prepareStatement(
+                            "INSERT INTO logs.campaign_status_changelog (campaign, status, effective_date) " +
+                            "SELECT campaign, status::meta.campaign_status, effective_date FROM unnest(?::varchar[], ?::varchar[], ?::timestamp[]) " +
+                            "AS t(campaign, status, effective_date) RETURNING campaign, change_number");
+                    ps.setArray(1, connection.createArrayOf("varchar", trackers));
+                    ps.setArray(2, connection.createArrayOf("varchar", statuses));
+                    ps.setArray(3, connection.createArrayOf("timestamp", statusUpdated));
+                    return ps;
+                }
+            }, new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet resultSet) throws SQLException {
+                    changeNumbers.put(resultSet.getString("campaign"), resultSet.getLong("change_number"));
+                }
+            });
+            return null;
+        });
+
+        for (Campaign campaign : campaigns) {
+            out.add(campaign);
+        }
+        if (asOfEngine != null) {
+            final AsOfEngine engine = asOfEngine;
+            afterCommit(() -> {
+                for (Campaign campaign : campaigns)
+                    engine.getCampaigns().record(campaign.getTracker(), campaign.getStatusUpdated(),
+                            changeNumbers.get(campaign.getTracker()), campaign.getStatus());
+            });
+        }
+        if (campaignTagIndex != null) {
+            final CampaignTagIndex index = campaignTagIndex;
+            afterCommit(() -> {
+                for (Campaign campaign : campaigns)
+                    index.putCampaign(campaign.getTracker(), campaign.getProduct(), campaign.getMarketplace(), campaign.getStatus());
+            });
+        }
+        return out;
+    }
+
     private Campaign keyHolderToCampaign(KeyHolder keyHolder, Campaign campaign){
         Map k = keyHolder.getKeys();
         campaign.setProduct((String)k.get("product"));
         campaign.setTracker((String)k.get("tracker"));
-        campaign.setType(CampaignType.valueOf( ((PGobject)k.get("type")).getValue() ));
+        campaign.setType(CampaignType.valueOf( enumValue(k.get("type")) ));
         campaign.setMarketplace((Long.valueOf( (Integer)k.get("marketplace") )));
         campaign.setName((String)k.get("name"));
         campaign.setDescription((String)k.get("description"));
-        campaign.setStatus(CampaignStatus.valueOf( ((PGobject)k.get("status")).getValue() ));
+        campaign.setStatus(CampaignStatus.valueOf( enumValue(k.get("status")) ));
         campaign.setStatusUpdated(Date.from(((Timestamp) k.get("status_updated")).toInstant()));
         return campaign;
     }
 
-    public ChangeLog<CampaignStatus> logCampaignStatusChange(String campaign, CampaignStatus status, Date effectiveDate ){
-        jdbcTemplate.update(new PreparedStatementCreator() {
-            @Override
-            public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
-                final String query =
-                        "INSERT INTO logs.campaign_status_changelog (campaign, status, effective_date) VALUES (?,?::meta.campaign_status,?)";
-                PreparedStatement ps = connection.prepareStatement(query);
-                ps.setString(1, campaign);
-                ps.setString(2, status.name());
-                ps.setTimestamp(3, Timestamp.from(effectiveDate.toInstant()));
-                return ps;
-            }
-        });
-        return  getCampaignStatusChangelog(campaign);
+    /**
+     * Appends a campaign status change.
+     *
+     * @param campaign      tracker
+     * @param status
+     * @param effectiveDate
+     * @return the appended entry, see {@link #lazyCampaignStatusChangelog(String)} for the whole history
+     */
+    public ChangeLogEntry<CampaignStatus> logCampaignStatusChange(String campaign, CampaignStatus status, Date effectiveDate ){
+        final String query =
+                "INSERT INTO logs.campaign_status_changelog (campaign, status, effective_date) VALUES (?,?::meta.campaign_status,?) RETURNING change_number";
+        Long changeNumber = jdbcTemplate.queryForObject(query, Long.class, campaign, status.name(), Timestamp.from(effectiveDate.toInstant()));
+        if (asOfEngine != null) {
+            final AsOfEngine engine = asOfEngine;
+            afterCommit(() -> engine.getCampaigns().record(campaign, effectiveDate, changeNumber, status));
+        }
+        return new ChangeLogEntry<>(effectiveDate, status);
     }
 
-    public ChangeLog<CampaignStatus> logCampaignStatusChange(Campaign campaign){
+    public ChangeLogEntry<CampaignStatus> logCampaignStatusChange(Campaign campaign){
         return logCampaignStatusChange(campaign.getTracker(), campaign.getStatus(), campaign.getStatusUpdated() );
     }
 
+    /**
+     * @param tracker
+     * @return status history of the campaign, read on first use
+     */
+    public LazyChangeLog<CampaignStatus> lazyCampaignStatusChangelog(String tracker) {
+        return new LazyChangeLog<>(() -> getCampaignStatusChangelog(tracker));
+    }
+
     @Override
     public Campaign retrieveCampaign(String tracker) {
         final String query=
@@ -1243,6 +1871,19 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         }, tracker);
     }
 
+    /**
+     * Campaigns as the listings read them, deleted ones included, with their current business unit
+     * resolved by the same lateral join instead of a query per campaign: read by
+     * {@link #listCampaignsWhere(String, Object...)}, a {@code tracker = ANY(?)} query per chunk.
+     * As with {@link #retrieveCampaign(String)}, a campaign without a cost has none.
+     */
+    @Override
+    public Map<String, Campaign> retrieveCampaigns(Collection<String> trackers) {
+        return retrieveAll(trackers,
+                chunk -> listCampaignsWhere("c.tracker = ANY(?)", (Object) chunk.toArray(new String[0])),
+                Campaign::getTracker);
+    }
+
     @Override
     public Campaign updateCampaign(Campaign campaign) {
         Campaign existing = retrieveCampaign(campaign.getTracker());
@@ -1268,6 +1909,7 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
                 return ps;
             }
         },keyHolder);
+        indexCampaign(campaign.getTracker(), existing.getProduct(), campaign.getMarketplace(), campaign.getStatus());
         return keyHolderToCampaign(keyHolder,campaign);
     }
 
@@ -1279,68 +1921,177 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         return updateCampaign(deleted);
     }
 
+    /**
+     * Lateral join resolving the business unit a campaign (aliased {@code c}) belongs to as of the
+     * bound effective date, so that campaign listings don't have to go back to the relationship
+     * changelog once per row.
+     */
+    private static final String CAMPAIGN_BUSINESS_UNIT_LATERAL =
+            "LEFT JOIN LATERAL ( \n" +
+            "      SELECT r.account AS business_unit \n" +
+            "      FROM   logs.campaign_account_relationship_changelog r \n" +
+            "        JOIN meta.business_unit b ON (b.id = r.account) \n" +
+            "      WHERE  r.tracker = c.tracker \n" +
+            "      AND    r.effective_date <= ? \n" +
+            "      ORDER BY r.effective_date DESC, r.change_number DESC \n" +
+            "      LIMIT 1 \n" +
+            "     ) bu ON TRUE \n";
+
     @Override
     public SortedSet<Campaign> listCampaigns() {
+        return listCampaignsWhere("c.status<>'DELETED'::meta.campaign_status");
+    }
+
+    /**
+     * Current campaigns with their current business unit.
+     *
+     * @param where condition over campaign {@code c}
+     * @param args  values of the condition's placeholders; String[] and Long[] are bound as SQL arrays
+     * @return matching campaigns
+     */
+    private SortedSet<Campaign> listCampaignsWhere(String where, Object... args) {
         SortedSet<Campaign> out =new TreeSet<>(new CampaignComparator());
-        jdbcTemplate.query(
-            "SELECT product,tracker,type,marketplace,name,description,status,status_updated,cost_cents FROM meta.campaign WHERE status<>'DELETED'::meta.campaign_status",
-            new RowCallbackHandler() {
+        final String query = CURRENT_CAMPAIGNS + where;
+        jdbcTemplate.query(new PreparedStatementCreator() {
+            @Override
+            public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+                PreparedStatement ps = connection.prepareStatement(query);
+                bindCampaignsWhere(ps, args);
+                return ps;
+            }
+        }, new RowCallbackHandler() {
             @Override
             public void processRow(ResultSet resultSet) throws SQLException {
-                Campaign c = new Campaign();
-                c.setProduct(resultSet.getString("product"));
-                c.setTracker(resultSet.getString("tracker"));
-                c.setType(CampaignType.valueOf(resultSet.getString("type")));
-                c.setMarketplace(resultSet.getLong("marketplace"));
-                c.setName(resultSet.getString("name"));
-                c.setDescription(resultSet.getString("description"));
-                c.setStatus(CampaignStatus.valueOf(resultSet.getString("status")));
-                c.setStatusUpdated(resultSet.getTimestamp("status_updated"));
-                c.setCost(resultSet.getLong("cost_cents"));
-
-                Account a = retrieveCampaignBusinessUnit(c,new Date());
-                c.setBusinessUnit(a.getId());
-                out.add(c);
+                out.add(resultSetToCurrentCampaign(resultSet));
             }
         });
         return out;
     }
 
+    /**
+     * Streaming counterpart of {@link #listCampaignsWhere(String, Object...)}, in tracker order.
+     */
+    private Stream<Campaign> streamCampaignsWhere(String where, Object... args) {
+        return stream(CURRENT_CAMPAIGNS + where + "\nORDER BY c.tracker COLLATE \"C\"",
+                ps -> bindCampaignsWhere(ps, args),
+                (resultSet, rowNum) -> resultSetToCurrentCampaign(resultSet));
+    }
+
+    private static final String CURRENT_CAMPAIGNS =
+            "SELECT c.product,c.tracker,c.type,c.marketplace,c.name,c.description,c.status,c.status_updated,c.cost_cents,bu.business_unit \n" +
+            "FROM meta.campaign c \n" +
+            CAMPAIGN_BUSINESS_UNIT_LATERAL +
+            "WHERE ";
+
+    /**
+     * Condition over campaign {@code c} leaving out campaigns whose product or marketplace is deleted.
+     */
+    private static final String CAMPAIGN_OF_CURRENT_CATALOG =
+            "c.status<>'DELETED'::meta.campaign_status \n" +
+            "AND EXISTS (SELECT 1 FROM meta.marketplace m WHERE m.id = c.marketplace AND m.status<>'DELETED'::meta.marketplace_status) \n" +
+            "AND EXISTS (SELECT 1 FROM meta.product p WHERE p.code = c.product AND p.status<>'DELETED'::meta.product_status) \n";
+
+    private static void bindCampaignsWhere(PreparedStatement ps, Object[] args) throws SQLException {
+        int bindIndex = 0;
+        ps.setTimestamp(++bindIndex, Timestamp.from(new Date().toInstant()));
+        for (Object arg : args) {
+            if (arg instanceof String[])
+                ps.setArray(++bindIndex, ps.getConnection().createArrayOf("varchar", (String[]) arg));
+            else if (arg instanceof Long[])
+                ps.setArray(++bindIndex, ps.getConnection().createArrayOf("int8", (Long[]) arg));
+            else
+                ps.setObject(++bindIndex, arg);
+        }
+    }
+
+    private Campaign resultSetToCurrentCampaign(ResultSet resultSet) throws SQLException {
+        Campaign c = new Campaign();
+        c.setProduct(resultSet.getString("product"));
+        c.setTracker(resultSet.getString("tracker"));
+        c.setType(CampaignType.valueOf(resultSet.getString("type")));
+        c.setMarketplace(resultSet.getLong("marketplace"));
+        c.setName(resultSet.getString("name"));
+        c.setDescription(resultSet.getString("description"));
+        c.setStatus(CampaignStatus.valueOf(resultSet.getString("status")));
+        c.setStatusUpdated(resultSet.getTimestamp("status_updated"));
+        if (resultSet.getObject("cost_cents") != null)
+            c.setCost(resultSet.getLong("cost_cents"));
+        if (resultSet.getObject("business_unit") != null)
+            c.setBusinessUnit(resultSet.getLong("business_unit"));
+        return c;
+    }
+
+    @Override
+    public Stream<Campaign> streamCampaigns() {
+        return streamCampaignsWhere("c.status<>'DELETED'::meta.campaign_status");
+    }
+
+    @Override
+    public Stream<Campaign> streamMarketplaceCampaigns(Long marketplaceId) {
+        return streamCampaignsWhere(CAMPAIGN_OF_CURRENT_CATALOG + "AND c.marketplace = ?", marketplaceId);
+    }
+
+    @Override
+    public Stream<Campaign> streamProductCampaigns(String productCode) {
+        return streamCampaignsWhere(CAMPAIGN_OF_CURRENT_CATALOG + "AND c.product = ?", productCode);
+    }
+
+    @Override
+    public SortedSet<Campaign> findCampaigns(TagExpression tags) {
+        return findCampaigns(new CampaignQuery(tags));
+    }
+
+    /**
+     * With a {@link CampaignTagIndex} the matching trackers come from the index and the campaigns
+     * are read with a single {@code tracker = ANY(?)} query; without one the whole query is
+     * translated to SQL.
+     *
+     * @param query search criteria
+     * @return matching campaigns
+     */
+    @Override
+    public SortedSet<Campaign> findCampaigns(CampaignQuery query) {
+        if (campaignTagIndex != null) {
+            List<String> trackers = campaignTagIndex.find(query);
+            if (trackers.isEmpty())
+                return new TreeSet<>(new CampaignComparator());
+            return listCampaignsWhere("c.tracker = ANY(?)", (Object) trackers.toArray(new String[0]));
+        }
+
+        StringBuilder where = new StringBuilder();
+        List<Object> args = new ArrayList<>();
+        if (query.getStatuses().isEmpty()) {
+            where.append("c.status<>'DELETED'::meta.campaign_status");
+        } else {
+            where.append("c.status = ANY(?::meta.campaign_status[])");
+            args.add(query.getStatuses().stream().map(Enum::name).toArray(String[]::new));
+        }
+        if (!query.getProducts().isEmpty()) {
+            where.append(" AND c.product = ANY(?)");
+            args.add(query.getProducts().toArray(new String[0]));
+        }
+        if (!query.getMarketplaces().isEmpty()) {
+            where.append(" AND c.marketplace = ANY(?)");
+            args.add(query.getMarketplaces().toArray(new Long[0]));
+        }
+        if (!query.getMetros().isEmpty()) {
+            where.append(" AND EXISTS (SELECT 1 FROM meta.campaign_metros cm WHERE cm.tracker = c.tracker AND cm.metro = ANY(?))");
+            args.add(query.getMetros().toArray(new Long[0]));
+        }
+        if (query.getTags() != null) {
+            where.append(" AND ");
+            query.getTags().appendSql(where, args);
+        }
+        return listCampaignsWhere(where.toString(), args.toArray());
+    }
+
     @Override
     public SortedSet<Campaign> listCampaignsInRetrospect(Date effectiveDate) {
+        if (asOfEngine != null)
+            return listCampaignsAsOf(effectiveDate, "");
+
         SortedSet<Campaign> out = new TreeSet<>(new CampaignComparator());
-        final String query =
-                "SELECT c.product,c.tracker,c.type,c.marketplace,c.description,ccl.status,ccl.status_updated,c.cost_cents\n" +
-                        "FROM meta.campaign c\n" +
-                        "JOIN meta.marketplace m on (m.id = c.marketplace)\n" +
-                        "JOIN meta.product p on (p.code = c.product)\n" +
-                        "JOIN (\n" +
-                        "      SELECT campaign, status, effective_date as status_updated,\n" +
-                        "             rank() over(partition by campaign\n" +
-                        "                         order by effective_date desc,\n" +
-                        "                                  change_number desc) as rank\n" +
-                        "      FROM logs.campaign_status_changelog\n" +
-                        "      WHERE effective_date <= ?\n" +
-                        "     ) ccl ON ( ccl.campaign = c.tracker )\n" +
-                        "JOIN (\n" +
-                        "      SELECT product, status, effective_date as status_updated,\n" +
-                        "             rank() over(partition by product\n" +
-                        "                         order by effective_date desc,\n" +
-                        "                                  change_number desc) as rank\n" +
-                        "      FROM logs.product_status_changelog\n" +
-                        "      WHERE effective_date <= ?\n" +
-                        "     ) pcl ON ( pcl.product=c.product)\n" +
-                        "JOIN (\n" +
-                        "      SELECT marketplace, status, effective_date as status_updated,\n" +
-                        "             rank() over(partition by marketplace\n" +
-                        "                         order by effective_date desc,\n" +
-                        "                                  change_number desc) as rank\n" +
-                        "      FROM logs.marketplace_status_changelog\n" +
-                        "      WHERE effective_date <= ?\n" +
-                        "     ) mcl ON (mcl.marketplace  = c.marketplace)\n" +
-                        "WHERE ccl.rank=1 AND ccl.status<>'DELETED'::meta.campaign_status\n" +
-                        "AND pcl.rank=1 AND pcl.status<>'DELETED'::meta.product_status\n" +
-                        "AND mcl.rank=1 AND mcl.status<>'DELETED'::meta.marketplace_status";
+        final String query = CAMPAIGNS_IN_RETROSPECT;
 
         jdbcTemplate.query(query, new RowCallbackHandler() {
             @Override
@@ -1350,6 +2101,137 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         }, effectiveDate, effectiveDate, effectiveDate);
         return out;
     }
+
+    /**
+     * As-of engine counterpart of the campaign retrospect queries: a campaign is listed if neither it,
+     * its product nor its marketplace was deleted (or not yet created) at the effective date.
+     *
+     * @param effectiveDate
+     * @param where         optional filter on meta.campaign (aliased c)
+     * @param args          bind values of the filter
+     * @return
+     */
+    private SortedSet<Campaign> listCampaignsAsOf(Date effectiveDate, String where, Object... args) {
+        SortedSet<Campaign> out = new TreeSet<>(new CampaignComparator());
+        final String query = CAMPAIGNS_AS_OF + where;
+        jdbcTemplate.query(query, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet resultSet) throws SQLException {
+                Campaign c = resultSetToCampaignAsOf(resultSet, effectiveDate);
+                if (c != null)
+                    out.add(c);
+            }
+        }, args);
+        return out;
+    }
+
+    @Override
+    public Stream<Campaign> streamCampaignsInRetrospect(Date effectiveDate) {
+        if (asOfEngine != null)
+            return streamCampaignsAsOf(effectiveDate, "");
+        return stream(CAMPAIGNS_IN_RETROSPECT + "\nORDER BY c.tracker COLLATE \"C\"",
+                ps -> {
+                    for (int i = 1; i <= 3; i++)
+                        ps.setTimestamp(i, Timestamp.from(effectiveDate.toInstant()));
+                },
+                (resultSet, rowNum) -> resultSetToCampaign(resultSet, new Campaign()));
+    }
+
+    @Override
+    public Stream<Campaign> streamMarketplaceCampaignsInRetrospect(Long marketplaceId, Date effectiveDate) {
+        if (asOfEngine != null)
+            return streamCampaignsAsOf(effectiveDate, "WHERE c.marketplace = ?", marketplaceId);
+        return stream(CAMPAIGNS_IN_RETROSPECT + "\nAND m.id = ?\nORDER BY c.tracker COLLATE \"C\"",
+                ps -> {
+                    for (int i = 1; i <= 3; i++)
+                        ps.setTimestamp(i, Timestamp.from(effectiveDate.toInstant()));
+                    ps.setLong(4, marketplaceId);
+                },
+                (resultSet, rowNum) -> resultSetToCampaign(resultSet, new Campaign()));
+    }
+
+    @Override
+    public Stream<Campaign> streamProductCampaignsInRetrospect(String productCode, Date effectiveDate) {
+        if (asOfEngine != null)
+            return streamCampaignsAsOf(effectiveDate, "WHERE c.product = ?", productCode);
+        return stream(CAMPAIGNS_IN_RETROSPECT + "\nAND p.code = ?\nORDER BY c.tracker COLLATE \"C\"",
+                ps -> {
+                    for (int i = 1; i <= 3; i++)
+                        ps.setTimestamp(i, Timestamp.from(effectiveDate.toInstant()));
+                    ps.setString(4, productCode);
+                },
+                (resultSet, rowNum) -> resultSetToCampaign(resultSet, new Campaign()));
+    }
+
+    private Stream<Campaign> streamCampaignsAsOf(Date effectiveDate, String where, Object... args) {
+        return stream(CAMPAIGNS_AS_OF + where + " ORDER BY c.tracker COLLATE \"C\"",
+                new ArgumentPreparedStatementSetter(args),
+                (resultSet, rowNum) -> resultSetToCampaignAsOf(resultSet, effectiveDate));
+    }
+
+    private static final String CAMPAIGNS_IN_RETROSPECT =
+            "SELECT c.product,c.tracker,c.type,c.marketplace,c.description,ccl.status,ccl.status_updated,c.cost_cents\n" +
+                    "FROM meta.campaign c\n" +
+                    "JOIN meta.marketplace m on (m.id = c.marketplace)\n" +
+                    "JOIN meta.product p on (p.code = c.product)\n" +
+                    "JOIN (\n" +
+                    "      SELECT campaign, status, effective_date as status_updated,\n" +
+                    "             rank() over(partition by campaign\n" +
+                    "                         order by effective_date desc,\n" +
+                    "                                  change_number desc) as rank\n" +
+                    "      FROM logs.campaign_status_changelog\n" +
+                    "      WHERE effective_date <= ?\n" +
+                    "     ) ccl ON ( ccl.campaign = c.tracker )\n" +
+                    "JOIN (\n" +
+                    "      SELECT product, status, effective_date as status_updated,\n" +
+                    "             rank() over(partition by product\n" +
+                    "                         order by effective_date desc,\n" +
+                    "                                  change_number desc) as rank\n" +
+                    "      FROM logs.product_status_changelog\n" +
+                    "      WHERE effective_date <= ?\n" +
+                    "     ) pcl ON ( pcl.product=c.product)\n" +
+                    "JOIN (\n" +
+                    "      SELECT marketplace, status, effective_date as status_updated,\n" +
+                    "             rank() over(partition by marketplace\n" +
+                    "                         order by effective_date desc,\n" +
+                    "                                  change_number desc) as rank\n" +
+                    "      FROM logs.marketplace_status_changelog\n" +
+                    "      WHERE effective_date <= ?\n" +
+                    "     ) mcl ON (mcl.marketplace  = c.marketplace)\n" +
+                    "WHERE ccl.rank=1 AND ccl.status<>'DELETED'::meta.campaign_status\n" +
+                    "AND pcl.rank=1 AND pcl.status<>'DELETED'::meta.product_status\n" +
+                    "AND mcl.rank=1 AND mcl.status<>'DELETED'::meta.marketplace_status";
+
+    private static final String CAMPAIGNS_AS_OF =
+            "SELECT c.product,c.tracker,c.type,c.marketplace,c.name,c.description,c.cost_cents FROM meta.campaign c ";
+
+    /**
+     * @return the campaign as of the effective date, null if it, its product or its marketplace was
+     * deleted (or not yet created) by then
+     */
+    private Campaign resultSetToCampaignAsOf(ResultSet resultSet, Date effectiveDate) throws SQLException {
+        StatusChange<CampaignStatus> change = asOfEngine.getCampaigns().statusAt(resultSet.getString("tracker"), effectiveDate);
+        if (change == null || change.getStatus() == CampaignStatus.DELETED)
+            return null;
+        StatusChange<ProductStatus> product = asOfEngine.getProducts().statusAt(resultSet.getString("product"), effectiveDate);
+        if (product == null || product.getStatus() == ProductStatus.DELETED)
+            return null;
+        StatusChange<MarketplaceStatus> marketplace = asOfEngine.getMarketplaces().statusAt(resultSet.getLong("marketplace"), effectiveDate);
+        if (marketplace == null || marketplace.getStatus() == MarketplaceStatus.DELETED)
+            return null;
+        Campaign c = new Campaign();
+        c.setProduct(resultSet.getString("product"));
+        c.setTracker(resultSet.getString("tracker"));
+        c.setType(CampaignType.valueOf(resultSet.getString("type")));
+        c.setMarketplace(resultSet.getLong("marketplace"));
+        c.setName(resultSet.getString("name"));
+        c.setDescription(resultSet.getString("description"));
+        c.setStatus(change.getStatus());
+        c.setStatusUpdated(change.getEffectiveDate());
+        c.setCost(resultSet.getLong("cost_cents"));
+        return c;
+    }
+
     private Campaign resultSetToCampaign(ResultSet resultSet, Campaign campaign) throws SQLException{
         campaign.setProduct(resultSet.getString("product"));
         campaign.setTracker(resultSet.getString("tracker"));
@@ -1444,6 +2326,7 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
             }
         };
         jdbcTemplate.update(psc, keyHolder);
+        invalidateTagGroupModel();
         try {
             TagGroup out = keyHolderToTagGroup(tagGroup, keyHolder);
         } catch (SQLException e){
@@ -1466,7 +2349,7 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         Arrays.stream(o).forEach(
                 tagType -> {
                     tagGroup.getApplicableTo()
-                            .add(TagType.valueOf(((PGobject)tagType).getValue()));
+                            .add(TagType.valueOf(enumValue(tagType)));
                 }
         );
         return  tagGroup;
@@ -1511,7 +2394,7 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         tg.setApplicableTo( new TreeSet<>() );
         for (Object t: tags
              ) {
-            tg.addApplicableTo(TagType.valueOf(((PGobject)t).getValue()));
+            tg.addApplicableTo(TagType.valueOf(enumValue(t)));
         }
         return tg;
     }
@@ -1532,6 +2415,7 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
             }
         };
         jdbcTemplate.update(psc, keyHolder);
+        invalidateTagGroupModel();
         try {
             Tag out = keyHolderToTag(tag, keyHolder);
         } catch (SQLException e){
@@ -1571,38 +2455,22 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
 
     @Override
     public SortedMap<Tag, SortedSet<Tag>> listCampaignTags(String tracker) {
-        SortedMap<Tag,SortedSet<Tag>> out = new TreeMap<>(new TagComparator());
-        final String query =
-                        "SELECT tag.id, tag.value,tag.\"group\", \n" +
-                        "  COALESCE( json_agg(exclusions) FILTER (WHERE exclusions.id IS NOT NULL) , '[]') as exclusions\n" +
-                        "FROM  meta.campaign \n" +
-                        "  JOIN meta.campaign_tags \n" +
-                        "    ON (campaign.tracker = campaign_tags.campaign) \n" +
-                        "  JOIN meta.tag \n" +
-                        "    ON (campaign_tags.tag = tag.id) \n" +
-                        "  JOIN meta.tag_group \n" +
-                        "    ON (tag.\"group\" = tag_group.id) \n" +
-                        "  LEFT OUTER JOIN meta.tag AS exclusions \n" +
-                        "    ON (tag_group.id = exclusions.\"group\" and tag_group.is_mutex and exclusions.id <> tag.id ) \n" +
-                        "WHERE campaign.tracker=? \n" +
-                        "GROUP BY 1,2,3; ";
-        jdbcTemplate.query(query, new RowCallbackHandler() {
-            @Override
-            public void processRow(ResultSet resultSet) throws SQLException {
-                Tag tag = new Tag();
-                tag.setGroup( resultSet.getLong("group"));
-                tag.setId(resultSet.getLong("id"));
-                tag.setValue(resultSet.getString("value"));
-                try {
-                    String jsonString = resultSet.getString("exclusions");
-                    TreeSet<Tag> exclusions = mapper.readValue(jsonString, new TypeReference<TagTreeSet>(){});
-                    out.put(tag,exclusions);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }, tracker);
-        return out;
+        return listTags("SELECT tag FROM meta.campaign_tags WHERE campaign = ?", tracker);
+    }
+
+    /**
+     * Reads only the tag ids of an entity, one narrow row each, and takes the tags and their mutual
+     * exclusions from the {@link #getTagGroupModel() tag group model}. Tags and tag groups changed by
+     * other nodes are seen once notified, see {@link #invalidateTagGroupModel()}, or once the entity
+     * carries a tag the model doesn't know.
+     *
+     * @param query selecting the tag ids of the entity
+     * @param key   the entity's key
+     * @return the tags of the entity, each with the other tags of its group when the group is mutually exclusive
+     */
+    private SortedMap<Tag, SortedSet<Tag>> listTags(String query, Object key) {
+        List<Long> ids = jdbcTemplate.queryForList(query, Long.class, key);
+        return tagGroupModel(ids).tagMap(ids);
     }
 
     @Override
@@ -1612,38 +2480,7 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
 
     @Override
     public SortedMap<Tag, SortedSet<Tag>> listProductTags(String code) {
-        SortedMap<Tag,SortedSet<Tag>> out = new TreeMap<>(new TagComparator());
-        final String query =
-                "SELECT tag.id, tag.value,tag.\"group\", \n" +
-                        "  COALESCE( json_agg(exclusions) FILTER (WHERE exclusions.id IS NOT NULL) , '[]') as exclusions\n" +
-                        "FROM  meta.product \n" +
-                        "  JOIN meta.product_tags \n" +
-                        "    ON (product.code = product_tags.product) \n" +
-                        "  JOIN meta.tag \n" +
-                        "    ON (product_tags.tag = tag.id) \n" +
-                        "  JOIN meta.tag_group \n" +
-                        "    ON (tag.\"group\" = tag_group.id) \n" +
-                        "  LEFT OUTER JOIN meta.tag AS exclusions \n" +
-                        "    ON (tag_group.id = exclusions.\"group\" and tag_group.is_mutex and exclusions.id <> tag.id ) \n" +
-                        "WHERE product.code=? \n" +
-                        "GROUP BY 1,2,3; ";
-        jdbcTemplate.query(query, new RowCallbackHandler() {
-            @Override
-            public void processRow(ResultSet resultSet) throws SQLException {
-                Tag tag = new Tag();
-                tag.setGroup( resultSet.getLong("group"));
-                tag.setId(resultSet.getLong("id"));
-                tag.setValue(resultSet.getString("value"));
-                try {
-                    String jsonString = resultSet.getString("exclusions");
-                    TreeSet<Tag> exclusions = mapper.readValue(jsonString, new TypeReference<TagTreeSet>(){});
-                    out.put(tag,exclusions);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }, code);
-        return out;
+        return listTags("SELECT tag FROM meta.product_tags WHERE product = ?", code);
     }
 
     @Override
@@ -1653,38 +2490,7 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
 
     @Override
     public SortedMap<Tag, SortedSet<Tag>> listAccountTags(Long id) {
-        SortedMap<Tag,SortedSet<Tag>> out = new TreeMap<>(new TagComparator());
-        final String query =
-                "SELECT tag.id, tag.value,tag.\"group\", \n" +
-                        "  COALESCE( json_agg(exclusions) FILTER (WHERE exclusions.id IS NOT NULL) , '[]') as exclusions\n" +
-                        "FROM  meta.business_unit \n" +
-                        "  JOIN meta.account_tags \n" +
-                        "    ON (business_unit.id = account_tags.account) \n" +
-                        "  JOIN meta.tag \n" +
-                        "    ON (account_tags.tag = tag.id) \n" +
-                        "  JOIN meta.tag_group \n" +
-                        "    ON (tag.\"group\" = tag_group.id) \n" +
-                        "  LEFT OUTER JOIN meta.tag AS exclusions \n" +
-                        "    ON (tag_group.id = exclusions.\"group\" and tag_group.is_mutex and exclusions.id <> tag.id ) \n" +
-                        "WHERE business_unit.id = ? \n" +
-                        "GROUP BY 1,2,3; ";
-        jdbcTemplate.query(query, new RowCallbackHandler() {
-            @Override
-            public void processRow(ResultSet resultSet) throws SQLException {
-                Tag tag = new Tag();
-                tag.setGroup( resultSet.getLong("group"));
-                tag.setId(resultSet.getLong("id"));
-                tag.setValue(resultSet.getString("value"));
-                try {
-                    String jsonString = resultSet.getString("exclusions");
-                    TreeSet<Tag> exclusions = mapper.readValue(jsonString, new TypeReference<TagTreeSet>(){});
-                    out.put(tag,exclusions);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }, id);
-        return out;
+        return listTags("SELECT tag FROM meta.account_tags WHERE account = ?", id);
     }
 
     @Override
@@ -1694,38 +2500,7 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
 
     @Override
     public SortedMap<Tag, SortedSet<Tag>> listMarketplaceTags(Long id) {
-        SortedMap<Tag,SortedSet<Tag>> out = new TreeMap<>(new TagComparator());
-        final String query =
-                "SELECT tag.id, tag.value,tag.\"group\", \n" +
-                        "  COALESCE( json_agg(exclusions) FILTER (WHERE exclusions.id IS NOT NULL) , '[]') as exclusions\n" +
-                        "FROM  meta.marketplace \n" +
-                        "  JOIN meta.marketplace_tags \n" +
-                        "    ON (marketplace.id = marketplace_tags.marketplace) \n" +
-                        "  JOIN meta.tag \n" +
-                        "    ON (marketplace_tags.tag = tag.id) \n" +
-                        "  JOIN meta.tag_group \n" +
-                        "    ON (tag.\"group\" = tag_group.id) \n" +
-                        "  LEFT OUTER JOIN meta.tag AS exclusions \n" +
-                        "    ON (tag_group.id = exclusions.\"group\" and tag_group.is_mutex and exclusions.id <> tag.id ) \n" +
-                        "WHERE marketplace.id = ? \n" +
-                        "GROUP BY 1,2,3; ";
-        jdbcTemplate.query(query, new RowCallbackHandler() {
-            @Override
-            public void processRow(ResultSet resultSet) throws SQLException {
-                Tag tag = new Tag();
-                tag.setGroup( resultSet.getLong("group"));
-                tag.setId(resultSet.getLong("id"));
-                tag.setValue(resultSet.getString("value"));
-                try {
-                    String jsonString = resultSet.getString("exclusions");
-                    TreeSet<Tag> exclusions = mapper.readValue(jsonString, new TypeReference<TagTreeSet>(){});
-                    out.put(tag,exclusions);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }, id);
-        return out;
+        return listTags("SELECT tag FROM meta.marketplace_tags WHERE marketplace = ?", id);
     }
 
     @Override
@@ -1742,9 +2517,142 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
                 return ps;
             }
         });
+        if (campaignTagIndex != null) {
+            final CampaignTagIndex index = campaignTagIndex;
+            afterCommit(() -> index.tag(campaign.getTracker(), tag.getId()));
+        }
         return listCampaignTags(campaign);
     }
 
+    /**
+     * Adds tags to many campaigns, checked against the {@link TagGroupModel tag group rules}: the
+     * campaigns are locked, their current tags read and every new tag's group checked for
+     * applicability and, with the tags the campaign keeps, mutual exclusion. Then all assignments are
+     * written with one INSERT in the same transaction (joining the caller's one, if any).
+     *
+     * @param tags tags to add, by campaign tracker
+     * @return numbers of campaigns tagged and of tags added
+     * @throws TagValidationException listing every violation, when there is any; nothing is written
+     */
+    @Override
+    public TaggingResult tagCampaigns(Map<String, ? extends Collection<Tag>> tags) {
+        return setCampaignTags(tags, false);
+    }
+
+    /**
+     * Like {@link #tagCampaigns(Map)}, but the given tags replace those of each campaign: tags left
+     * out are removed, with one DELETE. A campaign mapped to no tags loses them all.
+     *
+     * @param tags the tags each campaign is to carry, by campaign tracker
+     * @return numbers of campaigns tagged and of tags added and removed
+     * @throws TagValidationException listing every violation, when there is any; nothing is written
+     */
+    @Override
+    public TaggingResult retagCampaigns(Map<String, ? extends Collection<Tag>> tags) {
+        return setCampaignTags(tags, true);
+    }
+
+    private TaggingResult setCampaignTags(Map<String, ? extends Collection<Tag>> tags, boolean replace) {
+        if (tags.isEmpty())
+            return new TaggingResult(0, 0, 0);
+        final List<String> violations = new ArrayList<>();
+        final Map<String, Set<Long>> assigned = new LinkedHashMap<>(tags.size() * 2);
+        final Set<Long> allTags = new HashSet<>();
+        for (Map.Entry<String, ? extends Collection<Tag>> entry : tags.entrySet()) {
+            Set<Long> ids = new LinkedHashSet<>();
+            for (Tag tag : entry.getValue()) {
+                if (tag.getId() == null)
+                    violations.add(TagType.CAMPAIGN + " " + entry.getKey() + ": tag " + tag.getValue() + " has no id");
+                else
+                    ids.add(tag.getId());
+            }
+            assigned.put(entry.getKey(), ids);
+            allTags.addAll(ids);
+        }
+        final TagGroupModel model = tagGroupModel(allTags);
+        final String[] trackers = assigned.keySet().toArray(new String[0]);
+
+        return transactionTemplate.execute(status -> {
+            // locked, so that bulk taggings of the same campaigns are checked one after the other
+            final Set<String> campaigns = new HashSet<>();
+            final Map<String, Set<Long>> current = new HashMap<>(trackers.length * 2);
+            jdbcTemplate.query(connection -> {
+                PreparedStatement ps = connection.prepareStatement(
+                        "SELECT tracker FROM meta.campaign WHERE tracker = ANY(?) ORDER BY tracker FOR UPDATE");
+                ps.setArray(1, connection.createArrayOf("varchar", trackers));
+                return ps;
+            }, (RowCallbackHandler) resultSet -> campaigns.add(resultSet.getString(1)));
+            jdbcTemplate.query(connection -> {
+                PreparedStatement ps = connection.prepareStatement(
+                        "SELECT campaign, tag FROM meta.campaign_tags WHERE campaign = ANY(?)");
+                ps.setArray(1, connection.createArrayOf("varchar", trackers));
+                return ps;
+            }, (RowCallbackHandler) resultSet ->
+                    current.computeIfAbsent(resultSet.getString(1), t -> new HashSet<>()).add(resultSet.getLong(2)));
+
+            final List<String> addedTrackers = new ArrayList<>();
+            final List<Long> addedTags = new ArrayList<>();
+            final List<String> removedTrackers = new ArrayList<>();
+            final List<Long> removedTags = new ArrayList<>();
+            for (Map.Entry<String, Set<Long>> entry : assigned.entrySet()) {
+                String tracker = entry.getKey();
+                if (!campaigns.contains(tracker)) {
+                    violations.add(TagType.CAMPAIGN + " " + tracker + ": there is no such campaign");
+                    continue;
+                }
+                Set<Long> had = current.getOrDefault(tracker, Collections.emptySet());
+                Set<Long> carried = new LinkedHashSet<>(entry.getValue());
+                if (!replace)
+                    carried.addAll(had);
+                model.validate(TagType.CAMPAIGN, tracker, carried, entry.getValue(), violations);
+                for (Long tag : entry.getValue()) {
+                    if (!had.contains(tag)) {
+                        addedTrackers.add(tracker);
+                        addedTags.add(tag);
+                    }
+                }
+                if (replace) {
+                    for (Long tag : had) {
+                        if (!carried.contains(tag)) {
+                            removedTrackers.add(tracker);
+                            removedTags.add(tag);
+                        }
+                    }
+                }
+            }
+            if (!violations.isEmpty())
+                throw new TagValidationException(violations);
+
+            if (!removedTags.isEmpty())
+                jdbcTemplate.update(connection -> {
+                    PreparedStatement ps = connection.prepareStatement(
+                            "DELETE FROM meta.campaign_tags t USING unnest(?::varchar[], ?::bigint[]) AS d(campaign, tag) " +
+                            "WHERE t.campaign = d.campaign AND t.tag = d.tag");
+                    ps.setArray(1, connection.createArrayOf("varchar", removedTrackers.toArray()));
+                    ps.setArray(2, connection.createArrayOf("int8", removedTags.toArray()));
+                    return ps;
+                });
+            if (!addedTags.isEmpty())
+                jdbcTemplate.update(connection -> {
+                    PreparedStatement ps = connection.prepareStatement(
+                            "INSERT INTO meta.campaign_tags (campaign, tag) SELECT * FROM unnest(?::varchar[], ?::bigint[])");
+                    ps.setArray(1, connection.createArrayOf("varchar", addedTrackers.toArray()));
+                    ps.setArray(2, connection.createArrayOf("int8", addedTags.toArray()));
+                    return ps;
+                });
+            if (campaignTagIndex != null) {
+                final CampaignTagIndex index = campaignTagIndex;
+                afterCommit(() -> {
+                    for (int i = 0; i < removedTags.size(); i++)
+                        index.untag(removedTrackers.get(i), removedTags.get(i));
+                    for (int i = 0; i < addedTags.size(); i++)
+                        index.tag(addedTrackers.get(i), addedTags.get(i));
+                });
+            }
+            return new TaggingResult(assigned.size(), addedTags.size(), removedTags.size());
+        });
+    }
+
     @Override
     public SortedMap<Tag, SortedSet<Tag>> untagCampaign(Campaign campaign, Tag tag) {
         jdbcTemplate.update(new PreparedStatementCreator() {
@@ -1759,6 +2667,10 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
                 return ps;
             }
         });
+        if (campaignTagIndex != null) {
+            final CampaignTagIndex index = campaignTagIndex;
+            afterCommit(() -> index.untag(campaign.getTracker(), tag.getId()));
+        }
         return listCampaignTags(campaign);
     }
 
@@ -1909,16 +2821,6 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         return out;
     }
 
-    /**
-     * Inner class to fix jackson databind behaviour
-     */
-    static class TagTreeSet extends TreeSet<Tag> {
-        public TagTreeSet() {
-            super(new TagComparator());
-        }
-    }
-
-
     private Metro resultSetToMetro(ResultSet resultSet) throws SQLException{
         Metro metro= new Metro();
         metro.setId(resultSet.getLong("id"));
@@ -1959,6 +2861,17 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
 
     }
 
+    @Override
+    public Map<Long, Metro> retrieveMetros(Collection<Long> ids) {
+        return retrieveAll(ids, "int8", "SELECT metro.* FROM meta.metro WHERE id = ANY(?)", (resultSet, i) -> {
+            Metro metro = new Metro();
+            metro.setId(resultSet.getLong("id"));
+            metro.setName(resultSet.getString("name"));
+            metro.setDescription(resultSet.getString("description"));
+            return metro;
+        }, Metro::getId);
+    }
+
     @Override
     public Metro setCampaignMetro(Campaign campaign, Metro metro) {
         jdbcTemplate.update(new PreparedStatementCreator() {
@@ -1974,6 +2887,10 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
                 return ps;
             }
         });
+        if (campaignTagIndex != null) {
+            final CampaignTagIndex index = campaignTagIndex;
+            afterCommit(() -> index.setMetro(campaign.getTracker(), metro.getId()));
+        }
         return metro;
     }
 
@@ -1992,6 +2909,10 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
                 return ps;
             }
         });
+        if (campaignTagIndex != null) {
+            final CampaignTagIndex index = campaignTagIndex;
+            afterCommit(() -> index.unsetMetro(campaign.getTracker(), metro.getId()));
+        }
         return metro;
     }
 
@@ -2123,8 +3044,18 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
 
 
 
+    /**
+     * @return the upload log as updated; with a {@link #setUploadLogWriteBehind(UploadLogWriteBehind)
+     *         write-behind buffer}, only the file name and parser status, the update being queued
+     */
     @Override
     public UploadLog updateParserStatus(String filename, String parserStatus){
+        if (uploadLogWriteBehind != null && uploadLogWriteBehind.updateParserStatus(filename, parserStatus)) {
+            UploadLog out = new UploadLog();
+            out.setFilename(filename);
+            out.setParserStatus(parserStatus);
+            return out;
+        }
 
         jdbcTemplate.update(new PreparedStatementCreator() {
             @Override
@@ -2144,12 +3075,13 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
 
     @Override
     public UploadLog getUploadLog(String filename){
+        flushUploadLogs();
 
         return jdbcTemplate.queryForObject("select l.uploadtype_id,l.email, l.upload_date, l.original_filename,l.filename, l.status as upload_status,\n" +
                         "fh.status as feedhandler_status, fh.message\n" +
                         "from logs.feed_upload_log l\n" +
                         "left join logs.feedhandler_log fh on fh.uploadtype_id = l.uploadtype_id and l.filename = fh.filename\n" +
-                        "where filename = ?",
+                        "where l.filename = ?",
              new RowMapper<UploadLog>() {
             @Override
             public UploadLog mapRow(ResultSet resultSet, int i) throws SQLException {
@@ -2168,52 +3100,142 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
 
     }
 
-    @Override
-    public SortedSet<UploadLog> getRecentUploadLogs(int count, int minutes, String user){
-
-        String date_query = (minutes > 0)? " and l.upload_date > current_date - interval'" + minutes + " minutes' " : "";
-        String limit_query = (count > 0)? " limit " + count : "";
-
-        final String query =
-        "select l.uploadtype_id,l.email, l.upload_date, l.original_filename, l.status as upload_status, fh.status as feedhandler_status, fh.message from logs.feed_upload_log l\n" +
+    /**
+     * @param count   at most this many logs, all if not positive
+     * @param minutes logs uploaded since midnight less this many minutes, all if not positive
+     * @return query of the logs of the feeds the user may upload to, most recent first; the user's email,
+     *         earliest upload date and count are bound in that order, only those given, so that there are
+     *         few statements for the driver to keep prepared. The date is bound rather than computed by the
+     *         query, so that the planner can leave out the partitions of older months.
+     */
+    private static String recentUploadLogsQuery(int count, int minutes) {
+        return "select l.uploadtype_id,l.email, l.upload_date, l.original_filename, l.status as upload_status, fh.status as feedhandler_status, fh.message from logs.feed_upload_log l\n" +
         "join public.feed_def fd on fd.id = l.uploadtype_id\n" +
         "join feed_authority fa on fa.id_feed = fd.id\n" +
         "join users u on u.id = fa.id_user\n" +
         "left join logs.feedhandler_log fh on fh.uploadtype_id = l.uploadtype_id and l.filename = fh.filename\n" +
-        "where u.email = '" + user + "'\n" +
-        date_query + " order by l.upload_date desc " + limit_query;
+        "where u.email = ?\n" +
+        (minutes > 0 ? " and l.upload_date > ? " : "") +
+        " order by l.upload_date desc " +
+        (count > 0 ? " limit ?" : "");
+    }
 
-        LOGGER.info(query);
+    private static void setRecentUploadLogsParameters(PreparedStatement ps, int count, int minutes, String user) throws SQLException {
+        int bindIndex = 1;
+        ps.setString(bindIndex++, user);
+        if (minutes > 0)
+            // upload dates are written in the JVM's time zone, see logFileUpload
+            ps.setTimestamp(bindIndex++, Timestamp.valueOf(LocalDate.now().atStartOfDay().minusMinutes(minutes)));
+        if (count > 0)
+            ps.setInt(bindIndex++, count);
+    }
 
+    @Override
+    public SortedSet<UploadLog> getRecentUploadLogs(int count, int minutes, String user){
+        flushUploadLogs();
+        final String query = recentUploadLogsQuery(count, minutes);
         final SortedSet<UploadLog> out = new TreeSet<>(new UploadLogComparator());
 
         jdbcTemplate.query(new PreparedStatementCreator() {
             @Override
             public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
-                return connection.prepareStatement(query);
+                PreparedStatement ps = connection.prepareStatement(query);
+                setRecentUploadLogsParameters(ps, count, minutes, user);
+                return ps;
             }
         }, new RowCallbackHandler() {
             @Override
             public void processRow(ResultSet resultSet) throws SQLException {
-                UploadLog log = new UploadLog();
-                log.setUploadtypeID(resultSet.getLong("uploadtype_id"));
-                log.setEmail(resultSet.getString("email"));
-                Timestamp timestamp = resultSet.getTimestamp("upload_date");
-
-                Date date = new Date(timestamp.getTime());
-                log.setUploadDate(date);
-                log.setOriginalFilename(resultSet.getString("original_filename"));
-                log.setUploadStatus(resultSet.getString("upload_status"));
-                log.setParserStatus(resultSet.getString("feedhandler_status"));
-                log.setParserMessage(resultSet.getString("message"));
-                out.add(log);
+                out.add(resultSetToRecentUploadLog(resultSet));
             }
         });
         return out;
     }
 
+    /**
+     * Same logs as {@link #getRecentUploadLogs(int, int, String)}, most recent first.
+     */
+    @Override
+    public Stream<UploadLog> streamRecentUploadLogs(int count, int minutes, String user) {
+        flushUploadLogs();
+        return stream(recentUploadLogsQuery(count, minutes), ps -> setRecentUploadLogsParameters(ps, count, minutes, user),
+                (resultSet, rowNum) -> resultSetToRecentUploadLog(resultSet));
+    }
+
+    /**
+     * Upload logs of one feed after the cursor, in the order of the (uploadtype_id, upload_date,
+     * filename) index of every monthly partition, read from the index for each feed the user may
+     * upload to and merged; the feed handler status is joined to the page only.
+     */
+    private static final String UPLOAD_LOG_PAGE =
+            "select l.uploadtype_id, l.email, l.upload_date, l.original_filename, l.filename, l.status as upload_status,\n" +
+            "  fh.status as feedhandler_status, fh.message\n" +
+            "from (select distinct fd.id from public.feed_def fd\n" +
+            "        join feed_authority fa on fa.id_feed = fd.id\n" +
+            "        join users u on u.id = fa.id_user\n" +
+            "      where u.email = ?) feed\n" +
+            "cross join lateral (\n" +
+            "  select * from logs.feed_upload_log l\n" +
+            "  where l.uploadtype_id = feed.id\n" +
+            "    and (l.upload_date, coalesce(l.filename, '')) < (coalesce(?::timestamp, 'infinity'), ?)\n" +
+            "  order by l.upload_date desc, coalesce(l.filename, '') desc\n" +
+            "  limit ?) l\n" +
+            "left join logs.feedhandler_log fh on fh.uploadtype_id = l.uploadtype_id and l.filename = fh.filename\n" +
+            "order by l.upload_date desc, coalesce(l.filename, '') desc\n" +
+            "limit ?";
+
+    /**
+     * Reads a page of history with a keyset condition rather than an offset, so that a page months
+     * back is read from the index where it starts, at the cost of the first one. The statement is the
+     * same for every page and user, the driver prepares it once per connection.
+     */
+    @Override
+    public UploadLogPage getUploadLogPage(String user, UploadLogCursor after, int pageSize) {
+        if (pageSize <= 0)
+            throw new IllegalArgumentException("Page size must be positive, not " + pageSize);
+        flushUploadLogs();
+        final List<UploadLog> logs = new ArrayList<>(pageSize + 1);
+        final List<UploadLogCursor> cursors = new ArrayList<>(pageSize + 1);
+        jdbcTemplate.query(connection -> {
+            PreparedStatement ps = connection.prepareStatement(UPLOAD_LOG_PAGE);
+            ps.setString(1, user);
+            // the first page starts after any date there can be, see the coalesce to infinity
+            ps.setTimestamp(2, after == null ? null : after.getUploadDate());
+            ps.setString(3, after == null ? "" : after.getFilename());
+            // one more than the page, to know whether there is a next one
+            ps.setInt(4, pageSize + 1);
+            ps.setInt(5, pageSize + 1);
+            return ps;
+        }, (RowCallbackHandler) resultSet -> {
+            UploadLog log = resultSetToRecentUploadLog(resultSet);
+            log.setFilename(resultSet.getString("filename"));
+            logs.add(log);
+            cursors.add(new UploadLogCursor(resultSet.getTimestamp("upload_date"), log.getFilename()));
+        });
+        if (logs.size() <= pageSize)
+            return new UploadLogPage(logs, null);
+        return new UploadLogPage(new ArrayList<>(logs.subList(0, pageSize)), cursors.get(pageSize - 1));
+    }
+
+    private UploadLog resultSetToRecentUploadLog(ResultSet resultSet) throws SQLException {
+        UploadLog log = new UploadLog();
+        log.setUploadtypeID(resultSet.getLong("uploadtype_id"));
+        log.setEmail(resultSet.getString("email"));
+        Timestamp timestamp = resultSet.getTimestamp("upload_date");
+
+        Date date = new Date(timestamp.getTime());
+        log.setUploadDate(date);
+        log.setOriginalFilename(resultSet.getString("original_filename"));
+        log.setUploadStatus(resultSet.getString("upload_status"));
+        log.setParserStatus(resultSet.getString("feedhandler_status"));
+        log.setParserMessage(resultSet.getString("message"));
+        return log;
+    }
+
     @Override
     public void logFileUpload(UploadLog log){
+        if (uploadLogWriteBehind != null && uploadLogWriteBehind.logFileUpload(log))
+            return;
 
         final String queryInsert = "INSERT INTO logs.feed_upload_log (uploadtype_id, email, upload_date, original_filename, status, parser_status, filename) VALUES (?,?,?,?,?,?,?)";
 
@@ -2261,5 +3283,196 @@ public class MCMServiceDaoPostgreSQL implements MCMServiceDao {
         return out;
     }
 
+    /**
+     * COPYs the facts into a temporary staging table, then merges the staging table with a single
+     * {@code INSERT ... ON CONFLICT DO UPDATE}, all in one transaction (PostgreSQL 9.5+). The staging
+     * table numbers the rows so that the last of several facts of a (campaign, statement date) wins;
+     * facts equal to the stored row are not rewritten.
+     *
+     * @param facts facts to merge, read once
+     * @return number of rows inserted or changed
+     */
+    @Override
+    public long mergeAcquisitionFacts(final Iterator<AcquisitionFact> facts) {
+        return transactionTemplate.execute(status -> jdbcTemplate.execute(new ConnectionCallback<Long>() {
+            @Override
+            public Long doInConnection(Connection connection) throws SQLException {
+                long started = System.currentTimeMillis();
+                try (Statement statement = connection.createStatement()) {
+                    // a caller's transaction may already hold one from an earlier merge
+                    statement.execute("DROP TABLE IF EXISTS pg_temp.acquisition_facts_staging");
+                    statement.execute("CREATE TEMPORARY TABLE acquisition_facts_staging (" +
+                            "line bigint NOT NULL, campaign character varying(13) NOT NULL, statement_date date NOT NULL, " +
+                            "acquisitions integer NOT NULL, acquisitions_payable integer NOT NULL, acquisitions_paid integer NOT NULL, " +
+                            "acquisitions_not_paid integer NOT NULL, spend double precision NOT NULL) ON COMMIT DROP");
+                }
+
+                long staged;
+                try (CopyWriter staging = new CopyWriter(connection.unwrap(PGConnection.class).getCopyAPI(),
+                        "COPY acquisition_facts_staging (line, campaign, statement_date, acquisitions, acquisitions_payable, " +
+                        "acquisitions_paid, acquisitions_not_paid, spend) FROM STDIN")) {
+                    long line = 0;
+                    while (facts.hasNext()) {
+                        AcquisitionFact fact = facts.next();
+                        staging.add(line++)
+                                .add(fact.getCampaign())
+                                .add(new java.sql.Date(fact.getStatementDate().getTime()))
+                                .add(fact.getAcquisitions())
+                                .add(fact.getAcquisitionsPayable())
+                                .add(fact.getAcquisitionsPaid())
+                                .add(fact.getAcquisitionsNotPaid())
+                                .add(fact.getSpend())
+                                .endRow();
+                    }
+                    staged = staging.finish();
+                }
+
+                long merged;
+                try (Statement statement = connection.createStatement()) {
+                    // the planner knows nothing about a freshly filled temporary table
+                    statement.execute("ANALYZE acquisition_facts_staging");
+                    // the dates once, in order so that concurrent merges lock them alike, instead of by the
+                    // trigger once per fact, which skips facts written while the staging table exists
+                    statement.executeUpdate(
+                            "INSERT INTO stats.acquisition_dirty_dates (statement_date) " +
+                            "SELECT DISTINCT statement_date FROM acquisition_facts_staging ORDER BY statement_date " +
+                            "ON CONFLICT (statement_date) DO UPDATE SET statement_date = EXCLUDED.statement_date");
+                    statement.executeUpdate(
+                            "INSERT INTO stats.acquisition_date_change (statement_date) " +
+                            "SELECT DISTINCT statement_date FROM acquisition_facts_staging ORDER BY statement_date " +
+                            "ON CONFLICT (statement_date) DO UPDATE SET txid = EXCLUDED.txid");
+                    merged = statement.executeUpdate(
+                            "INSERT INTO stats.acquisition_facts AS f (campaign, statement_date, acquisitions, acquisitions_payable, " +
+                            "acquisitions_paid, acquisitions_not_paid, spend) " +
+                            "SELECT DISTINCT ON (campaign, statement_date) campaign, statement_date, acquisitions, acquisitions_payable, " +
+                            "acquisitions_paid, acquisitions_not_paid, spend " +
+                            "FROM acquisition_facts_staging ORDER BY campaign, statement_date, line DESC " +
+                            "ON CONFLICT (campaign, statement_date) DO UPDATE SET " +
+                            "acquisitions = EXCLUDED.acquisitions, acquisitions_payable = EXCLUDED.acquisitions_payable, " +
+                            "acquisitions_paid = EXCLUDED.acquisitions_paid, acquisitions_not_paid = EXCLUDED.acquisitions_not_paid, " +
+                            "spend = EXCLUDED.spend " +
+                            "WHERE (f.acquisitions, f.acquisitions_payable, f.acquisitions_paid, f.acquisitions_not_paid, f.spend) " +
+                            "IS DISTINCT FROM (EXCLUDED.acquisitions, EXCLUDED.acquisitions_payable, EXCLUDED.acquisitions_paid, " +
+                            "EXCLUDED.acquisitions_not_paid, EXCLUDED.spend)");
+                    // later writes of the caller's transaction mark their dates again
+                    statement.execute("DROP TABLE acquisition_facts_staging");
+                }
+                LOGGER.info("Merged {} of {} acquisition facts in {} ms", merged, staged, System.currentTimeMillis() - started);
+                return merged;
+            }
+        }));
+    }
+
+    /**
+     * Splits the range in three: the whole periods within it are read from the rollup of the grain,
+     * but for those with dirty dates, read from the facts like the partial periods at either end. A
+     * range shorter than two periods, or a daily one, is read from the facts only. The sums are
+     * joined to the catalog last, over rows of a campaign and period rather than of a campaign and day.
+     */
+    @Override
+    public List<AcquisitionRollup> getAcquisitionRollups(AcquisitionGrain grain, AcquisitionDimension dimension, Date from, Date to) {
+        if (grain == null || from == null || to == null)
+            throw new IllegalArgumentException("A grain and a date range are required");
+        LocalDate first = new java.sql.Date(from.getTime()).toLocalDate();
+        LocalDate last = new java.sql.Date(to.getTime()).toLocalDate();
+        String field = grain.name().toLowerCase();
+        String period = "date_trunc('" + field + "', f.statement_date::timestamp)::date";
+        String sums = "f.acquisitions, f.acquisitions_payable, f.acquisitions_paid, f.acquisitions_not_paid, f.spend";
+
+        LocalDate firstWhole = grain.start(first).equals(first) ? first : grain.next(grain.start(first));
+        LocalDate endWhole = grain.start(last.plusDays(1));
+        List<Object> parameters = new ArrayList<>();
+        StringBuilder rows = new StringBuilder();
+        if (grain == AcquisitionGrain.DAY || !firstWhole.isBefore(endWhole)) {
+            rows.append("SELECT ").append(period).append(" AS period_start, f.campaign, ").append(sums)
+                    .append(" FROM stats.acquisition_facts f WHERE f.statement_date BETWEEN ? AND ?");
+            parameters.add(java.sql.Date.valueOf(first));
+            parameters.add(java.sql.Date.valueOf(last));
+        } else {
+            String dirty = "SELECT DISTINCT date_trunc('" + field + "', d.statement_date::timestamp)::date AS period_start " +
+                    "FROM stats.acquisition_dirty_dates d WHERE d.statement_date >= ? AND d.statement_date < ?";
+            rows.append("SELECT f.period_start, f.campaign, ").append(sums)
+                    .append(" FROM stats.acquisition_").append(grain == AcquisitionGrain.WEEK ? "weekly" : "monthly").append(" f")
+                    .append(" WHERE f.period_start >= ? AND f.period_start < ? AND f.period_start NOT IN (").append(dirty).append(")\n")
+                    .append("UNION ALL SELECT p.period_start, f.campaign, ").append(sums)
+                    .append(" FROM (").append(dirty).append(") p JOIN stats.acquisition_facts f ON f.statement_date >= p.period_start")
+                    .append(" AND f.statement_date < (p.period_start + interval '1 ").append(field).append("')::date\n")
+                    .append("UNION ALL SELECT ").append(period).append(", f.campaign, ").append(sums)
+                    .append(" FROM stats.acquisition_facts f WHERE f.statement_date >= ? AND f.statement_date < ?")
+                    .append(" OR f.statement_date >= ? AND f.statement_date <= ?");
+            for (int i = 0; i < 3; i++) {
+                parameters.add(java.sql.Date.valueOf(firstWhole));
+                parameters.add(java.sql.Date.valueOf(endWhole));
+            }
+            parameters.add(java.sql.Date.valueOf(first));
+            parameters.add(java.sql.Date.valueOf(firstWhole));
+            parameters.add(java.sql.Date.valueOf(endWhole));
+            parameters.add(java.sql.Date.valueOf(last));
+        }
+
+        String key;
+        String join;
+        if (dimension == null) {
+            key = null;
+            join = "";
+        } else {
+            switch (dimension) {
+                case CAMPAIGN:
+                    key = "r.campaign";
+                    join = "";
+                    break;
+                case PRODUCT:
+                    key = "c.product";
+                    join = " JOIN meta.campaign c ON c.tracker = r.campaign";
+                    break;
+                case MARKETPLACE:
+                    key = "c.marketplace";
+                    join = " JOIN meta.campaign c ON c.tracker = r.campaign";
+                    break;
+                case BUSINESS_UNIT:
+                    key = "a.business_unit";
+                    join = " LEFT JOIN meta.account_campaigns a ON a.tracker = r.campaign";
+                    break;
+                case TAG:
+                    key = "t.tag";
+                    join = " JOIN meta.campaign_tags t ON t.campaign = r.campaign";
+                    break;
+                case METRO:
+                    key = "m.metro";
+                    join = " JOIN meta.campaign_metros m ON m.tracker = r.campaign";
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown dimension " + dimension);
+            }
+        }
+        String query = "SELECT r.period_start, " + (key == null ? "NULL" : key) + "::text AS key, " +
+                "sum(r.acquisitions) AS acquisitions, sum(r.acquisitions_payable) AS acquisitions_payable, " +
+                "sum(r.acquisitions_paid) AS acquisitions_paid, sum(r.acquisitions_not_paid) AS acquisitions_not_paid, " +
+                "sum(r.spend) AS spend\n" +
+                "FROM (" + rows + ") r" + join + "\n" +
+                "GROUP BY r.period_start" + (key == null ? "" : ", " + key) + "\n" +
+                "ORDER BY r.period_start" + (key == null ? "" : ", " + key);
+
+        return jdbcTemplate.query(query, parameters.toArray(), (resultSet, i) -> new AcquisitionRollup(
+                resultSet.getDate("period_start"),
+                resultSet.getString("key"),
+                resultSet.getLong("acquisitions"),
+                resultSet.getLong("acquisitions_payable"),
+                resultSet.getLong("acquisitions_paid"),
+                resultSet.getLong("acquisitions_not_paid"),
+                resultSet.getDouble("spend")));
+    }
 
+    /**
+     * See {@code stats.refresh_acquisition_rollups()} in the DDL: one refresh at a time, in the
+     * caller's transaction if any.
+     */
+    @Override
+    public int refreshAcquisitionRollups() {
+        long started = System.currentTimeMillis();
+        int dates = jdbcTemplate.queryForObject("SELECT stats.refresh_acquisition_rollups()", Integer.class);
+        if (dates > 0)
+            LOGGER.info("Refreshed the acquisition rollups of {} statement dates in {} ms", dates, System.currentTimeMillis() - started);
+        return dates;
+    }
 }
@@ -0,0 +1,167 @@
+package com.stridetech.mcm.dao.async;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded executor of DAO calls, sized to the connection pool: more threads would only wait for
+ * a connection, fewer would leave connections idle while calls queue up.
+ * <p>
+ * Calls wait in a bounded queue. Once it is full the submitting thread waits, at most
+ * {@code maximumWaitMillis}, for room, so that callers are slowed down to the pace of the
+ * database instead of piling up work; past that the call is rejected with a
+ * {@link RejectedExecutionException}.
+ * <p>
+ * With {@link #registerMetrics(MetricRegistry)} the executor publishes, under
+ * {@code com.stridetech.mcm.dao.async.DaoExecutor.<name>}:
+ * <ul>
+ * <li>{@code queue.depth}, {@code active}: gauges of the calls queued and running</li>
+ * <li>{@code queue.wait}: timer of the time calls spent queued</li>
+ * <li>{@code blocked}: number of submissions that had to wait for room in the queue</li>
+ * <li>{@code rejected}: number of calls rejected</li>
+ * </ul>
+ */
+public class DaoExecutor extends ThreadPoolExecutor {
+
+    private final String name;
+    private final long maximumWaitMillis;
+    private final Counter blocked = new Counter();
+    private final Counter rejected = new Counter();
+    private final Timer queueWait = new Timer();
+
+    /**
+     * @param name              name of the threads and metrics
+     * @param threads           number of threads, i.e. of calls running at once
+     * @param queueCapacity     number of calls waiting for a thread
+     * @param maximumWaitMillis time a submitter waits for room in a full queue before the call is rejected
+     */
+    public DaoExecutor(String name, int threads, int queueCapacity, long maximumWaitMillis) {
+        super(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), new DaoThreadFactory(name));
+        this.name = name;
+        this.maximumWaitMillis = maximumWaitMillis;
+        allowCoreThreadTimeOut(true);
+        setRejectedExecutionHandler((task, executor) -> waitForRoom(task));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param registry registry to publish the queue and rejection metrics in
+     */
+    public void registerMetrics(MetricRegistry registry) {
+        registry.register(metric("queue", "depth"), (Gauge<Integer>) () -> getQueue().size());
+        registry.register(metric("active"), (Gauge<Integer>) this::getActiveCount);
+        registry.register(metric("queue", "wait"), queueWait);
+        registry.register(metric("blocked"), blocked);
+        registry.register(metric("rejected"), rejected);
+    }
+
+    private String metric(String... names) {
+        String[] all = new String[names.length + 1];
+        all[0] = name;
+        System.arraycopy(names, 0, all, 1, names.length);
+        return MetricRegistry.name(DaoExecutor.class, all);
+    }
+
+    /**
+     * @return number of submissions that had to wait for room in the queue
+     */
+    public long getBlockedCount() {
+        return blocked.getCount();
+    }
+
+    /**
+     * @return number of calls rejected because the queue stayed full or the executor was shut down
+     */
+    public long getRejectedCount() {
+        return rejected.getCount();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new Queued(command));
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable task) {
+        if (task instanceof Queued)
+            queueWait.update(System.nanoTime() - ((Queued) task).queued, TimeUnit.NANOSECONDS);
+        super.beforeExecute(thread, task);
+    }
+
+    private void waitForRoom(Runnable task) {
+        if (isShutdown()) {
+            rejected.inc();
+            throw new RejectedExecutionException("DAO executor " + name + " is shut down");
+        }
+        blocked.inc();
+        try {
+            if (getQueue().offer(task, maximumWaitMillis, TimeUnit.MILLISECONDS))
+                return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejected.inc();
+        throw new RejectedExecutionException("DAO executor " + name + " still has " + getQueue().size() +
+                " calls queued after " + maximumWaitMillis + " ms");
+    }
+
+    /**
+     * Stops taking calls and waits for the queued ones to finish.
+     *
+     * @param timeoutMillis time to wait for the queued calls
+     * @return whether they all finished in time
+     */
+    public boolean close(long timeoutMillis) throws InterruptedException {
+        shutdown();
+        return awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@link #close(long)}, waiting as long as a queued call may wait for room.
+     */
+    public void close() throws InterruptedException {
+        close(Math.max(maximumWaitMillis, 1000));
+    }
+
+    private static final class Queued implements Runnable {
+        final Runnable task;
+        final long queued = System.nanoTime();
+
+        Queued(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    private static final class DaoThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaoThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.stridetech.mcm.dao.cache;
+
+/**
+ * Point in time copy of the counters of a {@link MetadataCache}.
+ */
+public class CacheStatistics {
+
+    private final String name;
+    private final int size;
+    private final int maximumSize;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long expirations;
+    private final long invalidations;
+
+    public CacheStatistics(String name, int size, int maximumSize, long hits, long misses,
+                           long evictions, long expirations, long invalidations) {
+        this.name = name;
+        this.size = size;
+        this.maximumSize = maximumSize;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.expirations = expirations;
+        this.invalidations = invalidations;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return entries dropped because the cache was full
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return entries dropped because their time to live had passed
+     */
+    public long getExpirations() {
+        return expirations;
+    }
+
+    /**
+     * @return entries dropped because of a write to the underlying data
+     */
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return hits over requests, 0 if the cache was never read
+     */
+    public double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0.0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        return name + "{size=" + size + "/" + maximumSize + ", hits=" + hits + ", misses=" + misses +
+                ", evictions=" + evictions + ", expirations=" + expirations + ", invalidations=" + invalidations + "}";
+    }
+}
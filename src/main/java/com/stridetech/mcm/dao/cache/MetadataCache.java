@@ -0,0 +1,237 @@
+package com.stridetech.mcm.dao.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Bounded, read-through LRU cache with a time to live, used to keep slowly changing catalog
+ * metadata in memory.
+ * <p>
+ * Values are loaded outside of the cache lock. Every invalidation bumps a generation counter and a
+ * freshly loaded value is only stored if no invalidation happened while it was being loaded, so a
+ * concurrent write can never be shadowed by the stale value of a slow reader.
+ * <p>
+ * Null values are never cached.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class MetadataCache<K, V> {
+
+    /**
+     * Generation of a cache that was never invalidated
+     */
+    public static final long INITIAL_GENERATION = 0;
+
+    private final String name;
+    private final int maximumSize;
+    private final long timeToLiveNanos;
+
+    private final LinkedHashMap<K, Entry<V>> entries;
+    private long generation = INITIAL_GENERATION;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param name         cache name, used when reporting statistics
+     * @param maximumSize  maximum number of entries, least recently used entries are evicted first
+     * @param timeToLive   time an entry stays valid after it was loaded, 0 or less to disable expiry
+     * @param timeUnit     unit of {@code timeToLive}
+     */
+    public MetadataCache(String name, int maximumSize, long timeToLive, TimeUnit timeUnit) {
+        if (maximumSize <= 0)
+            throw new IllegalArgumentException("Cache " + name + " must be allowed at least one entry");
+        this.name = name;
+        this.maximumSize = maximumSize;
+        this.timeToLiveNanos = timeToLive > 0 ? timeUnit.toNanos(timeToLive) : Long.MAX_VALUE;
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > MetadataCache.this.maximumSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return cache name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the cached value for the key, loading (and caching) it on a miss.
+     *
+     * @param key
+     * @param loader called on a cache miss, exceptions are propagated and nothing is cached
+     * @return cached or freshly loaded value
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        final long loadGeneration;
+        synchronized (this) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null) {
+                if (System.nanoTime() - entry.loaded < timeToLiveNanos) {
+                    hits.incrementAndGet();
+                    return entry.value;
+                }
+                entries.remove(key);
+                expirations.incrementAndGet();
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+        V value = loader.apply(key);
+        put(key, value, loadGeneration);
+        return value;
+    }
+
+    /**
+     * Returns the cached values of the keys, loading (and caching) all the missing ones at once.
+     *
+     * @param keys
+     * @param loader called with the missing keys, if any; keys it leaves out are left out of the result
+     * @return cached or freshly loaded values, in the order of the keys
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys, Function<? super List<K>, ? extends Map<K, V>> loader) {
+        Map<K, V> cached = new LinkedHashMap<>();
+        List<K> missing = new ArrayList<>();
+        final long loadGeneration;
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (K key : new LinkedHashSet<K>(keys)) {
+                Entry<V> entry = entries.get(key);
+                if (entry != null && now - entry.loaded < timeToLiveNanos) {
+                    cached.put(key, entry.value);
+                    continue;
+                }
+                if (entry != null) {
+                    entries.remove(key);
+                    expirations.incrementAndGet();
+                }
+                missing.add(key);
+            }
+            loadGeneration = generation;
+        }
+        hits.addAndGet(cached.size());
+        if (missing.isEmpty())
+            return cached;
+        misses.addAndGet(missing.size());
+        Map<K, V> loaded = loader.apply(missing);
+        Map<K, V> out = new LinkedHashMap<>();
+        for (K key : keys) {
+            V value = cached.containsKey(key) ? cached.get(key) : loaded.get(key);
+            if (value != null && !out.containsKey(key)) {
+                out.put(key, value);
+                if (!cached.containsKey(key))
+                    put(key, value, loadGeneration);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @param key
+     * @return cached value or null, neither loads nor counts as a hit or a miss
+     */
+    public synchronized V peek(K key) {
+        Entry<V> entry = entries.get(key);
+        return entry == null || System.nanoTime() - entry.loaded >= timeToLiveNanos ? null : entry.value;
+    }
+
+    /**
+     * Caches a value that was obtained without going through {@link #get(Object, Function)}, e.g.
+     * as part of a bulk load.
+     *
+     * @param key
+     * @param value
+     */
+    public synchronized void put(K key, V value) {
+        put(key, value, generation);
+    }
+
+    /**
+     * Caches a value read from data obtained at a known generation, unless an entry was invalidated since.
+     *
+     * @param key
+     * @param value
+     * @param loadGeneration generation of the cache when the data of the value was read
+     */
+    public synchronized void put(K key, V value, long loadGeneration) {
+        if (value != null && loadGeneration == generation)
+            entries.put(key, new Entry<>(value, System.nanoTime()));
+    }
+
+    /**
+     * @param key entry to drop
+     */
+    public synchronized void invalidate(K key) {
+        generation++;
+        if (entries.remove(key) != null)
+            invalidations.incrementAndGet();
+    }
+
+    /**
+     * Drops every entry.
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+    }
+
+    /**
+     * Drops expired entries, they would otherwise only be noticed when read again.
+     */
+    public synchronized void cleanUp() {
+        long now = System.nanoTime();
+        Iterator<Entry<V>> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().loaded >= timeToLiveNanos) {
+                it.remove();
+                expirations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return current number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return point in time copy of the counters of this cache
+     */
+    public CacheStatistics getStatistics() {
+        return new CacheStatistics(name, size(), maximumSize, hits.get(), misses.get(),
+                evictions.get(), expirations.get(), invalidations.get());
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long loaded;
+
+        Entry(V value, long loaded) {
+            this.value = value;
+            this.loaded = loaded;
+        }
+    }
+}
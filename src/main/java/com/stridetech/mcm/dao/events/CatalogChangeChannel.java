@@ -0,0 +1,236 @@
+package com.stridetech.mcm.dao.events;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listens on {@value #CHANNEL} and hands the catalog changes committed by any node to its
+ * {@link CatalogChangeListener listeners}, so that caches and indexes of every node can follow
+ * changes made elsewhere without polling the catalog tables.
+ * <p>
+ * Transactions writing the catalog notify their txid, once however many rows they write; the keys
+ * they changed are recorded in {@code logs.catalog_change}. On a notification the channel reads the
+ * keys recorded since its txid high-water mark, the oldest transaction still running when it last
+ * read them, and hands them to the listeners as one batch. Transactions that committed just before
+ * a read may be handed out again by the next one; re-reading an entity is harmless.
+ * <p>
+ * A background thread holds one connection of the data source for as long as the channel runs, so
+ * the data source should open connections of its own rather than lend those of the application's
+ * pool, whose leak detection it would trip and whose capacity it would take a slot of for good.
+ * The driver only receives notifications along with the results of a statement, so the thread
+ * issues a trivial query every {@link #setPollIntervalMillis(long) poll interval}. When the
+ * connection fails the thread reconnects and, since notifications sent in between are lost,
+ * tells the listeners with {@link CatalogChangeListener#onChangesMissed()}.
+ */
+public class CatalogChangeChannel {
+
+    public static final String CHANNEL = "mcm_catalog";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CatalogChangeChannel.class);
+
+    private final DataSource dataSource;
+    private final List<CatalogChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private long pollIntervalMillis = 500;
+    private long reconnectDelayMillis = 5000;
+    private volatile boolean running;
+    /**
+     * Changes of transactions from this one on may not have been read yet; only used by the thread
+     */
+    private long highWaterMark;
+    private Thread thread;
+    private CountDownLatch listening;
+
+    /**
+     * @param dataSource PostgreSQL data source, through which the driver's connection can be unwrapped;
+     *                   best one not pooled, e.g. a {@code DriverManagerDataSource}
+     */
+    public CatalogChangeChannel(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * @param pollIntervalMillis how often to check for notifications, i.e. the delay with which changes reach listeners
+     */
+    public void setPollIntervalMillis(long pollIntervalMillis) {
+        this.pollIntervalMillis = pollIntervalMillis;
+    }
+
+    /**
+     * @param reconnectDelayMillis pause before reconnecting after the connection failed
+     */
+    public void setReconnectDelayMillis(long reconnectDelayMillis) {
+        this.reconnectDelayMillis = reconnectDelayMillis;
+    }
+
+    /**
+     * @param listener called with every change, in the order listeners were subscribed
+     */
+    public void subscribe(CatalogChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void unsubscribe(CatalogChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts listening and waits, at most the reconnect delay, until the channel listens: changes
+     * committed before are not notified, those committed after are.
+     */
+    public synchronized void start() throws InterruptedException {
+        if (running)
+            return;
+        running = true;
+        listening = new CountDownLatch(1);
+        thread = new Thread(this::run, "mcm-catalog-changes");
+        thread.setDaemon(true);
+        thread.start();
+        if (!listening.await(reconnectDelayMillis, TimeUnit.MILLISECONDS))
+            LOGGER.warn("Not yet listening on {}, changes may be missed until it does", CHANNEL);
+    }
+
+    /**
+     * Stops listening and gives the connection back.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running)
+            return;
+        running = false;
+        thread.interrupt();
+        thread.join(reconnectDelayMillis + pollIntervalMillis);
+        thread = null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void run() {
+        boolean listenedBefore = false;
+        while (running) {
+            try (Connection connection = dataSource.getConnection()) {
+                try {
+                    listen(connection, listenedBefore);
+                    listenedBefore = true;
+                    poll(connection);
+                } finally {
+                    unlisten(connection);
+                }
+            } catch (SQLException e) {
+                if (!running)
+                    break;
+                LOGGER.warn("Listening on {} failed, reconnecting in {} ms: {}", CHANNEL, reconnectDelayMillis, e.getMessage());
+                try {
+                    Thread.sleep(reconnectDelayMillis);
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        LOGGER.info("Stopped listening on {}", CHANNEL);
+    }
+
+    private void listen(Connection connection, boolean listenedBefore) throws SQLException {
+        connection.setAutoCommit(true);
+        try (Statement statement = connection.createStatement()) {
+            // taken first, so that the changes of a transaction committing once listening are read
+            try (ResultSet resultSet = statement.executeQuery("SELECT txid_snapshot_xmin(txid_current_snapshot())")) {
+                resultSet.next();
+                highWaterMark = resultSet.getLong(1);
+            }
+            statement.execute("LISTEN " + CHANNEL);
+        }
+        LOGGER.info("Listening on {}", CHANNEL);
+        listening.countDown();
+        if (listenedBefore)
+            for (CatalogChangeListener listener : listeners)
+                notifyMissed(listener);
+    }
+
+    private void poll(Connection connection) throws SQLException, InterruptedException {
+        PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        while (running) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("SELECT 1");
+            }
+            PGNotification[] notifications = pgConnection.getNotifications();
+            if (notifications != null && notifications.length > 0)
+                dispatch(readChanges(connection));
+            Thread.sleep(pollIntervalMillis);
+        }
+    }
+
+    private static void unlisten(Connection connection) {
+        // should the connection go back to a pool, it must not be handed out listening
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("UNLISTEN " + CHANNEL);
+        } catch (SQLException e) {
+            LOGGER.debug("UNLISTEN {} failed: {}", CHANNEL, e.getMessage());
+        }
+    }
+
+    /**
+     * @return keys recorded since the high-water mark, each once, the mark moved past them
+     */
+    private Set<CatalogChangeEvent> readChanges(Connection connection) throws SQLException {
+        Set<CatalogChangeEvent> events = new LinkedHashSet<>();
+        // one statement, so that the new mark and the keys read agree
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT m.mark, c.entity, c.key FROM (SELECT txid_snapshot_xmin(txid_current_snapshot()) AS mark) m " +
+                "LEFT JOIN logs.catalog_change c ON c.txid >= ? ORDER BY c.txid")) {
+            statement.setLong(1, highWaterMark);
+            long mark = highWaterMark;
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    mark = resultSet.getLong(1);
+                    if (resultSet.getString(2) == null)
+                        continue;
+                    CatalogChangeEvent event = CatalogChangeEvent.of(resultSet.getString(2), resultSet.getString(3));
+                    if (event == null)
+                        LOGGER.debug("Ignoring change {}:{}", resultSet.getString(2), resultSet.getString(3));
+                    else
+                        events.add(event);
+                }
+            }
+            highWaterMark = mark;
+        }
+        return events;
+    }
+
+    private void dispatch(Set<CatalogChangeEvent> events) {
+        if (events.isEmpty())
+            return;
+        for (CatalogChangeListener listener : listeners) {
+            try {
+                listener.onChanges(events);
+            } catch (RuntimeException e) {
+                LOGGER.error("Catalog change listener {} failed on {} changes", listener, events.size(), e);
+            }
+        }
+    }
+
+    private static void notifyMissed(CatalogChangeListener listener) {
+        try {
+            listener.onChangesMissed();
+        } catch (RuntimeException e) {
+            LOGGER.error("Catalog change listener {} failed on missed changes", listener, e);
+        }
+    }
+}
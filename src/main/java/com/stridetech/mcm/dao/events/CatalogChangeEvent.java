@@ -0,0 +1,125 @@
+package com.stridetech.mcm.dao.events;
+
+import com.stridetech.mcm.dao.snapshot.CatalogChanges;
+
+import java.util.Objects;
+
+/**
+ * A committed change of one catalog entity, as recorded in {@code logs.catalog_change} by the
+ * {@code logs.record_catalog_change} trigger and read by the {@link CatalogChangeChannel} when
+ * notified. Only says what changed, not how: listeners re-read or drop what they hold of it.
+ */
+public final class CatalogChangeEvent {
+
+    /**
+     * Kinds of entities notified, with the names the trigger uses for them
+     */
+    public enum Entity {
+        BUSINESS_UNIT(CatalogChanges.BUSINESS_UNIT, true),
+        MARKETPLACE(CatalogChanges.MARKETPLACE, true),
+        PRODUCT(CatalogChanges.PRODUCT, false),
+        /**
+         * A campaign row, its business unit, tags or metros
+         */
+        CAMPAIGN(CatalogChanges.CAMPAIGN, false),
+        TAG_GROUP(CatalogChanges.TAG_GROUP, true),
+        TAG(CatalogChanges.TAG, true),
+        METRO(CatalogChanges.METRO, true),
+        ACCOUNT_STATUS(CatalogChanges.ACCOUNT_STATUS, true),
+        MARKETPLACE_STATUS(CatalogChanges.MARKETPLACE_STATUS, true),
+        PRODUCT_STATUS(CatalogChanges.PRODUCT_STATUS, false),
+        CAMPAIGN_STATUS(CatalogChanges.CAMPAIGN_STATUS, false);
+
+        private final String notifiedName;
+        private final boolean numericKey;
+
+        Entity(String notifiedName, boolean numericKey) {
+            this.notifiedName = notifiedName;
+            this.numericKey = numericKey;
+        }
+
+        /**
+         * @return name of the entity in {@code logs.catalog_change}
+         */
+        public String getNotifiedName() {
+            return notifiedName;
+        }
+
+        /**
+         * @return whether the entity is keyed by a numeric id rather than a code or tracker
+         */
+        public boolean hasNumericKey() {
+            return numericKey;
+        }
+
+        static Entity byNotifiedName(String name) {
+            for (Entity entity : values())
+                if (entity.notifiedName.equals(name))
+                    return entity;
+            return null;
+        }
+    }
+
+    private final Entity entity;
+    private final String key;
+
+    public CatalogChangeEvent(Entity entity, String key) {
+        this.entity = entity;
+        this.key = key;
+    }
+
+    /**
+     * @param entity entity name, as recorded
+     * @param key    key, as recorded
+     * @return the event, null if the entity is unknown to this version or the key malformed
+     */
+    public static CatalogChangeEvent of(String entity, String key) {
+        Entity known = Entity.byNotifiedName(entity);
+        if (known == null || key == null)
+            return null;
+        if (known.hasNumericKey() && !key.matches("-?\\d+"))
+            return null;
+        return new CatalogChangeEvent(known, key);
+    }
+
+    public Entity getEntity() {
+        return entity;
+    }
+
+    /**
+     * @return product code or campaign tracker, the decimal id of the other entities
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return id of an entity {@link Entity#hasNumericKey() keyed by id}
+     * @throws IllegalStateException for products and campaigns
+     */
+    public Long getId() {
+        if (!entity.hasNumericKey())
+            throw new IllegalStateException(entity + " is not keyed by id");
+        return Long.valueOf(key);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof CatalogChangeEvent))
+            return false;
+        CatalogChangeEvent that = (CatalogChangeEvent) o;
+        return entity == that.entity && key.equals(that.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(entity, key);
+    }
+
+    @Override
+    public String toString() {
+        return entity.getNotifiedName() + ":" + key;
+    }
+}
@@ -0,0 +1,34 @@
+package com.stridetech.mcm.dao.events;
+
+import java.util.Collection;
+
+/**
+ * Subscriber of a {@link CatalogChangeChannel}. Called on the channel's thread, one batch of changes
+ * at a time, so implementations should return quickly.
+ */
+public interface CatalogChangeListener {
+
+    /**
+     * @param event change committed by any node, this one included
+     */
+    void onChange(CatalogChangeEvent event);
+
+    /**
+     * Called with the changes read on one notification, each key once, e.g. all those of a bulk
+     * write. Calls {@link #onChange(CatalogChangeEvent)} for each by default; listeners re-reading
+     * what changed read them all at once instead.
+     *
+     * @param events changes committed by any node, this one included
+     */
+    default void onChanges(Collection<CatalogChangeEvent> events) {
+        for (CatalogChangeEvent event : events)
+            onChange(event);
+    }
+
+    /**
+     * Called after the channel lost its connection and listens again: changes committed in between
+     * were not notified, so anything derived from the catalog should be dropped or re-read.
+     */
+    default void onChangesMissed() {
+    }
+}
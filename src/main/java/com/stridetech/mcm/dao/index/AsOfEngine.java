@@ -0,0 +1,205 @@
+package com.stridetech.mcm.dao.index;
+
+import com.stridetech.mcm.dao.snapshot.CatalogChanges;
+import com.stridetech.mcm.dao.snapshot.CatalogSnapshot;
+import com.stridetech.mcm.dao.snapshot.CatalogTable;
+import com.stridetech.mcm.model.enums.AccountStatus;
+import com.stridetech.mcm.model.enums.CampaignStatus;
+import com.stridetech.mcm.model.enums.MarketplaceStatus;
+import com.stridetech.mcm.model.enums.ProductStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Array;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * In-memory copy of the {@code logs.*_status_changelog} tables answering "state of everything at
+ * time T" without running a window function over the whole changelog.
+ * <p>
+ * The engine is loaded once with {@link #load(DataSource)} and then kept current by the DAO, which
+ * records every status change it writes. Changes written by other processes are not seen until the
+ * histories are {@link #refresh(DataSource, Collection, Collection, Collection, Collection) read again},
+ * as an {@link AsOfEngineRefresher} does when notified, or the next {@link #load(DataSource)}. A
+ * replica starting from a {@link CatalogSnapshot} loads the changelogs from it instead, see
+ * {@link #load(CatalogSnapshot, CatalogChanges)}.
+ */
+public class AsOfEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsOfEngine.class);
+    private static final int FETCH_SIZE = 10000;
+
+    private final TemporalStatusIndex<Long, AccountStatus> accounts = new TemporalStatusIndex<>();
+    private final TemporalStatusIndex<Long, MarketplaceStatus> marketplaces = new TemporalStatusIndex<>();
+    private final TemporalStatusIndex<String, ProductStatus> products = new TemporalStatusIndex<>();
+    private final TemporalStatusIndex<String, CampaignStatus> campaigns = new TemporalStatusIndex<>();
+
+    public TemporalStatusIndex<Long, AccountStatus> getAccounts() {
+        return accounts;
+    }
+
+    public TemporalStatusIndex<Long, MarketplaceStatus> getMarketplaces() {
+        return marketplaces;
+    }
+
+    public TemporalStatusIndex<String, ProductStatus> getProducts() {
+        return products;
+    }
+
+    public TemporalStatusIndex<String, CampaignStatus> getCampaigns() {
+        return campaigns;
+    }
+
+    /**
+     * Reads all four status changelogs. Entries already known (e.g. recorded by the DAO while
+     * loading) are kept, so the engine can be attached to the DAO before it is loaded.
+     *
+     * @param dataSource
+     * @return this engine
+     */
+    public AsOfEngine load(DataSource dataSource) {
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.setFetchSize(FETCH_SIZE);
+        // fetch size is only honoured by the driver with autocommit off, hence the read only transaction
+        TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        transactionTemplate.setReadOnly(true);
+
+        long started = System.currentTimeMillis();
+        transactionTemplate.execute(status -> {
+            jdbcTemplate.query(
+                    "SELECT account, effective_date, change_number, status FROM logs.account_status_changelog " +
+                    "ORDER BY account, effective_date, change_number",
+                    resultSet -> {
+                        accounts.record(resultSet.getLong(1), resultSet.getTimestamp(2).getTime(), resultSet.getLong(3),
+                                AccountStatus.valueOf(resultSet.getString(4)));
+                    });
+            jdbcTemplate.query(
+                    "SELECT marketplace, effective_date, change_number, status FROM logs.marketplace_status_changelog " +
+                    "ORDER BY marketplace, effective_date, change_number",
+                    resultSet -> {
+                        marketplaces.record(resultSet.getLong(1), resultSet.getTimestamp(2).getTime(), resultSet.getLong(3),
+                                MarketplaceStatus.valueOf(resultSet.getString(4)));
+                    });
+            jdbcTemplate.query(
+                    "SELECT product, effective_date, change_number, status FROM logs.product_status_changelog " +
+                    "ORDER BY product, effective_date, change_number",
+                    resultSet -> {
+                        products.record(resultSet.getString(1), resultSet.getTimestamp(2).getTime(), resultSet.getLong(3),
+                                ProductStatus.valueOf(resultSet.getString(4)));
+                    });
+            jdbcTemplate.query(
+                    "SELECT campaign, effective_date, change_number, status FROM logs.campaign_status_changelog " +
+                    "ORDER BY campaign, effective_date, change_number",
+                    resultSet -> {
+                        campaigns.record(resultSet.getString(1), resultSet.getTimestamp(2).getTime(), resultSet.getLong(3),
+                                CampaignStatus.valueOf(resultSet.getString(4)));
+                    });
+            return null;
+        });
+        LOGGER.info("As-of engine loaded {} account, {} marketplace, {} product and {} campaign status changes in {} ms",
+                accounts.entryCount(), marketplaces.entryCount(), products.entryCount(), campaigns.entryCount(),
+                System.currentTimeMillis() - started);
+        return this;
+    }
+
+    /**
+     * Reads the histories of some entities again, e.g. those another node changed, replacing those
+     * held; an entity no longer found in its changelog is dropped.
+     *
+     * @param dataSource
+     * @param accountIds     business units to read again
+     * @param marketplaceIds marketplaces to read again
+     * @param productCodes   products to read again
+     * @param trackers       campaigns to read again
+     */
+    public void refresh(DataSource dataSource, Collection<Long> accountIds, Collection<Long> marketplaceIds,
+                        Collection<String> productCodes, Collection<String> trackers) {
+        if (accountIds.isEmpty() && marketplaceIds.isEmpty() && productCodes.isEmpty() && trackers.isEmpty())
+            return;
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        transactionTemplate.setReadOnly(true);
+        // read in one transaction, replaced after, so that a failing read leaves every history as it was
+        Map<Long, StatusTimeline<AccountStatus>> accountTimelines = new HashMap<>();
+        Map<Long, StatusTimeline<MarketplaceStatus>> marketplaceTimelines = new HashMap<>();
+        Map<String, StatusTimeline<ProductStatus>> productTimelines = new HashMap<>();
+        Map<String, StatusTimeline<CampaignStatus>> campaignTimelines = new HashMap<>();
+        transactionTemplate.execute(status -> jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            readTimelines(jdbcTemplate, connection.createArrayOf("bigint", accountIds.toArray()), "account",
+                    "logs.account_status_changelog", accountIds, (resultSet, row) -> resultSet.getLong(1),
+                    accountTimelines, AccountStatus::valueOf);
+            readTimelines(jdbcTemplate, connection.createArrayOf("bigint", marketplaceIds.toArray()), "marketplace",
+                    "logs.marketplace_status_changelog", marketplaceIds, (resultSet, row) -> resultSet.getLong(1),
+                    marketplaceTimelines, MarketplaceStatus::valueOf);
+            readTimelines(jdbcTemplate, connection.createArrayOf("varchar", productCodes.toArray()), "product",
+                    "logs.product_status_changelog", productCodes, (resultSet, row) -> resultSet.getString(1),
+                    productTimelines, ProductStatus::valueOf);
+            readTimelines(jdbcTemplate, connection.createArrayOf("varchar", trackers.toArray()), "campaign",
+                    "logs.campaign_status_changelog", trackers, (resultSet, row) -> resultSet.getString(1),
+                    campaignTimelines, CampaignStatus::valueOf);
+            return null;
+        }));
+        accountTimelines.forEach(accounts::replace);
+        marketplaceTimelines.forEach(marketplaces::replace);
+        productTimelines.forEach(products::replace);
+        campaignTimelines.forEach(campaigns::replace);
+    }
+
+    private static <K, S extends Enum<S>> void readTimelines(JdbcTemplate jdbcTemplate, Array keyArray, String column,
+                                                            String changelog, Collection<K> keys, RowMapper<K> key,
+                                                            Map<K, StatusTimeline<S>> timelines,
+                                                            Function<String, S> status) {
+        if (keys.isEmpty())
+            return;
+        for (K known : keys)
+            timelines.put(known, new StatusTimeline<>());
+        jdbcTemplate.query(
+                "SELECT " + column + ", effective_date, change_number, status FROM " + changelog + " " +
+                "WHERE " + column + " = ANY(?) ORDER BY " + column + ", effective_date, change_number",
+                resultSet -> {
+                    timelines.get(key.mapRow(resultSet, 0)).add(resultSet.getTimestamp(2).getTime(), resultSet.getLong(3),
+                            status.apply(resultSet.getString(4)));
+                }, keyArray);
+    }
+
+    /**
+     * Reads all four status changelogs from a catalog snapshot, brought up to date by the changes
+     * made since it was taken. Entries already known are kept, as with {@link #load(DataSource)}.
+     *
+     * @param snapshot catalog snapshot
+     * @param changes  changes since the snapshot, or null
+     * @return this engine
+     */
+    public AsOfEngine load(CatalogSnapshot snapshot, CatalogChanges changes) {
+        long started = System.currentTimeMillis();
+        snapshot.forEachRow(CatalogTable.ACCOUNT_STATUS_CHANGELOG, changes, (table, row) -> {
+            accounts.record(table.getLong(row, 0), table.getLong(row, 1), table.getLong(row, 2),
+                    AccountStatus.valueOf(table.getString(row, 3)));
+        });
+        snapshot.forEachRow(CatalogTable.MARKETPLACE_STATUS_CHANGELOG, changes, (table, row) -> {
+            marketplaces.record(table.getLong(row, 0), table.getLong(row, 1), table.getLong(row, 2),
+                    MarketplaceStatus.valueOf(table.getString(row, 3)));
+        });
+        snapshot.forEachRow(CatalogTable.PRODUCT_STATUS_CHANGELOG, changes, (table, row) -> {
+            products.record(table.getString(row, 0), table.getLong(row, 1), table.getLong(row, 2),
+                    ProductStatus.valueOf(table.getString(row, 3)));
+        });
+        snapshot.forEachRow(CatalogTable.CAMPAIGN_STATUS_CHANGELOG, changes, (table, row) -> {
+            campaigns.record(table.getString(row, 0), table.getLong(row, 1), table.getLong(row, 2),
+                    CampaignStatus.valueOf(table.getString(row, 3)));
+        });
+        LOGGER.info("As-of engine loaded {} account, {} marketplace, {} product and {} campaign status changes from the snapshot in {} ms",
+                accounts.entryCount(), marketplaces.entryCount(), products.entryCount(), campaigns.entryCount(),
+                System.currentTimeMillis() - started);
+        return this;
+    }
+}
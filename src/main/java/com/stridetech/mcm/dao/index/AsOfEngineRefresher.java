@@ -0,0 +1,64 @@
+package com.stridetech.mcm.dao.index;
+
+import com.stridetech.mcm.dao.events.CatalogChangeEvent;
+import com.stridetech.mcm.dao.events.CatalogChangeListener;
+
+import javax.sql.DataSource;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Keeps an {@link AsOfEngine} current with the status changes committed by other nodes: the
+ * histories of the entities whose changelog changed are {@link AsOfEngine#refresh read again}, all
+ * of one notification at once, and all histories when changes were missed.
+ */
+public class AsOfEngineRefresher implements CatalogChangeListener {
+
+    private final AsOfEngine engine;
+    private final DataSource dataSource;
+
+    public AsOfEngineRefresher(AsOfEngine engine, DataSource dataSource) {
+        this.engine = engine;
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public void onChange(CatalogChangeEvent event) {
+        onChanges(Collections.singleton(event));
+    }
+
+    @Override
+    public void onChanges(Collection<CatalogChangeEvent> events) {
+        Set<Long> accountIds = new LinkedHashSet<>();
+        Set<Long> marketplaceIds = new LinkedHashSet<>();
+        Set<String> productCodes = new LinkedHashSet<>();
+        Set<String> trackers = new LinkedHashSet<>();
+        for (CatalogChangeEvent event : events) {
+            switch (event.getEntity()) {
+                case ACCOUNT_STATUS:
+                    accountIds.add(event.getId());
+                    break;
+                case MARKETPLACE_STATUS:
+                    marketplaceIds.add(event.getId());
+                    break;
+                case PRODUCT_STATUS:
+                    productCodes.add(event.getKey());
+                    break;
+                case CAMPAIGN_STATUS:
+                    trackers.add(event.getKey());
+                    break;
+                default:
+                    break;
+            }
+        }
+        engine.refresh(dataSource, accountIds, marketplaceIds, productCodes, trackers);
+    }
+
+    @Override
+    public void onChangesMissed() {
+        // histories only grow, and entries already known are kept, so loading again adds those missed
+        engine.load(dataSource);
+    }
+}
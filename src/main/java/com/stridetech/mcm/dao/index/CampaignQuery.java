@@ -0,0 +1,84 @@
+package com.stridetech.mcm.dao.index;
+
+import com.stridetech.mcm.model.enums.CampaignStatus;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Campaign search criteria: a tag expression plus product, marketplace, metro and status filters.
+ * Every criterion left null or empty matches all campaigns, a filter with several values matches
+ * any of them. Without a status filter deleted campaigns are left out, as in listCampaigns.
+ */
+public class CampaignQuery {
+
+    private TagExpression tags;
+    private Set<String> products = Collections.emptySet();
+    private Set<Long> marketplaces = Collections.emptySet();
+    private Set<Long> metros = Collections.emptySet();
+    private Set<CampaignStatus> statuses = Collections.emptySet();
+
+    public CampaignQuery() {
+    }
+
+    public CampaignQuery(TagExpression tags) {
+        this.tags = tags;
+    }
+
+    public TagExpression getTags() {
+        return tags;
+    }
+
+    public void setTags(TagExpression tags) {
+        this.tags = tags;
+    }
+
+    /**
+     * @return product codes
+     */
+    public Set<String> getProducts() {
+        return products;
+    }
+
+    public void setProducts(Set<String> products) {
+        this.products = products == null ? Collections.emptySet() : new HashSet<>(products);
+    }
+
+    /**
+     * @return marketplace ids
+     */
+    public Set<Long> getMarketplaces() {
+        return marketplaces;
+    }
+
+    public void setMarketplaces(Set<Long> marketplaces) {
+        this.marketplaces = marketplaces == null ? Collections.emptySet() : new HashSet<>(marketplaces);
+    }
+
+    /**
+     * @return metro ids, a campaign matches if it is set to any of them
+     */
+    public Set<Long> getMetros() {
+        return metros;
+    }
+
+    public void setMetros(Set<Long> metros) {
+        this.metros = metros == null ? Collections.emptySet() : new HashSet<>(metros);
+    }
+
+    public Set<CampaignStatus> getStatuses() {
+        return statuses;
+    }
+
+    public void setStatuses(Set<CampaignStatus> statuses) {
+        this.statuses = statuses == null || statuses.isEmpty() ? Collections.emptySet() : EnumSet.copyOf(statuses);
+    }
+
+    @Override
+    public String toString() {
+        return "CampaignQuery{tags=" + tags + ", products=" + products + ", marketplaces=" + marketplaces +
+                ", metros=" + metros + ", statuses=" + statuses + '}';
+    }
+}
@@ -0,0 +1,447 @@
+package com.stridetech.mcm.dao.index;
+
+import com.stridetech.mcm.dao.snapshot.CatalogChanges;
+import com.stridetech.mcm.dao.snapshot.CatalogSnapshot;
+import com.stridetech.mcm.dao.snapshot.CatalogTable;
+import com.stridetech.mcm.model.enums.CampaignStatus;
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory copy of {@code meta.campaign}, {@code meta.campaign_tags} and {@code meta.campaign_metros}
+ * answering {@link CampaignQuery campaign searches} without touching the database.
+ * <p>
+ * Every campaign gets a dense ordinal (campaigns loaded from the database are numbered in tracker
+ * order) and every tag, metro, product, marketplace and status the set of ordinals carrying it, as
+ * a compressed bitmap; a search is a handful of bitmap unions, intersections and differences.
+ * <p>
+ * Like the {@link AsOfEngine}, the index is loaded once with {@link #load(DataSource)} and then
+ * kept current by the DAO, which records the campaign, tag and metro changes it commits. Changes
+ * written by other processes are not seen until the campaigns are {@link #refresh(DataSource, Collection)
+ * read again}, as a {@link CampaignTagIndexRefresher} does when notified, or the next
+ * {@link #load(DataSource)}, which replaces the whole index. A replica
+ * starting from a {@link CatalogSnapshot} loads from it instead, see {@link #load(CatalogSnapshot, CatalogChanges)}.
+ */
+public class CampaignTagIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CampaignTagIndex.class);
+    private static final int FETCH_SIZE = 10000;
+    private static final RoaringBitmap EMPTY = new RoaringBitmap();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Guarded by the lock, replaced whole by a load
+     */
+    private State state = new State();
+
+    /**
+     * Reads every campaign with its tags and metros into a new index, which then replaces the
+     * current one. Queries wait until the load is done.
+     *
+     * @param dataSource
+     * @return this index
+     */
+    public CampaignTagIndex load(DataSource dataSource) {
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.setFetchSize(FETCH_SIZE);
+
+        long started = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            State loaded = new State();
+            readOnly(dataSource).execute(status -> {
+                jdbcTemplate.query("SELECT tracker, product, marketplace, status FROM meta.campaign ORDER BY tracker",
+                        resultSet -> {
+                            loaded.putCampaign(resultSet.getString(1), resultSet.getString(2), resultSet.getLong(3),
+                                    CampaignStatus.valueOf(resultSet.getString(4)));
+                        });
+                jdbcTemplate.query("SELECT campaign, tag FROM meta.campaign_tags",
+                        resultSet -> {
+                            bitmap(loaded.tags, resultSet.getLong(2)).add(loaded.ordinal(resultSet.getString(1)));
+                        });
+                jdbcTemplate.query("SELECT tracker, metro FROM meta.campaign_metros",
+                        resultSet -> {
+                            bitmap(loaded.metros, resultSet.getLong(2)).add(loaded.ordinal(resultSet.getString(1)));
+                        });
+                return null;
+            });
+            loaded.runOptimize();
+            state = loaded;
+            LOGGER.info("Campaign tag index loaded {} campaigns, {} tags and {} metros into {} bytes in {} ms",
+                    loaded.campaigns.getCardinality(), loaded.tags.size(), loaded.metros.size(), loaded.sizeInBytes(),
+                    System.currentTimeMillis() - started);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Reads every campaign with its tags and metros from a catalog snapshot, brought up to date by
+     * the changes made since it was taken, into a new index, which then replaces the current one.
+     * Queries wait until the load is done.
+     *
+     * @param snapshot catalog snapshot
+     * @param changes  changes since the snapshot, or null
+     * @return this index
+     */
+    public CampaignTagIndex load(CatalogSnapshot snapshot, CatalogChanges changes) {
+        long started = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            State loaded = new State();
+            snapshot.forEachRow(CatalogTable.CAMPAIGN, changes, (table, row) -> {
+                loaded.putCampaign(table.getString(row, 0), table.getString(row, 1), table.getLong(row, 3),
+                        CampaignStatus.valueOf(table.getString(row, 6)));
+            });
+            snapshot.forEachRow(CatalogTable.CAMPAIGN_TAGS, changes, (table, row) -> {
+                bitmap(loaded.tags, table.getLong(row, 1)).add(loaded.ordinal(table.getString(row, 0)));
+            });
+            snapshot.forEachRow(CatalogTable.CAMPAIGN_METROS, changes, (table, row) -> {
+                bitmap(loaded.metros, table.getLong(row, 1)).add(loaded.ordinal(table.getString(row, 0)));
+            });
+            loaded.runOptimize();
+            state = loaded;
+            LOGGER.info("Campaign tag index loaded {} campaigns, {} tags and {} metros from the snapshot into {} bytes in {} ms",
+                    loaded.campaigns.getCardinality(), loaded.tags.size(), loaded.metros.size(), loaded.sizeInBytes(),
+                    System.currentTimeMillis() - started);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Reads some campaigns again, with their tags and metros, e.g. those another node changed; a
+     * campaign no longer found is dropped. Only the campaigns' own reads are repeated, queries only
+     * wait while the rows read replace those held.
+     *
+     * @param dataSource
+     * @param changed    trackers of the campaigns to read again
+     */
+    public void refresh(DataSource dataSource, Collection<String> changed) {
+        if (changed.isEmpty())
+            return;
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        List<Object[]> rows = new ArrayList<>();
+        List<Object[]> tagged = new ArrayList<>();
+        List<Object[]> set = new ArrayList<>();
+        readOnly(dataSource).execute(status -> jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            Array trackers = connection.createArrayOf("varchar", changed.toArray());
+            jdbcTemplate.query("SELECT tracker, product, marketplace, status FROM meta.campaign WHERE tracker = ANY(?)",
+                    resultSet -> {
+                        rows.add(new Object[]{resultSet.getString(1), resultSet.getString(2), resultSet.getLong(3),
+                                CampaignStatus.valueOf(resultSet.getString(4))});
+                    }, trackers);
+            jdbcTemplate.query("SELECT campaign, tag FROM meta.campaign_tags WHERE campaign = ANY(?)",
+                    resultSet -> {
+                        tagged.add(new Object[]{resultSet.getString(1), resultSet.getLong(2)});
+                    }, trackers);
+            jdbcTemplate.query("SELECT tracker, metro FROM meta.campaign_metros WHERE tracker = ANY(?)",
+                    resultSet -> {
+                        set.add(new Object[]{resultSet.getString(1), resultSet.getLong(2)});
+                    }, trackers);
+            return null;
+        }));
+
+        lock.writeLock().lock();
+        try {
+            State current = state;
+            for (String tracker : changed)
+                current.removeCampaign(tracker);
+            for (Object[] row : rows)
+                current.putCampaign((String) row[0], (String) row[1], (Long) row[2], (CampaignStatus) row[3]);
+            for (Object[] row : tagged)
+                bitmap(current.tags, (Long) row[1]).add(current.ordinal((String) row[0]));
+            for (Object[] row : set)
+                bitmap(current.metros, (Long) row[1]).add(current.ordinal((String) row[0]));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static TransactionTemplate readOnly(DataSource dataSource) {
+        // fetch size is only honoured by the driver with autocommit off, hence the read only transaction
+        TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        transactionTemplate.setReadOnly(true);
+        return transactionTemplate;
+    }
+
+    /**
+     * Records a created or updated campaign.
+     *
+     * @param tracker     campaign tracker
+     * @param product     product code
+     * @param marketplace marketplace id
+     * @param status      current status
+     */
+    public void putCampaign(String tracker, String product, Long marketplace, CampaignStatus status) {
+        lock.writeLock().lock();
+        try {
+            state.putCampaign(tracker, product, marketplace, status);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param tracker campaign tracker
+     * @param tagId   tag added to the campaign
+     */
+    public void tag(String tracker, long tagId) {
+        lock.writeLock().lock();
+        try {
+            bitmap(state.tags, tagId).add(state.ordinal(tracker));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param tracker campaign tracker
+     * @param tagId   tag removed from the campaign
+     */
+    public void untag(String tracker, long tagId) {
+        lock.writeLock().lock();
+        try {
+            RoaringBitmap tagged = state.tags.get(tagId);
+            Integer ordinal = state.ordinals.get(tracker);
+            if (tagged != null && ordinal != null)
+                tagged.remove(ordinal);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param tracker campaign tracker
+     * @param metroId metro set on the campaign
+     */
+    public void setMetro(String tracker, long metroId) {
+        lock.writeLock().lock();
+        try {
+            bitmap(state.metros, metroId).add(state.ordinal(tracker));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param tracker campaign tracker
+     * @param metroId metro unset from the campaign
+     */
+    public void unsetMetro(String tracker, long metroId) {
+        lock.writeLock().lock();
+        try {
+            RoaringBitmap set = state.metros.get(metroId);
+            Integer ordinal = state.ordinals.get(tracker);
+            if (set != null && ordinal != null)
+                set.remove(ordinal);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param query search criteria
+     * @return trackers of the matching campaigns, in ordinal order
+     */
+    public List<String> find(CampaignQuery query) {
+        lock.readLock().lock();
+        try {
+            State current = state;
+            RoaringBitmap out = query.getTags() == null ? all() : query.getTags().evaluate(this);
+            out.and(current.campaigns);
+            if (!query.getProducts().isEmpty())
+                out.and(union(current.products, query.getProducts()));
+            if (!query.getMarketplaces().isEmpty())
+                out.and(union(current.marketplaces, query.getMarketplaces()));
+            if (!query.getMetros().isEmpty())
+                out.and(union(current.metros, query.getMetros()));
+            if (!query.getStatuses().isEmpty())
+                out.and(union(current.statuses, query.getStatuses()));
+            else
+                out.andNot(current.statuses.getOrDefault(CampaignStatus.DELETED, EMPTY));
+
+            List<String> found = new ArrayList<>(out.getCardinality());
+            IntIterator it = out.getIntIterator();
+            while (it.hasNext())
+                found.add(current.trackers.get(it.next()));
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of campaigns indexed
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return state.campaigns.getCardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return approximate memory held by the bitmaps
+     */
+    public long sizeInBytes() {
+        lock.readLock().lock();
+        try {
+            return state.sizeInBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Campaigns carrying a tag; only called by {@link TagExpression} under the read lock.
+     */
+    RoaringBitmap tagged(long tagId) {
+        return state.tags.getOrDefault(tagId, EMPTY);
+    }
+
+    /**
+     * Every campaign, as a bitmap the caller may modify; only called under the read lock.
+     */
+    RoaringBitmap all() {
+        return state.campaigns.clone();
+    }
+
+    private static <K> RoaringBitmap bitmap(Map<K, RoaringBitmap> bitmaps, K key) {
+        return bitmaps.computeIfAbsent(key, k -> new RoaringBitmap());
+    }
+
+    private static <K> RoaringBitmap union(Map<K, RoaringBitmap> bitmaps, Collection<K> keys) {
+        List<RoaringBitmap> selected = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            RoaringBitmap bitmap = bitmaps.get(key);
+            if (bitmap != null)
+                selected.add(bitmap);
+        }
+        return FastAggregation.or(selected.iterator());
+    }
+
+    /**
+     * Campaign ordinals and the bitmaps over them
+     */
+    private static final class State {
+        final Map<String, Integer> ordinals = new HashMap<>();
+        final List<String> trackers = new ArrayList<>();
+        final List<String> productOf = new ArrayList<>();
+        final List<Long> marketplaceOf = new ArrayList<>();
+        final List<CampaignStatus> statusOf = new ArrayList<>();
+
+        final RoaringBitmap campaigns = new RoaringBitmap();
+        final Map<Long, RoaringBitmap> tags = new HashMap<>();
+        final Map<Long, RoaringBitmap> metros = new HashMap<>();
+        final Map<String, RoaringBitmap> products = new HashMap<>();
+        final Map<Long, RoaringBitmap> marketplaces = new HashMap<>();
+        final Map<CampaignStatus, RoaringBitmap> statuses = new EnumMap<>(CampaignStatus.class);
+
+        void putCampaign(String tracker, String product, Long marketplace, CampaignStatus status) {
+            int ordinal = ordinal(tracker);
+            unsetAttributes(ordinal);
+            productOf.set(ordinal, product);
+            marketplaceOf.set(ordinal, marketplace);
+            statusOf.set(ordinal, status);
+            bitmap(products, product).add(ordinal);
+            bitmap(marketplaces, marketplace).add(ordinal);
+            bitmap(statuses, status).add(ordinal);
+            campaigns.add(ordinal);
+        }
+
+        /**
+         * Drops a campaign with its tags and metros; its ordinal stays numbered, matching nothing
+         */
+        void removeCampaign(String tracker) {
+            Integer ordinal = ordinals.get(tracker);
+            if (ordinal == null)
+                return;
+            unsetAttributes(ordinal);
+            productOf.set(ordinal, null);
+            marketplaceOf.set(ordinal, null);
+            statusOf.set(ordinal, null);
+            campaigns.remove(ordinal);
+            for (RoaringBitmap tagged : tags.values())
+                tagged.remove(ordinal);
+            for (RoaringBitmap set : metros.values())
+                set.remove(ordinal);
+        }
+
+        private void unsetAttributes(int ordinal) {
+            String oldProduct = productOf.get(ordinal);
+            if (oldProduct != null)
+                products.get(oldProduct).remove(ordinal);
+            Long oldMarketplace = marketplaceOf.get(ordinal);
+            if (oldMarketplace != null)
+                marketplaces.get(oldMarketplace).remove(ordinal);
+            CampaignStatus oldStatus = statusOf.get(ordinal);
+            if (oldStatus != null)
+                statuses.get(oldStatus).remove(ordinal);
+        }
+
+        /**
+         * Ordinal of a tracker, numbering it if it is new. Tags and metros may name a campaign before
+         * its row is seen; such an ordinal only matches once {@link #putCampaign} is called for it.
+         */
+        int ordinal(String tracker) {
+            Integer ordinal = ordinals.get(tracker);
+            if (ordinal != null)
+                return ordinal;
+            int next = trackers.size();
+            ordinals.put(tracker, next);
+            trackers.add(tracker);
+            productOf.add(null);
+            marketplaceOf.add(null);
+            statusOf.add(null);
+            return next;
+        }
+
+        void runOptimize() {
+            campaigns.runOptimize();
+            for (Map<?, RoaringBitmap> bitmaps : allBitmaps())
+                bitmaps.values().forEach(RoaringBitmap::runOptimize);
+        }
+
+        long sizeInBytes() {
+            long size = campaigns.getLongSizeInBytes();
+            for (Map<?, RoaringBitmap> bitmaps : allBitmaps())
+                for (RoaringBitmap bitmap : bitmaps.values())
+                    size += bitmap.getLongSizeInBytes();
+            return size;
+        }
+
+        private List<Map<?, RoaringBitmap>> allBitmaps() {
+            List<Map<?, RoaringBitmap>> out = new ArrayList<>();
+            out.add(tags);
+            out.add(metros);
+            out.add(products);
+            out.add(marketplaces);
+            out.add(statuses);
+            return out;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.stridetech.mcm.dao.index;
+
+import com.stridetech.mcm.dao.events.CatalogChangeEvent;
+import com.stridetech.mcm.dao.events.CatalogChangeListener;
+
+import javax.sql.DataSource;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Keeps a {@link CampaignTagIndex} current with the campaign changes committed by other nodes: the
+ * campaigns changed, their tags and metros included, are {@link CampaignTagIndex#refresh read again},
+ * all of one notification at once, and the whole index is loaded again when changes were missed.
+ */
+public class CampaignTagIndexRefresher implements CatalogChangeListener {
+
+    private final CampaignTagIndex index;
+    private final DataSource dataSource;
+
+    public CampaignTagIndexRefresher(CampaignTagIndex index, DataSource dataSource) {
+        this.index = index;
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public void onChange(CatalogChangeEvent event) {
+        onChanges(Collections.singleton(event));
+    }
+
+    @Override
+    public void onChanges(Collection<CatalogChangeEvent> events) {
+        Set<String> trackers = new LinkedHashSet<>();
+        for (CatalogChangeEvent event : events)
+            if (event.getEntity() == CatalogChangeEvent.Entity.CAMPAIGN)
+                trackers.add(event.getKey());
+        index.refresh(dataSource, trackers);
+    }
+
+    @Override
+    public void onChangesMissed() {
+        index.load(dataSource);
+    }
+}
@@ -0,0 +1,42 @@
+package com.stridetech.mcm.dao.index;
+
+import java.util.Date;
+
+/**
+ * One entry of a status changelog: the status an entity entered at an effective date.
+ *
+ * @param <S> status enum
+ */
+public class StatusChange<S extends Enum<S>> {
+
+    private final long effectiveDate;
+    private final long changeNumber;
+    private final S status;
+
+    public StatusChange(long effectiveDate, long changeNumber, S status) {
+        this.effectiveDate = effectiveDate;
+        this.changeNumber = changeNumber;
+        this.status = status;
+    }
+
+    public Date getEffectiveDate() {
+        return new Date(effectiveDate);
+    }
+
+    public long getEffectiveTime() {
+        return effectiveDate;
+    }
+
+    public long getChangeNumber() {
+        return changeNumber;
+    }
+
+    public S getStatus() {
+        return status;
+    }
+
+    @Override
+    public String toString() {
+        return status + "@" + getEffectiveDate() + "#" + changeNumber;
+    }
+}
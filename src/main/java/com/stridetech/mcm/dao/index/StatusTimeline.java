@@ -0,0 +1,135 @@
+package com.stridetech.mcm.dao.index;
+
+import java.util.Arrays;
+
+/**
+ * Status history of a single entity, kept as parallel primitive arrays sorted by
+ * (effective date, change number) - the same order the changelog window functions rank by.
+ * <p>
+ * Readers never lock: they work on an immutable snapshot of (arrays, size). Appending in order
+ * writes past the end of the shared arrays before publishing a longer snapshot, so older snapshots
+ * stay valid; back dated entries and growth copy the arrays.
+ *
+ * @param <S> status enum
+ */
+public class StatusTimeline<S extends Enum<S>> {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private volatile Snapshot snapshot = new Snapshot(new long[0], new long[0], new Enum<?>[0], 0);
+
+    /**
+     * Adds a changelog entry. Entries are identified by their change number, adding the same entry
+     * twice is a no-op.
+     *
+     * @param effectiveDate effective date in epoch milliseconds
+     * @param changeNumber  changelog sequence number
+     * @param status        status entered
+     * @return false if the entry was already known
+     */
+    public synchronized boolean add(long effectiveDate, long changeNumber, S status) {
+        Snapshot s = snapshot;
+        int position = upperBound(s, effectiveDate, changeNumber);
+        if (position > 0 && s.changeNumbers[position - 1] == changeNumber && s.effective[position - 1] == effectiveDate)
+            return false;
+
+        if (position == s.size && s.size < s.effective.length) {
+            s.effective[position] = effectiveDate;
+            s.changeNumbers[position] = changeNumber;
+            s.statuses[position] = status;
+            snapshot = new Snapshot(s.effective, s.changeNumbers, s.statuses, s.size + 1);
+            return true;
+        }
+
+        int capacity = Math.max(INITIAL_CAPACITY, s.size < s.effective.length ? s.effective.length : s.size * 2);
+        long[] effective = new long[capacity];
+        long[] changeNumbers = new long[capacity];
+        Enum<?>[] statuses = new Enum<?>[capacity];
+        System.arraycopy(s.effective, 0, effective, 0, position);
+        System.arraycopy(s.changeNumbers, 0, changeNumbers, 0, position);
+        System.arraycopy(s.statuses, 0, statuses, 0, position);
+        effective[position] = effectiveDate;
+        changeNumbers[position] = changeNumber;
+        statuses[position] = status;
+        System.arraycopy(s.effective, position, effective, position + 1, s.size - position);
+        System.arraycopy(s.changeNumbers, position, changeNumbers, position + 1, s.size - position);
+        System.arraycopy(s.statuses, position, statuses, position + 1, s.size - position);
+        snapshot = new Snapshot(effective, changeNumbers, statuses, s.size + 1);
+        return true;
+    }
+
+    /**
+     * @param time point in time, epoch milliseconds
+     * @return latest change effective at or before {@code time}, null if the entity did not exist yet
+     */
+    @SuppressWarnings("unchecked")
+    public StatusChange<S> at(long time) {
+        Snapshot s = snapshot;
+        int position = upperBound(s, time, Long.MAX_VALUE) - 1;
+        if (position < 0)
+            return null;
+        return new StatusChange<>(s.effective[position], s.changeNumbers[position], (S) s.statuses[position]);
+    }
+
+    /**
+     * @return latest change, null if the history is empty
+     */
+    public StatusChange<S> latest() {
+        return at(Long.MAX_VALUE);
+    }
+
+    /**
+     * @return number of changes in the history
+     */
+    public int size() {
+        return snapshot.size;
+    }
+
+    /**
+     * @return highest change number in the history, 0 if empty
+     */
+    public long maxChangeNumber() {
+        Snapshot s = snapshot;
+        long max = 0;
+        for (int i = 0; i < s.size; i++)
+            max = Math.max(max, s.changeNumbers[i]);
+        return max;
+    }
+
+    /**
+     * First position whose (effective date, change number) is greater than the given one.
+     */
+    private static int upperBound(Snapshot s, long effectiveDate, long changeNumber) {
+        int low = 0;
+        int high = s.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            long e = s.effective[mid];
+            if (e < effectiveDate || (e == effectiveDate && s.changeNumbers[mid] <= changeNumber))
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    @Override
+    public String toString() {
+        Snapshot s = snapshot;
+        return "StatusTimeline" + Arrays.asList(s.statuses).subList(0, s.size);
+    }
+
+    private static final class Snapshot {
+        final long[] effective;
+        final long[] changeNumbers;
+        final Enum<?>[] statuses;
+        final int size;
+
+        Snapshot(long[] effective, long[] changeNumbers, Enum<?>[] statuses, int size) {
+            this.effective = effective;
+            this.changeNumbers = changeNumbers;
+            this.statuses = statuses;
+            this.size = size;
+        }
+    }
+}
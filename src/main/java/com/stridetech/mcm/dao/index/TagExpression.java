@@ -0,0 +1,331 @@
+package com.stridetech.mcm.dao.index;
+
+import com.stridetech.mcm.model.meta.Tag;
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Boolean expression over campaign tags, e.g. {@code Brand AND Search AND NOT Email}.
+ * <p>
+ * Expressions are built with {@link #tag(long)}, {@link #and(TagExpression...)},
+ * {@link #or(TagExpression...)} and {@link #not(TagExpression)}, or parsed from text with
+ * {@link #parse(String, Function)}. They are immutable.
+ */
+public abstract class TagExpression {
+
+    TagExpression() {
+    }
+
+    /**
+     * @param tagId tag id
+     * @return campaigns carrying the tag
+     */
+    public static TagExpression tag(long tagId) {
+        return new TagTerm(tagId);
+    }
+
+    /**
+     * @param tag tag
+     * @return campaigns carrying the tag
+     */
+    public static TagExpression tag(Tag tag) {
+        return new TagTerm(tag.getId());
+    }
+
+    /**
+     * @param operands at least one expression
+     * @return campaigns matching every operand
+     */
+    public static TagExpression and(TagExpression... operands) {
+        return operands.length == 1 ? operands[0] : new And(Arrays.asList(operands));
+    }
+
+    /**
+     * @param operands at least one expression
+     * @return campaigns matching any operand
+     */
+    public static TagExpression or(TagExpression... operands) {
+        return operands.length == 1 ? operands[0] : new Or(Arrays.asList(operands));
+    }
+
+    /**
+     * @param operand expression
+     * @return campaigns not matching the operand
+     */
+    public static TagExpression not(TagExpression operand) {
+        return new Not(operand);
+    }
+
+    /**
+     * Parses an expression of tag names combined with {@code AND}, {@code OR}, {@code NOT} (any
+     * case, binding in that order: NOT tightest) and parentheses. Names containing blanks,
+     * parentheses or a keyword are double quoted: {@code "Non-Brand" OR ("Paid Search" AND NOT Email)}.
+     *
+     * @param expression text to parse
+     * @param tags       resolves a tag name to its tag, null if there is no such tag
+     * @return parsed expression
+     * @throws IllegalArgumentException if the text is not a valid expression or names an unknown tag
+     */
+    public static TagExpression parse(String expression, Function<String, Tag> tags) {
+        Parser parser = new Parser(expression, tags);
+        TagExpression out = parser.orExpression();
+        if (parser.peek() != null)
+            throw new IllegalArgumentException("Unexpected '" + parser.peek() + "' in tag expression: " + expression);
+        return out;
+    }
+
+    /**
+     * @param index index to evaluate against
+     * @return ordinals of the matching campaigns, a bitmap the caller may modify
+     */
+    abstract RoaringBitmap evaluate(CampaignTagIndex index);
+
+    /**
+     * Appends an SQL condition over campaign {@code c} (a {@code meta.campaign} row) equivalent to
+     * this expression, for when no index is at hand.
+     *
+     * @param sql  statement being built
+     * @param args receives the values of the placeholders appended
+     */
+    public abstract void appendSql(StringBuilder sql, List<Object> args);
+
+    private static final class TagTerm extends TagExpression {
+        private final long tagId;
+
+        TagTerm(long tagId) {
+            this.tagId = tagId;
+        }
+
+        @Override
+        RoaringBitmap evaluate(CampaignTagIndex index) {
+            return index.tagged(tagId).clone();
+        }
+
+        @Override
+        public void appendSql(StringBuilder sql, List<Object> args) {
+            sql.append("EXISTS (SELECT 1 FROM meta.campaign_tags ct WHERE ct.campaign = c.tracker AND ct.tag = ?)");
+            args.add(tagId);
+        }
+
+        @Override
+        public String toString() {
+            return "#" + tagId;
+        }
+    }
+
+    private static final class And extends TagExpression {
+        private final List<TagExpression> operands;
+
+        And(List<TagExpression> operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        RoaringBitmap evaluate(CampaignTagIndex index) {
+            // negated operands are subtracted instead of being complemented against every campaign
+            RoaringBitmap out = null;
+            List<TagExpression> excluded = new ArrayList<>();
+            for (TagExpression operand : operands) {
+                if (operand instanceof Not) {
+                    excluded.add(((Not) operand).operand);
+                } else if (out == null) {
+                    out = operand.evaluate(index);
+                } else {
+                    out.and(operand.evaluate(index));
+                }
+            }
+            if (out == null)
+                out = index.all();
+            for (TagExpression operand : excluded)
+                out.andNot(operand.evaluate(index));
+            return out;
+        }
+
+        @Override
+        public void appendSql(StringBuilder sql, List<Object> args) {
+            appendOperands(sql, args, operands, " AND ");
+        }
+
+        @Override
+        public String toString() {
+            return operands.stream().map(Object::toString).collect(Collectors.joining(" AND ", "(", ")"));
+        }
+    }
+
+    private static final class Or extends TagExpression {
+        private final List<TagExpression> operands;
+
+        Or(List<TagExpression> operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        RoaringBitmap evaluate(CampaignTagIndex index) {
+            Iterator<TagExpression> it = operands.iterator();
+            return FastAggregation.or(new Iterator<RoaringBitmap>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public RoaringBitmap next() {
+                    return it.next().evaluate(index);
+                }
+            });
+        }
+
+        @Override
+        public void appendSql(StringBuilder sql, List<Object> args) {
+            appendOperands(sql, args, operands, " OR ");
+        }
+
+        @Override
+        public String toString() {
+            return operands.stream().map(Object::toString).collect(Collectors.joining(" OR ", "(", ")"));
+        }
+    }
+
+    private static final class Not extends TagExpression {
+        private final TagExpression operand;
+
+        Not(TagExpression operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        RoaringBitmap evaluate(CampaignTagIndex index) {
+            RoaringBitmap out = index.all();
+            out.andNot(operand.evaluate(index));
+            return out;
+        }
+
+        @Override
+        public void appendSql(StringBuilder sql, List<Object> args) {
+            sql.append("NOT ");
+            operand.appendSql(sql, args);
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + operand;
+        }
+    }
+
+    private static void appendOperands(StringBuilder sql, List<Object> args, List<TagExpression> operands, String operator) {
+        sql.append('(');
+        for (int i = 0; i < operands.size(); i++) {
+            if (i > 0)
+                sql.append(operator);
+            operands.get(i).appendSql(sql, args);
+        }
+        sql.append(')');
+    }
+
+    /**
+     * Recursive descent over the tokens of the expression: or := and (OR and)*, and := unary (AND unary)*,
+     * unary := NOT unary | ( or ) | name.
+     */
+    private static final class Parser {
+        private final String text;
+        private final Function<String, Tag> tags;
+        private final List<String> tokens = new ArrayList<>();
+        private final List<Boolean> quoted = new ArrayList<>();
+        private int position;
+
+        Parser(String text, Function<String, Tag> tags) {
+            this.text = text;
+            this.tags = tags;
+            tokenize();
+        }
+
+        private void tokenize() {
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '(' || c == ')') {
+                    tokens.add(String.valueOf(c));
+                    quoted.add(false);
+                    i++;
+                } else if (c == '"') {
+                    int end = text.indexOf('"', i + 1);
+                    if (end < 0)
+                        throw new IllegalArgumentException("Unterminated quote in tag expression: " + text);
+                    tokens.add(text.substring(i + 1, end));
+                    quoted.add(true);
+                    i = end + 1;
+                } else {
+                    int start = i;
+                    while (i < text.length() && !Character.isWhitespace(text.charAt(i)) && "()\"".indexOf(text.charAt(i)) < 0)
+                        i++;
+                    tokens.add(text.substring(start, i));
+                    quoted.add(false);
+                }
+            }
+        }
+
+        String peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        private boolean accept(String keyword) {
+            String token = peek();
+            if (token != null && !quoted.get(position) && token.toUpperCase(Locale.ROOT).equals(keyword)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        TagExpression orExpression() {
+            List<TagExpression> operands = new ArrayList<>();
+            operands.add(andExpression());
+            while (accept("OR"))
+                operands.add(andExpression());
+            return or(operands.toArray(new TagExpression[0]));
+        }
+
+        private TagExpression andExpression() {
+            List<TagExpression> operands = new ArrayList<>();
+            operands.add(unary());
+            while (accept("AND"))
+                operands.add(unary());
+            return and(operands.toArray(new TagExpression[0]));
+        }
+
+        private TagExpression unary() {
+            if (accept("NOT"))
+                return not(unary());
+            if (accept("(")) {
+                TagExpression out = orExpression();
+                if (!accept(")"))
+                    throw new IllegalArgumentException("Missing ')' in tag expression: " + text);
+                return out;
+            }
+            String name = peek();
+            if (name == null || (!quoted.get(position) && (name.equals(")") || isKeyword(name))))
+                throw new IllegalArgumentException("Tag name expected at '" + (name == null ? "end" : name) +
+                        "' in tag expression: " + text);
+            position++;
+            Tag tag = tags.apply(name);
+            if (tag == null)
+                throw new IllegalArgumentException("Unknown tag '" + name + "' in tag expression: " + text);
+            return tag(tag);
+        }
+
+        private static boolean isKeyword(String token) {
+            String upper = token.toUpperCase(Locale.ROOT);
+            return upper.equals("AND") || upper.equals("OR") || upper.equals("NOT");
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.stridetech.mcm.dao.index;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Status histories of every entity of one kind (business units, marketplaces, ...), answering
+ * "what was the status of X at time T" with one binary search per entity.
+ *
+ * @param <K> entity key
+ * @param <S> status enum
+ */
+public class TemporalStatusIndex<K, S extends Enum<S>> {
+
+    private final ConcurrentHashMap<K, StatusTimeline<S>> timelines = new ConcurrentHashMap<>();
+
+    /**
+     * @param key           entity
+     * @param effectiveDate date the status becomes effective
+     * @param changeNumber  changelog sequence number
+     * @param status        status entered
+     */
+    public void record(K key, Date effectiveDate, long changeNumber, S status) {
+        record(key, effectiveDate.getTime(), changeNumber, status);
+    }
+
+    /**
+     * @param key           entity
+     * @param effectiveDate epoch milliseconds the status becomes effective
+     * @param changeNumber  changelog sequence number
+     * @param status        status entered
+     */
+    public void record(K key, long effectiveDate, long changeNumber, S status) {
+        timelines.computeIfAbsent(key, k -> new StatusTimeline<>()).add(effectiveDate, changeNumber, status);
+    }
+
+    /**
+     * Swaps in the history of an entity read again from its changelog.
+     *
+     * @param key      entity
+     * @param timeline whole history of the entity, empty if it has none any more
+     */
+    public void replace(K key, StatusTimeline<S> timeline) {
+        if (timeline.size() == 0)
+            timelines.remove(key);
+        else
+            timelines.put(key, timeline);
+    }
+
+    /**
+     * @param key  entity
+     * @param when point in time
+     * @return status change in effect at {@code when}, null if the entity had no status yet
+     */
+    public StatusChange<S> statusAt(K key, Date when) {
+        StatusTimeline<S> timeline = timelines.get(key);
+        return timeline == null ? null : timeline.at(when.getTime());
+    }
+
+    /**
+     * @param when point in time
+     * @return status change in effect at {@code when} of every entity that had one
+     */
+    public Map<K, StatusChange<S>> statusesAt(Date when) {
+        long time = when.getTime();
+        Map<K, StatusChange<S>> out = new HashMap<>(timelines.size() * 2);
+        timelines.forEach((key, timeline) -> {
+            StatusChange<S> change = timeline.at(time);
+            if (change != null)
+                out.put(key, change);
+        });
+        return out;
+    }
+
+    /**
+     * @param key entity
+     * @return whole history of the entity, null if unknown
+     */
+    public StatusTimeline<S> timeline(K key) {
+        return timelines.get(key);
+    }
+
+    /**
+     * @return number of entities with a history
+     */
+    public int entityCount() {
+        return timelines.size();
+    }
+
+    /**
+     * @return total number of changelog entries held
+     */
+    public long entryCount() {
+        long count = 0;
+        for (StatusTimeline<S> timeline : timelines.values())
+            count += timeline.size();
+        return count;
+    }
+
+    /**
+     * Forgets every history.
+     */
+    public void clear() {
+        timelines.clear();
+    }
+}
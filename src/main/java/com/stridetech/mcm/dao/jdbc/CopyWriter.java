@@ -0,0 +1,89 @@
+package com.stridetech.mcm.dao.jdbc;
+
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+
+/**
+ * Streams rows into a {@code COPY ... FROM STDIN} (text format), one column at a time.
+ */
+public class CopyWriter implements AutoCloseable {
+
+    private static final int FLUSH_AT = 1 << 16;
+
+    private final CopyIn copyIn;
+    private final StringBuilder buffer = new StringBuilder(FLUSH_AT + 1024);
+    private boolean rowStarted;
+    private boolean finished;
+
+    public CopyWriter(CopyManager copyManager, String copySql) throws SQLException {
+        this.copyIn = copyManager.copyIn(copySql);
+    }
+
+    /**
+     * @param value column value, null for SQL NULL; written with {@code toString()}
+     * @return this writer
+     */
+    public CopyWriter add(Object value) {
+        if (rowStarted)
+            buffer.append('\t');
+        rowStarted = true;
+        if (value == null) {
+            buffer.append("\\N");
+            return this;
+        }
+        String s = value.toString();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    buffer.append("\\\\");
+                    break;
+                case '\t':
+                    buffer.append("\\t");
+                    break;
+                case '\n':
+                    buffer.append("\\n");
+                    break;
+                case '\r':
+                    buffer.append("\\r");
+                    break;
+                default:
+                    buffer.append(c);
+            }
+        }
+        return this;
+    }
+
+    public void endRow() throws SQLException {
+        buffer.append('\n');
+        rowStarted = false;
+        if (buffer.length() >= FLUSH_AT)
+            flush();
+    }
+
+    /**
+     * @return number of rows copied
+     */
+    public long finish() throws SQLException {
+        flush();
+        finished = true;
+        return copyIn.endCopy();
+    }
+
+    private void flush() throws SQLException {
+        if (buffer.length() == 0)
+            return;
+        byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+        buffer.setLength(0);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (!finished && copyIn.isActive())
+            copyIn.cancelCopy();
+    }
+}
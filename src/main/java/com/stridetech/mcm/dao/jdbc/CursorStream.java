@@ -0,0 +1,137 @@
+package com.stridetech.mcm.dao.jdbc;
+
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.SQLExceptionTranslator;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs a query on a server side cursor and hands its rows out one at a time as a {@link Stream}.
+ * <p>
+ * The PostgreSQL driver only fetches {@code fetchSize} rows per round trip when autocommit is off,
+ * otherwise it reads the whole result into memory on the first {@code next()}. Outside of a
+ * transaction the stream therefore borrows a connection of its own, turns autocommit off for as long
+ * as it is open and restores it on close; inside a transaction it reads on the transaction's
+ * connection, which stays the transaction's to commit.
+ * <p>
+ * The statement and connection are held until the stream is closed, so callers must close it,
+ * best with try-with-resources. Running off the end of the rows closes it as well.
+ */
+public final class CursorStream<T> implements AutoCloseable {
+
+    private final DataSource dataSource;
+    private final SQLExceptionTranslator exceptionTranslator;
+    private final String sql;
+    private Connection connection;
+    private boolean restoreAutoCommit;
+    private PreparedStatement statement;
+    private ResultSet resultSet;
+    private boolean closed;
+
+    private CursorStream(DataSource dataSource, SQLExceptionTranslator exceptionTranslator, String sql) {
+        this.dataSource = dataSource;
+        this.exceptionTranslator = exceptionTranslator;
+        this.sql = sql;
+    }
+
+    /**
+     * @param dataSource          data source to read from
+     * @param exceptionTranslator translates SQL errors, as the JdbcTemplate of the caller would
+     * @param fetchSize           rows fetched per round trip
+     * @param sql                 query, ordered the way the rows are to be delivered
+     * @param statementSetter     binds the values of the query's placeholders, null if there are none
+     * @param rowMapper           maps a row; rows mapped to null are skipped
+     * @param <T>                 element type
+     * @return open stream of the mapped rows, in the order of the query
+     */
+    public static <T> Stream<T> stream(DataSource dataSource, SQLExceptionTranslator exceptionTranslator, int fetchSize,
+                                       String sql, PreparedStatementSetter statementSetter, RowMapper<T> rowMapper) {
+        CursorStream<T> cursor = new CursorStream<>(dataSource, exceptionTranslator, sql);
+        try {
+            cursor.open(fetchSize, statementSetter);
+        } catch (SQLException e) {
+            cursor.close();
+            throw exceptionTranslator.translate("CursorStream", cursor.sql, e);
+        } catch (RuntimeException | Error e) {
+            cursor.close();
+            throw e;
+        }
+        return StreamSupport.stream(cursor.spliterator(rowMapper), false)
+                .onClose(cursor::close)
+                .filter(Objects::nonNull);
+    }
+
+    private void open(int fetchSize, PreparedStatementSetter statementSetter) throws SQLException {
+        connection = DataSourceUtils.getConnection(dataSource);
+        if (connection.getAutoCommit()) {
+            connection.setAutoCommit(false);
+            restoreAutoCommit = true;
+        }
+        statement = connection.prepareStatement(sql);
+        statement.setFetchSize(fetchSize);
+        if (statementSetter != null)
+            statementSetter.setValues(statement);
+        resultSet = statement.executeQuery();
+    }
+
+    private Spliterator<T> spliterator(RowMapper<T> rowMapper) {
+        return new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED) {
+            private int rowNum;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                if (closed)
+                    return false;
+                try {
+                    if (!resultSet.next()) {
+                        close();
+                        return false;
+                    }
+                    action.accept(rowMapper.mapRow(resultSet, rowNum++));
+                    return true;
+                } catch (SQLException e) {
+                    close();
+                    throw exceptionTranslator.translate("CursorStream", sql, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Closes the cursor and gives the connection back; called by {@link Stream#close()}. Idempotent.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        JdbcUtils.closeResultSet(resultSet);
+        JdbcUtils.closeStatement(statement);
+        if (connection == null)
+            return;
+        try {
+            if (restoreAutoCommit) {
+                // nothing was written; ends the read transaction the cursor lived in
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw exceptionTranslator.translate("CursorStream", sql, e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+}
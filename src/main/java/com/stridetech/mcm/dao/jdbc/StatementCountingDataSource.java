@@ -0,0 +1,97 @@
+package com.stridetech.mcm.dao.jdbc;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DataSource decorator counting the SQL statements created on the connections it hands out.
+ * Every {@code createStatement}, {@code prepareStatement} and {@code prepareCall} counts as one
+ * statement, both globally and for the calling thread, which is what we need to tell how many
+ * round trips a single DAO call costs.
+ */
+public class StatementCountingDataSource extends DelegatingDataSource {
+
+    private final AtomicLong statementCount = new AtomicLong();
+    private final ThreadLocal<long[]> threadStatementCount = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * @param targetDataSource
+     */
+    public StatementCountingDataSource(DataSource targetDataSource) {
+        super(targetDataSource);
+    }
+
+    /**
+     * @return number of statements created through this data source by all threads
+     */
+    public long getStatementCount() {
+        return statementCount.get();
+    }
+
+    /**
+     * @return number of statements created through this data source by the calling thread
+     */
+    public long getThreadStatementCount() {
+        return threadStatementCount.get()[0];
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return countingConnection(super.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return countingConnection(super.getConnection(username, password));
+    }
+
+    private Connection countingConnection(Connection target) {
+        return (Connection) Proxy.newProxyInstance(
+                StatementCountingDataSource.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new CountingInvocationHandler(target));
+    }
+
+    private class CountingInvocationHandler implements InvocationHandler {
+        private final Connection target;
+
+        CountingInvocationHandler(Connection target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "createStatement":
+                case "prepareStatement":
+                case "prepareCall":
+                    statementCount.incrementAndGet();
+                    threadStatementCount.get()[0]++;
+                    break;
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(proxy))
+                        return proxy;
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+        }
+    }
+}
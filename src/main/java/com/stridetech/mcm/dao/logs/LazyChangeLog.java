@@ -0,0 +1,55 @@
+package com.stridetech.mcm.dao.logs;
+
+import com.stridetech.mcm.model.logs.ChangeLog;
+import com.stridetech.mcm.model.logs.ChangeLogEntry;
+
+import java.util.SortedSet;
+import java.util.function.Supplier;
+
+/**
+ * Changelog read on first use. Writes return the entry they append, a caller who then wants the
+ * whole history holds one of these and pays for reading it only if it actually looks.
+ *
+ * @param <T> value type of the changelog
+ */
+public class LazyChangeLog<T> {
+
+    private final Supplier<ChangeLog<T>> loader;
+    private volatile ChangeLog<T> changeLog;
+
+    /**
+     * @param loader reads the changelog, called at most once
+     */
+    public LazyChangeLog(Supplier<ChangeLog<T>> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * @return the changelog, read now if it was not yet
+     */
+    public ChangeLog<T> get() {
+        ChangeLog<T> out = changeLog;
+        if (out == null) {
+            synchronized (this) {
+                out = changeLog;
+                if (out == null)
+                    changeLog = out = loader.get();
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return entries of the changelog, read now if it was not yet
+     */
+    public SortedSet<ChangeLogEntry<T>> getChangeLogs() {
+        return get().getChangeLogs();
+    }
+
+    /**
+     * @return true once the changelog has been read
+     */
+    public boolean isLoaded() {
+        return changeLog != null;
+    }
+}
@@ -0,0 +1,83 @@
+package com.stridetech.mcm.dao.logs;
+
+import java.sql.Timestamp;
+import java.util.Objects;
+
+/**
+ * Position in the upload log history, most recent first: the upload date and file name of the last
+ * log of a page. The next page starts right after it, read from the index wherever it is, so that
+ * a page months back costs the same as the first one.
+ * <p>
+ * The upload date keeps the database's sub-millisecond precision, which {@link java.util.Date}
+ * would lose. {@link #toToken()} and {@link #parse(String)} carry the cursor through a client.
+ */
+public final class UploadLogCursor {
+
+    private final Timestamp uploadDate;
+    private final String filename;
+
+    /**
+     * @param uploadDate upload date of the last log seen
+     * @param filename   its file name, null taken as empty as in the ordering of the logs
+     */
+    public UploadLogCursor(Timestamp uploadDate, String filename) {
+        if (uploadDate == null)
+            throw new IllegalArgumentException("A cursor needs an upload date");
+        this.uploadDate = uploadDate;
+        this.filename = filename == null ? "" : filename;
+    }
+
+    public Timestamp getUploadDate() {
+        return uploadDate;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * @return the cursor as an opaque string, see {@link #parse(String)}
+     */
+    public String toToken() {
+        return Math.floorDiv(uploadDate.getTime(), 1000) + "." + uploadDate.getNanos() + ":" + filename;
+    }
+
+    /**
+     * @param token as returned by {@link #toToken()}
+     * @return the cursor
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static UploadLogCursor parse(String token) {
+        int dot = token == null ? -1 : token.indexOf('.');
+        int colon = dot < 0 ? -1 : token.indexOf(':', dot);
+        if (colon < 0)
+            throw new IllegalArgumentException("Malformed upload log cursor " + token);
+        try {
+            Timestamp uploadDate = new Timestamp(Long.parseLong(token.substring(0, dot)) * 1000);
+            uploadDate.setNanos(Integer.parseInt(token.substring(dot + 1, colon)));
+            return new UploadLogCursor(uploadDate, token.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed upload log cursor " + token, e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof UploadLogCursor))
+            return false;
+        UploadLogCursor other = (UploadLogCursor) o;
+        return uploadDate.equals(other.uploadDate) && filename.equals(other.filename);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(uploadDate, filename);
+    }
+
+    @Override
+    public String toString() {
+        return uploadDate + " " + filename;
+    }
+}
@@ -0,0 +1,66 @@
+package com.stridetech.mcm.dao.logs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.time.Clock;
+import java.time.YearMonth;
+import java.util.List;
+
+/**
+ * Scheduled upkeep of the {@link UploadLogPartitions upload log partitions}: creates those of the
+ * current and next months and expires those past retention. Runs on the
+ * {@code mcm.dao.upload-logs.cron} schedule (nightly by default) and once when the bean is created.
+ * Every step is idempotent, so nodes running it at the same time do no harm.
+ */
+public class UploadLogMaintenance {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadLogMaintenance.class);
+
+    private final UploadLogPartitions partitions;
+    private Clock clock = Clock.systemDefaultZone();
+    private int monthsAhead = 2;
+    private int retentionMonths = 0;
+    private String archiveSchema;
+
+    public UploadLogMaintenance(UploadLogPartitions partitions) {
+        this.partitions = partitions;
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @param monthsAhead partitions created from the current month on, so that inserts never have to
+     */
+    public void setMonthsAhead(int monthsAhead) {
+        this.monthsAhead = monthsAhead;
+    }
+
+    /**
+     * @param retentionMonths months kept besides the current one, 0 to keep everything
+     */
+    public void setRetentionMonths(int retentionMonths) {
+        this.retentionMonths = retentionMonths;
+    }
+
+    /**
+     * @param archiveSchema schema expired partitions are moved to, null to drop them
+     */
+    public void setArchiveSchema(String archiveSchema) {
+        this.archiveSchema = archiveSchema;
+    }
+
+    @Scheduled(cron = "${mcm.dao.upload-logs.cron:0 15 3 * * *}")
+    public void run() {
+        YearMonth current = YearMonth.now(clock);
+        partitions.create(current, Math.max(1, monthsAhead));
+        if (retentionMonths > 0) {
+            List<String> expired = partitions.expire(current.minusMonths(retentionMonths), archiveSchema);
+            if (!expired.isEmpty())
+                LOGGER.info("Expired {} upload log partitions before {}", expired.size(), current.minusMonths(retentionMonths));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.stridetech.mcm.dao.logs;
+
+import com.stridetech.mcm.model.meta.UploadLog;
+
+import java.util.List;
+
+/**
+ * One page of upload log history, most recent first, and where the next one starts.
+ */
+public final class UploadLogPage {
+
+    private final List<UploadLog> logs;
+    private final UploadLogCursor next;
+
+    public UploadLogPage(List<UploadLog> logs, UploadLogCursor next) {
+        this.logs = logs;
+        this.next = next;
+    }
+
+    /**
+     * @return logs of the page, most recent first
+     */
+    public List<UploadLog> getLogs() {
+        return logs;
+    }
+
+    /**
+     * @return cursor to read the next page with, null when this is the last page
+     */
+    public UploadLogCursor getNext() {
+        return next;
+    }
+
+    public boolean hasNext() {
+        return next != null;
+    }
+}
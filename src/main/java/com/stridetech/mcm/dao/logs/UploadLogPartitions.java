@@ -0,0 +1,137 @@
+package com.stridetech.mcm.dao.logs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Date;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Monthly partitions of {@code logs.feed_upload_log} and {@code logs.feedhandler_log}, see the DDL:
+ * creates them ahead of time, so that inserts don't have to, and expires old ones, dropped or moved
+ * to an archive schema whole. Expiring a month is a catalog change taking a moment rather than a
+ * DELETE leaving dead rows and index entries behind.
+ */
+public class UploadLogPartitions {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadLogPartitions.class);
+
+    private static final Pattern PARTITION = Pattern.compile("(feed_upload_log|feedhandler_log)_y(\\d{4})m(\\d{2})");
+
+    private final JdbcTemplate jdbcTemplate;
+    private PlatformTransactionManager transactionManager;
+    private int lockTimeoutMillis = 5000;
+
+    public UploadLogPartitions(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.transactionManager = new DataSourceTransactionManager(dataSource);
+    }
+
+    /**
+     * @param transactionManager manager of the transactions expiring partitions; defaults to one of the
+     *                           data source's own
+     */
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+    }
+
+    /**
+     * @param lockTimeoutMillis how long to wait for the locks expiring a partition takes, after which
+     *                          the partition is left for the next run rather than queueing every
+     *                          reader of the logs behind a long running one
+     */
+    public void setLockTimeoutMillis(int lockTimeoutMillis) {
+        this.lockTimeoutMillis = lockTimeoutMillis;
+    }
+
+    /**
+     * Creates the partitions of the given months of both logs, those missing.
+     *
+     * @param from   first month
+     * @param months number of months from the first one
+     */
+    public void create(YearMonth from, int months) {
+        for (int i = 0; i < months; i++)
+            jdbcTemplate.queryForObject("SELECT logs.create_log_partitions(?)", Object.class,
+                    Date.valueOf(from.plusMonths(i).atDay(1)));
+    }
+
+    /**
+     * @return the partitions of both logs, by month
+     */
+    public SortedMap<YearMonth, List<String>> list() {
+        SortedMap<YearMonth, List<String>> out = new TreeMap<>();
+        jdbcTemplate.query(
+                "SELECT c.relname FROM pg_inherits i\n" +
+                "  JOIN pg_class c ON c.oid = i.inhrelid\n" +
+                "  JOIN pg_class p ON p.oid = i.inhparent\n" +
+                "  JOIN pg_namespace n ON n.oid = p.relnamespace\n" +
+                "WHERE n.nspname = 'logs' AND p.relname IN ('feed_upload_log', 'feedhandler_log')\n" +
+                "ORDER BY c.relname",
+                resultSet -> {
+                    String name = resultSet.getString(1);
+                    Matcher matcher = PARTITION.matcher(name);
+                    if (matcher.matches()) {
+                        YearMonth month = YearMonth.of(Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)));
+                        out.computeIfAbsent(month, m -> new ArrayList<>()).add(name);
+                    }
+                });
+        return out;
+    }
+
+    /**
+     * Expires the partitions of the months before the given one, each on its own: moved
+     * out of the logs to the archive schema, still there to be dumped or queried, or dropped.
+     *
+     * @param before        first month kept
+     * @param archiveSchema schema to move expired partitions to, created if missing; null to drop them
+     * @return names of the partitions expired; those whose locks could not be had in time are not,
+     *         they are left for the next run
+     */
+    public List<String> expire(YearMonth before, String archiveSchema) {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        // a savepoint within the caller's transaction, if any, so that a partition failing leaves the others be
+        transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_NESTED);
+        List<String> out = new ArrayList<>();
+        for (Map.Entry<YearMonth, List<String>> month : list().headMap(before).entrySet()) {
+            for (String partition : month.getValue()) {
+                try {
+                    transactionTemplate.execute(status -> {
+                        jdbcTemplate.execute("SET LOCAL lock_timeout = " + lockTimeoutMillis);
+                        if (archiveSchema == null) {
+                            jdbcTemplate.execute("DROP TABLE logs." + partition);
+                        } else {
+                            String parent = partition.substring(0, partition.lastIndexOf("_y"));
+                            jdbcTemplate.execute("CREATE SCHEMA IF NOT EXISTS " + quote(archiveSchema));
+                            jdbcTemplate.execute("ALTER TABLE logs." + partition + " NO INHERIT logs." + parent);
+                            jdbcTemplate.execute("ALTER TABLE logs." + partition + " SET SCHEMA " + quote(archiveSchema));
+                        }
+                        return null;
+                    });
+                    out.add(partition);
+                    LOGGER.info("{} upload log partition {} of {}", archiveSchema == null ? "Dropped" : "Archived", partition, month.getKey());
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Upload log partition {} could not be expired, left for the next run: {}", partition, e.getMessage());
+                }
+            }
+        }
+        return out;
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,401 @@
+package com.stridetech.mcm.dao.logs;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingTimeWindowReservoir;
+import com.codahale.metrics.Timer;
+import com.stridetech.mcm.model.meta.UploadLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-behind buffer of upload log writes, {@link #logFileUpload(UploadLog) new logs} and
+ * {@link #updateParserStatus(String, String) parser status updates}: callers only queue them, a
+ * background thread writes them in batches, every {@code flushIntervalMillis} or as soon as
+ * {@code batchSize} are queued, each batch with one INSERT and one UPDATE in one transaction.
+ * Status updates of the same file in a batch collapse into the last one.
+ * <p>
+ * The queue is lock-free and bounded: a writer finding it full flushes it itself, so that a burst
+ * slows callers down to the pace of the database rather than growing without bound or losing
+ * writes. Writes are committed in their own transactions, not in the caller's, and are written in
+ * the order they were queued. A batch holding a write the database rejects as invalid, e.g. one
+ * violating a constraint, is written again one write at a time, so that one bad row costs only
+ * itself: writes rejected on their own are logged, counted and dropped.
+ * <p>
+ * Any other failure, e.g. the database being unavailable, leaves the writes not written at the head
+ * of the queue, still counted against its capacity. The background thread tries them again after a
+ * delay doubling with every failed attempt, from the flush interval up to a minute. Meanwhile a
+ * writer finding the queue full, or a reader flushing it, tries at once and gets the failure, as it
+ * would writing directly.
+ * <p>
+ * {@link #close()} stops the background thread and flushes what is left, so nothing queued before
+ * shutdown is lost; writes after that are refused and made by the caller directly.
+ * <p>
+ * With {@link #registerMetrics(MetricRegistry)} the buffer publishes, under
+ * {@code com.stridetech.mcm.dao.logs.UploadLogWriteBehind}:
+ * <ul>
+ * <li>{@code queue.depth}: gauge of the writes queued or being written</li>
+ * <li>{@code flush}: timer of the flushes, i.e. the delay writes add to a reader waiting for them</li>
+ * <li>{@code batch.size}: histogram of the writes per flush</li>
+ * <li>{@code blocked}: number of writes that found the queue full and flushed it</li>
+ * <li>{@code failed}: number of writes rejected as invalid, and dropped</li>
+ * </ul>
+ */
+public class UploadLogWriteBehind implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadLogWriteBehind.class);
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final String INSERT =
+            "INSERT INTO logs.feed_upload_log (uploadtype_id, email, upload_date, original_filename, status, parser_status, filename)\n" +
+            "SELECT uploadtype_id, email, upload_date, original_filename, status, '', filename\n" +
+            "FROM unnest(?::integer[], ?::varchar[], ?::timestamp[], ?::varchar[], ?::varchar[], ?::varchar[])\n" +
+            "  AS u(uploadtype_id, email, upload_date, original_filename, status, filename)";
+
+    private static final String UPDATE =
+            "UPDATE logs.feed_upload_log l SET parser_status = u.parser_status\n" +
+            "FROM unnest(?::varchar[], ?::varchar[]) AS u(filename, parser_status)\n" +
+            "WHERE l.filename = u.filename";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final int capacity;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final ConcurrentLinkedDeque<Write> queue = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService flusher;
+    /**
+     * Failed flushes in a row and when the background thread tries again, guarded by flushLock
+     */
+    private int failedFlushes;
+    private long retryAtMillis;
+    private volatile boolean closed;
+
+    private final Timer flushes = new Timer();
+    private final Histogram batchSizes = new Histogram(new SlidingTimeWindowReservoir(5, TimeUnit.MINUTES));
+    private final Counter blocked = new Counter();
+    private final Counter failed = new Counter();
+
+    /**
+     * @param dataSource          data source written to, in transactions of its own
+     * @param capacity            number of writes queued at most
+     * @param batchSize           number of writes queued that triggers a flush, and at most written by one
+     * @param flushIntervalMillis time after which queued writes are flushed however few
+     */
+    public UploadLogWriteBehind(DataSource dataSource, int capacity, int batchSize, long flushIntervalMillis) {
+        if (capacity <= 0 || batchSize <= 0 || flushIntervalMillis <= 0)
+            throw new IllegalArgumentException("Capacity, batch size and flush interval must be positive");
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.capacity = capacity;
+        this.batchSize = Math.min(batchSize, capacity);
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mcm-upload-log-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param registry registry to publish the queue and flush metrics in
+     */
+    public void registerMetrics(MetricRegistry registry) {
+        registry.register(MetricRegistry.name(UploadLogWriteBehind.class, "queue", "depth"), (Gauge<Integer>) queued::get);
+        registry.register(MetricRegistry.name(UploadLogWriteBehind.class, "flush"), flushes);
+        registry.register(MetricRegistry.name(UploadLogWriteBehind.class, "batch", "size"), batchSizes);
+        registry.register(MetricRegistry.name(UploadLogWriteBehind.class, "blocked"), blocked);
+        registry.register(MetricRegistry.name(UploadLogWriteBehind.class, "failed"), failed);
+    }
+
+    /**
+     * @param log new upload log, copied as queued so the caller may change it afterwards
+     * @return false if the buffer is closed, the caller then has to write the log itself
+     */
+    public boolean logFileUpload(UploadLog log) {
+        return add(new Write(copy(log), null, null));
+    }
+
+    /**
+     * @param filename     file of the upload log
+     * @param parserStatus its new parser status
+     * @return false if the buffer is closed, the caller then has to write the status itself
+     */
+    public boolean updateParserStatus(String filename, String parserStatus) {
+        return add(new Write(null, filename, parserStatus));
+    }
+
+    /**
+     * @return number of writes queued or being written
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public long getBlockedCount() {
+        return blocked.getCount();
+    }
+
+    public long getFailedCount() {
+        return failed.getCount();
+    }
+
+    private boolean add(Write write) {
+        if (closed)
+            return false;
+        while (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            blocked.inc();
+            flush();
+        }
+        queue.add(write);
+        if (closed) {
+            // closed meanwhile, the last flush may have missed this one
+            flush();
+        } else if (queued.get() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flushQuietly);
+            } catch (RejectedExecutionException e) {
+                flush();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes everything queued so far, e.g. before reading the upload logs. Returns at once when
+     * nothing is queued; waits for a flush under way otherwise. Writes on a connection of its own,
+     * in transactions of their own: called inside a transaction, it takes a second connection, and
+     * a repeatable read transaction already under way won't see what it wrote.
+     *
+     * @throws RuntimeException a {@code DataAccessException} or {@code TransactionException} if the
+     *                          database could not be written, the writes not written then stay queued
+     */
+    public void flush() {
+        if (queued.get() == 0)
+            return;
+        synchronized (flushLock) {
+            flushRequested.set(false);
+            try {
+                List<Write> batch = new ArrayList<>(batchSize);
+                Write write;
+                while ((write = queue.poll()) != null) {
+                    batch.add(write);
+                    if (batch.size() == batchSize) {
+                        write(batch);
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty())
+                    write(batch);
+                failedFlushes = 0;
+            } catch (RuntimeException e) {
+                failedFlushes++;
+                long delay = Math.min(MAX_RETRY_DELAY_MILLIS, flushIntervalMillis << Math.min(failedFlushes - 1, 16));
+                retryAtMillis = System.currentTimeMillis() + delay;
+                LOGGER.warn("Writing upload logs failed, {} writes kept queued, trying again in {} ms: {}",
+                        queued.get(), delay, e.getMessage());
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return the fields of a log that are written
+     */
+    private static UploadLog copy(UploadLog log) {
+        UploadLog out = new UploadLog();
+        out.setUploadtypeID(log.getUploadtypeID());
+        out.setEmail(log.getEmail());
+        out.setUploadDate(log.getUploadDate() == null ? null : new Date(log.getUploadDate().getTime()));
+        out.setOriginalFilename(log.getOriginalFilename());
+        out.setUploadStatus(log.getUploadStatus());
+        out.setFilename(log.getFilename());
+        return out;
+    }
+
+    private void flushQuietly() {
+        synchronized (flushLock) {
+            if (failedFlushes > 0 && System.currentTimeMillis() < retryAtMillis)
+                return;
+        }
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOGGER.error("Flushing upload log writes failed", e);
+        }
+    }
+
+    /**
+     * Writes a batch polled from the queue, and only then stops counting it as queued, so that a
+     * reader finding none queued finds them all written.
+     *
+     * @throws RuntimeException if the database could not be written, the writes not written are
+     *                          then back at the head of the queue
+     */
+    private void write(List<Write> batch) {
+        try (Timer.Context ignored = flushes.time()) {
+            batchSizes.update(batch.size());
+            try {
+                writeInTransaction(batch);
+            } catch (DataIntegrityViolationException e) {
+                LOGGER.warn("Writing {} upload log writes at once failed, writing them one by one: {}", batch.size(), e.getMessage());
+                for (int i = 0; i < batch.size(); i++) {
+                    Write write = batch.get(i);
+                    try {
+                        writeInTransaction(Collections.singletonList(write));
+                    } catch (DataIntegrityViolationException invalid) {
+                        failed.inc();
+                        LOGGER.error("Upload log write {} rejected, dropped", write, invalid);
+                    } catch (RuntimeException unavailable) {
+                        queued.addAndGet(-i);
+                        requeue(batch.subList(i, batch.size()));
+                        throw unavailable;
+                    }
+                }
+            } catch (RuntimeException e) {
+                requeue(batch);
+                throw e;
+            }
+            queued.addAndGet(-batch.size());
+        }
+    }
+
+    private void writeInTransaction(List<Write> batch) {
+        transactionTemplate.execute(status -> {
+            writeBatch(batch);
+            return null;
+        });
+    }
+
+    /**
+     * @param writes writes polled but not written, put back ahead of those queued since, in order
+     */
+    private void requeue(List<Write> writes) {
+        for (int i = writes.size() - 1; i >= 0; i--)
+            queue.addFirst(writes.get(i));
+    }
+
+    private void writeBatch(List<Write> batch) {
+        List<UploadLog> logs = new ArrayList<>();
+        Map<String, String> statuses = new LinkedHashMap<>();
+        // logs are written before statuses, so that a status applies to a log queued before it; a
+        // status queued before a log of the same file applies only to the logs before, write those first
+        for (Write write : batch) {
+            if (write.log != null) {
+                if (statuses.containsKey(write.log.getFilename())) {
+                    flushLogs(logs);
+                    flushStatuses(statuses);
+                }
+                logs.add(write.log);
+            } else {
+                statuses.put(write.filename, write.parserStatus);
+            }
+        }
+        flushLogs(logs);
+        flushStatuses(statuses);
+    }
+
+    private void flushLogs(List<UploadLog> logs) {
+        if (logs.isEmpty())
+            return;
+        int size = logs.size();
+        Object[] types = new Object[size], emails = new Object[size], dates = new Object[size],
+                originals = new Object[size], statuses = new Object[size], filenames = new Object[size];
+        for (int i = 0; i < size; i++) {
+            UploadLog log = logs.get(i);
+            types[i] = log.getUploadtypeID() == null ? null : log.getUploadtypeID().intValue();
+            emails[i] = log.getEmail();
+            dates[i] = log.getUploadDate() == null ? null : Timestamp.from(log.getUploadDate().toInstant());
+            originals[i] = log.getOriginalFilename();
+            statuses[i] = log.getUploadStatus();
+            filenames[i] = log.getFilename();
+        }
+        jdbcTemplate.update(connection -> {
+            PreparedStatement ps = connection.prepareStatement(INSERT);
+            ps.setArray(1, connection.createArrayOf("int4", types));
+            ps.setArray(2, connection.createArrayOf("varchar", emails));
+            ps.setArray(3, connection.createArrayOf("timestamp", dates));
+            ps.setArray(4, connection.createArrayOf("varchar", originals));
+            ps.setArray(5, connection.createArrayOf("varchar", statuses));
+            ps.setArray(6, connection.createArrayOf("varchar", filenames));
+            return ps;
+        });
+        logs.clear();
+    }
+
+    private void flushStatuses(Map<String, String> statuses) {
+        if (statuses.isEmpty())
+            return;
+        Object[] filenames = statuses.keySet().toArray();
+        Object[] parserStatuses = statuses.values().toArray();
+        jdbcTemplate.update(connection -> {
+            PreparedStatement ps = connection.prepareStatement(UPDATE);
+            ps.setArray(1, connection.createArrayOf("varchar", filenames));
+            ps.setArray(2, connection.createArrayOf("varchar", parserStatuses));
+            return ps;
+        });
+        statuses.clear();
+    }
+
+    /**
+     * Stops the background thread and writes everything still queued. Writes offered afterwards are
+     * refused, see {@link #logFileUpload(UploadLog)}.
+     *
+     * @throws RuntimeException a {@code DataAccessException} or {@code TransactionException} if the
+     *                          database could not be written, what is still queued then is lost
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        flusher.shutdown();
+        flusher.awaitTermination(10, TimeUnit.SECONDS);
+        flush();
+    }
+
+    private static final class Write {
+        final UploadLog log;
+        final String filename;
+        final String parserStatus;
+
+        Write(UploadLog log, String filename, String parserStatus) {
+            this.log = log;
+            this.filename = filename;
+            this.parserStatus = parserStatus;
+        }
+
+        @Override
+        public String toString() {
+            return log != null ? "log of " + log.getFilename() : "parser status " + parserStatus + " of " + filename;
+        }
+    }
+}
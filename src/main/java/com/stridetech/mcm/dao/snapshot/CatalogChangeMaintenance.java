@@ -0,0 +1,57 @@
+package com.stridetech.mcm.dao.snapshot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.sql.DataSource;
+
+/**
+ * Scheduled upkeep of {@code logs.catalog_change}: {@link CatalogChanges#purge(DataSource, long) purges}
+ * the records no snapshot may still catch up from. Runs on the {@code mcm.dao.catalog-changes.cron}
+ * schedule (hourly by default) and once when the bean is created.
+ * <p>
+ * Snapshots are files of the nodes, so their high-water marks are not known here. But a snapshot
+ * older than the retention is written anew rather than caught up, so every run records the current
+ * high-water mark in {@code logs.catalog_change_mark}; marks only grow, and the latest one recorded
+ * at least a retention ago is no later than that of any snapshot still in use. The records before it
+ * are purged, together with the marks no longer needed. The retention must therefore be at least the
+ * largest {@code mcm.dao.snapshot.maximum-age-minutes} of the nodes. Every step is idempotent, so
+ * nodes running it at the same time do no harm.
+ */
+public class CatalogChangeMaintenance {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CatalogChangeMaintenance.class);
+
+    private final DataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private long retentionMinutes = 1440;
+
+    public CatalogChangeMaintenance(DataSource dataSource) {
+        this.dataSource = dataSource;
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    /**
+     * @param retentionMinutes age of the oldest snapshot that may still be caught up
+     */
+    public void setRetentionMinutes(long retentionMinutes) {
+        this.retentionMinutes = retentionMinutes;
+    }
+
+    @Scheduled(cron = "${mcm.dao.catalog-changes.cron:0 45 * * * *}")
+    public void run() {
+        jdbcTemplate.update("INSERT INTO logs.catalog_change_mark (high_water_mark) " +
+                "VALUES (txid_snapshot_xmin(txid_current_snapshot())) ON CONFLICT DO NOTHING");
+        Long highWaterMark = jdbcTemplate.queryForObject(
+                "SELECT max(high_water_mark) FROM logs.catalog_change_mark WHERE taken <= now() - ? * interval '1 minute'",
+                Long.class, retentionMinutes);
+        if (highWaterMark == null)
+            return;
+        int purged = CatalogChanges.purge(dataSource, highWaterMark);
+        jdbcTemplate.update("DELETE FROM logs.catalog_change_mark WHERE high_water_mark < ?", highWaterMark);
+        if (purged > 0)
+            LOGGER.info("Purged {} catalog change records before high-water mark {}", purged, highWaterMark);
+    }
+}
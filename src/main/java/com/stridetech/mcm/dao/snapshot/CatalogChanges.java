@@ -0,0 +1,108 @@
+package com.stridetech.mcm.dao.snapshot;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Catalog changes committed after a {@link CatalogSnapshot} was taken: the keys recorded in
+ * {@code logs.catalog_change} since the snapshot's high-water mark, per entity, plus the current
+ * rows of those keys. Pass them to the snapshot's accessors to read the catalog as it is now.
+ * <p>
+ * The high-water mark is the oldest transaction still running when the snapshot was taken, so
+ * transactions that committed just before it may be read again; re-reading a row is harmless.
+ */
+public class CatalogChanges {
+
+    public static final String BUSINESS_UNIT = "business_unit";
+    public static final String MARKETPLACE = "marketplace";
+    public static final String PRODUCT = "product";
+    /**
+     * Campaign rows, their business unit link, relationship changelog, tags and metros
+     */
+    public static final String CAMPAIGN = "campaign";
+    public static final String TAG_GROUP = "tag_group";
+    public static final String TAG = "tag";
+    public static final String METRO = "metro";
+    public static final String ACCOUNT_STATUS = "account_status";
+    public static final String MARKETPLACE_STATUS = "marketplace_status";
+    public static final String PRODUCT_STATUS = "product_status";
+    public static final String CAMPAIGN_STATUS = "campaign_status";
+
+    private final long highWaterMark;
+    private final Map<String, Set<String>> keys;
+    private final CatalogSnapshot rows;
+
+    CatalogChanges(long highWaterMark, Map<String, Set<String>> keys, CatalogSnapshot rows) {
+        this.highWaterMark = highWaterMark;
+        this.keys = keys;
+        this.rows = rows;
+    }
+
+    /**
+     * Reads the changes since a high-water mark, in one repeatable read transaction.
+     *
+     * @param dataSource    catalog database
+     * @param highWaterMark {@link CatalogSnapshot#getHighWaterMark()} of the snapshot to catch up
+     * @return changes since the mark
+     */
+    public static CatalogChanges since(DataSource dataSource, long highWaterMark) {
+        return new CatalogSnapshotWriter(dataSource).changesSince(highWaterMark);
+    }
+
+    /**
+     * Deletes the change records no snapshot in use still needs.
+     *
+     * @param dataSource    catalog database
+     * @param highWaterMark high-water mark of the oldest snapshot still in use
+     * @return number of records deleted
+     */
+    public static int purge(DataSource dataSource, long highWaterMark) {
+        return new JdbcTemplate(dataSource).update("DELETE FROM logs.catalog_change WHERE txid < ?", highWaterMark);
+    }
+
+    /**
+     * @return high-water mark to read the next changes from
+     */
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @param entity one of the entity constants of this class
+     * @return keys of the entity changed since the mark, ids as decimal strings
+     */
+    public Set<String> getKeys(String entity) {
+        Set<String> out = keys.get(entity);
+        return out == null ? Collections.emptySet() : Collections.unmodifiableSet(out);
+    }
+
+    /**
+     * @return number of changed keys over all entities
+     */
+    public int size() {
+        int size = 0;
+        for (Set<String> entityKeys : keys.values())
+            size += entityKeys.size();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /**
+     * @return current rows of the changed keys
+     */
+    CatalogSnapshot getRows() {
+        return rows;
+    }
+
+    @Override
+    public String toString() {
+        return "CatalogChanges{highWaterMark=" + highWaterMark + ", keys=" + keys + '}';
+    }
+}
@@ -0,0 +1,384 @@
+package com.stridetech.mcm.dao.snapshot;
+
+import com.stridetech.mcm.model.enums.*;
+import com.stridetech.mcm.model.meta.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Point-in-time copy of the catalog ({@code meta} schema plus the status and relationship
+ * changelogs) in a compact binary file, written by {@link CatalogSnapshotWriter} and read back
+ * through a memory map, so that a replica starts from a local file instead of re-reading every
+ * table.
+ * <p>
+ * Rows are not deserialized up front: a {@link Table} reads its fields straight from the mapped
+ * file, objects are only built by the {@code businessUnits()}, {@code campaigns()}... accessors.
+ * The snapshot knows the txid high-water mark it was taken at; {@link CatalogChanges} read since
+ * that mark are laid over it by every accessor taking them.
+ * <p>
+ * File layout, big endian, version {@value #FORMAT_VERSION}:
+ * <pre>
+ * header    int magic 'MCMS', int version, long high-water mark, long created (epoch millis),
+ *           int heap offset, int heap length, int table count
+ * directory per table: int table id, int row count, int rows offset
+ * rows      per table, fixed width rows laid out as described by {@link CatalogTable}
+ * heap      strings, each an int byte length followed by its UTF-8 bytes
+ * </pre>
+ * A single mapping covers at most 2 GB, which bounds the size of a snapshot.
+ */
+public final class CatalogSnapshot {
+
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * Stored for a null LONG or TIMESTAMP column
+     */
+    public static final long NULL_LONG = Long.MIN_VALUE;
+
+    static final int MAGIC = 0x4D434D53;
+    static final int NULL_STRING = -1;
+    private static final int HEADER_SIZE = 36;
+    private static final int DIRECTORY_ENTRY_SIZE = 12;
+
+    private final ByteBuffer buffer;
+    private final long highWaterMark;
+    private final Date created;
+    private final int heapOffset;
+    private final EnumMap<CatalogTable, Table> tables = new EnumMap<>(CatalogTable.class);
+    private final Map<Integer, String> symbols = new ConcurrentHashMap<>();
+
+    private CatalogSnapshot(ByteBuffer buffer, String source) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException(source + " is not a catalog snapshot");
+        if (buffer.getInt(4) != FORMAT_VERSION)
+            throw new IOException(source + " is a version " + buffer.getInt(4) + " catalog snapshot, expected version " + FORMAT_VERSION);
+        this.highWaterMark = buffer.getLong(8);
+        this.created = new Date(buffer.getLong(16));
+        this.heapOffset = buffer.getInt(24);
+        int heapLength = buffer.getInt(28);
+        int tableCount = buffer.getInt(32);
+        if (tableCount != CatalogTable.values().length || heapOffset < 0 || heapLength < 0 ||
+                (long) heapOffset + heapLength > buffer.capacity())
+            throw new IOException(source + " is truncated or does not match the tables of this version");
+        for (int i = 0; i < tableCount; i++) {
+            int entry = HEADER_SIZE + i * DIRECTORY_ENTRY_SIZE;
+            CatalogTable table = CatalogTable.byId(buffer.getInt(entry));
+            int rowCount = buffer.getInt(entry + 4);
+            int rowsOffset = buffer.getInt(entry + 8);
+            if (table == null || tables.containsKey(table) || rowCount < 0 || rowsOffset < 0 ||
+                    (long) rowsOffset + (long) rowCount * table.getRowWidth() > heapOffset)
+                throw new IOException(source + " has a corrupt table directory");
+            tables.put(table, new Table(table, rowsOffset, rowCount));
+        }
+    }
+
+    /**
+     * Maps a snapshot file into memory.
+     *
+     * @param file written by {@link CatalogSnapshotWriter#write(Path)}
+     * @return the snapshot
+     * @throws IOException if the file can't be read, is no snapshot or one of another format version
+     */
+    public static CatalogSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(file + " is too large for a catalog snapshot");
+            // the mapping outlives the channel
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CatalogSnapshot(mapped, file.toString());
+        }
+    }
+
+    /**
+     * @param bytes snapshot built in memory
+     */
+    static CatalogSnapshot wrap(ByteBuffer bytes) {
+        try {
+            return new CatalogSnapshot(bytes, "in-memory snapshot");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static int headerSize() {
+        return HEADER_SIZE + CatalogTable.values().length * DIRECTORY_ENTRY_SIZE;
+    }
+
+    /**
+     * @param rowCounts  row count per table, in {@link CatalogTable} order
+     * @param rowOffsets rows offset per table, in {@link CatalogTable} order
+     * @return header and directory of a snapshot
+     */
+    static ByteBuffer header(long highWaterMark, long created, int heapOffset, int heapLength,
+                             int[] rowCounts, int[] rowOffsets) {
+        CatalogTable[] all = CatalogTable.values();
+        ByteBuffer header = ByteBuffer.allocate(headerSize());
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(highWaterMark).putLong(created)
+                .putInt(heapOffset).putInt(heapLength).putInt(all.length);
+        for (int i = 0; i < all.length; i++)
+            header.putInt(all[i].getId()).putInt(rowCounts[i]).putInt(rowOffsets[i]);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * @return txid below which every transaction was committed or rolled back when the snapshot was
+     * taken, the mark to read {@link CatalogChanges} from
+     */
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @return when the snapshot was taken
+     */
+    public Date getCreated() {
+        return created;
+    }
+
+    /**
+     * @param table table
+     * @return zero-copy view of the table's rows
+     */
+    public Table table(CatalogTable table) {
+        return tables.get(table);
+    }
+
+    /**
+     * Receives the rows of a table one at a time, see {@link #forEachRow}.
+     */
+    public interface RowVisitor {
+        void visit(Table table, int row);
+    }
+
+    /**
+     * Visits the current rows of a table: those of the snapshot whose entity did not change, then
+     * the re-read rows of the entities that did.
+     *
+     * @param table   table
+     * @param changes changes since the snapshot, null for the snapshot as it is
+     * @param visitor receives every row
+     */
+    public void forEachRow(CatalogTable table, CatalogChanges changes, RowVisitor visitor) {
+        Table rows = table(table);
+        Set<String> changed = changes == null ? Collections.emptySet() : changes.getKeys(table.getEntity());
+        for (int row = 0; row < rows.size(); row++)
+            if (changed.isEmpty() || !changed.contains(rows.key(row)))
+                visitor.visit(rows, row);
+        if (changes != null) {
+            Table changedRows = changes.getRows().table(table);
+            for (int row = 0; row < changedRows.size(); row++)
+                visitor.visit(changedRows, row);
+        }
+    }
+
+    /**
+     * @param changes changes since the snapshot, or null
+     * @return every business unit, deleted ones included, as listBusinessUnits builds them
+     */
+    public List<Account> businessUnits(CatalogChanges changes) {
+        List<Account> out = new ArrayList<>();
+        forEachRow(CatalogTable.BUSINESS_UNIT, changes, (t, row) -> {
+            Account a = new Account();
+            a.setId(t.getLong(row, 0));
+            a.setName(t.getString(row, 1));
+            a.setDescription(t.getString(row, 2));
+            a.setStatus(AccountStatus.valueOf(t.getString(row, 3)));
+            a.setType(AccountType.BUSINESS_UNIT);
+            a.setStatusUpdated(t.getDate(row, 4));
+            a.setProducts(new TreeSet<String>());
+            out.add(a);
+        });
+        return out;
+    }
+
+    /**
+     * @param changes changes since the snapshot, or null
+     * @return every marketplace, deleted ones included, as listMarketplaces builds them
+     */
+    public List<Marketplace> marketplaces(CatalogChanges changes) {
+        List<Marketplace> out = new ArrayList<>();
+        forEachRow(CatalogTable.MARKETPLACE, changes, (t, row) -> {
+            Marketplace m = new Marketplace();
+            m.setId(t.getLong(row, 0));
+            m.setName(t.getString(row, 1));
+            m.setDescription(t.getString(row, 2));
+            m.setStatus(MarketplaceStatus.valueOf(t.getString(row, 3)));
+            m.setStatusUpdated(t.getDate(row, 4));
+            m.setContactEmail(t.getString(row, 5));
+            m.setContactName(t.getString(row, 6));
+            out.add(m);
+        });
+        return out;
+    }
+
+    /**
+     * @param changes changes since the snapshot, or null
+     * @return every product, deleted ones included, as listProducts builds them
+     */
+    public List<Product> products(CatalogChanges changes) {
+        List<Product> out = new ArrayList<>();
+        forEachRow(CatalogTable.PRODUCT, changes, (t, row) -> {
+            Product p = new Product();
+            p.setId(t.getString(row, 0));
+            p.setName(t.getString(row, 1));
+            p.setDescription(t.getString(row, 2));
+            p.setStatus(ProductStatus.valueOf(t.getString(row, 3)));
+            p.setStatusUpdated(t.getDate(row, 4));
+            out.add(p);
+        });
+        return out;
+    }
+
+    /**
+     * @param changes changes since the snapshot, or null
+     * @return every campaign with its business unit, deleted ones included, as listCampaigns builds them
+     */
+    public List<Campaign> campaigns(CatalogChanges changes) {
+        List<Campaign> out = new ArrayList<>();
+        forEachRow(CatalogTable.CAMPAIGN, changes, (t, row) -> {
+            Campaign c = new Campaign();
+            c.setTracker(t.getString(row, 0));
+            c.setProduct(t.getString(row, 1));
+            c.setType(CampaignType.valueOf(t.getString(row, 2)));
+            c.setMarketplace(t.getLong(row, 3));
+            c.setName(t.getString(row, 4));
+            c.setDescription(t.getString(row, 5));
+            c.setStatus(CampaignStatus.valueOf(t.getString(row, 6)));
+            c.setStatusUpdated(new Timestamp(t.getLong(row, 7)));
+            if (!t.isNull(row, 8))
+                c.setCost(t.getLong(row, 8));
+            if (!t.isNull(row, 9))
+                c.setBusinessUnit(t.getLong(row, 9));
+            out.add(c);
+        });
+        return out;
+    }
+
+    /**
+     * @param changes changes since the snapshot, or null
+     * @return every tag group, as listTagGroups builds them
+     */
+    public List<TagGroup> tagGroups(CatalogChanges changes) {
+        List<TagGroup> out = new ArrayList<>();
+        forEachRow(CatalogTable.TAG_GROUP, changes, (t, row) -> {
+            TagGroup tg = new TagGroup();
+            tg.setId(t.getLong(row, 0));
+            tg.setMutex(t.getLong(row, 1) != 0);
+            tg.setApplicableTo(new TreeSet<>());
+            String applicableTo = t.getString(row, 2);
+            if (applicableTo != null && !applicableTo.isEmpty())
+                for (String type : applicableTo.split(","))
+                    tg.addApplicableTo(TagType.valueOf(type));
+            out.add(tg);
+        });
+        return out;
+    }
+
+    /**
+     * @param changes changes since the snapshot, or null
+     * @return every metro, as listMetros builds them
+     */
+    public List<Metro> metros(CatalogChanges changes) {
+        List<Metro> out = new ArrayList<>();
+        forEachRow(CatalogTable.METRO, changes, (t, row) -> {
+            Metro metro = new Metro();
+            metro.setId(t.getLong(row, 0));
+            metro.setName(t.getString(row, 1));
+            metro.setDescription(t.getString(row, 2));
+            metro.setExtended(!t.isNull(row, 3) && t.getLong(row, 3) != 0);
+            out.add(metro);
+        });
+        return out;
+    }
+
+    private String decode(int reference) {
+        int length = buffer.getInt(heapOffset + reference);
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(heapOffset + reference + 4);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Fixed width rows of one table, read in place. Row and column numbers are not range checked
+     * beyond what the buffer does.
+     */
+    public final class Table {
+        private final CatalogTable table;
+        private final int rowsOffset;
+        private final int rowCount;
+
+        private Table(CatalogTable table, int rowsOffset, int rowCount) {
+            this.table = table;
+            this.rowsOffset = rowsOffset;
+            this.rowCount = rowCount;
+        }
+
+        public CatalogTable getTable() {
+            return table;
+        }
+
+        /**
+         * @return number of rows
+         */
+        public int size() {
+            return rowCount;
+        }
+
+        private int position(int row, int column) {
+            return rowsOffset + row * table.getRowWidth() + table.getColumnOffset(column);
+        }
+
+        /**
+         * @return value of a LONG or TIMESTAMP column, {@link #NULL_LONG} if null
+         */
+        public long getLong(int row, int column) {
+            return buffer.getLong(position(row, column));
+        }
+
+        public boolean isNull(int row, int column) {
+            return table.getColumns()[column].getWidth() == 8
+                    ? buffer.getLong(position(row, column)) == NULL_LONG
+                    : buffer.getInt(position(row, column)) == NULL_STRING;
+        }
+
+        /**
+         * @return value of a TIMESTAMP column, null if null
+         */
+        public Date getDate(int row, int column) {
+            long millis = getLong(row, column);
+            return millis == NULL_LONG ? null : new Date(millis);
+        }
+
+        /**
+         * @return value of a STRING or SYMBOL column, decoded from the heap
+         */
+        public String getString(int row, int column) {
+            int reference = buffer.getInt(position(row, column));
+            if (reference == NULL_STRING)
+                return null;
+            if (table.getColumns()[column] == CatalogTable.ColumnType.SYMBOL)
+                return symbols.computeIfAbsent(reference, CatalogSnapshot.this::decode);
+            return decode(reference);
+        }
+
+        /**
+         * @return key of the entity the row belongs to, as {@code logs.catalog_change} records it
+         */
+        public String key(int row) {
+            return table.getColumns()[0].getWidth() == 8 ? Long.toString(getLong(row, 0)) : getString(row, 0);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.stridetech.mcm.dao.snapshot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes {@link CatalogSnapshot catalog snapshots} and reads the {@link CatalogChanges} made since one.
+ * <p>
+ * Every table is read in one read only, repeatable read transaction together with its txid
+ * high-water mark, so the snapshot is consistent and nothing committed after it is missed by the
+ * catch-up. The file is written next to its destination and moved into place once complete, so
+ * readers never see a partial snapshot.
+ */
+public class CatalogSnapshotWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CatalogSnapshotWriter.class);
+    private static final int FETCH_SIZE = 10000;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final JdbcTemplate jdbcTemplate;
+    private PlatformTransactionManager transactionManager;
+
+    public CatalogSnapshotWriter(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        // fetch size is only honoured by the driver with autocommit off, hence the read only transaction
+        this.jdbcTemplate.setFetchSize(FETCH_SIZE);
+        this.transactionManager = new DataSourceTransactionManager(dataSource);
+    }
+
+    /**
+     * @param transactionManager manager of the transaction reading the catalog; defaults to one of
+     *                           the data source's own. Joining a running transaction keeps its isolation.
+     */
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+    }
+
+    /**
+     * Writes a snapshot of the whole catalog, replacing the file if it exists.
+     *
+     * @param file destination
+     * @return high-water mark of the snapshot
+     * @throws IOException if the file can't be written or the catalog exceeds 2 GB
+     */
+    public long write(Path file) throws IOException {
+        Path target = file.toAbsolutePath();
+        Path directory = target.getParent();
+        Files.createDirectories(directory);
+        String prefix = target.getFileName().toString();
+        Path snapshotFile = Files.createTempFile(directory, prefix, ".tmp");
+        Path heapFile = Files.createTempFile(directory, prefix, ".heap");
+        long started = System.currentTimeMillis();
+        try {
+            Sections sections;
+            try (DataOutputStream rows = output(snapshotFile); DataOutputStream heap = output(heapFile)) {
+                rows.write(new byte[CatalogSnapshot.headerSize()]);
+                sections = read(rows, heap, null);
+                heap.flush();
+                sections.heapOffset = checkedSize(rows);
+                sections.heapLength = checkedSize(heap);
+                Files.copy(heapFile, rows);
+                checkedSize(rows);
+            }
+            try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.WRITE)) {
+                channel.write(sections.header(), 0);
+                channel.force(true);
+            }
+            Files.move(snapshotFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("Catalog snapshot of {} bytes written to {} at high-water mark {} in {} ms",
+                    Files.size(target), target, sections.highWaterMark, System.currentTimeMillis() - started);
+            return sections.highWaterMark;
+        } finally {
+            Files.deleteIfExists(snapshotFile);
+            Files.deleteIfExists(heapFile);
+        }
+    }
+
+    /**
+     * Reads the changes recorded since a high-water mark and the current rows of the changed keys.
+     *
+     * @param highWaterMark mark of the snapshot to catch up
+     * @return changes, with the mark to read the next ones from
+     */
+    public CatalogChanges changesSince(long highWaterMark) {
+        ByteArrayOutputStream rowBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream heapBytes = new ByteArrayOutputStream();
+        try (DataOutputStream rows = new DataOutputStream(rowBytes); DataOutputStream heap = new DataOutputStream(heapBytes)) {
+            rows.write(new byte[CatalogSnapshot.headerSize()]);
+            Sections sections = read(rows, heap, highWaterMark);
+            sections.heapOffset = checkedSize(rows);
+            sections.heapLength = checkedSize(heap);
+
+            ByteBuffer buffer = ByteBuffer.allocate(sections.heapOffset + sections.heapLength);
+            buffer.put(rowBytes.toByteArray()).put(heapBytes.toByteArray());
+            buffer.position(0);
+            buffer.put(sections.header());
+            buffer.clear();
+            return new CatalogChanges(sections.highWaterMark, sections.changedKeys, CatalogSnapshot.wrap(buffer));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Sections read(DataOutputStream rows, DataOutputStream heap, Long since) throws IOException {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+        // one database snapshot for every table and the high-water mark that goes with them
+        transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+        try {
+            return transactionTemplate.execute(status -> {
+                Sections sections = new Sections();
+                sections.highWaterMark = jdbcTemplate.queryForObject(
+                        "SELECT txid_snapshot_xmin(txid_current_snapshot())", Long.class);
+                if (since != null)
+                    sections.changedKeys = readChangedKeys(since);
+                StringHeap strings = new StringHeap(heap);
+                CatalogTable[] all = CatalogTable.values();
+                for (int i = 0; i < all.length; i++) {
+                    CatalogTable table = all[i];
+                    RowWriter writer = new RowWriter(table, rows, strings);
+                    sections.rowOffsets[i] = writer.checkedSize();
+                    if (since == null)
+                        jdbcTemplate.query(table.getQuery(), writer);
+                    else if (sections.changedKeys.containsKey(table.getEntity()))
+                        jdbcTemplate.query(table.getChangedSinceQuery(), writer, since);
+                    sections.rowCounts[i] = writer.count;
+                }
+                return sections;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private Map<String, Set<String>> readChangedKeys(long since) {
+        Map<String, Set<String>> out = new HashMap<>();
+        jdbcTemplate.query("SELECT entity, key FROM logs.catalog_change WHERE txid >= ?", resultSet -> {
+            out.computeIfAbsent(resultSet.getString(1), entity -> new HashSet<>()).add(resultSet.getString(2));
+        }, since);
+        return out;
+    }
+
+    private static DataOutputStream output(Path file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE));
+    }
+
+    /**
+     * @return bytes written so far, which a snapshot addresses with ints
+     */
+    private static int checkedSize(DataOutputStream out) throws IOException {
+        // size() sticks at Integer.MAX_VALUE once it overflows
+        if (out.size() == Integer.MAX_VALUE)
+            throw new IOException("Catalog snapshot exceeds 2 GB");
+        return out.size();
+    }
+
+    private static final class Sections {
+        long highWaterMark;
+        Map<String, Set<String>> changedKeys;
+        final int[] rowCounts = new int[CatalogTable.values().length];
+        final int[] rowOffsets = new int[CatalogTable.values().length];
+        int heapOffset;
+        int heapLength;
+
+        ByteBuffer header() {
+            return CatalogSnapshot.header(highWaterMark, System.currentTimeMillis(), heapOffset, heapLength,
+                    rowCounts, rowOffsets);
+        }
+    }
+
+    /**
+     * Appends strings to the heap, SYMBOL values only once each.
+     */
+    private static final class StringHeap {
+        private final DataOutputStream out;
+        private final Map<String, Integer> symbols = new HashMap<>();
+
+        StringHeap(DataOutputStream out) {
+            this.out = out;
+        }
+
+        int add(String value, boolean symbol) throws IOException {
+            if (value == null)
+                return CatalogSnapshot.NULL_STRING;
+            if (symbol) {
+                Integer reference = symbols.get(value);
+                if (reference != null)
+                    return reference;
+            }
+            int reference = checkedSize(out);
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            if (symbol)
+                symbols.put(value, reference);
+            return reference;
+        }
+    }
+
+    private static final class RowWriter implements RowCallbackHandler {
+        private final CatalogTable table;
+        private final DataOutputStream out;
+        private final StringHeap strings;
+        int count;
+
+        RowWriter(CatalogTable table, DataOutputStream out, StringHeap strings) {
+            this.table = table;
+            this.out = out;
+            this.strings = strings;
+        }
+
+        int checkedSize() {
+            try {
+                return CatalogSnapshotWriter.checkedSize(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void processRow(ResultSet resultSet) throws SQLException {
+            CatalogTable.ColumnType[] columns = table.getColumns();
+            try {
+                for (int i = 0; i < columns.length; i++) {
+                    switch (columns[i]) {
+                        case LONG:
+                            long value = resultSet.getLong(i + 1);
+                            out.writeLong(resultSet.wasNull() ? CatalogSnapshot.NULL_LONG : value);
+                            break;
+                        case TIMESTAMP:
+                            Timestamp timestamp = resultSet.getTimestamp(i + 1);
+                            out.writeLong(timestamp == null ? CatalogSnapshot.NULL_LONG : timestamp.getTime());
+                            break;
+                        case STRING:
+                            out.writeInt(strings.add(resultSet.getString(i + 1), false));
+                            break;
+                        case SYMBOL:
+                            out.writeInt(strings.add(resultSet.getString(i + 1), true));
+                            break;
+                    }
+                }
+                count++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
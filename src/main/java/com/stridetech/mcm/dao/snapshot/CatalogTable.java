@@ -0,0 +1,192 @@
+package com.stridetech.mcm.dao.snapshot;
+
+import static com.stridetech.mcm.dao.snapshot.CatalogTable.ColumnType.*;
+
+/**
+ * Tables held by a {@link CatalogSnapshot}, with the query reading them and the layout of their rows.
+ * <p>
+ * Every table belongs to one entity of {@code logs.catalog_change}: a change recorded for an
+ * entity's key replaces all rows of the table carrying that key (its first column).
+ * Changing a table, its columns or their order changes the file format, so bump
+ * {@link CatalogSnapshot#FORMAT_VERSION} along with it.
+ */
+public enum CatalogTable {
+
+    BUSINESS_UNIT(1, CatalogChanges.BUSINESS_UNIT, "id",
+            "SELECT id, name, description, status, status_updated FROM meta.business_unit",
+            LONG, STRING, STRING, SYMBOL, TIMESTAMP),
+    MARKETPLACE(2, CatalogChanges.MARKETPLACE, "id",
+            "SELECT id, name, description, status, status_updated, contact_email, contact_name FROM meta.marketplace",
+            LONG, STRING, STRING, SYMBOL, TIMESTAMP, STRING, STRING),
+    PRODUCT(3, CatalogChanges.PRODUCT, "code",
+            "SELECT code, name, description, status, status_updated FROM meta.product",
+            SYMBOL, STRING, STRING, SYMBOL, TIMESTAMP),
+    /**
+     * Campaigns with their business unit as of the snapshot, as listCampaigns reads them
+     */
+    CAMPAIGN(4, CatalogChanges.CAMPAIGN, "c.tracker",
+            "SELECT c.tracker, c.product, c.type, c.marketplace, c.name, c.description, c.status, c.status_updated, " +
+            "c.cost_cents, bu.business_unit \n" +
+            "FROM meta.campaign c \n" +
+            "LEFT JOIN LATERAL ( \n" +
+            "      SELECT r.account AS business_unit \n" +
+            "      FROM   logs.campaign_account_relationship_changelog r \n" +
+            "        JOIN meta.business_unit b ON (b.id = r.account) \n" +
+            "      WHERE  r.tracker = c.tracker \n" +
+            "      AND    r.effective_date <= clock_timestamp()::timestamp without time zone \n" +
+            "      ORDER BY r.effective_date DESC, r.change_number DESC \n" +
+            "      LIMIT 1 \n" +
+            "     ) bu ON TRUE",
+            STRING, SYMBOL, SYMBOL, LONG, STRING, STRING, SYMBOL, TIMESTAMP, LONG, LONG),
+    /**
+     * Tag groups, applicable_to as a comma separated list of tag types
+     */
+    TAG_GROUP(5, CatalogChanges.TAG_GROUP, "id",
+            "SELECT id, is_mutex::int, array_to_string(applicable_to, ',') FROM meta.tag_group",
+            LONG, LONG, SYMBOL),
+    TAG(6, CatalogChanges.TAG, "id",
+            "SELECT id, \"group\", value FROM meta.tag",
+            LONG, LONG, STRING),
+    METRO(7, CatalogChanges.METRO, "id",
+            "SELECT id, name, description, extended::int FROM meta.metro",
+            LONG, STRING, STRING, LONG),
+    CAMPAIGN_TAGS(8, CatalogChanges.CAMPAIGN, "campaign",
+            "SELECT campaign, tag FROM meta.campaign_tags",
+            STRING, LONG),
+    CAMPAIGN_METROS(9, CatalogChanges.CAMPAIGN, "tracker",
+            "SELECT tracker, metro FROM meta.campaign_metros",
+            STRING, LONG),
+    ACCOUNT_CAMPAIGNS(10, CatalogChanges.CAMPAIGN, "tracker",
+            "SELECT tracker, business_unit FROM meta.account_campaigns",
+            STRING, LONG),
+    ACCOUNT_TAGS(11, CatalogChanges.BUSINESS_UNIT, "account",
+            "SELECT account, tag FROM meta.account_tags",
+            LONG, LONG),
+    MARKETPLACE_TAGS(12, CatalogChanges.MARKETPLACE, "marketplace",
+            "SELECT marketplace, tag FROM meta.marketplace_tags",
+            LONG, LONG),
+    PRODUCT_TAGS(13, CatalogChanges.PRODUCT, "product",
+            "SELECT product, tag FROM meta.product_tags",
+            SYMBOL, LONG),
+    ACCOUNT_STATUS_CHANGELOG(14, CatalogChanges.ACCOUNT_STATUS, "account",
+            "SELECT account, effective_date, change_number, status FROM logs.account_status_changelog",
+            LONG, TIMESTAMP, LONG, SYMBOL),
+    MARKETPLACE_STATUS_CHANGELOG(15, CatalogChanges.MARKETPLACE_STATUS, "marketplace",
+            "SELECT marketplace, effective_date, change_number, status FROM logs.marketplace_status_changelog",
+            LONG, TIMESTAMP, LONG, SYMBOL),
+    PRODUCT_STATUS_CHANGELOG(16, CatalogChanges.PRODUCT_STATUS, "product",
+            "SELECT product, effective_date, change_number, status FROM logs.product_status_changelog",
+            SYMBOL, TIMESTAMP, LONG, SYMBOL),
+    CAMPAIGN_STATUS_CHANGELOG(17, CatalogChanges.CAMPAIGN_STATUS, "campaign",
+            "SELECT campaign, effective_date, change_number, status FROM logs.campaign_status_changelog",
+            STRING, TIMESTAMP, LONG, SYMBOL),
+    CAMPAIGN_ACCOUNT_RELATIONSHIP_CHANGELOG(18, CatalogChanges.CAMPAIGN, "tracker",
+            "SELECT tracker, account, effective_date, change_number FROM logs.campaign_account_relationship_changelog",
+            STRING, LONG, TIMESTAMP, LONG);
+
+    /**
+     * How a column is stored in a row
+     */
+    public enum ColumnType {
+        /**
+         * 8 byte integer, {@link CatalogSnapshot#NULL_LONG} for null; booleans are stored as 0 or 1
+         */
+        LONG(8),
+        /**
+         * 8 byte milliseconds since the epoch, {@link CatalogSnapshot#NULL_LONG} for null
+         */
+        TIMESTAMP(8),
+        /**
+         * 4 byte offset into the string heap, -1 for null
+         */
+        STRING(4),
+        /**
+         * A {@link #STRING} of few distinct values (statuses, types, product codes), stored once per value
+         */
+        SYMBOL(4);
+
+        private final int width;
+
+        ColumnType(int width) {
+            this.width = width;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+    }
+
+    private final int id;
+    private final String entity;
+    private final String keyColumn;
+    private final String query;
+    private final ColumnType[] columns;
+    private final int[] columnOffsets;
+    private final int rowWidth;
+
+    CatalogTable(int id, String entity, String keyColumn, String query, ColumnType... columns) {
+        this.id = id;
+        this.entity = entity;
+        this.keyColumn = keyColumn;
+        this.query = query;
+        this.columns = columns;
+        this.columnOffsets = new int[columns.length];
+        int offset = 0;
+        for (int i = 0; i < columns.length; i++) {
+            columnOffsets[i] = offset;
+            offset += columns[i].getWidth();
+        }
+        this.rowWidth = offset;
+    }
+
+    /**
+     * @return id of the table in the snapshot file
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return entity of {@code logs.catalog_change} whose keys select the rows of this table
+     */
+    public String getEntity() {
+        return entity;
+    }
+
+    /**
+     * @return query reading every row of the table
+     */
+    String getQuery() {
+        return query;
+    }
+
+    /**
+     * @return query reading the rows of the entities changed since a txid, bound as its only parameter
+     */
+    String getChangedSinceQuery() {
+        return query + "\nWHERE " + keyColumn + "::text IN (SELECT key FROM logs.catalog_change WHERE entity = '" +
+                entity + "' AND txid >= ?)";
+    }
+
+    ColumnType[] getColumns() {
+        return columns;
+    }
+
+    int getColumnOffset(int column) {
+        return columnOffsets[column];
+    }
+
+    /**
+     * @return bytes per row
+     */
+    public int getRowWidth() {
+        return rowWidth;
+    }
+
+    static CatalogTable byId(int id) {
+        for (CatalogTable table : values())
+            if (table.id == id)
+                return table;
+        return null;
+    }
+}
@@ -0,0 +1,702 @@
+package com.stridetech.mcm.dao.stats;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * In-memory copy of {@code stats.acquisition_facts} answering {@link AcquisitionCubeQuery slices} of
+ * any date range, grain, dimension and filters without touching the database.
+ * <p>
+ * The facts are held in primitive column arrays, sorted by statement date: the campaign ordinal,
+ * the day (epoch day) and each measure. Campaigns get dense ordinals (in tracker order) with their
+ * product, marketplace, business unit, tags and metros as of the load. A query first works out, per
+ * campaign, whether it passes the filters and which groups it counts for; a scan of the rows of the
+ * date range, found by binary search, then only adds each row's measures to its cells. The rows are
+ * scanned in slices on a fork-join pool, each slice summing into cells of its own periods only, so
+ * that slices need neither locks nor a copy of every cell; the slices' sums are then added up.
+ * <p>
+ * Like the {@link com.stridetech.mcm.dao.index.CampaignTagIndex}, the cube is loaded with
+ * {@link #load(DataSource)}; it is not kept current, facts merged and campaigns changed since are
+ * not seen until the next {@link #refresh(DataSource) refresh}, which re-reads only what changed, see
+ * {@link AcquisitionCubeReloader}. A load or refresh builds new columns, queries keep reading the
+ * previous ones meanwhile and never wait.
+ * <p>
+ * With {@link #registerMetrics(MetricRegistry)} the cube publishes, under
+ * {@code com.stridetech.mcm.dao.stats.AcquisitionCube}: {@code facts}, a gauge of the facts loaded,
+ * and {@code query} and {@code load}, timers of queries and loads.
+ */
+public class AcquisitionCube {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AcquisitionCube.class);
+    private static final int FETCH_SIZE = 10000;
+
+    /**
+     * Cells (periods times groups) a query may sum into at most, as they are all held at once
+     */
+    public static final int MAX_CELLS = 1 << 20;
+
+    /**
+     * Longs per cell: the four acquisition counts and the number of facts
+     */
+    private static final int STRIDE = 5;
+
+    private static final int NO_BUSINESS_UNIT = -1;
+
+    private volatile Columns columns = new Columns();
+    private final Object loadLock = new Object();
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private int sliceRows = 1 << 16;
+
+    private final Timer queries = new Timer();
+    private final Timer loads = new Timer();
+
+    /**
+     * @param pool pool to scan on, the common pool by default
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @param sliceRows rows per slice of a scan, enough for a slice to outweigh its task and its cells;
+     *                  65536 by default
+     */
+    public void setSliceRows(int sliceRows) {
+        if (sliceRows <= 0)
+            throw new IllegalArgumentException("Slices must have rows");
+        this.sliceRows = sliceRows;
+    }
+
+    /**
+     * @param registry registry to publish the fact count and the query and load timers in
+     */
+    public void registerMetrics(MetricRegistry registry) {
+        registry.register(MetricRegistry.name(AcquisitionCube.class, "facts"), (Gauge<Integer>) this::getFactCount);
+        registry.register(MetricRegistry.name(AcquisitionCube.class, "query"), queries);
+        registry.register(MetricRegistry.name(AcquisitionCube.class, "load"), loads);
+    }
+
+    /**
+     * Reads every campaign and every fact, in one repeatable read transaction so that they agree,
+     * then replaces the columns queried. Loads and refreshes run one at a time, so that none replaces
+     * the columns of a later one.
+     *
+     * @param dataSource
+     * @return this cube
+     */
+    public AcquisitionCube load(DataSource dataSource) {
+        synchronized (loadLock) {
+            JdbcTemplate jdbcTemplate = jdbcTemplate(dataSource);
+            long started = System.currentTimeMillis();
+            try (Timer.Context ignored = loads.time()) {
+                Columns loaded = readOnly(dataSource).execute(status -> {
+                    Columns out = new Columns();
+                    out.highWaterMark = readHighWaterMark(jdbcTemplate);
+                    Map<String, Integer> ordinals = readCatalog(jdbcTemplate, out);
+                    FactColumns facts = new FactColumns(FETCH_SIZE);
+                    readFacts(jdbcTemplate, "", ps -> { }, ordinals, facts);
+                    facts.trimTo(out);
+                    return out;
+                });
+                columns = loaded;
+                LOGGER.info("Acquisition cube loaded {} facts of {} campaigns into {} bytes in {} ms",
+                        loaded.size, loaded.trackers.length, loaded.sizeInBytes(), System.currentTimeMillis() - started);
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Brings the cube up to date with what was committed since it was loaded or last refreshed,
+     * {@link #load(DataSource) loading} it if it never was. Nothing is read if nothing changed, as
+     * told by {@code logs.catalog_change} and {@code stats.acquisition_date_change}. Otherwise the
+     * campaigns are read anew if any changed, and the facts only of the statement dates changed; the
+     * new columns are the previous ones with the rows of those dates replaced.
+     *
+     * @param dataSource
+     * @return whether anything had changed
+     */
+    public boolean refresh(DataSource dataSource) {
+        synchronized (loadLock) {
+            Columns current = columns;
+            if (current.highWaterMark < 0) {
+                load(dataSource);
+                return true;
+            }
+            JdbcTemplate jdbcTemplate = jdbcTemplate(dataSource);
+            long started = System.currentTimeMillis();
+            try (Timer.Context ignored = loads.time()) {
+                Columns refreshed = readOnly(dataSource).execute(status -> {
+                    long highWaterMark = readHighWaterMark(jdbcTemplate);
+                    boolean catalogChanged = jdbcTemplate.queryForObject(
+                            "SELECT EXISTS (SELECT 1 FROM logs.catalog_change WHERE txid >= ? AND entity = 'campaign')",
+                            Boolean.class, current.highWaterMark);
+                    List<java.sql.Date> dates = jdbcTemplate.queryForList(
+                            "SELECT statement_date FROM stats.acquisition_date_change WHERE txid >= ? ORDER BY statement_date",
+                            java.sql.Date.class, current.highWaterMark);
+
+                    Columns out = new Columns();
+                    out.highWaterMark = highWaterMark;
+                    if (!catalogChanged && dates.isEmpty()) {
+                        out.copyOf(current);
+                        return out;
+                    }
+                    Map<String, Integer> ordinals;
+                    int[] remap = null;
+                    if (catalogChanged) {
+                        ordinals = readCatalog(jdbcTemplate, out);
+                        remap = new int[current.trackers.length];
+                        for (int c = 0; c < remap.length; c++)
+                            remap[c] = ordinals.getOrDefault(current.trackers[c], -1);
+                    } else {
+                        out.copyCatalogOf(current);
+                        ordinals = new HashMap<>();
+                        for (int c = 0; c < current.trackers.length; c++)
+                            ordinals.put(current.trackers[c], c);
+                    }
+                    FactColumns facts = new FactColumns((int) Math.min((long) dates.size() * ordinals.size(), FETCH_SIZE));
+                    readFacts(jdbcTemplate, " WHERE statement_date = ANY(?)",
+                            ps -> ps.setArray(1, ps.getConnection().createArrayOf("date", dates.toArray())),
+                            ordinals, facts);
+                    merge(current, remap, dates.stream().mapToInt(d -> (int) d.toLocalDate().toEpochDay()).toArray(),
+                            facts, out);
+                    LOGGER.info("Acquisition cube refreshed {} statement dates{} in {} ms",
+                            dates.size(), catalogChanged ? " and the campaigns" : "", System.currentTimeMillis() - started);
+                    return out;
+                });
+                boolean changed = refreshed.campaign != current.campaign || refreshed.trackers != current.trackers;
+                columns = refreshed;
+                return changed;
+            }
+        }
+    }
+
+    private static JdbcTemplate jdbcTemplate(DataSource dataSource) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.setFetchSize(FETCH_SIZE);
+        return jdbcTemplate;
+    }
+
+    private static TransactionTemplate readOnly(DataSource dataSource) {
+        // fetch size is only honoured by the driver with autocommit off, hence the read only transaction
+        TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        transactionTemplate.setReadOnly(true);
+        transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+        return transactionTemplate;
+    }
+
+    /**
+     * @return oldest transaction still running as of the transaction's snapshot: every change of a
+     * transaction before it is seen, every change not seen is of a transaction from it on
+     */
+    private static long readHighWaterMark(JdbcTemplate jdbcTemplate) {
+        return jdbcTemplate.queryForObject("SELECT txid_snapshot_xmin(txid_current_snapshot())", Long.class);
+    }
+
+    /**
+     * Reads every campaign into the dictionary of the columns
+     *
+     * @return ordinal of every tracker
+     */
+    private static Map<String, Integer> readCatalog(JdbcTemplate jdbcTemplate, Columns out) {
+        Map<String, Integer> ordinals = new HashMap<>();
+        List<String> trackers = new ArrayList<>();
+        List<String> products = new ArrayList<>();
+        List<Long> marketplaces = new ArrayList<>();
+        List<Long> businessUnits = new ArrayList<>();
+        jdbcTemplate.query(
+                "SELECT c.tracker, c.product, c.marketplace, a.business_unit FROM meta.campaign c " +
+                "LEFT JOIN meta.account_campaigns a ON a.tracker = c.tracker ORDER BY c.tracker",
+                resultSet -> {
+                    ordinals.put(resultSet.getString(1), trackers.size());
+                    trackers.add(resultSet.getString(1));
+                    products.add(resultSet.getString(2));
+                    marketplaces.add(resultSet.getLong(3));
+                    long businessUnit = resultSet.getLong(4);
+                    businessUnits.add(resultSet.wasNull() ? NO_BUSINESS_UNIT : businessUnit);
+                });
+        int campaigns = trackers.size();
+        out.trackers = trackers.toArray(new String[campaigns]);
+        out.productOf = products.toArray(new String[campaigns]);
+        out.marketplaceOf = new long[campaigns];
+        out.businessUnitOf = new long[campaigns];
+        for (int i = 0; i < campaigns; i++) {
+            out.marketplaceOf[i] = marketplaces.get(i);
+            out.businessUnitOf[i] = businessUnits.get(i);
+        }
+        out.tagsOf = readMembers(jdbcTemplate, "SELECT campaign, tag FROM meta.campaign_tags", ordinals);
+        out.metrosOf = readMembers(jdbcTemplate, "SELECT tracker, metro FROM meta.campaign_metros", ordinals);
+        return ordinals;
+    }
+
+    private static long[][] readMembers(JdbcTemplate jdbcTemplate, String query, Map<String, Integer> ordinals) {
+        Map<Integer, List<Long>> members = new HashMap<>();
+        jdbcTemplate.query(query, resultSet -> {
+            members.computeIfAbsent(ordinals.get(resultSet.getString(1)), o -> new ArrayList<>()).add(resultSet.getLong(2));
+        });
+        long[][] out = new long[ordinals.size()][];
+        long[] none = new long[0];
+        for (int i = 0; i < out.length; i++) {
+            List<Long> of = members.get(i);
+            out[i] = of == null ? none : of.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+        return out;
+    }
+
+    /**
+     * Reads the facts passing the condition, sorted by statement date
+     */
+    private static void readFacts(JdbcTemplate jdbcTemplate, String where, PreparedStatementSetter parameters,
+                                  Map<String, Integer> ordinals, FactColumns facts) {
+        jdbcTemplate.query(
+                "SELECT campaign, statement_date, acquisitions, acquisitions_payable, acquisitions_paid, " +
+                "acquisitions_not_paid, spend FROM stats.acquisition_facts" + where + " ORDER BY statement_date",
+                parameters,
+                resultSet -> {
+                    facts.add(ordinals.get(resultSet.getString(1)), (int) resultSet.getDate(2).toLocalDate().toEpochDay(),
+                            resultSet.getInt(3), resultSet.getInt(4), resultSet.getInt(5), resultSet.getInt(6),
+                            resultSet.getDouble(7));
+                });
+    }
+
+    /**
+     * Fills the fact columns with the rows of the current ones, their campaigns remapped if the
+     * campaigns were read anew, but for the rows of the changed days, which are taken from the facts
+     * read instead. Both being sorted by day, so is the merge. The merge is sized exactly, so that it
+     * is not copied again: the previous columns and the merge are all that is held at once.
+     *
+     * @param remap new ordinal of every current campaign, -1 for those gone, null if unchanged
+     * @param changedDays epoch days re-read, in order
+     */
+    private static void merge(Columns current, int[] remap, int[] changedDays, FactColumns changed, Columns out) {
+        boolean[] kept = new boolean[current.size];
+        int keeping = 0;
+        for (int row = 0, d = 0; row < current.size; row++) {
+            while (d < changedDays.length && changedDays[d] < current.day[row])
+                d++;
+            kept[row] = (d == changedDays.length || changedDays[d] != current.day[row])
+                    && (remap == null || remap[current.campaign[row]] >= 0);
+            if (kept[row])
+                keeping++;
+        }
+        FactColumns merged = new FactColumns(keeping + changed.size);
+        int next = 0;
+        for (int row = 0; row < current.size; row++) {
+            int day = current.day[row];
+            while (next < changed.size && changed.day[next] < day)
+                merged.add(changed, next++);
+            if (!kept[row])
+                continue;
+            merged.add(remap == null ? current.campaign[row] : remap[current.campaign[row]], day,
+                    current.acquisitions[row], current.acquisitionsPayable[row], current.acquisitionsPaid[row],
+                    current.acquisitionsNotPaid[row], current.spend[row]);
+        }
+        while (next < changed.size)
+            merged.add(changed, next++);
+        merged.trimTo(out);
+    }
+
+    /**
+     * @return number of facts loaded
+     */
+    public int getFactCount() {
+        return columns.size;
+    }
+
+    /**
+     * @return number of campaigns loaded
+     */
+    public int getCampaignCount() {
+        return columns.trackers.length;
+    }
+
+    /**
+     * @return approximate size of the columns, in bytes
+     */
+    public long getSizeInBytes() {
+        return columns.sizeInBytes();
+    }
+
+    /**
+     * Sums the facts of a slice, as {@link com.stridetech.mcm.dao.MCMServiceDao#getAcquisitionRollups}
+     * would as of the load, restricted to the campaigns passing the filters. Cells without facts are
+     * left out.
+     *
+     * @param query slice
+     * @return sums by period, then by key (numerically for ids), the campaigns of no business unit last
+     * @throws IllegalArgumentException if the range is missing or the slice has more than
+     *                                  {@link #MAX_CELLS} cells
+     */
+    public List<AcquisitionRollup> query(AcquisitionCubeQuery query) {
+        if (query.getFrom() == null || query.getTo() == null)
+            throw new IllegalArgumentException("A date range is required");
+        try (Timer.Context ignored = queries.time()) {
+            Columns data = columns;
+            LocalDate first = new java.sql.Date(query.getFrom().getTime()).toLocalDate();
+            LocalDate last = new java.sql.Date(query.getTo().getTime()).toLocalDate();
+            if (last.isBefore(first))
+                return Collections.emptyList();
+
+            // period of every day of the range
+            int fromDay = (int) first.toEpochDay();
+            int[] periodOfDay = new int[(int) (last.toEpochDay() - fromDay + 1)];
+            List<LocalDate> periods = new ArrayList<>();
+            AcquisitionGrain grain = query.getGrain();
+            for (LocalDate day = first; !day.isAfter(last); day = day.plusDays(1)) {
+                LocalDate start = grain == null ? first : grain.start(day);
+                if (periods.isEmpty() || !periods.get(periods.size() - 1).equals(start))
+                    periods.add(start);
+                periodOfDay[(int) (day.toEpochDay() - fromDay)] = periods.size() - 1;
+            }
+
+            Grouping grouping = new Grouping(data, query);
+            long cells = (long) periods.size() * grouping.keys.size();
+            if (cells > MAX_CELLS)
+                throw new IllegalArgumentException(query + " has " + cells + " cells, more than " + MAX_CELLS +
+                        ": take a coarser grain or filter");
+
+            Scan scan = new Scan(data, fromDay, periodOfDay, grouping, (int) cells, sliceRows);
+            int lo = firstRowOf(data, fromDay);
+            int hi = firstRowOf(data, (int) last.toEpochDay() + 1);
+            if (hi > lo && !grouping.keys.isEmpty())
+                pool.invoke(scan.new Slices(lo, hi, (hi - lo + sliceRows - 1) / sliceRows));
+
+            List<AcquisitionRollup> out = new ArrayList<>();
+            int groups = grouping.keys.size();
+            for (int cell = 0; cell < cells; cell++) {
+                int base = cell * STRIDE;
+                if (scan.counts[base + 4] == 0)
+                    continue;
+                out.add(new AcquisitionRollup(java.sql.Date.valueOf(periods.get(cell / groups)), grouping.keys.get(cell % groups),
+                        scan.counts[base], scan.counts[base + 1], scan.counts[base + 2], scan.counts[base + 3], scan.spend[cell]));
+            }
+            return out;
+        }
+    }
+
+    /**
+     * @return index of the first row of the day or after, the rows being sorted by day
+     */
+    private static int firstRowOf(Columns data, int day) {
+        int lo = 0;
+        int hi = data.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (data.day[mid] < day)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Groups of every campaign passing the filters, numbered in key order
+     */
+    private static final class Grouping {
+
+        private static final Comparator<Comparable<Object>> KEY_ORDER = Comparator.nullsLast(Comparator.naturalOrder());
+
+        /**
+         * Group ordinals of each campaign, empty for those filtered out or in no group
+         */
+        final int[][] groupsOf;
+        final List<String> keys = new ArrayList<>();
+
+        @SuppressWarnings("unchecked")
+        Grouping(Columns data, AcquisitionCubeQuery query) {
+            int campaigns = data.trackers.length;
+            Object[][] keysOf = new Object[campaigns][];
+            TreeMap<Comparable<Object>, Integer> ordinals = new TreeMap<>(KEY_ORDER);
+            for (int c = 0; c < campaigns; c++) {
+                keysOf[c] = passes(data, c, query) ? keysOf(data, c, query.getDimension()) : new Object[0];
+                for (Object key : keysOf[c])
+                    ordinals.put((Comparable<Object>) key, 0);
+            }
+            for (Map.Entry<Comparable<Object>, Integer> key : ordinals.entrySet()) {
+                key.setValue(keys.size());
+                keys.add(key.getKey() == null ? null : key.getKey().toString());
+            }
+            groupsOf = new int[campaigns][];
+            for (int c = 0; c < campaigns; c++) {
+                groupsOf[c] = new int[keysOf[c].length];
+                for (int k = 0; k < keysOf[c].length; k++)
+                    groupsOf[c][k] = ordinals.get(keysOf[c][k]);
+            }
+        }
+
+        private static boolean passes(Columns data, int c, AcquisitionCubeQuery query) {
+            return (query.getCampaigns().isEmpty() || query.getCampaigns().contains(data.trackers[c]))
+                    && (query.getProducts().isEmpty() || query.getProducts().contains(data.productOf[c]))
+                    && (query.getMarketplaces().isEmpty() || query.getMarketplaces().contains(data.marketplaceOf[c]))
+                    && (query.getBusinessUnits().isEmpty() || query.getBusinessUnits().contains(data.businessUnitOf[c]))
+                    && (query.getTags().isEmpty() || any(data.tagsOf[c], query.getTags()))
+                    && (query.getMetros().isEmpty() || any(data.metrosOf[c], query.getMetros()));
+        }
+
+        private static boolean any(long[] members, Set<Long> wanted) {
+            for (long member : members)
+                if (wanted.contains(member))
+                    return true;
+            return false;
+        }
+
+        private static Object[] keysOf(Columns data, int c, AcquisitionDimension dimension) {
+            if (dimension == null)
+                return new Object[]{null};
+            switch (dimension) {
+                case CAMPAIGN:
+                    return new Object[]{data.trackers[c]};
+                case PRODUCT:
+                    return new Object[]{data.productOf[c]};
+                case MARKETPLACE:
+                    return new Object[]{data.marketplaceOf[c]};
+                case BUSINESS_UNIT:
+                    return new Object[]{data.businessUnitOf[c] == NO_BUSINESS_UNIT ? null : data.businessUnitOf[c]};
+                case TAG:
+                    return Arrays.stream(data.tagsOf[c]).boxed().toArray();
+                case METRO:
+                    return Arrays.stream(data.metrosOf[c]).boxed().toArray();
+                default:
+                    throw new IllegalArgumentException("Unknown dimension " + dimension);
+            }
+        }
+    }
+
+    /**
+     * Scan of the rows of a query's range into its cells, cell = period * groups + group
+     */
+    private static final class Scan {
+        final Columns data;
+        final int fromDay;
+        final int[] periodOfDay;
+        final int[][] groupsOf;
+        final int groups;
+        final int sliceRows;
+        final long[] counts;
+        final double[] spend;
+
+        Scan(Columns data, int fromDay, int[] periodOfDay, Grouping grouping, int cells, int sliceRows) {
+            this.data = data;
+            this.fromDay = fromDay;
+            this.periodOfDay = periodOfDay;
+            this.groupsOf = grouping.groupsOf;
+            this.groups = grouping.keys.size();
+            this.sliceRows = sliceRows;
+            this.counts = new long[cells * STRIDE];
+            this.spend = new double[cells];
+        }
+
+        /**
+         * Sums the rows from lo to hi into cells of the periods of those rows only, then adds them to
+         * the query's cells
+         */
+        void scan(int lo, int hi) {
+            int firstPeriod = periodOfDay[data.day[lo] - fromDay];
+            int lastPeriod = periodOfDay[data.day[hi - 1] - fromDay];
+            int offset = firstPeriod * groups;
+            int cells = (lastPeriod - firstPeriod + 1) * groups;
+            long[] sliceCounts = new long[cells * STRIDE];
+            double[] sliceSpend = new double[cells];
+
+            int[] campaign = data.campaign;
+            int[] day = data.day;
+            int[] acquisitions = data.acquisitions;
+            int[] payable = data.acquisitionsPayable;
+            int[] paid = data.acquisitionsPaid;
+            int[] notPaid = data.acquisitionsNotPaid;
+            double[] spent = data.spend;
+            for (int row = lo; row < hi; row++) {
+                int[] of = groupsOf[campaign[row]];
+                if (of.length == 0)
+                    continue;
+                int periodBase = periodOfDay[day[row] - fromDay] * groups - offset;
+                for (int group : of) {
+                    int cell = periodBase + group;
+                    int base = cell * STRIDE;
+                    sliceCounts[base] += acquisitions[row];
+                    sliceCounts[base + 1] += payable[row];
+                    sliceCounts[base + 2] += paid[row];
+                    sliceCounts[base + 3] += notPaid[row];
+                    sliceCounts[base + 4]++;
+                    sliceSpend[cell] += spent[row];
+                }
+            }
+
+            synchronized (this) {
+                for (int i = 0; i < sliceCounts.length; i++)
+                    counts[offset * STRIDE + i] += sliceCounts[i];
+                for (int i = 0; i < sliceSpend.length; i++)
+                    spend[offset + i] += sliceSpend[i];
+            }
+        }
+
+        /**
+         * Slices of the rows from lo to hi, split in halves down to a single slice
+         */
+        final class Slices extends RecursiveAction {
+            private final int lo;
+            private final int hi;
+            private final int slices;
+
+            Slices(int lo, int hi, int slices) {
+                this.lo = lo;
+                this.hi = hi;
+                this.slices = slices;
+            }
+
+            @Override
+            protected void compute() {
+                if (slices <= 1) {
+                    scan(lo, hi);
+                    return;
+                }
+                int half = slices / 2;
+                int mid = lo + half * sliceRows;
+                invokeAll(new Slices(lo, mid, half), new Slices(mid, hi, slices - half));
+            }
+        }
+    }
+
+    /**
+     * Campaign dictionary and fact columns, never changed once loaded
+     */
+    private static final class Columns {
+        /**
+         * Transactions from this one on may have changes not loaded, -1 if never loaded
+         */
+        long highWaterMark = -1;
+
+        String[] trackers = new String[0];
+        String[] productOf = new String[0];
+        long[] marketplaceOf = new long[0];
+        long[] businessUnitOf = new long[0];
+        long[][] tagsOf = new long[0][];
+        long[][] metrosOf = new long[0][];
+
+        int size;
+        int[] campaign = new int[0];
+        int[] day = new int[0];
+        int[] acquisitions = new int[0];
+        int[] acquisitionsPayable = new int[0];
+        int[] acquisitionsPaid = new int[0];
+        int[] acquisitionsNotPaid = new int[0];
+        double[] spend = new double[0];
+
+        void copyCatalogOf(Columns other) {
+            trackers = other.trackers;
+            productOf = other.productOf;
+            marketplaceOf = other.marketplaceOf;
+            businessUnitOf = other.businessUnitOf;
+            tagsOf = other.tagsOf;
+            metrosOf = other.metrosOf;
+        }
+
+        void copyOf(Columns other) {
+            copyCatalogOf(other);
+            size = other.size;
+            campaign = other.campaign;
+            day = other.day;
+            acquisitions = other.acquisitions;
+            acquisitionsPayable = other.acquisitionsPayable;
+            acquisitionsPaid = other.acquisitionsPaid;
+            acquisitionsNotPaid = other.acquisitionsNotPaid;
+            spend = other.spend;
+        }
+
+        long sizeInBytes() {
+            long members = 0;
+            for (int c = 0; c < trackers.length; c++)
+                members += 8L * (tagsOf[c].length + metrosOf[c].length) + 32;
+            return size * (6L * 4 + 8) + trackers.length * 64L + members;
+        }
+    }
+
+    /**
+     * Fact columns growing as they are read
+     */
+    private static final class FactColumns {
+        int size;
+        int[] campaign;
+        int[] day;
+        int[] acquisitions;
+        int[] acquisitionsPayable;
+        int[] acquisitionsPaid;
+        int[] acquisitionsNotPaid;
+        double[] spend;
+
+        FactColumns(int capacity) {
+            capacity = Math.max(capacity, 1);
+            campaign = new int[capacity];
+            day = new int[capacity];
+            acquisitions = new int[capacity];
+            acquisitionsPayable = new int[capacity];
+            acquisitionsPaid = new int[capacity];
+            acquisitionsNotPaid = new int[capacity];
+            spend = new double[capacity];
+        }
+
+        void add(FactColumns other, int row) {
+            add(other.campaign[row], other.day[row], other.acquisitions[row], other.acquisitionsPayable[row],
+                    other.acquisitionsPaid[row], other.acquisitionsNotPaid[row], other.spend[row]);
+        }
+
+        void add(int campaignOrdinal, int epochDay, int acquired, int payable, int paid, int notPaid, double spent) {
+            if (size == campaign.length) {
+                int capacity = size + (size >> 1) + 1;
+                campaign = Arrays.copyOf(campaign, capacity);
+                day = Arrays.copyOf(day, capacity);
+                acquisitions = Arrays.copyOf(acquisitions, capacity);
+                acquisitionsPayable = Arrays.copyOf(acquisitionsPayable, capacity);
+                acquisitionsPaid = Arrays.copyOf(acquisitionsPaid, capacity);
+                acquisitionsNotPaid = Arrays.copyOf(acquisitionsNotPaid, capacity);
+                spend = Arrays.copyOf(spend, capacity);
+            }
+            campaign[size] = campaignOrdinal;
+            day[size] = epochDay;
+            acquisitions[size] = acquired;
+            acquisitionsPayable[size] = payable;
+            acquisitionsPaid[size] = paid;
+            acquisitionsNotPaid[size] = notPaid;
+            spend[size] = spent;
+            size++;
+        }
+
+        /**
+         * Hands the columns over, copied only if not full, so that a merge sized exactly is not copied
+         */
+        void trimTo(Columns out) {
+            boolean full = size == campaign.length;
+            out.size = size;
+            out.campaign = full ? campaign : Arrays.copyOf(campaign, size);
+            out.day = full ? day : Arrays.copyOf(day, size);
+            out.acquisitions = full ? acquisitions : Arrays.copyOf(acquisitions, size);
+            out.acquisitionsPayable = full ? acquisitionsPayable : Arrays.copyOf(acquisitionsPayable, size);
+            out.acquisitionsPaid = full ? acquisitionsPaid : Arrays.copyOf(acquisitionsPaid, size);
+            out.acquisitionsNotPaid = full ? acquisitionsNotPaid : Arrays.copyOf(acquisitionsNotPaid, size);
+            out.spend = full ? spend : Arrays.copyOf(spend, size);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.stridetech.mcm.dao.stats;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Slice of the {@link AcquisitionCube}: a date range summed by period and dimension, of the campaigns
+ * passing the filters. Every filter left empty passes all campaigns, a filter with several values
+ * passes any of them; a campaign passes the tag and metro filters if it carries any of the tags and
+ * is set to any of the metros.
+ */
+public class AcquisitionCubeQuery {
+
+    private AcquisitionGrain grain;
+    private AcquisitionDimension dimension;
+    private Date from;
+    private Date to;
+    private Set<String> campaigns = Collections.emptySet();
+    private Set<String> products = Collections.emptySet();
+    private Set<Long> marketplaces = Collections.emptySet();
+    private Set<Long> businessUnits = Collections.emptySet();
+    private Set<Long> tags = Collections.emptySet();
+    private Set<Long> metros = Collections.emptySet();
+
+    public AcquisitionCubeQuery() {
+    }
+
+    public AcquisitionCubeQuery(AcquisitionGrain grain, AcquisitionDimension dimension, Date from, Date to) {
+        this.grain = grain;
+        this.dimension = dimension;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @return period summed over, null for the whole range as one period starting on its first day
+     */
+    public AcquisitionGrain getGrain() {
+        return grain;
+    }
+
+    public void setGrain(AcquisitionGrain grain) {
+        this.grain = grain;
+    }
+
+    /**
+     * @return what to sum by, null for totals
+     */
+    public AcquisitionDimension getDimension() {
+        return dimension;
+    }
+
+    public void setDimension(AcquisitionDimension dimension) {
+        this.dimension = dimension;
+    }
+
+    /**
+     * @return first statement date
+     */
+    public Date getFrom() {
+        return from;
+    }
+
+    public void setFrom(Date from) {
+        this.from = from;
+    }
+
+    /**
+     * @return last statement date, included
+     */
+    public Date getTo() {
+        return to;
+    }
+
+    public void setTo(Date to) {
+        this.to = to;
+    }
+
+    /**
+     * @return campaign trackers
+     */
+    public Set<String> getCampaigns() {
+        return campaigns;
+    }
+
+    public void setCampaigns(Set<String> campaigns) {
+        this.campaigns = campaigns == null ? Collections.emptySet() : new HashSet<>(campaigns);
+    }
+
+    /**
+     * @return product codes
+     */
+    public Set<String> getProducts() {
+        return products;
+    }
+
+    public void setProducts(Set<String> products) {
+        this.products = products == null ? Collections.emptySet() : new HashSet<>(products);
+    }
+
+    /**
+     * @return marketplace ids
+     */
+    public Set<Long> getMarketplaces() {
+        return marketplaces;
+    }
+
+    public void setMarketplaces(Set<Long> marketplaces) {
+        this.marketplaces = marketplaces == null ? Collections.emptySet() : new HashSet<>(marketplaces);
+    }
+
+    /**
+     * @return business unit ids
+     */
+    public Set<Long> getBusinessUnits() {
+        return businessUnits;
+    }
+
+    public void setBusinessUnits(Set<Long> businessUnits) {
+        this.businessUnits = businessUnits == null ? Collections.emptySet() : new HashSet<>(businessUnits);
+    }
+
+    /**
+     * @return tag ids
+     */
+    public Set<Long> getTags() {
+        return tags;
+    }
+
+    public void setTags(Set<Long> tags) {
+        this.tags = tags == null ? Collections.emptySet() : new HashSet<>(tags);
+    }
+
+    /**
+     * @return metro ids
+     */
+    public Set<Long> getMetros() {
+        return metros;
+    }
+
+    public void setMetros(Set<Long> metros) {
+        this.metros = metros == null ? Collections.emptySet() : new HashSet<>(metros);
+    }
+
+    @Override
+    public String toString() {
+        return "AcquisitionCubeQuery{" + grain + " by " + dimension + ", " + from + " to " + to +
+                (campaigns.isEmpty() ? "" : ", campaigns=" + campaigns) +
+                (products.isEmpty() ? "" : ", products=" + products) +
+                (marketplaces.isEmpty() ? "" : ", marketplaces=" + marketplaces) +
+                (businessUnits.isEmpty() ? "" : ", businessUnits=" + businessUnits) +
+                (tags.isEmpty() ? "" : ", tags=" + tags) +
+                (metros.isEmpty() ? "" : ", metros=" + metros) + '}';
+    }
+}
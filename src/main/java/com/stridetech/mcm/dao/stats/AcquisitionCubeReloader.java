@@ -0,0 +1,36 @@
+package com.stridetech.mcm.dao.stats;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.sql.DataSource;
+
+/**
+ * Scheduled {@link AcquisitionCube#refresh(DataSource) refresh} of the acquisition cube, every
+ * {@code mcm.dao.cube.reload-delay-millis} (five minutes by default) after the previous one ended.
+ * A refresh re-reads only the campaigns and statement dates changed since the previous one, and
+ * nothing if nothing changed. A refresh failing leaves the cube as it was.
+ */
+public class AcquisitionCubeReloader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AcquisitionCubeReloader.class);
+
+    private final AcquisitionCube cube;
+    private final DataSource dataSource;
+
+    public AcquisitionCubeReloader(AcquisitionCube cube, DataSource dataSource) {
+        this.cube = cube;
+        this.dataSource = dataSource;
+    }
+
+    @Scheduled(fixedDelayString = "${mcm.dao.cube.reload-delay-millis:300000}",
+            initialDelayString = "${mcm.dao.cube.reload-delay-millis:300000}")
+    public void run() {
+        try {
+            cube.refresh(dataSource);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Refreshing the acquisition cube failed, keeping the facts loaded before: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.stridetech.mcm.dao.stats;
+
+/**
+ * What acquisition facts are summed by, as of the catalog today: a campaign's facts count for its
+ * product, marketplace and business unit now, not when they were acquired. Tags are those of the
+ * campaign itself and metros those it is set to; a campaign with several counts for each of them,
+ * one with none for none.
+ */
+public enum AcquisitionDimension {
+    CAMPAIGN,
+    PRODUCT,
+    MARKETPLACE,
+    BUSINESS_UNIT,
+    TAG,
+    METRO
+}
@@ -0,0 +1,100 @@
+package com.stridetech.mcm.dao.stats;
+
+import java.util.Date;
+
+/**
+ * One row of {@code stats.acquisition_facts}: what a campaign acquired and spent on a statement date.
+ */
+public class AcquisitionFact {
+
+    private String campaign;
+    private Date statementDate;
+    private int acquisitions;
+    private int acquisitionsPayable;
+    private int acquisitionsPaid;
+    private int acquisitionsNotPaid;
+    private double spend;
+
+    public AcquisitionFact() {
+    }
+
+    public AcquisitionFact(String campaign, Date statementDate, int acquisitions, int acquisitionsPayable,
+                           int acquisitionsPaid, int acquisitionsNotPaid, double spend) {
+        this.campaign = campaign;
+        this.statementDate = statementDate;
+        this.acquisitions = acquisitions;
+        this.acquisitionsPayable = acquisitionsPayable;
+        this.acquisitionsPaid = acquisitionsPaid;
+        this.acquisitionsNotPaid = acquisitionsNotPaid;
+        this.spend = spend;
+    }
+
+    /**
+     * @return campaign tracker
+     */
+    public String getCampaign() {
+        return campaign;
+    }
+
+    public void setCampaign(String campaign) {
+        this.campaign = campaign;
+    }
+
+    /**
+     * @return statement date, only the day (in the JVM time zone) is stored
+     */
+    public Date getStatementDate() {
+        return statementDate;
+    }
+
+    public void setStatementDate(Date statementDate) {
+        this.statementDate = statementDate;
+    }
+
+    public int getAcquisitions() {
+        return acquisitions;
+    }
+
+    public void setAcquisitions(int acquisitions) {
+        this.acquisitions = acquisitions;
+    }
+
+    public int getAcquisitionsPayable() {
+        return acquisitionsPayable;
+    }
+
+    public void setAcquisitionsPayable(int acquisitionsPayable) {
+        this.acquisitionsPayable = acquisitionsPayable;
+    }
+
+    public int getAcquisitionsPaid() {
+        return acquisitionsPaid;
+    }
+
+    public void setAcquisitionsPaid(int acquisitionsPaid) {
+        this.acquisitionsPaid = acquisitionsPaid;
+    }
+
+    public int getAcquisitionsNotPaid() {
+        return acquisitionsNotPaid;
+    }
+
+    public void setAcquisitionsNotPaid(int acquisitionsNotPaid) {
+        this.acquisitionsNotPaid = acquisitionsNotPaid;
+    }
+
+    public double getSpend() {
+        return spend;
+    }
+
+    public void setSpend(double spend) {
+        this.spend = spend;
+    }
+
+    @Override
+    public String toString() {
+        return "AcquisitionFact{" + campaign + "@" + new java.sql.Date(statementDate.getTime()) +
+                ", acquisitions=" + acquisitions + ", payable=" + acquisitionsPayable + ", paid=" + acquisitionsPaid +
+                ", notPaid=" + acquisitionsNotPaid + ", spend=" + spend + '}';
+    }
+}
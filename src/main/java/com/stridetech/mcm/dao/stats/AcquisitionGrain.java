@@ -0,0 +1,44 @@
+package com.stridetech.mcm.dao.stats;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+
+/**
+ * Period acquisition facts are summed over: day, ISO week (from Monday) or calendar month.
+ */
+public enum AcquisitionGrain {
+    DAY,
+    WEEK,
+    MONTH;
+
+    /**
+     * @param date a date
+     * @return the first day of the period of the date
+     */
+    public LocalDate start(LocalDate date) {
+        switch (this) {
+            case WEEK:
+                return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            case MONTH:
+                return date.withDayOfMonth(1);
+            default:
+                return date;
+        }
+    }
+
+    /**
+     * @param start first day of a period
+     * @return the first day of the next period
+     */
+    public LocalDate next(LocalDate start) {
+        switch (this) {
+            case WEEK:
+                return start.plusWeeks(1);
+            case MONTH:
+                return start.plusMonths(1);
+            default:
+                return start.plusDays(1);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.stridetech.mcm.dao.stats;
+
+import java.util.Date;
+
+/**
+ * Acquisition facts summed over a period for one member of a {@link AcquisitionDimension dimension}.
+ */
+public class AcquisitionRollup {
+
+    private final Date period;
+    private final String key;
+    private final long acquisitions;
+    private final long acquisitionsPayable;
+    private final long acquisitionsPaid;
+    private final long acquisitionsNotPaid;
+    private final double spend;
+
+    public AcquisitionRollup(Date period, String key, long acquisitions, long acquisitionsPayable,
+                             long acquisitionsPaid, long acquisitionsNotPaid, double spend) {
+        this.period = period;
+        this.key = key;
+        this.acquisitions = acquisitions;
+        this.acquisitionsPayable = acquisitionsPayable;
+        this.acquisitionsPaid = acquisitionsPaid;
+        this.acquisitionsNotPaid = acquisitionsNotPaid;
+        this.spend = spend;
+    }
+
+    /**
+     * @return first day of the period, see {@link AcquisitionGrain#start(java.time.LocalDate)}
+     */
+    public Date getPeriod() {
+        return period;
+    }
+
+    /**
+     * @return campaign tracker, product code, or the id of the marketplace, business unit, tag or
+     *         metro; null for the campaigns of no business unit, or for all when summed by nothing
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public long getAcquisitions() {
+        return acquisitions;
+    }
+
+    public long getAcquisitionsPayable() {
+        return acquisitionsPayable;
+    }
+
+    public long getAcquisitionsPaid() {
+        return acquisitionsPaid;
+    }
+
+    public long getAcquisitionsNotPaid() {
+        return acquisitionsNotPaid;
+    }
+
+    public double getSpend() {
+        return spend;
+    }
+
+    @Override
+    public String toString() {
+        return "AcquisitionRollup{" + key + "@" + period + ", acquisitions=" + acquisitions +
+                ", payable=" + acquisitionsPayable + ", paid=" + acquisitionsPaid +
+                ", notPaid=" + acquisitionsNotPaid + ", spend=" + spend + '}';
+    }
+}
@@ -0,0 +1,32 @@
+package com.stridetech.mcm.dao.stats;
+
+import com.stridetech.mcm.dao.MCMServiceDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * Scheduled {@link MCMServiceDao#refreshAcquisitionRollups() refresh} of the acquisition rollups, every
+ * {@code mcm.dao.rollups.refresh-delay-millis} (a minute by default) after the previous one ended.
+ * Readers get exact sums either way; the sooner the refresh, the fewer periods they read from the
+ * facts. Refreshes of several nodes queue one behind the other, the later ones finding little to do.
+ */
+public class AcquisitionRollupRefresher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AcquisitionRollupRefresher.class);
+
+    private final MCMServiceDao dao;
+
+    public AcquisitionRollupRefresher(MCMServiceDao dao) {
+        this.dao = dao;
+    }
+
+    @Scheduled(fixedDelayString = "${mcm.dao.rollups.refresh-delay-millis:60000}")
+    public void run() {
+        try {
+            dao.refreshAcquisitionRollups();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Refreshing the acquisition rollups failed, dirty dates left for the next run: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.stridetech.mcm.dao.tags;
+
+import com.stridetech.mcm.model.enums.TagType;
+import com.stridetech.mcm.model.meta.Tag;
+import com.stridetech.mcm.model.meta.TagGroup;
+import com.stridetech.mcm.util.TagComparator;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable in-memory copy of {@code meta.tag_group} and {@code meta.tag}: the group of every tag,
+ * whether a group is mutually exclusive and to which kinds of entities it applies. There are a few
+ * hundred tags at most, so the model is read whole and replaced rather than updated.
+ * <p>
+ * Checks tag assignments without going back to the database, see {@link #validate}, and lists the
+ * tags of entities with their mutual exclusions, see {@link #tagMap}. The tags and exclusion sets
+ * handed out are shared by every caller and must not be modified.
+ */
+public final class TagGroupModel {
+
+    private final Map<Long, TagGroup> groups;
+    private final Map<Long, Tag> tags;
+    private final Map<Long, List<Tag>> tagsByGroup;
+    private final Map<Long, SortedSet<Tag>> exclusions;
+
+    private TagGroupModel(Map<Long, TagGroup> groups, Map<Long, Tag> tags) {
+        this.groups = groups;
+        this.tags = tags;
+        this.tagsByGroup = new HashMap<>();
+        for (Tag tag : tags.values())
+            tagsByGroup.computeIfAbsent(tag.getGroup(), group -> new ArrayList<>()).add(tag);
+
+        // worked out once, listings then only look them up
+        this.exclusions = new HashMap<>(tags.size() * 2);
+        SortedSet<Tag> none = Collections.unmodifiableSortedSet(new TreeSet<>(new TagComparator()));
+        for (Tag tag : tags.values()) {
+            TagGroup group = groups.get(tag.getGroup());
+            if (group == null || !Boolean.TRUE.equals(group.getMutex())) {
+                exclusions.put(tag.getId(), none);
+                continue;
+            }
+            SortedSet<Tag> others = new TreeSet<>(new TagComparator());
+            for (Tag other : tagsByGroup.get(tag.getGroup()))
+                if (!other.getId().equals(tag.getId()))
+                    others.add(other);
+            exclusions.put(tag.getId(), Collections.unmodifiableSortedSet(others));
+        }
+    }
+
+    /**
+     * Reads every tag group and tag.
+     *
+     * @param jdbcTemplate
+     * @return the model
+     */
+    public static TagGroupModel load(JdbcTemplate jdbcTemplate) {
+        Map<Long, TagGroup> groups = new HashMap<>();
+        jdbcTemplate.query("SELECT id, is_mutex, array_to_string(applicable_to, ',') FROM meta.tag_group", resultSet -> {
+            TagGroup group = new TagGroup();
+            group.setId(resultSet.getLong(1));
+            group.setMutex(resultSet.getBoolean(2));
+            group.setApplicableTo(new TreeSet<>());
+            String applicableTo = resultSet.getString(3);
+            if (applicableTo != null && !applicableTo.isEmpty())
+                for (String type : applicableTo.split(","))
+                    group.addApplicableTo(TagType.valueOf(type));
+            groups.put(group.getId(), group);
+        });
+        Map<Long, Tag> tags = new HashMap<>();
+        jdbcTemplate.query("SELECT id, \"group\", value FROM meta.tag", resultSet -> {
+            Tag tag = new Tag();
+            tag.setId(resultSet.getLong(1));
+            tag.setGroup(resultSet.getLong(2));
+            tag.setValue(resultSet.getString(3));
+            tags.put(tag.getId(), tag);
+        });
+        return new TagGroupModel(groups, tags);
+    }
+
+    /**
+     * @param id
+     * @return the tag, null if there is no such tag
+     */
+    public Tag getTag(long id) {
+        return tags.get(id);
+    }
+
+    /**
+     * @param id
+     * @return the tag group, null if there is no such group
+     */
+    public TagGroup getGroup(long id) {
+        return groups.get(id);
+    }
+
+    /**
+     * @param groupId
+     * @return tags of the group
+     */
+    public List<Tag> getTags(long groupId) {
+        List<Tag> out = tagsByGroup.get(groupId);
+        return out == null ? Collections.emptyList() : Collections.unmodifiableList(out);
+    }
+
+    /**
+     * @param ids
+     * @return whether every tag is known to the model
+     */
+    public boolean containsTags(Collection<Long> ids) {
+        return tags.keySet().containsAll(ids);
+    }
+
+    /**
+     * @param id
+     * @return the other tags of the tag's group when the group is mutually exclusive, none otherwise
+     *         or when there is no such tag
+     */
+    public SortedSet<Tag> getExclusions(long id) {
+        SortedSet<Tag> out = exclusions.get(id);
+        return out == null ? Collections.emptySortedSet() : out;
+    }
+
+    /**
+     * @param ids tags of an entity
+     * @return the tags, each with its {@link #getExclusions(long) exclusions}, as the list*Tags methods
+     *         return them; unknown tags are left out
+     */
+    public SortedMap<Tag, SortedSet<Tag>> tagMap(Collection<Long> ids) {
+        SortedMap<Tag, SortedSet<Tag>> out = new TreeMap<>(new TagComparator());
+        for (Long id : ids) {
+            Tag tag = tags.get(id);
+            if (tag != null)
+                out.put(tag, exclusions.get(id));
+        }
+        return out;
+    }
+
+    public int size() {
+        return tags.size();
+    }
+
+    /**
+     * Checks the tags an entity is to carry: every tag assigned must exist and its group apply to the
+     * entity's type, and a mutually exclusive group may have only one tag on the entity.
+     *
+     * @param type     type of the entity
+     * @param entity   key of the entity, used in the violations
+     * @param carried  every tag the entity will carry
+     * @param assigned tags being assigned, a subset of {@code carried}; only the groups of these are checked,
+     *                 so that conflicts the entity already had don't fail unrelated assignments
+     * @param violations list to add the violations to, one sentence each
+     */
+    public void validate(TagType type, String entity, Collection<Long> carried, Collection<Long> assigned,
+                         List<String> violations) {
+        Set<Long> exclusiveGroups = new HashSet<>();
+        for (Long id : assigned) {
+            Tag tag = tags.get(id);
+            if (tag == null) {
+                violations.add(type + " " + entity + ": there is no tag " + id);
+                continue;
+            }
+            TagGroup group = groups.get(tag.getGroup());
+            if (!group.getApplicableTo().contains(type))
+                violations.add(type + " " + entity + ": tag " + id + " of group " + group.getId() + " doesn't apply to " + type);
+            if (Boolean.TRUE.equals(group.getMutex()))
+                exclusiveGroups.add(group.getId());
+        }
+        for (Long groupId : exclusiveGroups) {
+            List<Long> inGroup = new ArrayList<>();
+            for (Long id : carried) {
+                Tag tag = tags.get(id);
+                if (tag != null && groupId.equals(tag.getGroup()))
+                    inGroup.add(id);
+            }
+            if (inGroup.size() > 1) {
+                Collections.sort(inGroup);
+                violations.add(type + " " + entity + ": tags " + inGroup + " of mutually exclusive group " + groupId);
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.stridetech.mcm.dao.tags;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown when a bulk tag assignment would break the tag group rules; nothing was written.
+ */
+public class TagValidationException extends IllegalArgumentException {
+
+    private static final int VIOLATIONS_IN_MESSAGE = 10;
+
+    private final List<String> violations;
+
+    public TagValidationException(List<String> violations) {
+        super(message(violations));
+        this.violations = Collections.unmodifiableList(new ArrayList<>(violations));
+    }
+
+    /**
+     * @return every violation found, one sentence each
+     */
+    public List<String> getViolations() {
+        return violations;
+    }
+
+    private static String message(List<String> violations) {
+        StringBuilder out = new StringBuilder().append(violations.size()).append(" tagging violation(s): ");
+        out.append(String.join("; ", violations.subList(0, Math.min(VIOLATIONS_IN_MESSAGE, violations.size()))));
+        if (violations.size() > VIOLATIONS_IN_MESSAGE)
+            out.append("; ...");
+        return out.toString();
+    }
+}
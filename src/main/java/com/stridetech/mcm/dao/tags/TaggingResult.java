@@ -0,0 +1,43 @@
+package com.stridetech.mcm.dao.tags;
+
+/**
+ * Summary of a bulk tag assignment.
+ */
+public final class TaggingResult {
+
+    private final int entities;
+    private final int added;
+    private final int removed;
+
+    public TaggingResult(int entities, int added, int removed) {
+        this.entities = entities;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    /**
+     * @return number of entities whose tags were set
+     */
+    public int getEntities() {
+        return entities;
+    }
+
+    /**
+     * @return number of tag assignments added, assignments already there not counted
+     */
+    public int getAdded() {
+        return added;
+    }
+
+    /**
+     * @return number of tag assignments removed
+     */
+    public int getRemoved() {
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return entities + " tagged, " + added + " tags added, " + removed + " removed";
+    }
+}
@@ -32,7 +32,7 @@ comment on table biportal_links is 'front page links'
 
 insert into biportal_links
 (link_order, title, link, description)
-values(1,'Link 1', 'https://www.google.com', 'Link description 1')
+values(1,'Link 1', 'https://www.google.com', 'Link description 1');
 
 
 
@@ -60,18 +60,6 @@ create table feed_def
 ;
 
 
-create table logs.feed_upload_log
-(
-	uploadtype_id integer not null,
-	email varchar(100) not null,
-	upload_date timestamp not null,
-	original_filename varchar(100) not null,
-	status varchar(100),
-	parser_status varchar(100),
-	filename varchar(100)
-)
-;
-
 
 
 
@@ -337,6 +325,87 @@ CREATE TABLE meta.campaign_metros
 
 CREATE SCHEMA logs;
 
+create table logs.feed_upload_log
+(
+	uploadtype_id integer not null,
+	email varchar(100) not null,
+	upload_date timestamp not null,
+	original_filename varchar(100) not null,
+	status varchar(100),
+	parser_status varchar(100),
+	filename varchar(100)
+)
+;
+
+create table logs.feedhandler_log
+(
+	uploadtype_id integer not null,
+	filename varchar(100) not null,
+	status varchar(100),
+	message text,
+	log_date timestamp not null default now()
+)
+;
+
+-- Both logs are kept in monthly partitions, tables inheriting from the two above and named after
+-- their month (feed_upload_log_y2016m10), each with a CHECK constraint on its month: queries bounded
+-- by date skip the other months (constraint_exclusion = partition, the default) and old months are
+-- dropped or archived whole by the maintenance job (UploadLogPartitions) rather than deleted row by
+-- row, so neither vacuum nor index bloat grows with the history. Rows inserted into the parent
+-- tables are routed to the partition of their month, created on the fly if the job hasn't yet.
+-- Rows written before partitioning stay in the parent tables, which are still read.
+--
+-- Upload history is read a page at a time, most recent first, per feed: the next page starts from
+-- the (upload_date, filename) of the last log of the previous one, found in the first index however
+-- far back it is.
+CREATE FUNCTION logs.create_log_partitions(month date) RETURNS void AS '
+DECLARE
+  first_day date := date_trunc(''month'', month);
+  next_day date := date_trunc(''month'', month) + interval ''1 month'';
+  suffix text := to_char(month, ''"_y"YYYY"m"MM'');
+BEGIN
+  IF to_regclass((''logs.feed_upload_log'' || suffix)::cstring) IS NULL THEN
+    BEGIN
+      EXECUTE format(''CREATE TABLE logs.%I (CHECK (upload_date >= %L AND upload_date < %L)) INHERITS (logs.feed_upload_log)'',
+                     ''feed_upload_log'' || suffix, first_day, next_day);
+      EXECUTE format(''CREATE INDEX ON logs.%I (uploadtype_id, upload_date DESC, (coalesce(filename, %L)) DESC)'',
+                     ''feed_upload_log'' || suffix, '''');
+      EXECUTE format(''CREATE INDEX ON logs.%I (filename)'', ''feed_upload_log'' || suffix);
+    EXCEPTION WHEN duplicate_table OR unique_violation THEN
+      -- created by a concurrent transaction
+    END;
+  END IF;
+  IF to_regclass((''logs.feedhandler_log'' || suffix)::cstring) IS NULL THEN
+    BEGIN
+      EXECUTE format(''CREATE TABLE logs.%I (CHECK (log_date >= %L AND log_date < %L)) INHERITS (logs.feedhandler_log)'',
+                     ''feedhandler_log'' || suffix, first_day, next_day);
+      EXECUTE format(''CREATE INDEX ON logs.%I (uploadtype_id, filename)'', ''feedhandler_log'' || suffix);
+    EXCEPTION WHEN duplicate_table OR unique_violation THEN
+      -- created by a concurrent transaction
+    END;
+  END IF;
+END;
+' LANGUAGE plpgsql;
+
+-- Trigger argument: the column holding the date the row is partitioned by.
+CREATE FUNCTION logs.route_to_log_partition() RETURNS trigger AS '
+DECLARE
+  logged timestamp := to_json(NEW) ->> TG_ARGV[0];
+  target text := TG_TABLE_NAME || to_char(logged, ''"_y"YYYY"m"MM'');
+BEGIN
+  IF to_regclass((''logs.'' || target)::cstring) IS NULL THEN
+    PERFORM logs.create_log_partitions(logged::date);
+  END IF;
+  EXECUTE format(''INSERT INTO logs.%I SELECT ($1).*'', target) USING NEW;
+  RETURN NULL;
+END;
+' LANGUAGE plpgsql;
+
+CREATE TRIGGER feed_upload_log_partition BEFORE INSERT ON logs.feed_upload_log
+  FOR EACH ROW EXECUTE PROCEDURE logs.route_to_log_partition('upload_date');
+CREATE TRIGGER feedhandler_log_partition BEFORE INSERT ON logs.feedhandler_log
+  FOR EACH ROW EXECUTE PROCEDURE logs.route_to_log_partition('log_date');
+
 CREATE TABLE logs.campaign_status_changelog
 (
   campaign character varying(13) NOT NULL,
@@ -417,6 +486,136 @@ WITH (
   OIDS=FALSE
 );
 
+-- Keys of the catalog rows written by each transaction, so that a replica started from a catalog
+-- snapshot can re-read what changed after the snapshot's high-water mark (a txid) instead of
+-- reloading everything, and a node notified of a change can read what it was. The primary key leads with txid, so it also serves the txid range scans of
+-- the catch-up and the purge.
+CREATE TABLE logs.catalog_change
+(
+  txid bigint NOT NULL DEFAULT txid_current(),
+  entity character varying(20) NOT NULL,
+  key character varying(100) NOT NULL,
+  CONSTRAINT catalog_change_pkey PRIMARY KEY (txid, entity, key)
+)
+WITH (
+  OIDS=FALSE
+);
+
+-- High-water marks recorded by the catalog change upkeep, so that it knows the oldest mark a snapshot
+-- still in use may catch up from and purges logs.catalog_change up to it.
+CREATE TABLE logs.catalog_change_mark
+(
+  taken timestamp with time zone NOT NULL DEFAULT now(),
+  high_water_mark bigint NOT NULL,
+  CONSTRAINT catalog_change_mark_pkey PRIMARY KEY (taken, high_water_mark)
+)
+WITH (
+  OIDS=FALSE
+);
+
+-- Trigger arguments: entity name and the column holding its key. Records the key of every row
+-- written; the notification is left to logs.notify_catalog_change, once per statement.
+-- The body is quoted with '' rather than $$ so that statement splitters not aware of dollar quoting
+-- (Spring's ScriptUtils) keep it whole.
+CREATE FUNCTION logs.record_catalog_change() RETURNS trigger AS '
+DECLARE
+  changed_key text;
+BEGIN
+  IF TG_OP = ''DELETE'' THEN
+    changed_key := to_json(OLD) ->> TG_ARGV[1];
+  ELSE
+    changed_key := to_json(NEW) ->> TG_ARGV[1];
+  END IF;
+  INSERT INTO logs.catalog_change (entity, key) VALUES (TG_ARGV[0], changed_key)
+    ON CONFLICT DO NOTHING;
+  RETURN NULL;
+END;
+' LANGUAGE plpgsql;
+
+-- Notifies the writing transaction's txid on channel mcm_catalog, delivered to listening nodes when
+-- it commits; they read the keys it recorded from logs.catalog_change. Fired once per statement, and
+-- the notifications of a transaction all alike, PostgreSQL delivers only one of them: a bulk write
+-- queues one notification, not one per row.
+CREATE FUNCTION logs.notify_catalog_change() RETURNS trigger AS '
+BEGIN
+  PERFORM pg_notify(''mcm_catalog'', txid_current()::text);
+  RETURN NULL;
+END;
+' LANGUAGE plpgsql;
+
+CREATE TRIGGER business_unit_catalog_change AFTER INSERT OR UPDATE OR DELETE ON meta.business_unit
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('business_unit', 'id');
+CREATE TRIGGER business_unit_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON meta.business_unit
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER marketplace_catalog_change AFTER INSERT OR UPDATE OR DELETE ON meta.marketplace
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('marketplace', 'id');
+CREATE TRIGGER marketplace_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON meta.marketplace
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER product_catalog_change AFTER INSERT OR UPDATE OR DELETE ON meta.product
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('product', 'code');
+CREATE TRIGGER product_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON meta.product
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER campaign_catalog_change AFTER INSERT OR UPDATE OR DELETE ON meta.campaign
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('campaign', 'tracker');
+CREATE TRIGGER campaign_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON meta.campaign
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER account_campaigns_catalog_change AFTER INSERT OR UPDATE OR DELETE ON meta.account_campaigns
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('campaign', 'tracker');
+CREATE TRIGGER account_campaigns_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON meta.account_campaigns
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER campaign_account_relationship_catalog_change AFTER INSERT OR UPDATE OR DELETE ON logs.campaign_account_relationship_changelog
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('campaign', 'tracker');
+CREATE TRIGGER campaign_account_relationship_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON logs.campaign_account_relationship_changelog
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER campaign_tags_catalog_change AFTER INSERT OR UPDATE OR DELETE ON meta.campaign_tags
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('campaign', 'campaign');
+CREATE TRIGGER campaign_tags_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON meta.campaign_tags
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER campaign_metros_catalog_change AFTER INSERT OR UPDATE OR DELETE ON meta.campaign_metros
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('campaign', 'tracker');
+CREATE TRIGGER campaign_metros_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON meta.campaign_metros
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER account_tags_catalog_change AFTER INSERT OR UPDATE OR DELETE ON meta.account_tags
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('business_unit', 'account');
+CREATE TRIGGER account_tags_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON meta.account_tags
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER marketplace_tags_catalog_change AFTER INSERT OR UPDATE OR DELETE ON meta.marketplace_tags
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('marketplace', 'marketplace');
+CREATE TRIGGER marketplace_tags_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON meta.marketplace_tags
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER product_tags_catalog_change AFTER INSERT OR UPDATE OR DELETE ON meta.product_tags
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('product', 'product');
+CREATE TRIGGER product_tags_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON meta.product_tags
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER tag_group_catalog_change AFTER INSERT OR UPDATE OR DELETE ON meta.tag_group
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('tag_group', 'id');
+CREATE TRIGGER tag_group_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON meta.tag_group
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER tag_catalog_change AFTER INSERT OR UPDATE OR DELETE ON meta.tag
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('tag', 'id');
+CREATE TRIGGER tag_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON meta.tag
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER metro_catalog_change AFTER INSERT OR UPDATE OR DELETE ON meta.metro
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('metro', 'id');
+CREATE TRIGGER metro_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON meta.metro
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER account_status_catalog_change AFTER INSERT OR UPDATE OR DELETE ON logs.account_status_changelog
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('account_status', 'account');
+CREATE TRIGGER account_status_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON logs.account_status_changelog
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER marketplace_status_catalog_change AFTER INSERT OR UPDATE OR DELETE ON logs.marketplace_status_changelog
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('marketplace_status', 'marketplace');
+CREATE TRIGGER marketplace_status_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON logs.marketplace_status_changelog
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER product_status_catalog_change AFTER INSERT OR UPDATE OR DELETE ON logs.product_status_changelog
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('product_status', 'product');
+CREATE TRIGGER product_status_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON logs.product_status_changelog
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+CREATE TRIGGER campaign_status_catalog_change AFTER INSERT OR UPDATE OR DELETE ON logs.campaign_status_changelog
+  FOR EACH ROW EXECUTE PROCEDURE logs.record_catalog_change('campaign_status', 'campaign');
+CREATE TRIGGER campaign_status_catalog_notify AFTER INSERT OR UPDATE OR DELETE ON logs.campaign_status_changelog
+  FOR EACH STATEMENT EXECUTE PROCEDURE logs.notify_catalog_change();
+
 
 -- STATS --
 
@@ -444,6 +643,126 @@ WITH (
 
 
 
+-- Facts rolled up by campaign and week (ISO, from Monday) or month, for reports over long ranges:
+-- summed per business unit, tag, ... by joining the catalog at query time, so retagging a campaign or
+-- moving it to another business unit needs no refresh. Every change to the facts marks its statement
+-- date dirty (stats.acquisition_dirty_dates); stats.refresh_acquisition_rollups() rebuilds only the
+-- weeks and months of the dirty dates. Until then readers take those periods from the facts.
+CREATE INDEX acquisition_facts_statement_date_idx ON stats.acquisition_facts (statement_date);
+
+CREATE TABLE stats.acquisition_dirty_dates
+(
+  statement_date date NOT NULL,
+  CONSTRAINT acquisition_dirty_dates_pkey PRIMARY KEY (statement_date)
+);
+
+-- Last transaction to change the facts of each statement date, kept when a refresh cleans the date:
+-- copies of the facts held elsewhere, e.g. com.stridetech.mcm.dao.stats.AcquisitionCube, re-read only
+-- the dates changed since their txid high-water mark. One row per date, small enough to scan whole.
+CREATE TABLE stats.acquisition_date_change
+(
+  statement_date date NOT NULL,
+  txid bigint NOT NULL DEFAULT txid_current(),
+  CONSTRAINT acquisition_date_change_pkey PRIMARY KEY (statement_date)
+);
+
+CREATE TABLE stats.acquisition_weekly
+(
+  period_start date NOT NULL,
+  campaign character varying(13) NOT NULL,
+  acquisitions bigint NOT NULL,
+  acquisitions_payable bigint NOT NULL,
+  acquisitions_paid bigint NOT NULL,
+  acquisitions_not_paid bigint NOT NULL,
+  spend double precision NOT NULL,
+  CONSTRAINT acquisition_weekly_pkey PRIMARY KEY (period_start, campaign)
+);
+
+CREATE TABLE stats.acquisition_monthly
+(
+  period_start date NOT NULL,
+  campaign character varying(13) NOT NULL,
+  acquisitions bigint NOT NULL,
+  acquisitions_payable bigint NOT NULL,
+  acquisitions_paid bigint NOT NULL,
+  acquisitions_not_paid bigint NOT NULL,
+  spend double precision NOT NULL,
+  CONSTRAINT acquisition_monthly_pkey PRIMARY KEY (period_start, campaign)
+);
+
+-- Marks the dates of the changed facts dirty and changed. A date already dirty is locked rather than
+-- left alone, so that the writer holds its row lock until
+-- it commits: a refresh deleting the date meanwhile waits for the writer and then rebuilds the periods
+-- with its change, instead of rebuilding them without it and leaving them clean but wrong. ON CONFLICT
+-- locks the row even where its WHERE is false, and the rows are only rewritten where something
+-- changes, once per transaction: rewriting them for every fact would leave a row version per fact of
+-- the date, each found and skipped by the next conflict, making bulk writes quadratic.
+CREATE FUNCTION stats.mark_acquisition_date_dirty() RETURNS trigger AS '
+BEGIN
+  IF TG_OP <> ''INSERT'' THEN
+    INSERT INTO stats.acquisition_dirty_dates (statement_date) VALUES (OLD.statement_date)
+      ON CONFLICT (statement_date) DO UPDATE SET statement_date = EXCLUDED.statement_date WHERE false;
+    INSERT INTO stats.acquisition_date_change (statement_date) VALUES (OLD.statement_date)
+      ON CONFLICT (statement_date) DO UPDATE SET txid = EXCLUDED.txid
+      WHERE stats.acquisition_date_change.txid <> EXCLUDED.txid;
+  END IF;
+  IF TG_OP <> ''DELETE'' AND (TG_OP = ''INSERT'' OR NEW.statement_date <> OLD.statement_date) THEN
+    INSERT INTO stats.acquisition_dirty_dates (statement_date) VALUES (NEW.statement_date)
+      ON CONFLICT (statement_date) DO UPDATE SET statement_date = EXCLUDED.statement_date WHERE false;
+    INSERT INTO stats.acquisition_date_change (statement_date) VALUES (NEW.statement_date)
+      ON CONFLICT (statement_date) DO UPDATE SET txid = EXCLUDED.txid
+      WHERE stats.acquisition_date_change.txid <> EXCLUDED.txid;
+  END IF;
+  RETURN NULL;
+END' LANGUAGE plpgsql;
+
+-- Skipped while the session holds the staging table of MCMServiceDaoPostgreSQL.mergeAcquisitionFacts,
+-- which marks the distinct dates it stages once, the same way, rather than once per fact.
+CREATE TRIGGER acquisition_facts_dirty_date AFTER INSERT OR UPDATE OR DELETE ON stats.acquisition_facts
+  FOR EACH ROW WHEN (to_regclass('pg_temp.acquisition_facts_staging') IS NULL)
+  EXECUTE PROCEDURE stats.mark_acquisition_date_dirty();
+
+-- Rebuilds the rollups of the weeks and months of the dirty dates and returns the number of dates,
+-- one refresh at a time. Deleting a date waits for the transactions still writing facts of it, see
+-- stats.mark_acquisition_date_dirty(); dates dirtied by transactions committing later stay dirty for
+-- the next refresh.
+CREATE FUNCTION stats.refresh_acquisition_rollups() RETURNS integer AS '
+DECLARE
+  dates date[];
+  periods date[];
+BEGIN
+  PERFORM pg_advisory_xact_lock(hashtext(''stats.refresh_acquisition_rollups''));
+  WITH dirty AS (DELETE FROM stats.acquisition_dirty_dates RETURNING statement_date)
+  SELECT array_agg(statement_date) INTO dates FROM dirty;
+  IF dates IS NULL THEN
+    RETURN 0;
+  END IF;
+
+  periods := ARRAY(SELECT DISTINCT date_trunc(''week'', d::timestamp)::date FROM unnest(dates) d);
+  DELETE FROM stats.acquisition_weekly WHERE period_start = ANY (periods);
+  INSERT INTO stats.acquisition_weekly (period_start, campaign, acquisitions, acquisitions_payable,
+      acquisitions_paid, acquisitions_not_paid, spend)
+    SELECT p.period_start, f.campaign, sum(f.acquisitions), sum(f.acquisitions_payable),
+        sum(f.acquisitions_paid), sum(f.acquisitions_not_paid), sum(f.spend)
+    FROM unnest(periods) p(period_start)
+      JOIN stats.acquisition_facts f ON f.statement_date >= p.period_start AND f.statement_date < p.period_start + 7
+    GROUP BY p.period_start, f.campaign;
+
+  periods := ARRAY(SELECT DISTINCT date_trunc(''month'', d::timestamp)::date FROM unnest(dates) d);
+  DELETE FROM stats.acquisition_monthly WHERE period_start = ANY (periods);
+  INSERT INTO stats.acquisition_monthly (period_start, campaign, acquisitions, acquisitions_payable,
+      acquisitions_paid, acquisitions_not_paid, spend)
+    SELECT p.period_start, f.campaign, sum(f.acquisitions), sum(f.acquisitions_payable),
+        sum(f.acquisitions_paid), sum(f.acquisitions_not_paid), sum(f.spend)
+    FROM unnest(periods) p(period_start)
+      JOIN stats.acquisition_facts f ON f.statement_date >= p.period_start
+        AND f.statement_date < (p.period_start + interval ''1 month'')::date
+    GROUP BY p.period_start, f.campaign;
+
+  RETURN array_length(dates, 1);
+END' LANGUAGE plpgsql;
+
+
 CREATE TABLE stats.acquisition_guidance
 (
 
@@ -506,3 +825,8 @@ INSERT INTO meta.metro (id, name, description) VALUES (12, 'New York City', 'New
 INSERT INTO meta.metro (id, name, description) VALUES (13, 'Chicago', 'Chicago');
 INSERT INTO meta.metro (id, name, description) VALUES (14, 'Hong-Kong', 'Hong-Kong');
 INSERT INTO meta.metro (id, name, description) VALUES (15, 'Seattle', 'Seattle');
+
+-- keep the serials ahead of the explicit ids above
+SELECT setval('meta.tag_group_id_seq', (SELECT max(id) FROM meta.tag_group));
+SELECT setval('meta.tag_id_seq', (SELECT max(id) FROM meta.tag));
+SELECT setval('meta.metro_id_seq', (SELECT max(id) FROM meta.metro));
@@ -2,7 +2,37 @@ package com.stridetech.mcm.dao;
 
 
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
 import com.stridetech.mcm.config.ApplicationConfiguration;
+import com.stridetech.mcm.config.ConnectionPoolConfig;
+import com.stridetech.mcm.dao.async.DaoExecutor;
+import com.stridetech.mcm.dao.events.CatalogChangeChannel;
+import com.stridetech.mcm.dao.events.CatalogChangeEvent;
+import com.stridetech.mcm.dao.index.AsOfEngine;
+import com.stridetech.mcm.dao.index.AsOfEngineRefresher;
+import com.stridetech.mcm.dao.index.CampaignQuery;
+import com.stridetech.mcm.dao.index.CampaignTagIndex;
+import com.stridetech.mcm.dao.index.CampaignTagIndexRefresher;
+import com.stridetech.mcm.dao.index.TagExpression;
+import com.stridetech.mcm.dao.jdbc.StatementCountingDataSource;
+import com.stridetech.mcm.dao.logs.LazyChangeLog;
+import com.stridetech.mcm.dao.logs.UploadLogCursor;
+import com.stridetech.mcm.dao.logs.UploadLogPage;
+import com.stridetech.mcm.dao.logs.UploadLogPartitions;
+import com.stridetech.mcm.dao.logs.UploadLogWriteBehind;
+import com.stridetech.mcm.dao.snapshot.CatalogChangeMaintenance;
+import com.stridetech.mcm.dao.snapshot.CatalogChanges;
+import com.stridetech.mcm.dao.snapshot.CatalogSnapshot;
+import com.stridetech.mcm.dao.snapshot.CatalogSnapshotWriter;
+import com.stridetech.mcm.dao.stats.AcquisitionCube;
+import com.stridetech.mcm.dao.stats.AcquisitionCubeQuery;
+import com.stridetech.mcm.dao.stats.AcquisitionDimension;
+import com.stridetech.mcm.dao.stats.AcquisitionFact;
+import com.stridetech.mcm.dao.stats.AcquisitionGrain;
+import com.stridetech.mcm.dao.stats.AcquisitionRollup;
+import com.stridetech.mcm.dao.tags.TagValidationException;
+import com.stridetech.mcm.dao.tags.TaggingResult;
 import com.stridetech.mcm.model.enums.*;
 import com.stridetech.mcm.model.logs.ChangeLog;
 import com.stridetech.mcm.model.logs.ChangeLogEntry;
@@ -15,17 +45,50 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Import;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.jdbc.datasource.TransactionAwareDataSourceProxy;
 import org.springframework.test.annotation.Rollback;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
-
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.YearMonth;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @Import(ApplicationConfiguration.class)
@@ -34,6 +97,18 @@ public class MCMServiceDaoTest {
     @Autowired
     private MCMServiceDao mcmServiceDao;
 
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private ConnectionPoolConfig poolConfig;
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
     /**
      * BUSINESS UNIT ACCOUNT
      **/
@@ -168,6 +243,41 @@ public class MCMServiceDaoTest {
         }
     }
 
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testCachedBusinessUnit() {
+        CachingMCMServiceDao cachingDao = new CachingMCMServiceDao(mcmServiceDao, 100, 5, TimeUnit.MINUTES);
+
+        Account a = new Account();
+        a.setType(AccountType.BUSINESS_UNIT);
+        a.setStatus(AccountStatus.ACTIVE);
+        a.setStatusUpdated(new Date());
+        a.setName("Cached business unit");
+        a = cachingDao.createBusinessUnit(a);
+
+        Assert.assertEquals("Cached business unit", cachingDao.retrieveBusinessUnit(a.getId()).getName());
+        Assert.assertEquals("Cached business unit", cachingDao.retrieveBusinessUnit(a.getId()).getName());
+        Assert.assertEquals(1, cachingDao.getStatistics().get("businessUnits").getHits());
+        Assert.assertEquals(1, cachingDao.getStatistics().get("businessUnits").getMisses());
+
+        // every caller gets a copy, changing it without writing it back changes nothing cached
+        Account changed = cachingDao.retrieveBusinessUnit(a.getId());
+        changed.setName("Changed but not written");
+        Assert.assertEquals("Cached business unit", cachingDao.retrieveBusinessUnit(a.getId()).getName());
+        cachingDao.retrieveBusinessUnits(Collections.singleton(a.getId())).get(a.getId()).setName("Changed but not written");
+        Assert.assertEquals("Cached business unit", cachingDao.retrieveBusinessUnit(a.getId()).getName());
+        Assert.assertEquals(5, cachingDao.getStatistics().get("businessUnits").getHits());
+
+        // writes through the cache invalidate both the entity and the listings
+        Assert.assertTrue(cachingDao.listBusinessUnits().contains(a));
+        a.setName("Renamed cached business unit");
+        cachingDao.updateBusinessUnit(a);
+        Assert.assertEquals("Renamed cached business unit", cachingDao.retrieveBusinessUnit(a.getId()).getName());
+        Assert.assertEquals(2, cachingDao.getStatistics().get("businessUnits").getMisses());
+        Assert.assertTrue(cachingDao.listBusinessUnits().stream().anyMatch(b -> b.getName().equals("Renamed cached business unit")));
+    }
+
     @Test
     @Transactional(isolation = Isolation.READ_COMMITTED)
     @Rollback(true)
@@ -241,6 +351,54 @@ public class MCMServiceDaoTest {
 
     }
 
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testListInRetrospectAsOfEngine() throws ParseException {
+        final DateFormat f = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        final Date dateActive = f.parse("2016-01-01 00:00:00.000");
+        final Date datePaused = f.parse("2016-06-01 00:00:00.000");
+        final Date dateDeleted = f.parse("2016-12-31 23:59:59.999");
+
+        for (int i = 0; i < 6; i++) {
+            Account a = new Account();
+            a.setType(AccountType.BUSINESS_UNIT);
+            a.setStatus(AccountStatus.ACTIVE);
+            a.setStatusUpdated(dateActive);
+            a.setName("As-of Business Unit #" + i);
+            a = mcmServiceDao.createBusinessUnit(a);
+            if (i < 4) {
+                a.setStatus(AccountStatus.PAUSED);
+                a.setStatusUpdated(datePaused);
+                a = mcmServiceDao.updateBusinessUnit(a);
+            }
+            if (i < 2) {
+                a.setStatus(AccountStatus.DELETED);
+                a.setStatusUpdated(dateDeleted);
+                mcmServiceDao.updateBusinessUnit(a);
+            }
+        }
+
+        // Engine backed DAO sharing the test transaction, loaded after the changes above
+        AsOfEngine engine = new AsOfEngine().load(dataSource);
+        MCMServiceDaoPostgreSQL engineDao = new MCMServiceDaoPostgreSQL();
+        engineDao.setDatasource(new TransactionAwareDataSourceProxy(dataSource));
+        engineDao.setAsOfEngine(engine);
+
+        for (Date when : Arrays.asList(Date.from(dateActive.toInstant().minus(1, ChronoUnit.SECONDS)), dateActive, datePaused, dateDeleted, new Date())) {
+            SortedSet<Account> expected = mcmServiceDao.listBusinessUnitsInRetrospect(when);
+            SortedSet<Account> actual = engineDao.listBusinessUnitsInRetrospect(when);
+            Assert.assertEquals(expected.size(), actual.size());
+            Iterator<Account> e = expected.iterator();
+            for (Account a : actual) {
+                Account b = e.next();
+                Assert.assertEquals(b.getName(), a.getName());
+                Assert.assertEquals(b.getStatus(), a.getStatus());
+            }
+            Assert.assertEquals(mcmServiceDao.listCampaignsInRetrospect(when).size(), engineDao.listCampaignsInRetrospect(when).size());
+        }
+    }
+
     /**
      * MARKETPLACE
      **/
@@ -754,6 +912,68 @@ public class MCMServiceDaoTest {
         Assert.assertNull(campaignStatusChangeLog.getValue(Date.from(new Date().toInstant().minus(1, ChronoUnit.DAYS)), null));
     }
 
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testLogCampaignStatusChange(){
+        StatementCountingDataSource counting = new StatementCountingDataSource(new TransactionAwareDataSourceProxy(dataSource));
+        MCMServiceDaoPostgreSQL countingDao = new MCMServiceDaoPostgreSQL();
+        countingDao.setDatasource(counting);
+        countingDao.setTransactionManager(transactionManager);
+
+        Account a = new Account();
+        a.setStatus(AccountStatus.ACTIVE);
+        a.setStatusUpdated(new Date());
+        a.setName("Business Unit");
+        mcmServiceDao.createBusinessUnit(a);
+
+        Product p = new Product();
+        p.setStatus(ProductStatus.ACTIVE);
+        p.setStatusUpdated(new Date());
+        p.setId("WDI");
+        p.setName("Web Development Immersive OnPrem");
+        p= mcmServiceDao.createProduct(p);
+
+        Marketplace m = new Marketplace();
+        m.setName("Facebook");
+        m.setStatus(MarketplaceStatus.ACTIVE);
+        m.setStatusUpdated(new Date());
+        m= mcmServiceDao.createMarketplace(m);
+
+        Campaign c = new Campaign();
+        c.setBusinessUnit(a.getId());
+        c.setProduct(p.getId());
+        c.setMarketplace(m.getId());
+        c.setTracker(p.getId()+"^log001");
+        c.setName(p.getId() + " " + m.getName() +" status flips");
+        c.setStatus(CampaignStatus.ACTIVE);
+        c.setStatusUpdated(new Date());
+        c.setType(CampaignType.CPC);
+        c = countingDao.createCampaign(c);
+
+        for (int i = 0; i < 10; i++) {
+            Date flipped = new Date(c.getStatusUpdated().getTime() + TimeUnit.HOURS.toMillis(i + 1));
+            long before = counting.getStatementCount();
+            ChangeLogEntry<CampaignStatus> entry = countingDao.logCampaignStatusChange(c.getTracker(),
+                    i % 2 == 0 ? CampaignStatus.PAUSED : CampaignStatus.ACTIVE, flipped);
+            Assert.assertEquals("appending does not read the history back", 1, counting.getStatementCount() - before);
+            Assert.assertEquals(i % 2 == 0 ? CampaignStatus.PAUSED : CampaignStatus.ACTIVE, entry.value);
+            Assert.assertEquals(flipped, entry.effectiveDate);
+        }
+
+        LazyChangeLog<CampaignStatus> history = countingDao.lazyCampaignStatusChangelog(c.getTracker());
+        Assert.assertFalse(history.isLoaded());
+        Assert.assertEquals(11, history.getChangeLogs().size());
+        Assert.assertTrue(history.isLoaded());
+        long before = counting.getStatementCount();
+        history.get();
+        Assert.assertEquals("read once", 0, counting.getStatementCount() - before);
+
+        ChangeLog<Account> businessUnits = countingDao.lazyCampaignBusinessUnitChangelog(c.getTracker()).get();
+        Assert.assertEquals(1, businessUnits.getChangeLogs().size());
+        Assert.assertEquals(a.getId(), businessUnits.getChangeLogs().first().value.getId());
+    }
+
     @Test
     @Transactional
     @Rollback(true)
@@ -870,26 +1090,16 @@ public class MCMServiceDaoTest {
         m.setStatus(MarketplaceStatus.PAUSED);
 
     }
+
     @Test
     @Transactional
     @Rollback(true)
-    public void testTagging(){
+    public void testListCampaignsStatementCount(){
+        // A second DAO over the same (transaction bound) connection, counting every statement it issues
+        StatementCountingDataSource counting = new StatementCountingDataSource(new TransactionAwareDataSourceProxy(dataSource));
+        MCMServiceDaoPostgreSQL countingDao = new MCMServiceDaoPostgreSQL();
+        countingDao.setDatasource(counting);
 
-        // TODO: add tests
-        // 1. [✓] create account, product, marketplace
-        // 2. [✓]create a campaign
-        // 3. create a tag group set to
-        //     3.1 mutex on
-        //     3.2 applicable to CAMPAIGN
-        //     3.3 create a few tags under the tag group
-        // 4. create a tag group set to
-        //     4.1 mutex off
-        //     4.2 applicable to CAMPAIGN
-        //     4.3 create a few tags under the tag group
-        // 5. Tag campaign with any of the 3.3, expect success
-        // 6. Tag campaign with additional selection from 3.3, expect failure
-        // 7. Tag campaign with any of the 4.3, expect success
-        // 8. Tag campaign with additional selection from 4.3, expect success
         Account a = new Account();
         a.setStatus(AccountStatus.ACTIVE);
         a.setStatusUpdated(new Date());
@@ -897,7 +1107,60 @@ public class MCMServiceDaoTest {
         mcmServiceDao.createBusinessUnit(a);
 
         Product p = new Product();
+        p.setStatus(ProductStatus.ACTIVE);
+        p.setStatusUpdated(new Date());
+        p.setId("WDI");
+        p.setName("Web Development Immersive OnPrem");
+        p= mcmServiceDao.createProduct(p);
+
+        Marketplace m = new Marketplace();
+        m.setName("Facebook");
+        m.setStatus(MarketplaceStatus.ACTIVE);
+        m.setStatusUpdated(new Date());
+        m= mcmServiceDao.createMarketplace(m);
+
+        long[] statements = new long[2];
+        for (int round = 0; round < 2; round++) {
+            // 2 campaigns on the first round, 20 more on the second one
+            for (int i = 0; i < (round == 0 ? 2 : 20); i++) {
+                Campaign c = new Campaign();
+                c.setBusinessUnit(a.getId());
+                c.setProduct(p.getId());
+                c.setMarketplace(m.getId());
+                c.setTracker(p.getId() + "^r" + round + "c" + i);
+                c.setName(p.getId() + " " + m.getName() + " round " + round + " campaign " + i);
+                c.setStatus(CampaignStatus.ACTIVE);
+                c.setStatusUpdated(new Date());
+                c.setType(CampaignType.CPC);
+                mcmServiceDao.createCampaign(c);
+            }
+            long before = counting.getStatementCount();
+            SortedSet<Campaign> campaigns = countingDao.listCampaigns();
+            statements[round] = counting.getStatementCount() - before;
+            campaigns.stream()
+                    .filter(c -> c.getProduct().equals("WDI"))
+                    .forEach(c -> Assert.assertEquals(a.getId(), c.getBusinessUnit()));
+        }
+        Assert.assertEquals("listCampaigns must not issue per campaign queries", statements[0], statements[1]);
+        Assert.assertEquals(1, statements[1]);
+    }
+
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testCreateCampaigns(){
+        StatementCountingDataSource counting = new StatementCountingDataSource(new TransactionAwareDataSourceProxy(dataSource));
+        MCMServiceDaoPostgreSQL countingDao = new MCMServiceDaoPostgreSQL();
+        countingDao.setDatasource(counting);
+        countingDao.setTransactionManager(transactionManager);
+
+        Account a = new Account();
+        a.setStatus(AccountStatus.ACTIVE);
+        a.setStatusUpdated(new Date());
+        a.setName("Business Unit");
+        mcmServiceDao.createBusinessUnit(a);
 
+        Product p = new Product();
         p.setStatus(ProductStatus.ACTIVE);
         p.setStatusUpdated(new Date());
         p.setId("WDI");
@@ -910,59 +1173,1822 @@ public class MCMServiceDaoTest {
         m.setStatusUpdated(new Date());
         m= mcmServiceDao.createMarketplace(m);
 
-        Campaign c = new Campaign();
-        c.setBusinessUnit(a.getId());
-        c.setProduct(p.getId());
-        c.setMarketplace(m.getId());
-        c.setTracker(p.getId()+"^drm001");
-        c.setName(p.getId() + " " + m.getName() +" SEM direct response marketing in US/NYC Metro");
-        c.setStatus(CampaignStatus.ACTIVE);
-        c.setStatusUpdated(new Date());
-        c.setType(CampaignType.CPC);
-        c.setCost(new Long(1));
-        c = mcmServiceDao.createCampaign(c);
+        List<Campaign> batch = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Campaign c = new Campaign();
+            c.setBusinessUnit(a.getId());
+            c.setProduct(p.getId());
+            c.setMarketplace(m.getId());
+            c.setTracker(p.getId() + "^b" + i);
+            c.setName(p.getId() + " " + m.getName() + " batch campaign " + i);
+            c.setStatus(CampaignStatus.ACTIVE);
+            c.setStatusUpdated(new Date());
+            c.setType(CampaignType.CPC);
+            c.setCost(i % 2 == 0 ? null : 100L * i);
+            batch.add(c);
+        }
 
-        TagGroup tg1 = new TagGroup();
-        tg1.addApplicableTo(TagType.CAMPAIGN);
-        tg1.setMutex(true);
-        tg1 = mcmServiceDao.createTagGroup(tg1);
+        long before = counting.getStatementCount();
+        SortedSet<Campaign> created = countingDao.createCampaigns(batch);
+        Assert.assertEquals("one statement per table, whatever the batch size", 4, counting.getStatementCount() - before);
+        Assert.assertEquals(100, created.size());
 
-        Tag t11 = new Tag();
-        t11.setGroup(tg1.getId());
-        t11.setValue("MutexTag1");
-        t11 = mcmServiceDao.createTag(t11);
+        Campaign retrieved = mcmServiceDao.retrieveCampaign(p.getId() + "^b7");
+        Assert.assertEquals(Long.valueOf(700L), retrieved.getCost());
+        Assert.assertEquals(a.getId(), retrieved.getBusinessUnit());
+        Assert.assertEquals(1, mcmServiceDao.getCampaignStatusChangelog(retrieved).getChangeLogs().size());
+        Assert.assertEquals(100, mcmServiceDao.listBusinessUnitCampaigns(a).size());
+    }
 
-        Tag t12 = new Tag();
-        t12.setGroup(tg1.getId());
-        t12.setValue("MutexTag2");
-        t12 = mcmServiceDao.createTag(t12);
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testReassignCampaigns(){
+        StatementCountingDataSource counting = new StatementCountingDataSource(new TransactionAwareDataSourceProxy(dataSource));
+        MCMServiceDaoPostgreSQL countingDao = new MCMServiceDaoPostgreSQL();
+        countingDao.setDatasource(counting);
+        countingDao.setTransactionManager(transactionManager);
 
+        Account a = new Account();
+        a.setStatus(AccountStatus.ACTIVE);
+        a.setStatusUpdated(new Date());
+        a.setName("Business Unit");
+        mcmServiceDao.createBusinessUnit(a);
 
-        TagGroup tg2 = new TagGroup();
-        tg2.addApplicableTo(TagType.CAMPAIGN);
-        tg2.setMutex(false);
-        tg2 = mcmServiceDao.createTagGroup(tg2);
+        Account b = new Account();
+        b.setStatus(AccountStatus.ACTIVE);
+        b.setStatusUpdated(new Date());
+        b.setName("Reorganised Business Unit");
+        mcmServiceDao.createBusinessUnit(b);
 
-        Tag t21 = new Tag();
-        t21.setGroup(tg2.getId());
-        t21.setValue("NonMutexTag1");
-        t21 = mcmServiceDao.createTag(t21);
+        Product p = new Product();
+        p.setStatus(ProductStatus.ACTIVE);
+        p.setStatusUpdated(new Date());
+        p.setId("WDI");
+        p.setName("Web Development Immersive OnPrem");
+        p= mcmServiceDao.createProduct(p);
 
-        Tag t22 = new Tag();
-        t22.setGroup(tg2.getId());
-        t22.setValue("NonMutexTag2");
-        t22 = mcmServiceDao.createTag(t22);
+        Marketplace m = new Marketplace();
+        m.setName("Facebook");
+        m.setStatus(MarketplaceStatus.ACTIVE);
+        m.setStatusUpdated(new Date());
+        m= mcmServiceDao.createMarketplace(m);
 
-        SortedMap<Tag, SortedSet<Tag>> updatedTags ;
-        updatedTags = mcmServiceDao.tagCampaign(c,t11);
-        Assert.assertEquals(1,updatedTags.size());
-        updatedTags = mcmServiceDao.tagCampaign(c,t12);
-        Assert.assertEquals(2,updatedTags.size()); // enforcement of mutex is not a DAO function - service is responsible for it
-        updatedTags = mcmServiceDao.tagCampaign(c,t21);
-        Assert.assertEquals(3,updatedTags.size());
-        updatedTags = mcmServiceDao.tagCampaign(c,t22);
-        Assert.assertEquals(4,updatedTags.size());
+        List<Campaign> batch = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Campaign c = new Campaign();
+            c.setBusinessUnit(a.getId());
+            c.setProduct(p.getId());
+            c.setMarketplace(m.getId());
+            c.setTracker(p.getId() + "^r" + i);
+            c.setName(p.getId() + " " + m.getName() + " reorg campaign " + i);
+            c.setStatus(CampaignStatus.ACTIVE);
+            c.setStatusUpdated(new Date());
+            c.setType(CampaignType.CPC);
+            batch.add(c);
+        }
+        List<Campaign> created = new ArrayList<>(mcmServiceDao.createCampaigns(batch));
+
+        long before = counting.getStatementCount();
+        Assert.assertEquals(3, countingDao.reassignCampaigns(Arrays.asList("WDI^r0", "WDI^r1", "WDI^r2", "WDI^r1"), b));
+        Assert.assertEquals("one statement whatever the number of campaigns", 1, counting.getStatementCount() - before);
+        Assert.assertEquals(0, countingDao.reassignCampaigns(Arrays.asList("WDI^r0", "WDI^r1"), b));
+        Assert.assertEquals(2, mcmServiceDao.listBusinessUnitCampaigns(a).size());
+        Assert.assertEquals(3, mcmServiceDao.listBusinessUnitCampaigns(b).size());
+        Assert.assertEquals(2, countingDao.getCampaignBusinessUnitChangelog("WDI^r0").getChangeLogs().size());
+
+        before = counting.getStatementCount();
+        ChangeLogEntry<Account> moved = countingDao.assignCampaignToAccount(created.get(0), a);
+        Assert.assertEquals("upsert and changelog in one statement", 1, counting.getStatementCount() - before);
+        Assert.assertEquals(a.getId(), moved.value.getId());
+        Assert.assertNull("already linked", countingDao.assignCampaignToAccount(created.get(0), a));
+        Assert.assertEquals(a.getId(), mcmServiceDao.retrieveCampaign("WDI^r0").getBusinessUnit());
+    }
+
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testStreamCampaigns(){
+        // reads on the test's transaction, a few rows per round trip
+        MCMServiceDaoPostgreSQL streamingDao = new MCMServiceDaoPostgreSQL();
+        streamingDao.setDatasource(new TransactionAwareDataSourceProxy(dataSource));
+        streamingDao.setStreamFetchSize(3);
+
+        Account a = new Account();
+        a.setStatus(AccountStatus.ACTIVE);
+        a.setStatusUpdated(new Date());
+        a.setName("Streamed Business Unit");
+        mcmServiceDao.createBusinessUnit(a);
+
+        Product p = new Product();
+        p.setStatus(ProductStatus.ACTIVE);
+        p.setStatusUpdated(new Date());
+        p.setId("STR");
+        p.setName("Streamed Product");
+        p = mcmServiceDao.createProduct(p);
+
+        Marketplace m = new Marketplace();
+        m.setName("Streamed Marketplace");
+        m.setStatus(MarketplaceStatus.ACTIVE);
+        m.setStatusUpdated(new Date());
+        m = mcmServiceDao.createMarketplace(m);
+
+        // mixed case, so that a linguistic collation would order them differently than the comparator
+        List<String> trackers = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            trackers.add(p.getId() + (i % 2 == 0 ? "^a" : "^B") + (20 - i));
+        Collections.shuffle(trackers, new Random(13));
+        for (String tracker : trackers) {
+            Campaign c = new Campaign();
+            c.setBusinessUnit(a.getId());
+            c.setProduct(p.getId());
+            c.setMarketplace(m.getId());
+            c.setTracker(tracker);
+            c.setName("Streamed campaign " + tracker);
+            c.setStatus(CampaignStatus.ACTIVE);
+            c.setStatusUpdated(new Date());
+            c.setType(CampaignType.CPC);
+            mcmServiceDao.createCampaign(c);
+        }
+        Campaign deleted = mcmServiceDao.retrieveCampaign(trackers.get(0));
+        mcmServiceDao.deleteCampaign(deleted);
+
+        List<String> expected = keys(mcmServiceDao.listProductCampaignsInRetrospect(p, new Date()), Campaign::getTracker);
+        Assert.assertEquals(19, expected.size());
+        Function<Stream<Campaign>, List<String>> ours = stream -> {
+            try (Stream<Campaign> s = stream) {
+                return s.filter(c -> c.getProduct().equals("STR")).map(Campaign::getTracker).collect(Collectors.toList());
+            }
+        };
+        Assert.assertEquals(expected, keys(mcmServiceDao.listCampaigns(), Campaign::getTracker).stream()
+                .filter(t -> t.startsWith("STR^")).collect(Collectors.toList()));
+        Assert.assertEquals(expected, ours.apply(streamingDao.streamCampaigns()));
+        Assert.assertEquals(expected, ours.apply(streamingDao.streamCampaignsInRetrospect(new Date())));
+        Assert.assertEquals(expected, ours.apply(streamingDao.streamProductCampaigns(p.getId())));
+        Assert.assertEquals(expected, ours.apply(streamingDao.streamProductCampaignsInRetrospect(p.getId(), new Date())));
+        Assert.assertEquals(expected, ours.apply(streamingDao.streamMarketplaceCampaigns(m.getId())));
+        Assert.assertEquals(expected, ours.apply(streamingDao.streamMarketplaceCampaignsInRetrospect(m.getId(), new Date())));
+        Assert.assertEquals(expected, ours.apply(streamingDao.streamBusinessUnitCampaigns(a.getId())));
+
+        AsOfEngine engine = new AsOfEngine();
+        streamingDao.setAsOfEngine(engine);
+        engine.load(new TransactionAwareDataSourceProxy(dataSource));
+        Assert.assertEquals(expected, ours.apply(streamingDao.streamCampaignsInRetrospect(new Date())));
+        Assert.assertEquals(expected, ours.apply(streamingDao.streamProductCampaignsInRetrospect(p.getId(), new Date())));
+        streamingDao.setAsOfEngine(null);
+
+        try (Stream<Account> units = streamingDao.streamBusinessUnits()) {
+            Assert.assertEquals(keys(mcmServiceDao.listBusinessUnits(), Account::getName),
+                    units.map(Account::getName).collect(Collectors.toList()));
+        }
+        try (Stream<Marketplace> marketplaces = streamingDao.streamMarketplacesInRetrospect(new Date())) {
+            Assert.assertEquals(keys(mcmServiceDao.listMarketplacesInRetrospect(new Date()), Marketplace::getName),
+                    marketplaces.map(Marketplace::getName).collect(Collectors.toList()));
+        }
+        try (Stream<Product> products = streamingDao.streamProductsInRetrospect(new Date())) {
+            Assert.assertTrue(products.anyMatch(product -> product.getId().equals("STR")));
+        }
+
+        // a partly read stream still reads on, and is done with, the transaction's connection
+        try (Stream<Campaign> campaigns = streamingDao.streamProductCampaigns(p.getId())) {
+            Assert.assertEquals(expected.get(0), campaigns.findFirst().get().getTracker());
+        }
+        Assert.assertEquals(19, mcmServiceDao.listBusinessUnitCampaigns(a).size());
+    }
+
+    @Test
+    public void testStreamRestoresAutoCommit() throws Exception {
+        SingleConnectionDataSource single = new SingleConnectionDataSource(dataSource.getConnection(), true);
+        try {
+            MCMServiceDaoPostgreSQL streamingDao = new MCMServiceDaoPostgreSQL();
+            streamingDao.setDatasource(single);
+            streamingDao.setStreamFetchSize(1);
+
+            Stream<Account> units = streamingDao.streamBusinessUnits();
+            Assert.assertFalse("the driver only uses a cursor with autocommit off", single.getConnection().getAutoCommit());
+            units.limit(1).count();
+            units.close();
+            units.close();
+            Assert.assertTrue("autocommit restored on close", single.getConnection().getAutoCommit());
+
+            try (Stream<Account> all = streamingDao.streamBusinessUnits()) {
+                Assert.assertEquals(mcmServiceDao.listBusinessUnits().size(), all.count());
+            }
+            Assert.assertTrue("autocommit restored once the rows ran out", single.getConnection().getAutoCommit());
+        } finally {
+            single.destroy();
+        }
+    }
+
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testCatalogSnapshot() throws IOException {
+        // writes and catches up on the test's transaction, so that its uncommitted catalog is seen
+        DataSource transactional = new TransactionAwareDataSourceProxy(dataSource);
+        CatalogSnapshotWriter writer = new CatalogSnapshotWriter(transactional);
+        writer.setTransactionManager(transactionManager);
+
+        Account a = new Account();
+        a.setStatus(AccountStatus.ACTIVE);
+        a.setStatusUpdated(new Date());
+        a.setName("Snapshot Business Unit");
+        a = mcmServiceDao.createBusinessUnit(a);
+
+        Product p = new Product();
+        p.setStatus(ProductStatus.ACTIVE);
+        p.setStatusUpdated(new Date());
+        p.setId("SNP");
+        p.setName("Snapshot Product");
+        p = mcmServiceDao.createProduct(p);
 
+        Marketplace m = new Marketplace();
+        m.setName("Snapshot Marketplace");
+        m.setStatus(MarketplaceStatus.ACTIVE);
+        m.setStatusUpdated(new Date());
+        m = mcmServiceDao.createMarketplace(m);
+
+        for (int i = 1; i <= 3; i++) {
+            Campaign c = new Campaign();
+            c.setBusinessUnit(a.getId());
+            c.setProduct(p.getId());
+            c.setMarketplace(m.getId());
+            c.setTracker("SNP^" + i);
+            c.setName("Snapshot campaign " + i);
+            c.setStatus(CampaignStatus.ACTIVE);
+            c.setStatusUpdated(new Date());
+            c.setType(CampaignType.CPC);
+            if (i == 3)
+                c.setCost(250L);
+            mcmServiceDao.createCampaign(c);
+        }
+        Metro metro = mcmServiceDao.retrieveMetro(1L);
+        mcmServiceDao.setCampaignMetro(mcmServiceDao.retrieveCampaign("SNP^1"), metro);
+
+        Path directory = Files.createTempDirectory("catalog-snapshot");
+        Path file = directory.resolve("catalog.snapshot");
+        try {
+            long highWaterMark = writer.write(file);
+            CatalogSnapshot snapshot = CatalogSnapshot.open(file);
+            Assert.assertEquals(highWaterMark, snapshot.getHighWaterMark());
+
+            // as written, the snapshot lists what the database does
+            CachingMCMServiceDao fromSnapshot = new CachingMCMServiceDao(mcmServiceDao, 100, 5, TimeUnit.MINUTES);
+            fromSnapshot.warmUp(snapshot, null);
+            assertSameCatalog(fromSnapshot);
+
+            Campaign renamed = mcmServiceDao.retrieveCampaign("SNP^1");
+            renamed.setName("Renamed snapshot campaign");
+            mcmServiceDao.updateCampaign(renamed);
+            mcmServiceDao.deleteCampaign(mcmServiceDao.retrieveCampaign("SNP^2"));
+            mcmServiceDao.setCampaignMetro(mcmServiceDao.retrieveCampaign("SNP^3"), metro);
+            Campaign created = new Campaign();
+            created.setBusinessUnit(a.getId());
+            created.setProduct(p.getId());
+            created.setMarketplace(m.getId());
+            created.setTracker("SNP^4");
+            created.setName("Snapshot campaign 4");
+            created.setStatus(CampaignStatus.PAUSED);
+            created.setStatusUpdated(new Date());
+            created.setType(CampaignType.CPA);
+            mcmServiceDao.createCampaign(created);
+            a.setStatus(AccountStatus.PAUSED);
+            a.setStatusUpdated(new Date());
+            mcmServiceDao.updateBusinessUnit(a);
+
+            CatalogChanges changes = writer.changesSince(highWaterMark);
+            Assert.assertTrue(changes.getKeys(CatalogChanges.CAMPAIGN).containsAll(Arrays.asList("SNP^1", "SNP^2", "SNP^3", "SNP^4")));
+            Assert.assertTrue(changes.getKeys(CatalogChanges.BUSINESS_UNIT).contains(a.getId().toString()));
+            Assert.assertTrue(changes.getKeys(CatalogChanges.ACCOUNT_STATUS).contains(a.getId().toString()));
+            Assert.assertTrue(changes.getHighWaterMark() >= highWaterMark);
+            Assert.assertEquals("Snapshot campaign 1", snapshot.campaigns(null).stream()
+                    .filter(c -> c.getTracker().equals("SNP^1")).findFirst().get().getName());
+
+            // caught up, the listings are served from memory and match the database again
+            StatementCountingDataSource counting = new StatementCountingDataSource(transactional);
+            MCMServiceDaoPostgreSQL countingDao = new MCMServiceDaoPostgreSQL();
+            countingDao.setDatasource(counting);
+            CachingMCMServiceDao warmed = new CachingMCMServiceDao(countingDao, 100, 5, TimeUnit.MINUTES);
+            warmed.warmUp(snapshot, changes);
+            assertSameCatalog(warmed);
+            Assert.assertEquals(0, counting.getStatementCount());
+            Campaign listed = warmed.listCampaigns().stream().filter(c -> c.getTracker().equals("SNP^1")).findFirst().get();
+            Assert.assertEquals("Renamed snapshot campaign", listed.getName());
+            Assert.assertEquals(a.getId(), listed.getBusinessUnit());
+
+            // as do the as-of engine and the tag index loaded from it
+            MCMServiceDaoPostgreSQL replica = new MCMServiceDaoPostgreSQL();
+            replica.setDatasource(transactional);
+            replica.setAsOfEngine(new AsOfEngine().load(snapshot, changes));
+            replica.setCampaignTagIndex(new CampaignTagIndex().load(snapshot, changes));
+            Assert.assertEquals(keys(mcmServiceDao.listProductCampaignsInRetrospect(p, new Date()), Campaign::getTracker),
+                    keys(replica.listProductCampaignsInRetrospect(p, new Date()), Campaign::getTracker));
+            Assert.assertEquals(keys(mcmServiceDao.listBusinessUnitsInRetrospect(new Date()), Account::getName),
+                    keys(replica.listBusinessUnitsInRetrospect(new Date()), Account::getName));
+            CampaignQuery query = new CampaignQuery();
+            query.setProducts(Collections.singleton("SNP"));
+            query.setMetros(Collections.singleton(metro.getId()));
+            Assert.assertEquals(new HashSet<>(Arrays.asList("SNP^1", "SNP^3")), trackers(replica.findCampaigns(query)));
+
+            // anything but a snapshot of this version is refused
+            Path garbage = directory.resolve("garbage.snapshot");
+            Files.write(garbage, "not a snapshot at all, just some text".getBytes("UTF-8"));
+            try {
+                CatalogSnapshot.open(garbage);
+                Assert.fail("opened a file that is no snapshot");
+            } catch (IOException expected) {
+                Assert.assertTrue(expected.getMessage().contains("not a catalog snapshot"));
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path f : files.collect(Collectors.toList()))
+                    Files.delete(f);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testCatalogChangePurge() {
+        // on the test's transaction, where now() stands still, so the marks are dated by hand
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        CatalogChangeMaintenance maintenance = new CatalogChangeMaintenance(new TransactionAwareDataSourceProxy(dataSource));
+        maintenance.setRetentionMinutes(60);
+
+        Account a = new Account();
+        a.setStatus(AccountStatus.ACTIVE);
+        a.setStatusUpdated(new Date());
+        a.setName("Purged Business Unit");
+        a = mcmServiceDao.createBusinessUnit(a);
+        long current = jdbcTemplate.queryForObject("SELECT txid_current()", Long.class);
+        jdbcTemplate.update("INSERT INTO logs.catalog_change (txid, entity, key) VALUES (1, 'business_unit', 'purged')");
+
+        // nothing purged while no mark is as old as the retention
+        maintenance.run();
+        Assert.assertEquals(1, jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM logs.catalog_change WHERE txid = 1", Integer.class).intValue());
+
+        jdbcTemplate.update("INSERT INTO logs.catalog_change_mark (taken, high_water_mark) VALUES (now() - interval '2 hours', 2)");
+        jdbcTemplate.update("INSERT INTO logs.catalog_change_mark (taken, high_water_mark) VALUES (now() - interval '3 hours', 1)");
+        maintenance.run();
+        Assert.assertEquals(0, jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM logs.catalog_change WHERE txid = 1", Integer.class).intValue());
+        // newer records still there to catch up from
+        Assert.assertEquals(Collections.singletonList(a.getId().toString()), jdbcTemplate.queryForList(
+                "SELECT key FROM logs.catalog_change WHERE txid = ? AND entity = 'business_unit'", String.class, current));
+        Assert.assertEquals(0, jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM logs.catalog_change_mark WHERE high_water_mark < 2", Integer.class).intValue());
+    }
+
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testMultiGet() {
+        Account a = new Account();
+        a.setStatus(AccountStatus.ACTIVE);
+        a.setStatusUpdated(new Date());
+        a.setName("Multi-get Business Unit");
+        a = mcmServiceDao.createBusinessUnit(a);
+
+        Product p = new Product();
+        p.setStatus(ProductStatus.ACTIVE);
+        p.setStatusUpdated(new Date());
+        p.setId("MGT");
+        p.setName("Multi-get Product");
+        p = mcmServiceDao.createProduct(p);
+
+        Marketplace m = new Marketplace();
+        m.setName("Multi-get Marketplace");
+        m.setStatus(MarketplaceStatus.ACTIVE);
+        m.setStatusUpdated(new Date());
+        m = mcmServiceDao.createMarketplace(m);
+
+        for (int i = 1; i <= 3; i++) {
+            Campaign c = new Campaign();
+            c.setBusinessUnit(a.getId());
+            c.setProduct(p.getId());
+            c.setMarketplace(m.getId());
+            c.setTracker("MGT^" + i);
+            c.setName("Multi-get campaign " + i);
+            c.setStatus(CampaignStatus.ACTIVE);
+            c.setStatusUpdated(new Date());
+            c.setType(CampaignType.CPC);
+            if (i == 2)
+                c.setCost(125L);
+            mcmServiceDao.createCampaign(c);
+        }
+
+        StatementCountingDataSource counting = new StatementCountingDataSource(new TransactionAwareDataSourceProxy(dataSource));
+        MCMServiceDaoPostgreSQL countingDao = new MCMServiceDaoPostgreSQL();
+        countingDao.setDatasource(counting);
+        countingDao.setMultiGetChunkSize(2);
+
+        // in the order asked for, duplicates once, unknown trackers left out, two keys per query
+        List<String> trackers = Arrays.asList("MGT^3", "MGT^1", "NO^SUCH", "MGT^3", "MGT^2");
+        Map<String, Campaign> campaigns = countingDao.retrieveCampaigns(trackers);
+        Assert.assertEquals(2, counting.getStatementCount());
+        Assert.assertEquals(Arrays.asList("MGT^3", "MGT^1", "MGT^2"), new ArrayList<>(campaigns.keySet()));
+        Function<Campaign, String> campaign = c -> c.getTracker() + " " + c.getName() + " " + c.getStatus() + " " +
+                c.getProduct() + " " + c.getMarketplace() + " " + c.getBusinessUnit() + " " + c.getCost() + " " +
+                c.getType() + " " + c.getStatusUpdated().getTime();
+        // read as the listings and single gets read them
+        Map<String, Campaign> listed = mcmServiceDao.listCampaigns().stream()
+                .filter(c -> c.getTracker().startsWith("MGT^")).collect(Collectors.toMap(Campaign::getTracker, c -> c));
+        Assert.assertEquals(3, listed.size());
+        for (Campaign c : campaigns.values()) {
+            Assert.assertEquals(campaign.apply(listed.get(c.getTracker())), campaign.apply(c));
+            Assert.assertEquals(campaign.apply(mcmServiceDao.retrieveCampaign(c.getTracker())), campaign.apply(c));
+        }
+        Assert.assertEquals(Long.valueOf(125L), campaigns.get("MGT^2").getCost());
+        Assert.assertNull(campaigns.get("MGT^1").getCost());
+
+        Assert.assertEquals(a.getName(), countingDao.retrieveBusinessUnits(Arrays.asList(a.getId(), -1L)).get(a.getId()).getName());
+        Assert.assertEquals(m.getName(), countingDao.retrieveMarketplaces(Collections.singleton(m.getId())).get(m.getId()).getName());
+        Assert.assertEquals(p.getName(), countingDao.retrieveProducts(Collections.singleton("MGT")).get("MGT").getName());
+        Assert.assertEquals(mcmServiceDao.retrieveMetro(1L).getName(),
+                countingDao.retrieveMetros(Arrays.asList(1L, 2L)).get(1L).getName());
+        Assert.assertTrue(countingDao.retrieveCampaigns(Collections.emptyList()).isEmpty());
+
+        // the cache only reads the trackers it doesn't hold yet
+        CachingMCMServiceDao cached = new CachingMCMServiceDao(countingDao, 100, 5, TimeUnit.MINUTES);
+        cached.retrieveCampaign("MGT^1");
+        long statements = counting.getStatementCount();
+        Assert.assertEquals(Arrays.asList("MGT^1", "MGT^2"),
+                new ArrayList<>(cached.retrieveCampaigns(Arrays.asList("MGT^1", "MGT^2", "NO^SUCH")).keySet()));
+        Assert.assertEquals(statements + 1, counting.getStatementCount());
+        cached.retrieveCampaigns(Arrays.asList("MGT^2", "MGT^1"));
+        Assert.assertEquals(statements + 1, counting.getStatementCount());
+    }
+
+    @Test
+    public void testAsyncDao() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        DaoExecutor executor = new DaoExecutor("test-dao", 2, 1, 50);
+        executor.registerMetrics(registry);
+        AsyncMCMServiceDao async = ExecutingMCMServiceDao.async(mcmServiceDao, executor);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            // fanned out, then joined
+            Metro metro = mcmServiceDao.retrieveMetro(1L);
+            CompletableFuture<Metro> retrieved = async.retrieveMetro(1L);
+            CompletableFuture<SortedSet<Metro>> metros = async.listMetros();
+            CompletableFuture<SortedSet<TagGroup>> tagGroups = async.listTagGroups();
+            CompletableFuture.allOf(retrieved, metros, tagGroups).get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(metro.getName(), retrieved.get().getName());
+            Assert.assertEquals(keys(mcmServiceDao.listMetros(), Metro::getName), keys(metros.get(), Metro::getName));
+            Assert.assertEquals(mcmServiceDao.listTagGroups().size(), tagGroups.get().size());
+
+            // what the DAO throws fails the future
+            try {
+                async.retrieveMetro(-1L).get(5, TimeUnit.SECONDS);
+                Assert.fail("retrieved a metro that doesn't exist");
+            } catch (ExecutionException expected) {
+                Assert.assertTrue(expected.getCause() instanceof EmptyResultDataAccessException);
+            }
+
+            // both threads busy and the queue full: the caller waits, then the call is rejected;
+            // started rather than active counted, as a thread may still be finishing an earlier call
+            AtomicInteger started = new AtomicInteger();
+            for (int i = 0; i < 3; i++) {
+                executor.execute(() -> {
+                    started.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                while (i < 2 && started.get() <= i)
+                    Thread.sleep(10);
+            }
+            Assert.assertEquals(1, registry.getGauges().get(
+                    MetricRegistry.name(DaoExecutor.class, "test-dao", "queue", "depth")).getValue());
+            CompletableFuture<SortedSet<Metro>> rejected = async.listMetros();
+            Assert.assertTrue(rejected.isCompletedExceptionally());
+            Assert.assertEquals(1, executor.getBlockedCount());
+            Assert.assertEquals(1, executor.getRejectedCount());
+            release.countDown();
+            Assert.assertEquals(metros.get().size(), async.listMetros().get(5, TimeUnit.SECONDS).size());
+        } finally {
+            release.countDown();
+            Assert.assertTrue(executor.close(5000));
+        }
+    }
+
+    @Test
+    public void testCoalescedReads() throws Exception {
+        // listMetros and retrieveMetro hold until released, createTag is a no-op write
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch releaseRetrieval = new CountDownLatch(1);
+        AtomicInteger listings = new AtomicInteger();
+        MCMServiceDao gated = (MCMServiceDao) Proxy.newProxyInstance(MCMServiceDao.class.getClassLoader(),
+                new Class<?>[]{MCMServiceDao.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("createTag"))
+                        return args[0];
+                    if (method.getName().equals("listMetros")) {
+                        listings.incrementAndGet();
+                        release.await(5, TimeUnit.SECONDS);
+                    }
+                    if (method.getName().equals("retrieveMetro"))
+                        releaseRetrieval.await(5, TimeUnit.SECONDS);
+                    return method.invoke(mcmServiceDao, args);
+                });
+        MetricRegistry registry = new MetricRegistry();
+        MCMServiceDao coalescing = CoalescingMCMServiceDao.coalesce(gated, registry);
+        Counter coalesced = registry.counter(MetricRegistry.name(MCMServiceDao.class, "listMetros", "coalesced"));
+
+        ExecutorService callers = Executors.newFixedThreadPool(5);
+        try {
+            List<Future<SortedSet<Metro>>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++)
+                results.add(callers.submit(coalescing::listMetros));
+            awaitCount(coalesced, 3);
+
+            // a read after a write doesn't share the flight started before it
+            coalescing.createTag(new Tag());
+            Future<SortedSet<Metro>> afterWrite = callers.submit(coalescing::listMetros);
+            while (listings.get() < 2)
+                Thread.sleep(10);
+
+            release.countDown();
+            SortedSet<Metro> first = results.get(0).get(5, TimeUnit.SECONDS);
+            for (Future<SortedSet<Metro>> result : results)
+                Assert.assertSame(first, result.get(5, TimeUnit.SECONDS));
+            Assert.assertNotSame(first, afterWrite.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(2, listings.get());
+            Assert.assertEquals(3, coalesced.getCount());
+
+            // nothing stays in flight: the next call reads again
+            coalescing.listMetros();
+            Assert.assertEquals(3, listings.get());
+
+            // the shared listing can't be changed by one of its callers
+            try {
+                first.clear();
+                Assert.fail("shared listing changed");
+            } catch (UnsupportedOperationException expected) {
+            }
+
+            // an entity read on its own is every caller's own copy
+            Future<Metro> one = callers.submit(() -> coalescing.retrieveMetro(1L));
+            Future<Metro> other = callers.submit(() -> coalescing.retrieveMetro(1L));
+            awaitCount(registry.counter(MetricRegistry.name(MCMServiceDao.class, "retrieveMetro", "coalesced")), 1);
+            releaseRetrieval.countDown();
+            Metro metro = one.get(5, TimeUnit.SECONDS);
+            Assert.assertNotSame(metro, other.get(5, TimeUnit.SECONDS));
+            String name = metro.getName();
+            metro.setName("Changed by one caller");
+            Assert.assertEquals(name, other.get().getName());
+        } finally {
+            release.countDown();
+            releaseRetrieval.countDown();
+            callers.shutdownNow();
+        }
+    }
+
+    private static void awaitCount(Counter counter, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (counter.getCount() < count) {
+            Assert.assertTrue("counted " + counter.getCount() + " of " + count, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testCatalogChangeNotifications() throws InterruptedException {
+        Assert.assertEquals(new CatalogChangeEvent(CatalogChangeEvent.Entity.CAMPAIGN, "A^B:1"),
+                CatalogChangeEvent.of("campaign", "A^B:1"));
+        Assert.assertEquals(Long.valueOf(7), CatalogChangeEvent.of("tag_group", "7").getId());
+        Assert.assertNull(CatalogChangeEvent.of("business_unit", "x"));
+        Assert.assertNull(CatalogChangeEvent.of("no_such_entity", "1"));
+        Assert.assertNull(CatalogChangeEvent.of("business_unit", null));
+
+        StatementCountingDataSource counting = new StatementCountingDataSource(dataSource);
+        MCMServiceDaoPostgreSQL countingDao = new MCMServiceDaoPostgreSQL();
+        countingDao.setDatasource(counting);
+        CachingMCMServiceDao cached = new CachingMCMServiceDao(countingDao, 100, 5, TimeUnit.MINUTES);
+        BlockingQueue<CatalogChangeEvent> received = new LinkedBlockingQueue<>();
+
+        // listening on a connection of its own, as configured, none of the pool's
+        DriverManagerDataSource listenerDataSource = new DriverManagerDataSource(
+                poolConfig.getJdbcUrl(), poolConfig.getUsername(), poolConfig.getPassword());
+        CatalogChangeChannel channel = new CatalogChangeChannel(listenerDataSource);
+        channel.setPollIntervalMillis(50);
+        channel.subscribe(cached);
+        channel.subscribe(received::add);
+        channel.start();
+        try {
+            Assert.assertEquals(0, metricRegistry.getGauges().get("mcm.pool.ActiveConnections").getValue());
+            cached.listBusinessUnits();
+            long statements = counting.getStatementCount();
+            cached.listBusinessUnits();
+            Assert.assertEquals(statements, counting.getStatementCount());
+
+            // committed, and gone again along with it but for the recorded keys the channel reads
+            Long id = new TransactionTemplate(transactionManager).execute(status -> {
+                Account a = new Account();
+                a.setStatus(AccountStatus.ACTIVE);
+                a.setStatusUpdated(new Date());
+                a.setName("Notified Business Unit");
+                a = mcmServiceDao.createBusinessUnit(a);
+                JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+                jdbcTemplate.update("DELETE FROM logs.account_status_changelog WHERE account = ?", a.getId());
+                jdbcTemplate.update("DELETE FROM meta.business_unit WHERE id = ?", a.getId());
+                return a.getId();
+            });
+
+            try {
+                awaitChange(received, new CatalogChangeEvent(CatalogChangeEvent.Entity.BUSINESS_UNIT, id.toString()));
+            } finally {
+                new JdbcTemplate(dataSource).update("DELETE FROM logs.catalog_change WHERE key = ?", id.toString());
+            }
+
+            // dispatched to the cache before the queue, so the listing is read again
+            cached.listBusinessUnits();
+            Assert.assertTrue(counting.getStatementCount() > statements);
+        } finally {
+            channel.stop();
+        }
+        Assert.assertFalse(channel.isRunning());
+    }
+
+    private static void awaitChange(BlockingQueue<CatalogChangeEvent> received, CatalogChangeEvent expected)
+            throws InterruptedException {
+        CatalogChangeEvent event;
+        do {
+            event = received.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull("no notification of " + expected, event);
+        } while (!event.equals(expected));
+    }
+
+    @Test
+    public void testIndexesFollowCatalogChanges() throws InterruptedException {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        AsOfEngine engine = new AsOfEngine().load(dataSource);
+        CampaignTagIndex index = new CampaignTagIndex().load(dataSource);
+        BlockingQueue<CatalogChangeEvent> received = new LinkedBlockingQueue<>();
+
+        DriverManagerDataSource listenerDataSource = new DriverManagerDataSource(
+                poolConfig.getJdbcUrl(), poolConfig.getUsername(), poolConfig.getPassword());
+        CatalogChangeChannel channel = new CatalogChangeChannel(listenerDataSource);
+        channel.setPollIntervalMillis(50);
+        // subscribed before the queue, so both have read a change again once it is received
+        channel.subscribe(new AsOfEngineRefresher(engine, dataSource));
+        channel.subscribe(new CampaignTagIndexRefresher(index, dataSource));
+        channel.subscribe(received::add);
+        channel.start();
+        CatalogChangeEvent changed = new CatalogChangeEvent(CatalogChangeEvent.Entity.CAMPAIGN, "NTFY^1");
+        CampaignQuery brand = new CampaignQuery(TagExpression.tag(3));
+        try {
+            // as another node would, without telling the engine or the index
+            new TransactionTemplate(transactionManager).execute(status -> {
+                jdbcTemplate.update("INSERT INTO meta.product (code, name, status) VALUES ('NTFY', 'Notified product', 'ACTIVE')");
+                jdbcTemplate.update("INSERT INTO meta.campaign (product, tracker, type, marketplace, name, status) " +
+                        "VALUES ('NTFY', 'NTFY^1', 'CPC', 1, 'Notified campaign', 'ACTIVE')");
+                jdbcTemplate.update("INSERT INTO meta.campaign_tags (campaign, tag) VALUES ('NTFY^1', 3)");
+                jdbcTemplate.update("INSERT INTO logs.campaign_status_changelog (campaign, effective_date, status) " +
+                        "VALUES ('NTFY^1', '2016-01-01', 'ACTIVE')");
+                return null;
+            });
+            awaitChange(received, changed);
+            Assert.assertTrue(index.find(brand).contains("NTFY^1"));
+            Assert.assertEquals(CampaignStatus.ACTIVE, engine.getCampaigns().timeline("NTFY^1").latest().getStatus());
+
+            new TransactionTemplate(transactionManager).execute(status -> {
+                removeNotifiedCampaign(jdbcTemplate);
+                return null;
+            });
+            awaitChange(received, changed);
+            Assert.assertFalse(index.find(brand).contains("NTFY^1"));
+            Assert.assertNull(engine.getCampaigns().timeline("NTFY^1"));
+        } finally {
+            channel.stop();
+            removeNotifiedCampaign(jdbcTemplate);
+            jdbcTemplate.update("DELETE FROM logs.catalog_change WHERE key IN ('NTFY', 'NTFY^1')");
+        }
+    }
+
+    private static void removeNotifiedCampaign(JdbcTemplate jdbcTemplate) {
+        jdbcTemplate.update("DELETE FROM logs.campaign_status_changelog WHERE campaign = 'NTFY^1'");
+        jdbcTemplate.update("DELETE FROM meta.campaign_tags WHERE campaign = 'NTFY^1'");
+        jdbcTemplate.update("DELETE FROM meta.campaign WHERE tracker = 'NTFY^1'");
+        jdbcTemplate.update("DELETE FROM meta.product WHERE code = 'NTFY'");
+    }
+
+    private void assertSameCatalog(MCMServiceDao cached) {
+        Assert.assertEquals(keys(mcmServiceDao.listBusinessUnits(), b -> b.getName() + " " + b.getStatus()),
+                keys(cached.listBusinessUnits(), b -> b.getName() + " " + b.getStatus()));
+        Assert.assertEquals(keys(mcmServiceDao.listMarketplaces(), Marketplace::getName),
+                keys(cached.listMarketplaces(), Marketplace::getName));
+        Assert.assertEquals(keys(mcmServiceDao.listProducts(), Product::getId),
+                keys(cached.listProducts(), Product::getId));
+        Function<Campaign, String> campaign = c -> c.getTracker() + " " + c.getName() + " " + c.getStatus() + " " +
+                c.getBusinessUnit() + " " + c.getCost() + " " + c.getStatusUpdated().getTime();
+        Assert.assertEquals(keys(mcmServiceDao.listCampaigns(), campaign), keys(cached.listCampaigns(), campaign));
+        Function<TagGroup, String> tagGroup = tg -> tg.getId() + " " + tg.getMutex() + " " + tg.getApplicableTo();
+        Assert.assertEquals(keys(mcmServiceDao.listTagGroups(), tagGroup), keys(cached.listTagGroups(), tagGroup));
+        Function<Metro, String> metro = mt -> mt.getName() + " " + mt.getExtended();
+        Assert.assertEquals(keys(mcmServiceDao.listMetros(), metro), keys(cached.listMetros(), metro));
+    }
+
+    private static <T> List<String> keys(Collection<T> items, Function<T, String> key) {
+        List<String> out = new ArrayList<>();
+        for (T item : items)
+            out.add(key.apply(item));
+        return out;
+    }
+
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testInstrumentedDao(){
+        StatementCountingDataSource counting = new StatementCountingDataSource(new TransactionAwareDataSourceProxy(dataSource));
+        MCMServiceDaoPostgreSQL countingDao = new MCMServiceDaoPostgreSQL();
+        countingDao.setDatasource(counting);
+        countingDao.setTransactionManager(transactionManager);
+        MetricRegistry registry = new MetricRegistry();
+        MCMServiceDao instrumented = InstrumentedMCMServiceDao.instrument(countingDao, registry, counting);
+
+        Account a = new Account();
+        a.setStatus(AccountStatus.ACTIVE);
+        a.setStatusUpdated(new Date());
+        a.setName("Instrumented Business Unit");
+        instrumented.createBusinessUnit(a);
+        SortedSet<Campaign> campaigns = instrumented.listCampaigns();
+        try {
+            instrumented.retrieveBusinessUnit(-1L);
+            Assert.fail("retrieving a missing business unit should throw");
+        } catch (RuntimeException expected) {
+            // counted as an error below
+        }
+
+        String prefix = MCMServiceDao.class.getName();
+        Assert.assertEquals(1, registry.timer(prefix + ".listCampaigns.latency").getCount());
+        Assert.assertEquals(1, registry.histogram(prefix + ".listCampaigns.statements").getSnapshot().getMax());
+        Assert.assertEquals(campaigns.size(), registry.histogram(prefix + ".listCampaigns.rows").getSnapshot().getMax());
+        Assert.assertEquals(1, registry.counter(prefix + ".retrieveBusinessUnit.errors").getCount());
+        Assert.assertTrue(registry.histogram(prefix + ".createBusinessUnit.statements").getSnapshot().getMax() >= 2);
+        Assert.assertEquals(0, registry.timer(prefix + ".listProducts.latency").getCount());
+    }
+
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testMergeAcquisitionFacts(){
+        StatementCountingDataSource counting = new StatementCountingDataSource(new TransactionAwareDataSourceProxy(dataSource));
+        MCMServiceDaoPostgreSQL countingDao = new MCMServiceDaoPostgreSQL();
+        countingDao.setDatasource(counting);
+        countingDao.setTransactionManager(transactionManager);
+
+        Account a = new Account();
+        a.setStatus(AccountStatus.ACTIVE);
+        a.setStatusUpdated(new Date());
+        a.setName("Business Unit");
+        mcmServiceDao.createBusinessUnit(a);
+
+        Product p = new Product();
+        p.setStatus(ProductStatus.ACTIVE);
+        p.setStatusUpdated(new Date());
+        p.setId("WDI");
+        p.setName("Web Development Immersive OnPrem");
+        p= mcmServiceDao.createProduct(p);
+
+        Marketplace m = new Marketplace();
+        m.setName("Facebook");
+        m.setStatus(MarketplaceStatus.ACTIVE);
+        m.setStatusUpdated(new Date());
+        m= mcmServiceDao.createMarketplace(m);
+
+        List<Campaign> batch = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Campaign c = new Campaign();
+            c.setBusinessUnit(a.getId());
+            c.setProduct(p.getId());
+            c.setMarketplace(m.getId());
+            c.setTracker(p.getId() + "^f" + i);
+            c.setName(p.getId() + " " + m.getName() + " facts campaign " + i);
+            c.setStatus(CampaignStatus.ACTIVE);
+            c.setStatusUpdated(new Date());
+            c.setType(CampaignType.CPC);
+            batch.add(c);
+        }
+        mcmServiceDao.createCampaigns(batch);
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2016, Calendar.OCTOBER, 1, 0, 0, 0);
+        Date day1 = calendar.getTime();
+        calendar.add(Calendar.DATE, 1);
+        Date day2 = calendar.getTime();
+        calendar.add(Calendar.DATE, 1);
+        Date day3 = calendar.getTime();
+
+        List<AcquisitionFact> facts = Arrays.asList(
+                new AcquisitionFact("WDI^f0", day1, 10, 8, 5, 3, 120.5),
+                new AcquisitionFact("WDI^f0", day2, 4, 4, 4, 0, 40.0),
+                new AcquisitionFact("WDI^f1", day1, 1, 1, 0, 1, 9.99),
+                new AcquisitionFact("WDI^f0", day1, 12, 9, 6, 3, 130.25));
+        long before = counting.getStatementCount();
+        Assert.assertEquals("the last of two facts for the same day wins", 3, countingDao.mergeAcquisitionFacts(facts.iterator()));
+        Assert.assertEquals("statements do not depend on the number of facts", 2, counting.getStatementCount() - before);
+
+        facts = Arrays.asList(
+                new AcquisitionFact("WDI^f0", day2, 4, 4, 4, 0, 40.0),
+                new AcquisitionFact("WDI^f1", day1, 2, 2, 1, 1, 19.98),
+                new AcquisitionFact("WDI^f1", day3, 3, 3, 3, 0, 29.97));
+        Assert.assertEquals("unchanged facts are not rewritten", 2, countingDao.mergeAcquisitionFacts(facts.iterator()));
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        Assert.assertEquals(Integer.valueOf(4), jdbcTemplate.queryForObject(
+                "SELECT count(*)::integer FROM stats.acquisition_facts WHERE campaign LIKE 'WDI^f%'", Integer.class));
+        Assert.assertEquals(Integer.valueOf(12), jdbcTemplate.queryForObject(
+                "SELECT acquisitions FROM stats.acquisition_facts WHERE campaign = 'WDI^f0' AND statement_date = '2016-10-01'", Integer.class));
+        Assert.assertEquals(19.98, jdbcTemplate.queryForObject(
+                "SELECT spend FROM stats.acquisition_facts WHERE campaign = 'WDI^f1' AND statement_date = '2016-10-01'", Double.class), 0.0);
+    }
+
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testAcquisitionRollups(){
+        AcquisitionCatalog catalog = createAcquisitionCatalog("ROL", "Rollup", "r");
+        Account a = catalog.unit;
+        Account b = catalog.otherUnit;
+        Marketplace m = catalog.marketplace;
+
+        // two months of facts, a day apart per campaign
+        List<AcquisitionFact> facts = new ArrayList<>();
+        for (LocalDate day = LocalDate.of(2016, 10, 1); day.isBefore(LocalDate.of(2016, 12, 1)); day = day.plusDays(1))
+            for (int i = 0; i < 3; i++)
+                facts.add(new AcquisitionFact("ROL^r" + i, java.sql.Date.valueOf(day), day.getDayOfMonth() + i, i, 1, i + 1, day.getDayOfMonth() * 0.25 + i));
+        mcmServiceDao.mergeAcquisitionFacts(facts.iterator());
+
+        // partial weeks and months at both ends, whole ones in between, and a range within a week
+        Object[][] queries = {
+                {AcquisitionGrain.DAY, AcquisitionDimension.CAMPAIGN, LocalDate.of(2016, 10, 30), LocalDate.of(2016, 11, 2)},
+                {AcquisitionGrain.WEEK, AcquisitionDimension.TAG, LocalDate.of(2016, 10, 5), LocalDate.of(2016, 11, 23)},
+                {AcquisitionGrain.WEEK, AcquisitionDimension.METRO, LocalDate.of(2016, 10, 18), LocalDate.of(2016, 10, 20)},
+                {AcquisitionGrain.MONTH, AcquisitionDimension.BUSINESS_UNIT, LocalDate.of(2016, 10, 1), LocalDate.of(2016, 11, 30)},
+                {AcquisitionGrain.MONTH, AcquisitionDimension.PRODUCT, LocalDate.of(2016, 10, 12), LocalDate.of(2016, 11, 30)},
+                {AcquisitionGrain.MONTH, AcquisitionDimension.MARKETPLACE, LocalDate.of(2016, 9, 1), LocalDate.of(2016, 12, 31)},
+                {AcquisitionGrain.WEEK, null, LocalDate.of(2016, 10, 1), LocalDate.of(2016, 11, 30)},
+        };
+        Map<String, List<String>> keys = new HashMap<>();
+        keys.put("ROL^r0", Arrays.asList("ROL^r0", "ROL", String.valueOf(m.getId()), String.valueOf(a.getId())));
+        keys.put("ROL^r1", Arrays.asList("ROL^r1", "ROL", String.valueOf(m.getId()), String.valueOf(a.getId())));
+        keys.put("ROL^r2", Arrays.asList("ROL^r2", "ROL", String.valueOf(m.getId()), String.valueOf(b.getId())));
+        Map<String, List<String>> tagKeys = new HashMap<>();
+        tagKeys.put("ROL^r0", Arrays.asList("1", "3"));
+        tagKeys.put("ROL^r1", Collections.singletonList("3"));
+        tagKeys.put("ROL^r2", Collections.emptyList());
+        Map<String, List<String>> metroKeys = new HashMap<>();
+        metroKeys.put("ROL^r0", Collections.emptyList());
+        metroKeys.put("ROL^r1", Collections.singletonList("1"));
+        metroKeys.put("ROL^r2", Collections.emptyList());
+        Function<Object[], String> expected = query -> {
+            AcquisitionGrain grain = (AcquisitionGrain) query[0];
+            AcquisitionDimension dimension = (AcquisitionDimension) query[1];
+            SortedMap<String, double[]> sums = new TreeMap<>();
+            for (AcquisitionFact fact : facts) {
+                LocalDate day = new java.sql.Date(fact.getStatementDate().getTime()).toLocalDate();
+                if (day.isBefore((LocalDate) query[2]) || day.isAfter((LocalDate) query[3]))
+                    continue;
+                // a campaign counts for each of its tags and metros
+                List<String> memberKeys;
+                if (dimension == null)
+                    memberKeys = Collections.singletonList(null);
+                else if (dimension == AcquisitionDimension.TAG)
+                    memberKeys = tagKeys.get(fact.getCampaign());
+                else if (dimension == AcquisitionDimension.METRO)
+                    memberKeys = metroKeys.get(fact.getCampaign());
+                else
+                    memberKeys = Collections.singletonList(keys.get(fact.getCampaign()).get(dimension.ordinal()));
+                for (String key : memberKeys) {
+                    double[] sum = sums.computeIfAbsent(grain.start(day) + " " + key, k -> new double[5]);
+                    sum[0] += fact.getAcquisitions();
+                    sum[1] += fact.getAcquisitionsPayable();
+                    sum[2] += fact.getAcquisitionsPaid();
+                    sum[3] += fact.getAcquisitionsNotPaid();
+                    sum[4] += fact.getSpend();
+                }
+            }
+            StringBuilder out = new StringBuilder();
+            sums.forEach((key, sum) -> out.append(key).append(String.format(" %.0f %.0f %.0f %.0f %.2f%n", sum[0], sum[1], sum[2], sum[3], sum[4])));
+            return out.toString();
+        };
+        Function<Object[], String> actual = query -> {
+            SortedMap<String, String> rows = new TreeMap<>();
+            for (AcquisitionRollup rollup : mcmServiceDao.getAcquisitionRollups((AcquisitionGrain) query[0], (AcquisitionDimension) query[1],
+                    java.sql.Date.valueOf((LocalDate) query[2]), java.sql.Date.valueOf((LocalDate) query[3])))
+                rows.put(rollup.getPeriod() + " " + rollup.getKey(), String.format(" %d %d %d %d %.2f%n", rollup.getAcquisitions(),
+                        rollup.getAcquisitionsPayable(), rollup.getAcquisitionsPaid(), rollup.getAcquisitionsNotPaid(), rollup.getSpend()));
+            StringBuilder out = new StringBuilder();
+            rows.forEach((key, sums) -> out.append(key).append(sums));
+            return out.toString();
+        };
+
+        // exact before the rollups are refreshed, from the facts
+        for (Object[] query : queries)
+            Assert.assertEquals(Arrays.toString(query), expected.apply(query), actual.apply(query));
+
+        Assert.assertEquals(61, mcmServiceDao.refreshAcquisitionRollups());
+        Assert.assertEquals(0, mcmServiceDao.refreshAcquisitionRollups());
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        Assert.assertEquals(Integer.valueOf(6), jdbcTemplate.queryForObject(
+                "SELECT count(*)::integer FROM stats.acquisition_monthly WHERE campaign LIKE 'ROL^r%'", Integer.class));
+        for (Object[] query : queries)
+            Assert.assertEquals(Arrays.toString(query), expected.apply(query), actual.apply(query));
+
+        // a changed fact dirties its date only, read from the facts until refreshed
+        AcquisitionFact changed = new AcquisitionFact("ROL^r0", java.sql.Date.valueOf(LocalDate.of(2016, 11, 9)), 100, 90, 80, 10, 1000.0);
+        facts.set(facts.indexOf(facts.stream().filter(f -> f.getCampaign().equals("ROL^r0")
+                && f.getStatementDate().equals(changed.getStatementDate())).findFirst().get()), changed);
+        mcmServiceDao.mergeAcquisitionFacts(Collections.singletonList(changed).iterator());
+        for (Object[] query : queries)
+            Assert.assertEquals(Arrays.toString(query), expected.apply(query), actual.apply(query));
+        Assert.assertEquals(1, mcmServiceDao.refreshAcquisitionRollups());
+        for (Object[] query : queries)
+            Assert.assertEquals(Arrays.toString(query), expected.apply(query), actual.apply(query));
+    }
+
+    @Test
+    public void testAcquisitionRollupRefreshRace() throws Exception {
+        // committing, as writer and refresh need connections of their own; removed again at the end
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        Date day = java.sql.Date.valueOf(LocalDate.of(1999, 3, 10));
+        Date week = java.sql.Date.valueOf(LocalDate.of(1999, 3, 8));
+        String weekly = "SELECT acquisitions FROM stats.acquisition_weekly WHERE campaign = 'RACE^1' AND period_start = ?";
+        jdbcTemplate.update("INSERT INTO meta.product (code, name, status) VALUES ('RACE', 'Refresh race product', 'ACTIVE')");
+        jdbcTemplate.update("INSERT INTO meta.campaign (product, tracker, type, marketplace, name, status) " +
+                "VALUES ('RACE', 'RACE^1', 'CPC', 1, 'Refresh race campaign', 'ACTIVE')");
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            mcmServiceDao.mergeAcquisitionFacts(Collections.singletonList(
+                    new AcquisitionFact("RACE^1", day, 1, 1, 1, 0, 1.0)).iterator());
+
+            // a fact updated while its date is dirty, the refresh waits for the writer and sees its change
+            refreshWhileWriting(threads, () -> jdbcTemplate.update(
+                    "UPDATE stats.acquisition_facts SET acquisitions = 5 WHERE campaign = 'RACE^1' AND statement_date = ?", day));
+            mcmServiceDao.refreshAcquisitionRollups();
+            Assert.assertEquals(5, jdbcTemplate.queryForObject(weekly, Integer.class, week).intValue());
+
+            // so does one merged, its date marked by the merge rather than by the trigger
+            jdbcTemplate.update("UPDATE stats.acquisition_facts SET acquisitions = 6 WHERE campaign = 'RACE^1' AND statement_date = ?", day);
+            refreshWhileWriting(threads, () -> mcmServiceDao.mergeAcquisitionFacts(Collections.singletonList(
+                    new AcquisitionFact("RACE^1", day, 7, 1, 1, 0, 1.0)).iterator()));
+            mcmServiceDao.refreshAcquisitionRollups();
+            Assert.assertEquals(7, jdbcTemplate.queryForObject(weekly, Integer.class, week).intValue());
+            Assert.assertEquals(7, mcmServiceDao.getAcquisitionRollups(AcquisitionGrain.WEEK, null,
+                    java.sql.Date.valueOf(LocalDate.of(1999, 3, 1)), java.sql.Date.valueOf(LocalDate.of(1999, 3, 21)))
+                    .stream().mapToLong(AcquisitionRollup::getAcquisitions).sum());
+        } finally {
+            threads.shutdownNow();
+            removeCommittedFacts("RACE", Collections.singletonList(day));
+        }
+    }
+
+    @Test
+    public void testAcquisitionCubeRefresh() {
+        // committing, as what changed is told by the transactions committed; removed again at the end
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        Date kept = java.sql.Date.valueOf(LocalDate.of(1999, 4, 5));
+        Date changed = java.sql.Date.valueOf(LocalDate.of(1999, 4, 6));
+        Date from = java.sql.Date.valueOf(LocalDate.of(1999, 4, 1));
+        Date to = java.sql.Date.valueOf(LocalDate.of(1999, 4, 30));
+        AcquisitionCubeQuery byTag = new AcquisitionCubeQuery(AcquisitionGrain.DAY, AcquisitionDimension.TAG, from, to);
+        byTag.setCampaigns(Collections.singleton("CUBR^1"));
+        jdbcTemplate.update("INSERT INTO meta.product (code, name, status) VALUES ('CUBR', 'Cube refresh product', 'ACTIVE')");
+        jdbcTemplate.update("INSERT INTO meta.campaign (product, tracker, type, marketplace, name, status) " +
+                "VALUES ('CUBR', 'CUBR^1', 'CPC', 1, 'Cube refresh campaign', 'ACTIVE')");
+        try {
+            mcmServiceDao.mergeAcquisitionFacts(Arrays.asList(new AcquisitionFact("CUBR^1", kept, 1, 1, 1, 0, 1.0),
+                    new AcquisitionFact("CUBR^1", changed, 2, 1, 1, 0, 1.0)).iterator());
+            AcquisitionCube cube = new AcquisitionCube().load(dataSource);
+            AcquisitionCubeQuery byDay = new AcquisitionCubeQuery(AcquisitionGrain.DAY, AcquisitionDimension.CAMPAIGN, from, to);
+            byDay.setCampaigns(Collections.singleton("CUBR^1"));
+            Function<AcquisitionCubeQuery, List<String>> rows = query -> cube.query(query).stream()
+                    .map(r -> r.getPeriod() + " " + r.getKey() + " " + r.getAcquisitions())
+                    .collect(Collectors.toList());
+            Assert.assertEquals(Arrays.asList("1999-04-05 CUBR^1 1", "1999-04-06 CUBR^1 2"), rows.apply(byDay));
+
+            // nothing changed, nothing read
+            int facts = cube.getFactCount();
+            Assert.assertFalse(cube.refresh(dataSource));
+
+            // the changed date read again, the other kept, the campaigns read again for the tag
+            mcmServiceDao.mergeAcquisitionFacts(Collections.singletonList(
+                    new AcquisitionFact("CUBR^1", changed, 7, 1, 1, 0, 1.0)).iterator());
+            jdbcTemplate.update("INSERT INTO meta.campaign_tags (campaign, tag) VALUES ('CUBR^1', 3)");
+            Assert.assertTrue(cube.refresh(dataSource));
+            Assert.assertEquals(facts, cube.getFactCount());
+            Assert.assertEquals(Arrays.asList("1999-04-05 CUBR^1 1", "1999-04-06 CUBR^1 7"), rows.apply(byDay));
+            Assert.assertEquals(Arrays.asList("1999-04-05 3 1", "1999-04-06 3 7"), rows.apply(byTag));
+            Assert.assertFalse(cube.refresh(dataSource));
+        } finally {
+            jdbcTemplate.update("DELETE FROM meta.campaign_tags WHERE campaign = 'CUBR^1'");
+            removeCommittedFacts("CUBR", Arrays.asList(kept, changed));
+        }
+    }
+
+    /**
+     * Removes a committed product and its campaign {@code <product>^1}, with the campaign's facts
+     * and what they left behind on their days
+     */
+    private void removeCommittedFacts(String product, List<Date> days) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        String tracker = product + "^1";
+        jdbcTemplate.update("DELETE FROM stats.acquisition_facts WHERE campaign = ?", tracker);
+        for (Date day : days) {
+            jdbcTemplate.update("DELETE FROM stats.acquisition_dirty_dates WHERE statement_date = ?", day);
+            jdbcTemplate.update("DELETE FROM stats.acquisition_date_change WHERE statement_date = ?", day);
+        }
+        jdbcTemplate.update("DELETE FROM stats.acquisition_weekly WHERE campaign = ?", tracker);
+        jdbcTemplate.update("DELETE FROM stats.acquisition_monthly WHERE campaign = ?", tracker);
+        jdbcTemplate.update("DELETE FROM meta.campaign WHERE tracker = ?", tracker);
+        jdbcTemplate.update("DELETE FROM meta.product WHERE code = ?", product);
+        jdbcTemplate.update("DELETE FROM logs.catalog_change WHERE key IN (?, ?)", product, tracker);
+    }
+
+    /**
+     * Runs a write in a transaction kept open until a refresh of the rollups has been started and
+     * found waiting for it, then commits it and lets the refresh finish.
+     */
+    private void refreshWhileWriting(ExecutorService threads, Runnable write) throws Exception {
+        CountDownLatch written = new CountDownLatch(1);
+        CountDownLatch commit = new CountDownLatch(1);
+        Future<?> writer = threads.submit(() -> new TransactionTemplate(transactionManager).execute(status -> {
+            write.run();
+            written.countDown();
+            try {
+                commit.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }));
+        Assert.assertTrue(written.await(10, TimeUnit.SECONDS));
+        Future<Integer> refresh = threads.submit(mcmServiceDao::refreshAcquisitionRollups);
+        Thread.sleep(300);
+        Assert.assertFalse("refreshed while the facts were being written", refresh.isDone());
+        commit.countDown();
+        writer.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(1, refresh.get(10, TimeUnit.SECONDS).intValue());
+    }
+
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testAcquisitionCube(){
+        AcquisitionCatalog catalog = createAcquisitionCatalog("CUB", "Cube", "k");
+        Account a = catalog.unit;
+        Account b = catalog.otherUnit;
+        Marketplace m = catalog.marketplace;
+
+        // a decade of daily facts; spend in quarters, summed exactly in any order
+        List<AcquisitionFact> facts = new ArrayList<>();
+        LocalDate start = LocalDate.of(1950, 1, 1);
+        for (int d = 0; d < 4000; d++)
+            for (int i = 0; i < 3; i++)
+                facts.add(new AcquisitionFact("CUB^k" + i, java.sql.Date.valueOf(start.plusDays(d)), d % 7 + i, d % 5, d % 3, i, (d % 11) * 0.25 + i));
+        mcmServiceDao.mergeAcquisitionFacts(facts.iterator());
+
+        // scanned in a dozen slices
+        AcquisitionCube cube = new AcquisitionCube();
+        cube.setSliceRows(1000);
+        DataSource inTransaction = new TransactionAwareDataSourceProxy(dataSource);
+        cube.load(inTransaction);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        Assert.assertEquals(jdbcTemplate.queryForObject("SELECT count(*)::integer FROM stats.acquisition_facts", Integer.class).intValue(),
+                cube.getFactCount());
+
+        Function<List<AcquisitionRollup>, List<String>> rows = rollups -> rollups.stream()
+                .map(r -> String.format("%s %s %d %d %d %d %.2f", r.getPeriod(), r.getKey(), r.getAcquisitions(),
+                        r.getAcquisitionsPayable(), r.getAcquisitionsPaid(), r.getAcquisitionsNotPaid(), r.getSpend()))
+                .collect(Collectors.toList());
+
+        // the same sums as the database, in the same order
+        Object[][] slices = {
+                {AcquisitionGrain.DAY, AcquisitionDimension.CAMPAIGN, LocalDate.of(1960, 2, 27), LocalDate.of(1960, 3, 2)},
+                {AcquisitionGrain.WEEK, AcquisitionDimension.TAG, LocalDate.of(1950, 1, 1), LocalDate.of(2020, 1, 1)},
+                {AcquisitionGrain.MONTH, AcquisitionDimension.BUSINESS_UNIT, LocalDate.of(1949, 6, 15), LocalDate.of(2030, 1, 1)},
+                {AcquisitionGrain.MONTH, AcquisitionDimension.METRO, LocalDate.of(1952, 1, 10), LocalDate.of(1955, 3, 20)},
+                {AcquisitionGrain.MONTH, AcquisitionDimension.PRODUCT, LocalDate.of(1950, 1, 1), LocalDate.of(2020, 1, 1)},
+                {AcquisitionGrain.WEEK, AcquisitionDimension.MARKETPLACE, LocalDate.of(1958, 1, 1), LocalDate.of(1958, 12, 31)},
+                {AcquisitionGrain.MONTH, null, LocalDate.of(1950, 1, 1), LocalDate.of(2020, 1, 1)},
+        };
+        Runnable sameAsDatabase = () -> {
+            for (Object[] slice : slices) {
+                Date from = java.sql.Date.valueOf((LocalDate) slice[2]);
+                Date to = java.sql.Date.valueOf((LocalDate) slice[3]);
+                Assert.assertEquals(Arrays.toString(slice),
+                        rows.apply(mcmServiceDao.getAcquisitionRollups((AcquisitionGrain) slice[0], (AcquisitionDimension) slice[1], from, to)),
+                        rows.apply(cube.query(new AcquisitionCubeQuery((AcquisitionGrain) slice[0], (AcquisitionDimension) slice[1], from, to))));
+            }
+        };
+        sameAsDatabase.run();
+
+        // filtered: Social is only carried by the first campaign, metro 1 only set for the second
+        Date from = java.sql.Date.valueOf(LocalDate.of(1950, 1, 1));
+        Date to = java.sql.Date.valueOf(LocalDate.of(2020, 1, 1));
+        Function<String, List<String>> campaignMonths = tracker -> rows.apply(mcmServiceDao.getAcquisitionRollups(
+                AcquisitionGrain.MONTH, AcquisitionDimension.CAMPAIGN, from, to)).stream()
+                .filter(row -> row.contains(" " + tracker + " "))
+                .collect(Collectors.toList());
+        AcquisitionCubeQuery social1 = new AcquisitionCubeQuery(AcquisitionGrain.MONTH, AcquisitionDimension.CAMPAIGN, from, to);
+        social1.setTags(Collections.singleton(1L));
+        Assert.assertEquals(campaignMonths.apply("CUB^k0"), rows.apply(cube.query(social1)));
+        AcquisitionCubeQuery metro1 = new AcquisitionCubeQuery(AcquisitionGrain.MONTH, AcquisitionDimension.CAMPAIGN, from, to);
+        metro1.setMetros(Collections.singleton(1L));
+        metro1.setProducts(Collections.singleton("CUB"));
+        Assert.assertEquals(campaignMonths.apply("CUB^k1"), rows.apply(cube.query(metro1)));
+        AcquisitionCubeQuery unit = new AcquisitionCubeQuery(AcquisitionGrain.MONTH, AcquisitionDimension.CAMPAIGN, from, to);
+        unit.setBusinessUnits(Collections.singleton(b.getId()));
+        unit.setMarketplaces(Collections.singleton(m.getId()));
+        Assert.assertEquals(campaignMonths.apply("CUB^k2"), rows.apply(cube.query(unit)));
+
+        // the whole range as one period, per business unit
+        List<AcquisitionRollup> totals = cube.query(new AcquisitionCubeQuery(null, AcquisitionDimension.BUSINESS_UNIT, from, to));
+        Assert.assertEquals(Arrays.asList(String.valueOf(a.getId()), String.valueOf(b.getId())),
+                totals.stream().map(AcquisitionRollup::getKey).collect(Collectors.toList()));
+        Assert.assertEquals(from, totals.get(0).getPeriod());
+        Assert.assertEquals(facts.stream().filter(f -> f.getCampaign().equals("CUB^k2")).mapToLong(AcquisitionFact::getAcquisitions).sum(),
+                totals.get(1).getAcquisitions());
+
+        Assert.assertTrue(cube.query(new AcquisitionCubeQuery(AcquisitionGrain.DAY, null,
+                java.sql.Date.valueOf(LocalDate.of(1900, 1, 1)), java.sql.Date.valueOf(LocalDate.of(1900, 12, 31)))).isEmpty());
+        try {
+            cube.query(new AcquisitionCubeQuery(AcquisitionGrain.DAY, AcquisitionDimension.CAMPAIGN,
+                    java.sql.Date.valueOf(LocalDate.of(1, 1, 1)), java.sql.Date.valueOf(LocalDate.of(2999, 12, 31))));
+            Assert.fail("expected a slice of too many cells to be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // refreshed with a fact changed and a campaign tagged since
+        mcmServiceDao.mergeAcquisitionFacts(Collections.singletonList(new AcquisitionFact(
+                "CUB^k2", java.sql.Date.valueOf(LocalDate.of(1955, 3, 1)), 100, 90, 80, 10, 1000.0)).iterator());
+        mcmServiceDao.tagCampaigns(Collections.singletonMap("CUB^k2", Collections.singletonList(catalog.social)));
+        Assert.assertTrue(cube.refresh(inTransaction));
+        Assert.assertEquals(jdbcTemplate.queryForObject("SELECT count(*)::integer FROM stats.acquisition_facts", Integer.class).intValue(),
+                cube.getFactCount());
+        sameAsDatabase.run();
+        Assert.assertEquals(rows.apply(mcmServiceDao.getAcquisitionRollups(AcquisitionGrain.MONTH, AcquisitionDimension.TAG, from, to)),
+                rows.apply(cube.query(new AcquisitionCubeQuery(AcquisitionGrain.MONTH, AcquisitionDimension.TAG, from, to))));
+    }
+
+    /**
+     * Catalog the acquisition tests sum the facts of
+     */
+    private static final class AcquisitionCatalog {
+        Account unit;
+        Account otherUnit;
+        Marketplace marketplace;
+        Tag social;
+    }
+
+    /**
+     * Creates two business units, a product and a marketplace, and three campaigns of the product,
+     * {@code <code>^<series>0} to {@code 2}: the first two of the first business unit, the last of
+     * the other. The first campaign is tagged Social and Brand, the second Brand and set to metro 1.
+     */
+    private AcquisitionCatalog createAcquisitionCatalog(String code, String label, String series) {
+        Account a = new Account();
+        a.setStatus(AccountStatus.ACTIVE);
+        a.setStatusUpdated(new Date());
+        a.setName(label + " Business Unit");
+        mcmServiceDao.createBusinessUnit(a);
+        Account b = new Account();
+        b.setStatus(AccountStatus.ACTIVE);
+        b.setStatusUpdated(new Date());
+        b.setName("Other " + label + " Business Unit");
+        mcmServiceDao.createBusinessUnit(b);
+
+        Product p = new Product();
+        p.setStatus(ProductStatus.ACTIVE);
+        p.setStatusUpdated(new Date());
+        p.setId(code);
+        p.setName(label + " Product");
+        p = mcmServiceDao.createProduct(p);
+
+        Marketplace m = new Marketplace();
+        m.setName(label + " Marketplace");
+        m.setStatus(MarketplaceStatus.ACTIVE);
+        m.setStatusUpdated(new Date());
+        m = mcmServiceDao.createMarketplace(m);
+
+        List<Campaign> batch = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Campaign c = new Campaign();
+            c.setBusinessUnit(i < 2 ? a.getId() : b.getId());
+            c.setProduct(p.getId());
+            c.setMarketplace(m.getId());
+            c.setTracker(p.getId() + "^" + series + i);
+            c.setName(p.getId() + " " + label.toLowerCase() + " campaign " + i);
+            c.setStatus(CampaignStatus.ACTIVE);
+            c.setStatusUpdated(new Date());
+            c.setType(CampaignType.CPC);
+            batch.add(c);
+        }
+        mcmServiceDao.createCampaigns(batch);
+        // Social and Brand, of the static data
+        Tag social = new Tag();
+        social.setId(1L);
+        Tag brand = new Tag();
+        brand.setId(3L);
+        Map<String, List<Tag>> tags = new HashMap<>();
+        tags.put(code + "^" + series + "0", Arrays.asList(social, brand));
+        tags.put(code + "^" + series + "1", Collections.singletonList(brand));
+        mcmServiceDao.tagCampaigns(tags);
+        mcmServiceDao.setCampaignMetro(mcmServiceDao.retrieveCampaign(code + "^" + series + "1"), mcmServiceDao.retrieveMetro(1L));
+
+        AcquisitionCatalog catalog = new AcquisitionCatalog();
+        catalog.unit = a;
+        catalog.otherUnit = b;
+        catalog.marketplace = m;
+        catalog.social = social;
+        return catalog;
+    }
+
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testFindCampaigns(){
+        Account a = new Account();
+        a.setStatus(AccountStatus.ACTIVE);
+        a.setStatusUpdated(new Date());
+        a.setName("Business Unit");
+        mcmServiceDao.createBusinessUnit(a);
+
+        Product p = new Product();
+        p.setStatus(ProductStatus.ACTIVE);
+        p.setStatusUpdated(new Date());
+        p.setId("WDI");
+        p.setName("Web Development Immersive OnPrem");
+        p= mcmServiceDao.createProduct(p);
+
+        Marketplace facebook = new Marketplace();
+        facebook.setName("Facebook");
+        facebook.setStatus(MarketplaceStatus.ACTIVE);
+        facebook.setStatusUpdated(new Date());
+        facebook = mcmServiceDao.createMarketplace(facebook);
+
+        Marketplace google = new Marketplace();
+        google.setName("Google");
+        google.setStatus(MarketplaceStatus.ACTIVE);
+        google.setStatusUpdated(new Date());
+        google = mcmServiceDao.createMarketplace(google);
+
+        List<Campaign> batch = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            Campaign c = new Campaign();
+            c.setBusinessUnit(a.getId());
+            c.setProduct(p.getId());
+            c.setMarketplace(i % 2 == 0 ? facebook.getId() : google.getId());
+            c.setTracker(p.getId() + "^q" + i);
+            c.setName(p.getId() + " query campaign " + i);
+            c.setStatus(i == 4 ? CampaignStatus.PAUSED : i == 5 ? CampaignStatus.DELETED : CampaignStatus.ACTIVE);
+            c.setStatusUpdated(new Date());
+            c.setType(CampaignType.CPC);
+            batch.add(c);
+        }
+        List<Campaign> q = new ArrayList<>(mcmServiceDao.createCampaigns(batch));
+
+        // seeded by mcm.sql
+        Map<String, Tag> tagsByName = new HashMap<>();
+        for (Object[] seeded : new Object[][]{{3L, "Brand"}, {5L, "Email"}, {6L, "Search"}}) {
+            Tag t = new Tag();
+            t.setId((Long) seeded[0]);
+            t.setValue((String) seeded[1]);
+            tagsByName.put(t.getValue().toLowerCase(), t);
+        }
+        Function<String, Tag> tags = name -> tagsByName.get(name.toLowerCase());
+        for (int i : new int[]{0, 1, 2, 5})
+            mcmServiceDao.tagCampaign(q.get(i), tags.apply("Brand"));
+        for (int i : new int[]{0, 2, 3, 4})
+            mcmServiceDao.tagCampaign(q.get(i), tags.apply("Search"));
+        mcmServiceDao.tagCampaign(q.get(2), tags.apply("Email"));
+        Metro metro = mcmServiceDao.retrieveMetro(1L);
+        mcmServiceDao.setCampaignMetro(q.get(0), metro);
+        mcmServiceDao.setCampaignMetro(q.get(3), metro);
+
+        MCMServiceDaoPostgreSQL indexedDao = new MCMServiceDaoPostgreSQL();
+        indexedDao.setDatasource(dataSource);
+        CampaignTagIndex index = new CampaignTagIndex().load(dataSource);
+        indexedDao.setCampaignTagIndex(index);
+
+        Map<CampaignQuery, Set<String>> expected = new LinkedHashMap<>();
+        CampaignQuery query = new CampaignQuery(TagExpression.parse("Brand AND Search AND NOT Email", tags));
+        expected.put(query, new HashSet<>(Arrays.asList("WDI^q0")));
+        query = new CampaignQuery(TagExpression.parse("brand or (Email)", tags));
+        expected.put(query, new HashSet<>(Arrays.asList("WDI^q0", "WDI^q1", "WDI^q2")));
+        query = new CampaignQuery(TagExpression.parse("NOT Brand", tags));
+        query.setProducts(Collections.singleton("WDI"));
+        expected.put(query, new HashSet<>(Arrays.asList("WDI^q3", "WDI^q4")));
+        query = new CampaignQuery(TagExpression.parse("Search", tags));
+        query.setMarketplaces(Collections.singleton(google.getId()));
+        expected.put(query, new HashSet<>(Arrays.asList("WDI^q3")));
+        query = new CampaignQuery();
+        query.setMetros(Collections.singleton(metro.getId()));
+        expected.put(query, new HashSet<>(Arrays.asList("WDI^q0", "WDI^q3")));
+        query = new CampaignQuery(TagExpression.tag(3L));
+        query.setStatuses(EnumSet.of(CampaignStatus.PAUSED, CampaignStatus.DELETED));
+        expected.put(query, new HashSet<>(Arrays.asList("WDI^q5")));
+
+        for (Map.Entry<CampaignQuery, Set<String>> e : expected.entrySet()) {
+            Assert.assertEquals("SQL " + e.getKey(), e.getValue(), trackers(mcmServiceDao.findCampaigns(e.getKey())));
+            Assert.assertEquals("index " + e.getKey(), e.getValue(), trackers(indexedDao.findCampaigns(e.getKey())));
+        }
+        Assert.assertEquals(q.get(0).getBusinessUnit(), indexedDao.findCampaigns(TagExpression.tag(3L)).first().getBusinessUnit());
+
+        // kept current by the DAO once changes are committed
+        index.untag("WDI^q0", 3L);
+        index.putCampaign("WDI^q1", "WDI", google.getId(), CampaignStatus.DELETED);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("WDI^q2")),
+                trackers(indexedDao.findCampaigns(TagExpression.parse("Brand OR Email", tags))));
+
+        // changes written elsewhere: the campaigns read again, then the whole index replaced
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.update("DELETE FROM meta.campaign_tags WHERE campaign = 'WDI^q2' AND tag = 5");
+        jdbcTemplate.update("DELETE FROM meta.campaign_metros WHERE tracker = 'WDI^q3'");
+        jdbcTemplate.update("INSERT INTO meta.campaign_metros (tracker, metro) VALUES ('WDI^q4', 1)");
+        index.refresh(dataSource, Arrays.asList("WDI^q1", "WDI^q2", "WDI^q3", "WDI^q4", "NO^SUCH"));
+        query = new CampaignQuery();
+        query.setMetros(Collections.singleton(metro.getId()));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("WDI^q0", "WDI^q4")), trackers(indexedDao.findCampaigns(query)));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("WDI^q1", "WDI^q2")),
+                trackers(indexedDao.findCampaigns(TagExpression.parse("Brand OR Email", tags))));
+        index.load(dataSource);
+        for (Map.Entry<CampaignQuery, Set<String>> e : expected.entrySet())
+            Assert.assertEquals("reloaded " + e.getKey(), trackers(mcmServiceDao.findCampaigns(e.getKey())),
+                    trackers(indexedDao.findCampaigns(e.getKey())));
+        Assert.assertEquals(trackers(mcmServiceDao.findCampaigns(query)), trackers(indexedDao.findCampaigns(query)));
+        Assert.assertEquals(jdbcTemplate.queryForObject("SELECT count(*)::integer FROM meta.campaign", Integer.class).intValue(),
+                index.size());
+
+        try {
+            TagExpression.parse("Brand AND NOT", tags);
+            Assert.fail("an incomplete expression should not parse");
+        } catch (IllegalArgumentException expectedException) {
+            // expected
+        }
+        try {
+            TagExpression.parse("Brand AND Unknown", tags);
+            Assert.fail("an unknown tag should not parse");
+        } catch (IllegalArgumentException expectedException) {
+            // expected
+        }
+    }
+
+    private static Set<String> trackers(Collection<Campaign> campaigns) {
+        Set<String> out = new HashSet<>();
+        campaigns.forEach(c -> out.add(c.getTracker()));
+        return out;
+    }
+
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testTagging(){
+
+        // TODO: add tests
+        // 1. [✓] create account, product, marketplace
+        // 2. [✓]create a campaign
+        // 3. create a tag group set to
+        //     3.1 mutex on
+        //     3.2 applicable to CAMPAIGN
+        //     3.3 create a few tags under the tag group
+        // 4. create a tag group set to
+        //     4.1 mutex off
+        //     4.2 applicable to CAMPAIGN
+        //     4.3 create a few tags under the tag group
+        // 5. Tag campaign with any of the 3.3, expect success
+        // 6. Tag campaign with additional selection from 3.3, expect failure
+        // 7. Tag campaign with any of the 4.3, expect success
+        // 8. Tag campaign with additional selection from 4.3, expect success
+        Account a = new Account();
+        a.setStatus(AccountStatus.ACTIVE);
+        a.setStatusUpdated(new Date());
+        a.setName("Business Unit");
+        mcmServiceDao.createBusinessUnit(a);
+
+        Product p = new Product();
+
+        p.setStatus(ProductStatus.ACTIVE);
+        p.setStatusUpdated(new Date());
+        p.setId("WDI");
+        p.setName("Web Development Immersive OnPrem");
+        p= mcmServiceDao.createProduct(p);
+
+        Marketplace m = new Marketplace();
+        m.setName("Facebook");
+        m.setStatus(MarketplaceStatus.ACTIVE);
+        m.setStatusUpdated(new Date());
+        m= mcmServiceDao.createMarketplace(m);
+
+        Campaign c = new Campaign();
+        c.setBusinessUnit(a.getId());
+        c.setProduct(p.getId());
+        c.setMarketplace(m.getId());
+        c.setTracker(p.getId()+"^drm001");
+        c.setName(p.getId() + " " + m.getName() +" SEM direct response marketing in US/NYC Metro");
+        c.setStatus(CampaignStatus.ACTIVE);
+        c.setStatusUpdated(new Date());
+        c.setType(CampaignType.CPC);
+        c.setCost(new Long(1));
+        c = mcmServiceDao.createCampaign(c);
+
+        TagGroup tg1 = new TagGroup();
+        tg1.addApplicableTo(TagType.CAMPAIGN);
+        tg1.setMutex(true);
+        tg1 = mcmServiceDao.createTagGroup(tg1);
+
+        Tag t11 = new Tag();
+        t11.setGroup(tg1.getId());
+        t11.setValue("MutexTag1");
+        t11 = mcmServiceDao.createTag(t11);
+
+        Tag t12 = new Tag();
+        t12.setGroup(tg1.getId());
+        t12.setValue("MutexTag2");
+        t12 = mcmServiceDao.createTag(t12);
+
+
+        TagGroup tg2 = new TagGroup();
+        tg2.addApplicableTo(TagType.CAMPAIGN);
+        tg2.setMutex(false);
+        tg2 = mcmServiceDao.createTagGroup(tg2);
+
+        Tag t21 = new Tag();
+        t21.setGroup(tg2.getId());
+        t21.setValue("NonMutexTag1");
+        t21 = mcmServiceDao.createTag(t21);
+
+        Tag t22 = new Tag();
+        t22.setGroup(tg2.getId());
+        t22.setValue("NonMutexTag2");
+        t22 = mcmServiceDao.createTag(t22);
+
+        SortedMap<Tag, SortedSet<Tag>> updatedTags ;
+        updatedTags = mcmServiceDao.tagCampaign(c,t11);
+        Assert.assertEquals(1,updatedTags.size());
+        updatedTags = mcmServiceDao.tagCampaign(c,t12);
+        Assert.assertEquals(2,updatedTags.size()); // enforcement of mutex is not a DAO function - service is responsible for it
+        updatedTags = mcmServiceDao.tagCampaign(c,t21);
+        Assert.assertEquals(3,updatedTags.size());
+        updatedTags = mcmServiceDao.tagCampaign(c,t22);
+        Assert.assertEquals(4,updatedTags.size());
+
+
+    }
+
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testUploadLogPages() {
+        // feed 1, the one user "test" may upload to; two uploads in the same millisecond
+        long start = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(90);
+        long[] offsets = {0, 1000, 1000, 5000, 60000, 3600000, 86400000};
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < offsets.length; i++) {
+            UploadLog log = new UploadLog();
+            log.setUploadtypeID(1L);
+            log.setEmail("test");
+            log.setUploadDate(new Date(start + offsets[i]));
+            log.setOriginalFilename("original-" + i + ".csv");
+            log.setUploadStatus("OK");
+            log.setFilename("paged-upload-" + i + ".csv");
+            mcmServiceDao.logFileUpload(log);
+        }
+        // most recent first, the tie by file name descending
+        for (int i : new int[]{6, 5, 4, 3, 2, 1, 0})
+            expected.add("paged-upload-" + i + ".csv");
+
+        List<String> read = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        UploadLogCursor cursor = null;
+        do {
+            UploadLogPage page = mcmServiceDao.getUploadLogPage("test", cursor, 3);
+            sizes.add(page.getLogs().size());
+            for (UploadLog log : page.getLogs())
+                read.add(log.getFilename());
+            // through a client and back
+            cursor = page.hasNext() ? UploadLogCursor.parse(page.getNext().toToken()) : null;
+        } while (cursor != null);
+        Assert.assertEquals(expected, read);
+        Assert.assertEquals(Arrays.asList(3, 3, 1), sizes);
+
+        UploadLogPage exact = mcmServiceDao.getUploadLogPage("test", null, 7);
+        Assert.assertEquals(7, exact.getLogs().size());
+        Assert.assertFalse(exact.hasNext());
+
+        Assert.assertTrue(mcmServiceDao.getUploadLogPage("nobody", null, 10).getLogs().isEmpty());
+        // bound, not spliced into the query
+        Assert.assertTrue(mcmServiceDao.getRecentUploadLogs(10, 60, "o'brien").isEmpty());
+        try (Stream<UploadLog> logs = mcmServiceDao.streamRecentUploadLogs(0, 0, "test")) {
+            Assert.assertEquals(7, logs.count());
+        }
+        try {
+            UploadLogCursor.parse("not a cursor");
+            Assert.fail("expected a malformed cursor to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testUploadLogPartitions() {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        UploadLogPartitions partitions = new UploadLogPartitions(dataSource);
+        partitions.setTransactionManager(transactionManager);
+
+        // routed to the partitions of their months, created on the fly
+        String[] dates = {"2015-01-15 10:00:00", "2015-03-01 00:00:00", "2015-03-31 23:59:59"};
+        for (int i = 0; i < dates.length; i++) {
+            UploadLog log = new UploadLog();
+            log.setUploadtypeID(1L);
+            log.setEmail("test");
+            log.setUploadDate(Timestamp.valueOf(dates[i]));
+            log.setOriginalFilename("original-" + i + ".csv");
+            log.setUploadStatus("OK");
+            log.setFilename("partitioned-upload-" + i + ".csv");
+            mcmServiceDao.logFileUpload(log);
+        }
+        Assert.assertEquals(0, jdbcTemplate.queryForObject("SELECT count(*) FROM ONLY logs.feed_upload_log", Integer.class).intValue());
+        Assert.assertEquals(2, jdbcTemplate.queryForObject("SELECT count(*) FROM logs.feed_upload_log_y2015m03", Integer.class).intValue());
+        Assert.assertEquals("partitioned-upload-1.csv", mcmServiceDao.updateParserStatus("partitioned-upload-1.csv", "PARSED").getFilename());
+
+        partitions.create(YearMonth.of(2015, 4), 2);
+        SortedMap<YearMonth, List<String>> months = partitions.list();
+        for (int month : new int[]{1, 3, 4, 5})
+            Assert.assertEquals(Arrays.asList("feed_upload_log_y2015m0" + month, "feedhandler_log_y2015m0" + month),
+                    months.get(YearMonth.of(2015, month)));
+        Assert.assertNull(months.get(YearMonth.of(2015, 2)));
+
+        // months before the bound left out of the plan
+        String plan = String.join("\n", jdbcTemplate.queryForList(
+                "EXPLAIN SELECT * FROM logs.feed_upload_log WHERE upload_date > '2015-03-15'", String.class));
+        Assert.assertFalse(plan, plan.contains("feed_upload_log_y2015m01"));
+        Assert.assertTrue(plan, plan.contains("feed_upload_log_y2015m03"));
+
+        // January archived, still there to be read but no longer a log
+        Assert.assertEquals(Arrays.asList("feed_upload_log_y2015m01", "feedhandler_log_y2015m01"),
+                partitions.expire(YearMonth.of(2015, 2), "logs_archive"));
+        Assert.assertEquals(1, jdbcTemplate.queryForObject("SELECT count(*) FROM logs_archive.feed_upload_log_y2015m01", Integer.class).intValue());
+        try {
+            mcmServiceDao.getUploadLog("partitioned-upload-0.csv");
+            Assert.fail("archived log still read");
+        } catch (EmptyResultDataAccessException expected) {
+        }
+
+        // March and the empty April dropped
+        Assert.assertEquals(4, partitions.expire(YearMonth.of(2015, 5), null).size());
+        Assert.assertEquals(Collections.singleton(YearMonth.of(2015, 5)), partitions.list().headMap(YearMonth.of(2016, 1)).keySet());
+        Assert.assertEquals(0, jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM logs.feed_upload_log WHERE filename LIKE 'partitioned-upload-%'", Integer.class).intValue());
+    }
+
+    @Test
+    public void testUploadLogWriteBehind() throws InterruptedException {
+        // committing, on a DAO of its own so the others write directly; flushed by size, not by time
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        MCMServiceDaoPostgreSQL dao = new MCMServiceDaoPostgreSQL();
+        dao.setDatasource(dataSource);
+        MetricRegistry registry = new MetricRegistry();
+        UploadLogWriteBehind writer = new UploadLogWriteBehind(dataSource, 4, 3, TimeUnit.HOURS.toMillis(1));
+        writer.registerMetrics(registry);
+        dao.setUploadLogWriteBehind(writer);
+        String written = "SELECT count(*) FROM logs.feed_upload_log WHERE filename LIKE 'write-behind-%'";
+        String parserStatus = "SELECT parser_status FROM logs.feed_upload_log WHERE filename = ?";
+        Function<Integer, UploadLog> upload = i -> {
+            UploadLog log = new UploadLog();
+            log.setUploadtypeID(1L);
+            log.setEmail("write-behind");
+            log.setUploadDate(new Date());
+            log.setOriginalFilename("original-" + i + ".csv");
+            log.setUploadStatus("OK");
+            log.setFilename("write-behind-" + i + ".csv");
+            return log;
+        };
+        try {
+            // queued, not written yet
+            dao.logFileUpload(upload.apply(0));
+            Assert.assertEquals("PARSING", dao.updateParserStatus("write-behind-0.csv", "PARSING").getParserStatus());
+            Assert.assertEquals(2, writer.getQueued());
+            Assert.assertEquals(0, jdbcTemplate.queryForObject(written, Integer.class).intValue());
+            Assert.assertEquals(2, registry.getGauges().get(MetricRegistry.name(UploadLogWriteBehind.class, "queue", "depth")).getValue());
+
+            // a third one fills a batch, the status updates collapsing into the last
+            dao.updateParserStatus("write-behind-0.csv", "PARSED");
+            long deadline = System.currentTimeMillis() + 10000;
+            while (jdbcTemplate.queryForObject(written, Integer.class) == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            Assert.assertEquals(1, jdbcTemplate.queryForObject(written, Integer.class).intValue());
+            Assert.assertEquals("PARSED", jdbcTemplate.queryForObject(parserStatus, String.class, "write-behind-0.csv"));
+
+            // a burst past capacity slowed down, not lost, and read back as written
+            for (int i = 1; i <= 20; i++)
+                dao.logFileUpload(upload.apply(i));
+            dao.updateParserStatus("write-behind-20.csv", "PARSED");
+            Assert.assertEquals("write-behind-20.csv", dao.getUploadLog("write-behind-20.csv").getFilename());
+            Assert.assertEquals("PARSED", jdbcTemplate.queryForObject(parserStatus, String.class, "write-behind-20.csv"));
+            Assert.assertEquals(0, writer.getQueued());
+            Assert.assertEquals(21, jdbcTemplate.queryForObject(written, Integer.class).intValue());
+
+            // one bad write costs only itself
+            UploadLog bad = upload.apply(21);
+            bad.setUploadtypeID(null);
+            dao.logFileUpload(bad);
+            dao.logFileUpload(upload.apply(22));
+            writer.flush();
+            Assert.assertEquals(1, writer.getFailedCount());
+            Assert.assertEquals(22, jdbcTemplate.queryForObject(written, Integer.class).intValue());
+
+            // written as queued, whatever the caller does with its log afterwards
+            UploadLog changed = upload.apply(23);
+            dao.logFileUpload(changed);
+            changed.setOriginalFilename("changed.csv");
+            // not flushed by a read inside a transaction, which would take a second connection
+            new TransactionTemplate(transactionManager).execute(status -> {
+                try {
+                    dao.getUploadLog("write-behind-23.csv");
+                    Assert.fail("flushed inside a transaction");
+                } catch (EmptyResultDataAccessException expected) {
+                }
+                return null;
+            });
+            Assert.assertEquals(1, writer.getQueued());
+            Assert.assertEquals("original-23.csv", dao.getUploadLog("write-behind-23.csv").getOriginalFilename());
+
+            // what is queued when closing is written, what comes after written directly
+            dao.logFileUpload(upload.apply(24));
+            writer.close();
+            Assert.assertEquals(24, jdbcTemplate.queryForObject(written, Integer.class).intValue());
+            dao.logFileUpload(upload.apply(25));
+            Assert.assertEquals(25, jdbcTemplate.queryForObject(written, Integer.class).intValue());
+            Assert.assertTrue(registry.getTimers().get(MetricRegistry.name(UploadLogWriteBehind.class, "flush")).getCount() > 0);
+
+            // while the database is down writes stay queued, up to capacity, and are written once it is back
+            AtomicBoolean down = new AtomicBoolean(true);
+            DataSource flaky = new DelegatingDataSource(dataSource) {
+                @Override
+                public Connection getConnection() throws SQLException {
+                    if (down.get())
+                        throw new SQLException("database down", "08006");
+                    return super.getConnection();
+                }
+            };
+            try (UploadLogWriteBehind outage = new UploadLogWriteBehind(flaky, 4, 3, TimeUnit.HOURS.toMillis(1))) {
+                for (int i = 26; i <= 28; i++)
+                    outage.logFileUpload(upload.apply(i));
+                try {
+                    outage.flush();
+                    Assert.fail("written while down");
+                } catch (CannotCreateTransactionException expected) {
+                }
+                outage.logFileUpload(upload.apply(29));
+                Assert.assertEquals(4, outage.getQueued());
+                try {
+                    outage.logFileUpload(upload.apply(30));
+                    Assert.fail("queued past capacity");
+                } catch (CannotCreateTransactionException expected) {
+                }
+                Assert.assertEquals(4, outage.getQueued());
+                Assert.assertEquals(0, outage.getFailedCount());
+
+                down.set(false);
+                outage.flush();
+                Assert.assertEquals(0, outage.getQueued());
+                Assert.assertEquals(29, jdbcTemplate.queryForObject(written, Integer.class).intValue());
+            }
+        } finally {
+            writer.close();
+            jdbcTemplate.update("DELETE FROM logs.feed_upload_log WHERE filename LIKE 'write-behind-%'");
+        }
+    }
+
+    @Test
+    @Transactional
+    @Rollback(true)
+    public void testBulkTagging(){
+        Account a = new Account();
+        a.setStatus(AccountStatus.ACTIVE);
+        a.setStatusUpdated(new Date());
+        a.setName("Bulk Tagging Business Unit");
+        a = mcmServiceDao.createBusinessUnit(a);
+
+        Product p = new Product();
+        p.setStatus(ProductStatus.ACTIVE);
+        p.setStatusUpdated(new Date());
+        p.setId("BTG");
+        p.setName("Bulk Tagging Product");
+        p = mcmServiceDao.createProduct(p);
+
+        Marketplace m = new Marketplace();
+        m.setName("Bulk Tagging Marketplace");
+        m.setStatus(MarketplaceStatus.ACTIVE);
+        m.setStatusUpdated(new Date());
+        m = mcmServiceDao.createMarketplace(m);
+
+        List<Campaign> campaigns = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            Campaign c = new Campaign();
+            c.setBusinessUnit(a.getId());
+            c.setProduct(p.getId());
+            c.setMarketplace(m.getId());
+            c.setTracker(p.getId() + "^btg00" + i);
+            c.setName("Bulk Tagging Campaign " + i);
+            c.setStatus(CampaignStatus.ACTIVE);
+            c.setStatusUpdated(new Date());
+            c.setType(CampaignType.CPC);
+            c.setCost(new Long(1));
+            campaigns.add(c);
+        }
+        mcmServiceDao.createCampaigns(campaigns);
+        String c1 = campaigns.get(0).getTracker();
+        String c2 = campaigns.get(1).getTracker();
+        String c3 = campaigns.get(2).getTracker();
+
+        TagGroup mutex = new TagGroup();
+        mutex.addApplicableTo(TagType.CAMPAIGN);
+        mutex.setMutex(true);
+        mutex = mcmServiceDao.createTagGroup(mutex);
+        Tag m1 = createTag(mutex, "BulkMutexTag1");
+        Tag m2 = createTag(mutex, "BulkMutexTag2");
+
+        TagGroup shared = new TagGroup();
+        shared.addApplicableTo(TagType.CAMPAIGN);
+        shared.setMutex(false);
+        shared = mcmServiceDao.createTagGroup(shared);
+        Tag s1 = createTag(shared, "BulkSharedTag1");
+        Tag s2 = createTag(shared, "BulkSharedTag2");
+
+        TagGroup products = new TagGroup();
+        products.addApplicableTo(TagType.PRODUCT);
+        products.setMutex(false);
+        products = mcmServiceDao.createTagGroup(products);
+        Tag pt = createTag(products, "BulkProductTag");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+
+        Map<String, Set<Tag>> tags = new LinkedHashMap<>();
+        tags.put(c1, new HashSet<>(Arrays.asList(m1, s1)));
+        tags.put(c2, new HashSet<>(Arrays.asList(m2, s1, s2)));
+        TaggingResult result = mcmServiceDao.tagCampaigns(tags);
+        Assert.assertEquals(2, result.getEntities());
+        Assert.assertEquals(5, result.getAdded());
+        Assert.assertEquals(0, result.getRemoved());
+        Assert.assertEquals(2, mcmServiceDao.listCampaignTags(c1).size());
+        Assert.assertEquals(3, mcmServiceDao.listCampaignTags(c2).size());
+        for (Map.Entry<Tag, SortedSet<Tag>> entry : mcmServiceDao.listCampaignTags(c1).entrySet()) {
+            List<Long> exclusions = entry.getValue().stream().map(Tag::getId).collect(Collectors.toList());
+            if (entry.getKey().getId().equals(m1.getId()))
+                Assert.assertEquals(Collections.singletonList(m2.getId()), exclusions);
+            else
+                Assert.assertEquals(Collections.emptyList(), exclusions);
+        }
+
+        // tags already carried are not added twice
+        result = mcmServiceDao.tagCampaigns(Collections.singletonMap(c1, Collections.singleton(s2)));
+        Assert.assertEquals(1, result.getAdded());
+
+        // c1 carries m1 already, c3 is asked for both tags of the mutex group, c4 does not exist,
+        // the product tag does not apply to campaigns: all reported, nothing written
+        Map<String, Set<Tag>> invalid = new LinkedHashMap<>();
+        invalid.put(c1, Collections.singleton(m2));
+        invalid.put(c3, new HashSet<>(Arrays.asList(m1, m2, s1)));
+        invalid.put(p.getId() + "^btg004", Collections.singleton(s1));
+        invalid.put(c2, Collections.singleton(pt));
+        try {
+            mcmServiceDao.tagCampaigns(invalid);
+            Assert.fail("expected a validation failure");
+        } catch (TagValidationException e) {
+            Assert.assertEquals(e.getViolations().toString(), 4, e.getViolations().size());
+        }
+        Assert.assertTrue(mcmServiceDao.listCampaignTags(c3).isEmpty());
+        Assert.assertEquals(3, jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM meta.campaign_tags WHERE campaign = ?", Integer.class, c1).intValue());
+
+        // replacing: the mutex tag may change, tags left out are removed
+        Map<String, Set<Tag>> retag = new LinkedHashMap<>();
+        retag.put(c1, new HashSet<>(Arrays.asList(m2, s1)));
+        retag.put(c2, Collections.emptySet());
+        retag.put(c3, Collections.singleton(s2));
+        result = mcmServiceDao.retagCampaigns(retag);
+        Assert.assertEquals(3, result.getEntities());
+        Assert.assertEquals(2, result.getAdded());
+        Assert.assertEquals(5, result.getRemoved());
+        Assert.assertEquals(Arrays.asList(m2.getId(), s1.getId()), jdbcTemplate.queryForList(
+                "SELECT tag FROM meta.campaign_tags WHERE campaign = ? ORDER BY tag", Long.class, c1));
+        Assert.assertTrue(mcmServiceDao.listCampaignTags(c2).isEmpty());
+        Assert.assertEquals(1, mcmServiceDao.listCampaignTags(c3).size());
+    }
 
+    private Tag createTag(TagGroup group, String value) {
+        Tag tag = new Tag();
+        tag.setGroup(group.getId());
+        tag.setValue(value);
+        return mcmServiceDao.createTag(tag);
     }
 }